@@ -15,6 +15,7 @@ import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
 import de.stephanlindauer.criticalmaps.model.TwitterModel;
 import de.stephanlindauer.criticalmaps.provider.StorageLocationProvider;
 import de.stephanlindauer.criticalmaps.service.ServerSyncService;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
 import okhttp3.OkHttpClient;
 
 @Singleton
@@ -33,6 +34,7 @@ public interface AppComponent {
     OkHttpClient okHttpClient();
     SharedPreferences sharedPreferences();
     StorageLocationProvider storageProvider();
+    TaskExecutors taskExecutors();
 
     @Component.Builder
     interface Builder {
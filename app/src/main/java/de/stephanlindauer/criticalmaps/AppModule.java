@@ -2,6 +2,8 @@ package de.stephanlindauer.criticalmaps;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.jakewharton.picasso.OkHttp3Downloader;
 import com.squareup.picasso.Picasso;
@@ -13,14 +15,23 @@ import javax.inject.Singleton;
 import dagger.Module;
 import dagger.Provides;
 import dagger.Reusable;
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.utils.GzipRequestInterceptor;
+import de.stephanlindauer.criticalmaps.utils.TrafficCountingInterceptor;
 import okhttp3.OkHttpClient;
 
 @Module
 abstract class AppModule {
     @Provides
     @Singleton
-    static OkHttpClient provideOKHttpClient() {
-        return new OkHttpClient.Builder().connectTimeout(15, TimeUnit.SECONDS).build();
+    static OkHttpClient provideOKHttpClient(NetworkTrafficModel networkTrafficModel) {
+        return new OkHttpClient.Builder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .addInterceptor(new TrafficCountingInterceptor(networkTrafficModel, false))
+                .addInterceptor(new GzipRequestInterceptor())
+                .addNetworkInterceptor(new TrafficCountingInterceptor(networkTrafficModel, true))
+                .build();
     }
 
     @Provides
@@ -34,4 +45,11 @@ abstract class AppModule {
     static SharedPreferences provideSharedPreferences(App app) {
         return app.getSharedPreferences("Main", Context.MODE_PRIVATE);
     }
+
+    @Provides
+    @Singleton
+    static TaskExecutors provideTaskExecutors() {
+        final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+        return new TaskExecutors(mainThreadHandler::post);
+    }
 }
@@ -48,9 +48,11 @@ import de.stephanlindauer.criticalmaps.handler.StartCameraHandler;
 import de.stephanlindauer.criticalmaps.helper.clientinfo.BuildInfo;
 import de.stephanlindauer.criticalmaps.helper.clientinfo.DeviceInformation;
 import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.ChatModel;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.FragmentProvider;
 import de.stephanlindauer.criticalmaps.service.ServerSyncService;
+import de.stephanlindauer.criticalmaps.service.SyncIntervalPolicy;
 import de.stephanlindauer.criticalmaps.utils.DrawerClosingDrawerLayoutListener;
 import de.stephanlindauer.criticalmaps.utils.ImageUtils;
 import de.stephanlindauer.criticalmaps.utils.IntentUtil;
@@ -72,6 +74,12 @@ public class Main extends AppCompatActivity implements NavigationView.OnNavigati
 
     @Inject
     SharedPreferences sharedPreferences;
+
+    @Inject
+    SyncIntervalPolicy syncIntervalPolicy;
+
+    @Inject
+    ChatModel chatModel;
     private final SharedPreferences.OnSharedPreferenceChangeListener sharedPreferenceChangeListener =
             (sharedPreferences, key) -> {
                 switch (key) {
@@ -144,6 +152,8 @@ public class Main extends AppCompatActivity implements NavigationView.OnNavigati
         setShowOnLockscreen();
         setKeepScreenOn();
 
+        // the newest stored chat messages, there before the first sync
+        chatModel.loadOlderMessages();
         ServerSyncService.startService();
     }
 
@@ -151,6 +161,7 @@ public class Main extends AppCompatActivity implements NavigationView.OnNavigati
     protected void onStart() {
         super.onStart();
         permissionCheckHandler.attachActivity(this);
+        syncIntervalPolicy.setForeground(true);
         sharedPreferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
         privacyPolicyAcceptedPreference = new BooleanPreference(sharedPreferences, SharedPrefsKeys.PRIVACY_POLICY_ACCEPTED);
     }
@@ -238,6 +249,7 @@ public class Main extends AppCompatActivity implements NavigationView.OnNavigati
     @Override
     protected void onStop() {
         permissionCheckHandler.detachActivity();
+        syncIntervalPolicy.setForeground(false);
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(
                 sharedPreferenceChangeListener);
         super.onStop();
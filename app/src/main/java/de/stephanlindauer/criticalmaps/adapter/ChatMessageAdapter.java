@@ -6,22 +6,29 @@ import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.text.DateFormat;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
 
+import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.databinding.ViewChatmessageBinding;
 import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
 import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.utils.TimeToWordStringConverter;
 
-public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.ChatMessageViewHolder> {
-
-    private List<IChatMessage> chatMessages;
+// Shows the older, received and outgoing messages in that order. Syncs that continue from what's
+// shown are applied with the ranges of their ChatChangeSet, everything else, like paging in older
+// messages or a missed snapshot, is diffed in the background.
+public class ChatMessageAdapter
+        extends RecyclerView.Adapter<ChatMessageAdapter.ChatMessageViewHolder> {
 
     static class ChatMessageViewHolder extends RecyclerView.ViewHolder {
         private final ViewChatmessageBinding binding;
@@ -37,12 +44,11 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         void bind(IChatMessage message) {
             binding.chatmessageMessageText.setText(message.getMessage());
             if (message instanceof ReceivedChatMessage) {
-                dateFormatter.setTimeZone(TimeZone.getDefault());
-                binding.chatmessageLabelText.setText(TimeToWordStringConverter.getTimeAgo(
-                        ((ReceivedChatMessage) message).getTimestamp(), itemView.getContext()));
+                bindTimeLabel((ReceivedChatMessage) message);
             } else {
                 binding.chatmessageLabelText.setText(R.string.chat_sending);
 
+                clearAnimation();
                 sendingAnimator = (ObjectAnimator) AnimatorInflater.loadAnimator(
                         itemView.getContext(), R.animator.map_gps_fab_searching_animation);
                 sendingAnimator.setTarget(binding.chatmessageLabelText);
@@ -50,16 +56,33 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
             }
         }
 
+        void bindTimeLabel(ReceivedChatMessage message) {
+            // was "sending" until the server listed it
+            clearAnimation();
+            dateFormatter.setTimeZone(TimeZone.getDefault());
+            binding.chatmessageLabelText.setText(TimeToWordStringConverter.getTimeAgo(
+                    message.getTimestamp(), itemView.getContext()));
+        }
+
         void clearAnimation() {
             if (sendingAnimator != null) {
                 sendingAnimator.cancel();
+                sendingAnimator = null;
                 binding.chatmessageLabelText.setAlpha(1f);
             }
         }
     }
 
-    public ChatMessageAdapter(List<IChatMessage> chatMessages) {
-        this.chatMessages = chatMessages;
+    private final ChatMessageDiffCallback itemCallback = new ChatMessageDiffCallback();
+    private final Executor backgroundExecutor = ListDiffing.backgroundExecutor();
+    private final Executor mainThreadExecutor = App.components().taskExecutors().mainThread();
+    private List<IChatMessage> messages = Collections.emptyList();
+    // counts updates, a background diff only lands if no update came after it
+    private int generation;
+    private boolean diffPending;
+
+    public ChatMessageAdapter() {
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -74,7 +97,19 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
 
     @Override
     public void onBindViewHolder(@NonNull ChatMessageViewHolder holder, int position) {
-        holder.bind(chatMessages.get(position));
+        holder.bind(getItem(position));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ChatMessageViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        final IChatMessage message = getItem(position);
+        if (payloads.isEmpty()) {
+            holder.bind(message);
+        } else if (message instanceof ReceivedChatMessage) {
+            // PAYLOAD_TIME_LABEL is the only payload there is
+            holder.bindTimeLabel((ReceivedChatMessage) message);
+        }
     }
 
     @Override
@@ -84,11 +119,137 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
 
     @Override
     public int getItemCount() {
-        return chatMessages.size();
+        return messages.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return ListDiffing.stableId(getItem(position).getIdentifier());
+    }
+
+    private IChatMessage getItem(int position) {
+        return messages.get(position);
+    }
+
+    // the difference is computed in the background, afterwards rows that stayed get their time
+    // label refreshed and onUpdated runs
+    public void updateData(List<IChatMessage> savedAndOutgoingMessages, Runnable onUpdated) {
+        final int diffGeneration = ++generation;
+        final List<IChatMessage> oldMessages = messages;
+        diffPending = true;
+        backgroundExecutor.execute(() -> {
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                    new ListCallback(oldMessages, savedAndOutgoingMessages));
+            mainThreadExecutor.execute(() -> {
+                if (diffGeneration != generation) {
+                    return;
+                }
+                diffPending = false;
+                messages = savedAndOutgoingMessages;
+                result.dispatchUpdatesTo(this);
+                refreshTimeLabels();
+                onUpdated.run();
+            });
+        });
+    }
+
+    // changes has to lead from the received messages shown to those in savedAndOutgoingMessages,
+    // which start at receivedStart in both, older messages before them have to be the same.
+    // The last outgoingCount are outgoing messages.
+    public void updateData(List<IChatMessage> savedAndOutgoingMessages, int receivedStart,
+                           int outgoingCount, ChatChangeSet changes, Runnable onUpdated) {
+        int removedCount = 0;
+        for (int i = 0; i < changes.getRemovedRangeCount(); i++) {
+            removedCount += changes.getRemovedRangeLength(i);
+        }
+        final int receivedCount = savedAndOutgoingMessages.size() - receivedStart - outgoingCount;
+        final int oldOutgoingStart =
+                receivedStart + receivedCount - changes.getInserted().size() + removedCount;
+        if (diffPending || receivedCount < 0
+                || oldOutgoingStart < receivedStart || oldOutgoingStart > messages.size()) {
+            // the ranges don't apply to what's shown
+            updateData(savedAndOutgoingMessages, onUpdated);
+            return;
+        }
+        generation++;
+        final List<IChatMessage> oldMessages = messages;
+        messages = savedAndOutgoingMessages;
+
+        // only a handful, replaced as a whole unless they're all still the same
+        final int outgoingStart = receivedStart + receivedCount;
+        final boolean outgoingChanged = !sameItems(oldMessages, oldOutgoingStart,
+                savedAndOutgoingMessages, outgoingStart, outgoingCount);
+        if (outgoingChanged) {
+            notifyItemRangeRemoved(oldOutgoingStart, oldMessages.size() - oldOutgoingStart);
+        }
+        for (int i = changes.getRemovedRangeCount() - 1; i >= 0; i--) {
+            notifyItemRangeRemoved(receivedStart + changes.getRemovedRangeStart(i),
+                    changes.getRemovedRangeLength(i));
+        }
+        for (int i = 0; i < changes.getInsertedRangeCount(); i++) {
+            notifyItemRangeInserted(receivedStart + changes.getInsertedRangeStart(i),
+                    changes.getInsertedRangeLength(i));
+        }
+        if (outgoingChanged) {
+            notifyItemRangeInserted(outgoingStart, outgoingCount);
+        }
+        refreshTimeLabels();
+        onUpdated.run();
+    }
+
+    public void refreshTimeLabels() {
+        notifyItemRangeChanged(0, getItemCount(), ListDiffing.PAYLOAD_TIME_LABEL);
     }
 
-    public void updateData(List<IChatMessage> savedAndOutgoingMessages) {
-        this.chatMessages = savedAndOutgoingMessages;
-        notifyDataSetChanged();
+    private boolean sameItems(List<IChatMessage> oldMessages, int oldStart,
+                              List<IChatMessage> newMessages, int newStart, int count) {
+        if (oldMessages.size() - oldStart != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!itemCallback.areItemsTheSame(oldMessages.get(oldStart + i),
+                    newMessages.get(newStart + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class ListCallback extends DiffUtil.Callback {
+        private final List<IChatMessage> oldMessages;
+        private final List<IChatMessage> newMessages;
+
+        ListCallback(List<IChatMessage> oldMessages, List<IChatMessage> newMessages) {
+            this.oldMessages = oldMessages;
+            this.newMessages = newMessages;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldMessages.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newMessages.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return itemCallback.areItemsTheSame(oldMessages.get(oldPosition),
+                    newMessages.get(newPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return itemCallback.areContentsTheSame(oldMessages.get(oldPosition),
+                    newMessages.get(newPosition));
+        }
+
+        @Override
+        public Object getChangePayload(int oldPosition, int newPosition) {
+            return itemCallback.getChangePayload(oldMessages.get(oldPosition),
+                    newMessages.get(newPosition));
+        }
     }
 }
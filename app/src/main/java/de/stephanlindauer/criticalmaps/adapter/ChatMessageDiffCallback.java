@@ -0,0 +1,43 @@
+package de.stephanlindauer.criticalmaps.adapter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+
+import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+
+// An outgoing message and the received one the server lists for it share the identifier, so
+// acknowledging a message only swaps "sending" for its time label.
+class ChatMessageDiffCallback extends DiffUtil.ItemCallback<IChatMessage> {
+
+    @Override
+    public boolean areItemsTheSame(@NonNull IChatMessage oldItem, @NonNull IChatMessage newItem) {
+        return oldItem.getIdentifier().equals(newItem.getIdentifier());
+    }
+
+    @Override
+    public boolean areContentsTheSame(@NonNull IChatMessage oldItem,
+                                      @NonNull IChatMessage newItem) {
+        return oldItem.getClass() == newItem.getClass()
+                && ListDiffing.equal(oldItem.getMessage(), newItem.getMessage())
+                && ListDiffing.equal(timestampOf(oldItem), timestampOf(newItem));
+    }
+
+    @Nullable
+    @Override
+    public Object getChangePayload(@NonNull IChatMessage oldItem, @NonNull IChatMessage newItem) {
+        if (newItem instanceof ReceivedChatMessage
+                && ListDiffing.equal(oldItem.getMessage(), newItem.getMessage())) {
+            return ListDiffing.PAYLOAD_TIME_LABEL;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Object timestampOf(IChatMessage message) {
+        // outgoing messages show "sending" instead of a time
+        return message instanceof ReceivedChatMessage
+                ? ((ReceivedChatMessage) message).getTimestamp() : null;
+    }
+}
@@ -0,0 +1,51 @@
+package de.stephanlindauer.criticalmaps.adapter;
+
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.util.concurrent.Executor;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
+
+// Shared by the list adapters: differences are computed on the CPU pool instead of the main
+// thread, rows that only need a new "x minutes ago" label get PAYLOAD_TIME_LABEL instead of a
+// full rebind.
+final class ListDiffing {
+
+    static final Object PAYLOAD_TIME_LABEL = new Object();
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ListDiffing() {
+    }
+
+    static <T> AsyncDifferConfig<T> backgroundConfig(DiffUtil.ItemCallback<T> itemCallback) {
+        return new AsyncDifferConfig.Builder<>(itemCallback)
+                .setBackgroundThreadExecutor(backgroundExecutor())
+                .build();
+    }
+
+    static Executor backgroundExecutor() {
+        final TaskExecutors taskExecutors = App.components().taskExecutors();
+        // what's on screen is waiting for it, don't queue behind image processing
+        return runnable -> taskExecutors.submit(TaskPool.CPU, TaskPriority.HIGH, runnable);
+    }
+
+    // 64 bit FNV-1a, String.hashCode() collides too easily for a few thousand identifiers
+    static long stableId(String identifier) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < identifier.length(); i++) {
+            hash ^= identifier.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static boolean equal(Object one, Object other) {
+        return one == null ? other == null : one.equals(other);
+    }
+}
@@ -11,6 +11,7 @@ import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.List;
@@ -26,11 +27,11 @@ import de.stephanlindauer.criticalmaps.views.CircleTransformation;
 
 import static android.text.Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
 
-public class TweetAdapter extends RecyclerView.Adapter<TweetAdapter.TweetViewHolder> {
-    private List<Tweet> tweets;
+public class TweetAdapter extends ListAdapter<Tweet, TweetAdapter.TweetViewHolder> {
 
-    public TweetAdapter(List<Tweet> tweets) {
-        this.tweets = tweets;
+    public TweetAdapter() {
+        super(ListDiffing.backgroundConfig(new TweetDiffCallback()));
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -43,17 +44,34 @@ public class TweetAdapter extends RecyclerView.Adapter<TweetAdapter.TweetViewHol
 
     @Override
     public void onBindViewHolder(@NonNull TweetViewHolder holder, int position) {
-        holder.bind(tweets.get(position));
+        holder.bind(getItem(position));
     }
 
     @Override
-    public int getItemCount() {
-        return tweets.size();
+    public void onBindViewHolder(@NonNull TweetViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            holder.bind(getItem(position));
+        } else {
+            // PAYLOAD_TIME_LABEL is the only payload there is, avatar and text stay as they are
+            holder.bindTimeLabel(getItem(position));
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        final String tweetId = getItem(position).getTweetId();
+        try {
+            return Long.parseLong(tweetId);
+        } catch (NumberFormatException e) {
+            return ListDiffing.stableId(String.valueOf(tweetId));
+        }
     }
 
     public void updateData(List<Tweet> tweets) {
-        this.tweets = tweets;
-        notifyDataSetChanged();
+        // rows that stayed still need their "x minutes ago" labels moved on
+        submitList(tweets, () -> notifyItemRangeChanged(
+                0, getItemCount(), ListDiffing.PAYLOAD_TIME_LABEL));
     }
 
     static class TweetViewHolder extends RecyclerView.ViewHolder {
@@ -95,8 +113,7 @@ public class TweetAdapter extends RecyclerView.Adapter<TweetAdapter.TweetViewHol
             }
             binding.tweetContentText.setText(spannableBuilder);
 
-            binding.tweetCreationDateTimeText.setText(
-                    TimeToWordStringConverter.getTimeAgoShort(tweet.getTimestamp(), context));
+            bindTimeLabel(tweet);
 
             binding.tweetUserHandleText.setText(String.format(
                     context.getString(R.string.twitter_handle), tweet.getUserScreenName()));
@@ -106,5 +123,10 @@ public class TweetAdapter extends RecyclerView.Adapter<TweetAdapter.TweetViewHol
                             Uri.parse("https://twitter.com/" + tweet.getUserScreenName()
                                     + "/status/" + tweet.getTweetId()))));
         }
+
+        void bindTimeLabel(Tweet tweet) {
+            binding.tweetCreationDateTimeText.setText(TimeToWordStringConverter.getTimeAgoShort(
+                    tweet.getTimestamp(), itemView.getContext()));
+        }
     }
 }
@@ -0,0 +1,35 @@
+package de.stephanlindauer.criticalmaps.adapter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+
+import de.stephanlindauer.criticalmaps.model.twitter.Tweet;
+
+// Tweets are parsed anew on every refresh, so they're compared field by field.
+class TweetDiffCallback extends DiffUtil.ItemCallback<Tweet> {
+
+    @Override
+    public boolean areItemsTheSame(@NonNull Tweet oldItem, @NonNull Tweet newItem) {
+        return ListDiffing.equal(oldItem.getTweetId(), newItem.getTweetId());
+    }
+
+    @Override
+    public boolean areContentsTheSame(@NonNull Tweet oldItem, @NonNull Tweet newItem) {
+        return sameExceptTimestamp(oldItem, newItem)
+                && ListDiffing.equal(oldItem.getTimestamp(), newItem.getTimestamp());
+    }
+
+    @Nullable
+    @Override
+    public Object getChangePayload(@NonNull Tweet oldItem, @NonNull Tweet newItem) {
+        return sameExceptTimestamp(oldItem, newItem) ? ListDiffing.PAYLOAD_TIME_LABEL : null;
+    }
+
+    private static boolean sameExceptTimestamp(Tweet oldItem, Tweet newItem) {
+        return ListDiffing.equal(oldItem.getText(), newItem.getText())
+                && ListDiffing.equal(oldItem.getUserName(), newItem.getUserName())
+                && ListDiffing.equal(oldItem.getUserScreenName(), newItem.getUserScreenName())
+                && ListDiffing.equal(oldItem.getProfileImageUrl(), newItem.getProfileImageUrl());
+    }
+}
@@ -5,4 +5,6 @@ public final class Events {
     public final static NewServerResponseEvent NEW_SERVER_RESPONSE_EVENT = new NewServerResponseEvent();
     public final static NetworkConnectivityChangedEvent NETWORK_CONNECTIVITY_CHANGED_EVENT = new NetworkConnectivityChangedEvent();
     public final static GpsStatusChangedEvent GPS_STATUS_CHANGED_EVENT = new GpsStatusChangedEvent();
+    public final static NewOutgoingChatMessageEvent NEW_OUTGOING_CHAT_MESSAGE_EVENT = new NewOutgoingChatMessageEvent();
+    public final static OlderChatMessagesLoadedEvent OLDER_CHAT_MESSAGES_LOADED_EVENT = new OlderChatMessagesLoadedEvent();
 }
@@ -0,0 +1,4 @@
+package de.stephanlindauer.criticalmaps.events;
+
+public final class OlderChatMessagesLoadedEvent {
+}
@@ -32,14 +32,21 @@ import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.adapter.ChatMessageAdapter;
 import de.stephanlindauer.criticalmaps.databinding.FragmentChatBinding;
+import de.stephanlindauer.criticalmaps.events.Events;
 import de.stephanlindauer.criticalmaps.events.NetworkConnectivityChangedEvent;
 import de.stephanlindauer.criticalmaps.events.NewServerResponseEvent;
+import de.stephanlindauer.criticalmaps.events.OlderChatMessagesLoadedEvent;
 import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
 import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
 
 public class ChatFragment extends Fragment {
+    // rows left above the first visible one when the next page of history is loaded
+    private static final int LOAD_OLDER_THRESHOLD = ChatModel.PAGE_SIZE / 2;
+
     @Inject
     ChatModel chatModel;
 
@@ -49,6 +56,10 @@ public class ChatFragment extends Fragment {
     private boolean isTextInputEnabled = true;
     private ChatMessageAdapter chatMessageAdapter;
     private FragmentChatBinding binding;
+    // what the adapter shows, see displayNewData()
+    private long displayedRevision = -1;
+    private List<OutgoingChatMessage> displayedOutgoingMessages;
+    private List<ReceivedChatMessage> displayedOlderMessages;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
@@ -58,7 +69,16 @@ public class ChatFragment extends Fragment {
         App.components().inject(this);
         binding = FragmentChatBinding.inflate(inflater, container, false);
 
-        binding.chatMessagesRecyclerview.setLayoutManager(new LinearLayoutManager(getContext()));
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        binding.chatMessagesRecyclerview.setLayoutManager(layoutManager);
+        binding.chatMessagesRecyclerview.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() < LOAD_OLDER_THRESHOLD) {
+                    chatModel.loadOlderMessages();
+                }
+            }
+        });
         return binding.getRoot();
     }
 
@@ -66,8 +86,9 @@ public class ChatFragment extends Fragment {
     public void onActivityCreated(final Bundle savedState) {
         super.onActivityCreated(savedState);
 
-        chatMessageAdapter = new ChatMessageAdapter(new ArrayList<>());
+        chatMessageAdapter = new ChatMessageAdapter();
         binding.chatMessagesRecyclerview.setAdapter(chatMessageAdapter);
+        displayedRevision = -1;
         displayNewData();
 
         binding.chatMessageTextinputlayout.setCounterMaxLength(IChatMessage.MAX_LENGTH);
@@ -131,17 +152,58 @@ public class ChatFragment extends Fragment {
         }
 
         chatModel.setNewOutgoingMessage(new OutgoingChatMessage(message));
+        // sends right away instead of waiting for the next regular sync
+        eventBus.post(Events.NEW_OUTGOING_CHAT_MESSAGE_EVENT);
 
         binding.chatMessageEdittext.setText("");
         displayNewData();
     }
 
     private void displayNewData() {
+        final ChatChangeSet changes = chatModel.getChatChanges();
+        final List<OutgoingChatMessage> outgoingMessages = chatModel.getOutgoingMessages();
+        final List<ReceivedChatMessage> olderMessages = chatModel.getOlderMessages();
+        if (changes.getToRevision() == displayedRevision
+                && outgoingMessages == displayedOutgoingMessages
+                && olderMessages == displayedOlderMessages) {
+            // only the "x minutes ago" labels moved on
+            chatMessageAdapter.refreshTimeLabels();
+            return;
+        }
+
         final List<IChatMessage> savedAndOutgoingMessages = chatModel.getSavedAndOutgoingMessages();
-        chatMessageAdapter.updateData(savedAndOutgoingMessages);
+        // someone reading older messages keeps their place
+        final Runnable onUpdated =
+                isShowingNewestMessage() ? this::scrollToNewestMessage : () -> { };
+        final ChatChangeSet applied = changes.getToRevision() == displayedRevision
+                ? ChatChangeSet.none(displayedRevision) : changes;
+        if (applied.getFromRevision() == displayedRevision
+                && olderMessages == displayedOlderMessages) {
+            chatMessageAdapter.updateData(savedAndOutgoingMessages, olderMessages.size(),
+                    outgoingMessages.size(), applied, onUpdated);
+        } else {
+            chatMessageAdapter.updateData(savedAndOutgoingMessages, onUpdated);
+        }
+        displayedRevision = changes.getToRevision();
+        displayedOutgoingMessages = outgoingMessages;
+        displayedOlderMessages = olderMessages;
+    }
 
-        if (binding.chatMessagesRecyclerview.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
-            binding.chatMessagesRecyclerview.scrollToPosition(savedAndOutgoingMessages.size() - 1);
+    private boolean isShowingNewestMessage() {
+        final LinearLayoutManager layoutManager =
+                (LinearLayoutManager) binding.chatMessagesRecyclerview.getLayoutManager();
+        final int itemCount = chatMessageAdapter.getItemCount();
+        return itemCount == 0 || layoutManager.findLastVisibleItemPosition() >= itemCount - 1;
+    }
+
+    private void scrollToNewestMessage() {
+        // runs once the difference is applied, the view may be gone by then
+        if (binding == null) {
+            return;
+        }
+        final RecyclerView recyclerView = binding.chatMessagesRecyclerview;
+        if (recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+            recyclerView.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
         }
     }
 
@@ -171,6 +233,12 @@ public class ChatFragment extends Fragment {
         displayNewData();
     }
 
+    @SuppressWarnings("unused")
+    @Subscribe
+    public void handleOlderChatMessagesLoaded(OlderChatMessagesLoadedEvent e) {
+        displayNewData();
+    }
+
     @SuppressWarnings("unused")
     @Subscribe
     public void handleNetworkConnectivityChanged(NetworkConnectivityChangedEvent e) {
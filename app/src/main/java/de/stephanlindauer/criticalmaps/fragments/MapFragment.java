@@ -30,7 +30,6 @@ import com.squareup.otto.Subscribe;
 import org.osmdroid.tileprovider.modules.SqlTileWriter;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
-import org.osmdroid.views.overlay.Overlay;
 import org.osmdroid.views.overlay.gestures.RotationGestureOverlay;
 import org.osmdroid.views.overlay.infowindow.InfoWindow;
 
@@ -48,11 +47,15 @@ import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
 import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
 import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
 import de.stephanlindauer.criticalmaps.overlays.LocationMarker;
+import de.stephanlindauer.criticalmaps.overlays.RiderOverlay;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.service.SyncIntervalPolicy;
 import de.stephanlindauer.criticalmaps.utils.AlertBuilder;
+import de.stephanlindauer.criticalmaps.utils.MapRefreshScheduler;
 import de.stephanlindauer.criticalmaps.utils.MapViewUtils;
 import info.metadude.android.typedpreferences.BooleanPreference;
+import timber.log.Timber;
 
 public class MapFragment extends Fragment {
     private final static String KEY_MAP_ZOOMLEVEL = "map_zoomlevel";
@@ -81,8 +84,17 @@ public class MapFragment extends Fragment {
     @Inject
     SharedPreferences sharedPreferences;
 
+    @Inject
+    SyncIntervalPolicy syncIntervalPolicy;
+
+    private final MapRefreshScheduler refreshScheduler =
+            new MapRefreshScheduler(this::refreshLayers);
+
     private MapView mapView;
     private InfoWindow observerInfoWindow;
+    private RiderOverlay riderOverlay;
+    private LocationMarker ownLocationMarker;
+    private Boolean ownLocationMarkerObserverMode;
 
     private final GeoPoint defaultGeoPoint = new GeoPoint(52.499571, 13.4140875, 15);
     private boolean isInitialLocationSet = false;
@@ -166,7 +178,7 @@ public class MapFragment extends Fragment {
     private final SharedPreferences.OnSharedPreferenceChangeListener observerModeOnSharedPreferenceChangeListener =
             (sharedPreferences, key) -> {
                 if (SharedPrefsKeys.OBSERVER_MODE_ACTIVE.equals(key)) {
-                    refreshView();
+                    refreshScheduler.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
                 }
             };
 
@@ -244,6 +256,16 @@ public class MapFragment extends Fragment {
         binding.mapSetNorthFab.setRotation(mapView.getMapOrientation());
 
         showGpxHandler.showGpx(mapView);
+
+        riderOverlay = new RiderOverlay(mapView, otherUsersLocationModel, locationIcon,
+                ContextCompat.getColor(getActivity(), R.color.map_rider_cluster_background),
+                ContextCompat.getColor(getActivity(), R.color.map_rider_cluster_foreground),
+                getResources().getDimension(R.dimen.map_rider_cluster_text_size));
+        mapView.getOverlays().add(riderOverlay);
+        refreshScheduler.markDirty(
+                MapRefreshScheduler.LAYER_RIDERS | MapRefreshScheduler.LAYER_OWN_LOCATION);
+        ownLocationMarker = null;
+        ownLocationMarkerObserverMode = null;
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
@@ -264,47 +286,55 @@ public class MapFragment extends Fragment {
         ViewCompat.requestApplyInsets(binding.mapOverlayContainerLayout);
     }
 
-    private void refreshView() {
-        for (Overlay overlay : mapView.getOverlays()) {
-            if (overlay instanceof LocationMarker) {
-                mapView.getOverlays().remove(overlay);
-            }
+    private void refreshLayers(int dirtyLayers) {
+        if (mapView == null) {
+            return;
         }
-
-        for (GeoPoint currentOtherUsersLocation : otherUsersLocationModel.getOtherUsersLocations()) {
-            LocationMarker otherPeoplesMarker = new LocationMarker(mapView);
-            otherPeoplesMarker.setPosition(currentOtherUsersLocation);
-            otherPeoplesMarker.setIcon(locationIcon);
-            mapView.getOverlays().add(otherPeoplesMarker);
+        if ((dirtyLayers & MapRefreshScheduler.LAYER_RIDERS) != 0) {
+            // riders have no overlay objects of their own to add, move or pool, a refresh just
+            // hands over the snapshot. The overlay estimates rider speed from consecutive
+            // revisions.
+            riderOverlay.setRiders(otherUsersLocationModel.getOtherUsersLocations(),
+                    otherUsersLocationModel.getRidersRevision(),
+                    otherUsersLocationModel.getRiderClusters());
+        }
+        if ((dirtyLayers & MapRefreshScheduler.LAYER_OWN_LOCATION) != 0) {
+            refreshOwnLocationMarker();
         }
+        mapView.invalidate();
+    }
 
+    private void refreshOwnLocationMarker() {
         if (ownLocationModel.ownLocation != null) {
-            GeoPoint currentUserLocation = ownLocationModel.ownLocation;
-            LocationMarker ownMarker = new LocationMarker(mapView);
-            ownMarker.setPosition(currentUserLocation);
-            if (new BooleanPreference(
-                    sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get()) {
-                ownMarker.setIcon(ownLocationIconObserver);
-                ownMarker.setInfoWindow(observerInfoWindow);
-                // since we're currently creating new markers on every refresh, this workaround
-                // is needed to update the info window's position if it's open
-                if (observerInfoWindow.isOpen()) {
-                    ownMarker.showInfoWindow();
+            if (ownLocationMarker == null) {
+                // added after the rider overlay so it's always drawn on top
+                ownLocationMarker = new LocationMarker(mapView);
+                mapView.getOverlays().add(ownLocationMarker);
+            }
+            // the marker is kept across refreshes, an open info window follows it on its own
+            ownLocationMarker.setPosition(ownLocationModel.ownLocation);
+            boolean observerMode = new BooleanPreference(
+                    sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get();
+            if (ownLocationMarkerObserverMode == null
+                    || ownLocationMarkerObserverMode != observerMode) {
+                if (observerMode) {
+                    ownLocationMarker.setIcon(ownLocationIconObserver);
+                    ownLocationMarker.setInfoWindow(observerInfoWindow);
+                } else {
+                    observerInfoWindow.close();
+                    ownLocationMarker.setIcon(ownLocationIcon);
+                    ownLocationMarker.setInfoWindow(null);
                 }
-            } else {
-                observerInfoWindow.close();
-                ownMarker.setIcon(ownLocationIcon);
+                ownLocationMarkerObserverMode = observerMode;
             }
-            mapView.getOverlays().add(ownMarker);
         }
-
-        mapView.invalidate();
     }
 
     @Override
     public void onResume() {
         super.onResume();
         eventBus.register(this);
+        syncIntervalPolicy.setMapVisible(true);
 
         sharedPreferences.registerOnSharedPreferenceChangeListener(
                 observerModeOnSharedPreferenceChangeListener);
@@ -336,23 +366,33 @@ public class MapFragment extends Fragment {
     public void onPause() {
         super.onPause();
         eventBus.unregister(this);
+        syncIntervalPolicy.setMapVisible(false);
 
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(
                 observerModeOnSharedPreferenceChangeListener);
+
+        Timber.d("Map refreshes: %d executed, %d coalesced",
+                refreshScheduler.getExecutedRefreshCount(),
+                refreshScheduler.getCoalescedRefreshCount());
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        refreshScheduler.cancel();
+        showGpxHandler.hideGpx();
         // properly closes the cache db since it's stored in a static field in osmdroid...
         ((SqlTileWriter) mapView.getTileProvider().getTileWriter()).refreshDb();
         mapView = null;
+        riderOverlay = null;
+        ownLocationMarker = null;
+        ownLocationMarkerObserverMode = null;
         binding = null;
     }
 
     @Subscribe
     public void handleNewServerData(NewServerResponseEvent e) {
-        refreshView();
+        refreshScheduler.markDirty(MapRefreshScheduler.LAYER_RIDERS);
     }
 
     @Subscribe
@@ -362,7 +402,7 @@ public class MapFragment extends Fragment {
             handleFirstLocationUpdate();
         }
 
-        refreshView();
+        refreshScheduler.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
     }
 
     @Subscribe
@@ -3,11 +3,10 @@ package de.stephanlindauer.criticalmaps.fragments;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,6 +19,7 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -27,13 +27,15 @@ import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.databinding.FragmentSettingsBinding;
 import de.stephanlindauer.criticalmaps.handler.ChooseGpxFileHandler;
+import de.stephanlindauer.criticalmaps.handler.ShowGpxHandler;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxLayer;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.StorageLocationProvider;
 import de.stephanlindauer.criticalmaps.vo.RequestCodes;
 import info.metadude.android.typedpreferences.BooleanPreference;
-import info.metadude.android.typedpreferences.StringPreference;
 import timber.log.Timber;
 
+import static de.stephanlindauer.criticalmaps.utils.GpxUtils.displayName;
 import static de.stephanlindauer.criticalmaps.utils.GpxUtils.persistPermissionOnFile;
 
 public class SettingsFragment extends Fragment {
@@ -48,6 +50,9 @@ public class SettingsFragment extends Fragment {
     @Inject
     App app;
 
+    @Inject
+    ShowGpxHandler showGpxHandler;
+
     @Override
     @Nullable
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -73,7 +78,7 @@ public class SettingsFragment extends Fragment {
         updateClearCachePref();
         updateStorageGraph();
         updateChooseStoragePref();
-        updateGpxFileName();
+        updateGpxLayersSummary();
 
         binding.settingsShowOnLockscreenCheckbox.setChecked(
                 new BooleanPreference(sharedPreferences, SharedPrefsKeys.SHOW_ON_LOCKSCREEN).get());
@@ -120,11 +125,11 @@ public class SettingsFragment extends Fragment {
             if (fileUri == null) {
                 return;
             }
-            String gpxFile = fileUri.toString();
-            new StringPreference(
-                    sharedPreferences, SharedPrefsKeys.GPX_FILE).set(gpxFile);
             persistPermissionOnFile(data, app.getContentResolver());
-            updateGpxFileName();
+            // starts reading while still in the settings
+            showGpxHandler.addLayer(fileUri.toString(),
+                    displayName(app.getContentResolver(), fileUri));
+            updateGpxLayersSummary();
         }
     }
 
@@ -165,19 +170,18 @@ public class SettingsFragment extends Fragment {
                 storageLocationProvider.getActiveStorageLocation().displayName);
     }
 
-    private void updateGpxFileName() {
-        String gpxFile = new StringPreference(
-                sharedPreferences, SharedPrefsKeys.GPX_FILE).get();
-        String filename = gpxFile;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            Cursor fileCursor = getContext().getContentResolver().query(Uri.parse(gpxFile), null, null, null);
-            if (fileCursor != null) {
-                fileCursor.moveToFirst();
-                filename = fileCursor.getString(fileCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
-                fileCursor.close();
+    private void updateGpxLayersSummary() {
+        List<String> names = new ArrayList<>();
+        for (GpxLayer layer : showGpxHandler.getLayers()) {
+            if (layer.isVisible()) {
+                names.add(layer.getName());
             }
         }
-        binding.settingsChooseGpxSummaryText.setText(filename);
+        if (names.isEmpty()) {
+            binding.settingsChooseGpxSummaryText.setText(R.string.settings_gpx_file_default);
+        } else {
+            binding.settingsChooseGpxSummaryText.setText(TextUtils.join(", ", names));
+        }
     }
 
     void handleClearCacheClicked() {
@@ -266,11 +270,45 @@ public class SettingsFragment extends Fragment {
     void handleShowTrack(boolean isChecked) {
         new BooleanPreference(
                 sharedPreferences, SharedPrefsKeys.SHOW_GPX).set(isChecked);
+        showGpxHandler.updateLayers();
     }
 
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
     void handleChooseTrackClicked() {
-        new ChooseGpxFileHandler(this).openChooser();
+        // a copy, so positions stay put while the dialog changes the layers
+        List<GpxLayer> layers = new ArrayList<>(showGpxHandler.getLayers());
+        if (layers.isEmpty()) {
+            new ChooseGpxFileHandler(this).openChooser();
+            return;
+        }
+
+        String[] names = new String[layers.size()];
+        boolean[] visible = new boolean[layers.size()];
+        for (int i = 0; i < layers.size(); i++) {
+            names[i] = layers.get(i).getName();
+            visible[i] = layers.get(i).isVisible();
+        }
+
+        //noinspection ConstantConditions
+        new AlertDialog.Builder(getActivity(), R.style.AlertDialogTheme)
+                .setTitle(R.string.settings_choose_gpx_subheading)
+                .setMultiChoiceItems(names, visible, (dialog, which, isChecked) -> {
+                    showGpxHandler.setLayerVisible(layers.get(which), isChecked);
+                    updateGpxLayersSummary();
+                })
+                .setPositiveButton(R.string.ok, null)
+                .setNeutralButton(R.string.gpx_add,
+                        (dialog, which) -> new ChooseGpxFileHandler(this).openChooser())
+                .setNegativeButton(R.string.gpx_remove_hidden, (dialog, which) -> {
+                    for (GpxLayer layer : layers) {
+                        if (!layer.isVisible()) {
+                            showGpxHandler.removeLayer(layer);
+                        }
+                    }
+                    updateGpxLayersSummary();
+                })
+                .create()
+                .show();
     }
 
     @Override
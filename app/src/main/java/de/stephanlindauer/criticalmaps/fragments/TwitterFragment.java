@@ -10,8 +10,6 @@ import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.ArrayList;
-
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.adapter.TweetAdapter;
@@ -42,7 +40,7 @@ public class TwitterFragment extends Fragment {
     public void onActivityCreated(final Bundle savedState) {
         super.onActivityCreated(savedState);
 
-        tweetAdapter = new TweetAdapter(new ArrayList<>());
+        tweetAdapter = new TweetAdapter();
         binding.twitterTweetsRecyclerview.setAdapter(tweetAdapter);
         binding.twitterTweetsRecyclerview.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
@@ -0,0 +1,283 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Utf8;
+
+// Compact alternative to the JSON sync response, requested via the Accept header and used
+// whenever the server answers with MEDIA_TYPE as Content-Type. It carries exactly what the
+// JSON response does (including the delta fields from DeltaSyncState) and feeds the same Sink:
+//
+//   response  := formatVersion:byte flags:varint [version] [baseVersion]
+//                [locations] [removedLocations] [chatMessages] [removedChatMessages]
+//   locations := count { key latitudeE6Delta:zigzag longitudeE6Delta:zigzag }
+//   chat      := count { key timestampSeconds:varint length:varint utf8 }
+//   removed   := count { key }
+//   key       := header:varint (byte length << 1 | hex flag) bytes
+//
+// Numbers are unsigned LEB128 varints, coordinates are sorted by latitude and sent as zigzag
+// deltas to the previous rider, which keeps them at two or three bytes each. Keys consisting of
+// lowercase hex (the 40 character SHA-1 device tokens) are sent as their 20 raw bytes.
+public final class BinarySyncFormat {
+
+    public static final String MEDIA_TYPE = "application/vnd.criticalmaps.sync";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_VERSION = 1;
+    private static final int FLAG_BASE_VERSION = 1 << 1;
+    private static final int FLAG_LOCATIONS = 1 << 2;
+    private static final int FLAG_REMOVED_LOCATIONS = 1 << 3;
+    private static final int FLAG_CHAT_MESSAGES = 1 << 4;
+    private static final int FLAG_REMOVED_CHAT_MESSAGES = 1 << 5;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinarySyncFormat() {
+    }
+
+    public static boolean isBinary(@Nullable MediaType contentType) {
+        return contentType != null
+                && MEDIA_TYPE.equals(contentType.type() + "/" + contentType.subtype());
+    }
+
+    public static void decode(BufferedSource source, ServerResponseDecoder.Sink sink)
+            throws IOException {
+        new Decoder(source).decode(sink);
+    }
+
+    // versions are left out when NO_VERSION, sections when null
+    public static void encode(BufferedSink sink, long version, long baseVersion,
+                              @Nullable RiderLocations locations,
+                              @Nullable List<String> removedLocations,
+                              @Nullable List<ReceivedChatMessage> chatMessages,
+                              @Nullable List<String> removedChatMessages) throws IOException {
+        int flags = 0;
+        if (version != DeltaSyncState.NO_VERSION) {
+            flags |= FLAG_VERSION;
+        }
+        if (baseVersion != DeltaSyncState.NO_VERSION) {
+            flags |= FLAG_BASE_VERSION;
+        }
+        if (locations != null) {
+            flags |= FLAG_LOCATIONS;
+        }
+        if (removedLocations != null) {
+            flags |= FLAG_REMOVED_LOCATIONS;
+        }
+        if (chatMessages != null) {
+            flags |= FLAG_CHAT_MESSAGES;
+        }
+        if (removedChatMessages != null) {
+            flags |= FLAG_REMOVED_CHAT_MESSAGES;
+        }
+
+        sink.writeByte(FORMAT_VERSION);
+        writeVarint(sink, flags);
+        if (version != DeltaSyncState.NO_VERSION) {
+            writeVarint(sink, version);
+        }
+        if (baseVersion != DeltaSyncState.NO_VERSION) {
+            writeVarint(sink, baseVersion);
+        }
+        if (locations != null) {
+            writeLocations(sink, locations);
+        }
+        if (removedLocations != null) {
+            writeKeys(sink, removedLocations);
+        }
+        if (chatMessages != null) {
+            writeVarint(sink, chatMessages.size());
+            for (int i = 0; i < chatMessages.size(); i++) {
+                ReceivedChatMessage message = chatMessages.get(i);
+                writeKey(sink, message.getIdentifier());
+                writeVarint(sink, message.getTimestamp().getTime() / 1000);
+                writeVarint(sink, Utf8.size(message.getMessage()));
+                sink.writeUtf8(message.getMessage());
+            }
+        }
+        if (removedChatMessages != null) {
+            writeKeys(sink, removedChatMessages);
+        }
+    }
+
+    private static void writeLocations(BufferedSink sink, RiderLocations locations)
+            throws IOException {
+        int count = locations.size();
+        // latitude in the upper half keeps the sort a primitive one
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) locations.getLatitudeE6(i) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        writeVarint(sink, count);
+        int previousLatitudeE6 = 0;
+        int previousLongitudeE6 = 0;
+        for (int i = 0; i < count; i++) {
+            int index = (int) order[i];
+            int latitudeE6 = locations.getLatitudeE6(index);
+            int longitudeE6 = locations.getLongitudeE6(index);
+            writeKey(sink, locations.getDeviceKey(index));
+            writeVarint(sink, zigzag(latitudeE6 - previousLatitudeE6));
+            writeVarint(sink, zigzag(longitudeE6 - previousLongitudeE6));
+            previousLatitudeE6 = latitudeE6;
+            previousLongitudeE6 = longitudeE6;
+        }
+    }
+
+    private static void writeKeys(BufferedSink sink, List<String> keys) throws IOException {
+        writeVarint(sink, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writeKey(sink, keys.get(i));
+        }
+    }
+
+    private static void writeKey(BufferedSink sink, String key) throws IOException {
+        if (isLowercaseHex(key)) {
+            writeVarint(sink, ((long) key.length() / 2) << 1 | 1);
+            for (int i = 0; i < key.length(); i += 2) {
+                sink.writeByte(Character.digit(key.charAt(i), 16) << 4
+                        | Character.digit(key.charAt(i + 1), 16));
+            }
+        } else {
+            writeVarint(sink, Utf8.size(key) << 1);
+            sink.writeUtf8(key);
+        }
+    }
+
+    private static boolean isLowercaseHex(String key) {
+        if (key.isEmpty() || key.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(BufferedSink sink, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            sink.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        sink.writeByte((int) value);
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static final class Decoder {
+        private final BufferedSource source;
+        // scratch space for hex keys, reused across riders
+        private char[] chars = new char[40];
+
+        Decoder(BufferedSource source) {
+            this.source = source;
+        }
+
+        void decode(ServerResponseDecoder.Sink sink) throws IOException {
+            int formatVersion = source.readByte() & 0xFF;
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported sync format version " + formatVersion);
+            }
+            long flags = readVarint();
+
+            if ((flags & FLAG_VERSION) != 0) {
+                sink.onVersion(readVarint());
+            }
+            if ((flags & FLAG_BASE_VERSION) != 0) {
+                sink.onBaseVersion(readVarint());
+            }
+            if ((flags & FLAG_LOCATIONS) != 0) {
+                sink.onLocationsStarted();
+                int latitudeE6 = 0;
+                int longitudeE6 = 0;
+                for (long count = readVarint(); count > 0; count--) {
+                    String deviceKey = readKey();
+                    latitudeE6 += unzigzag(readVarint());
+                    longitudeE6 += unzigzag(readVarint());
+                    sink.onRiderLocation(deviceKey, latitudeE6, longitudeE6);
+                }
+            }
+            if ((flags & FLAG_REMOVED_LOCATIONS) != 0) {
+                for (long count = readVarint(); count > 0; count--) {
+                    sink.onRiderRemoved(readKey());
+                }
+            }
+            if ((flags & FLAG_CHAT_MESSAGES) != 0) {
+                sink.onChatMessagesStarted();
+                for (long count = readVarint(); count > 0; count--) {
+                    String identifier = readKey();
+                    long timestampSeconds = readVarint();
+                    long length = readVarint();
+                    if (sink.onChatMessageIdentifier(identifier)) {
+                        sink.onChatMessage(
+                                identifier, source.readUtf8(length), timestampSeconds);
+                    } else {
+                        source.skip(length);
+                    }
+                }
+            }
+            if ((flags & FLAG_REMOVED_CHAT_MESSAGES) != 0) {
+                for (long count = readVarint(); count > 0; count--) {
+                    sink.onChatMessageRemoved(readKey());
+                }
+            }
+        }
+
+        private String readKey() throws IOException {
+            long header = readVarint();
+            long length = header >>> 1;
+            if ((header & 1) == 0) {
+                return source.readUtf8(length);
+            }
+            if (length * 2 > chars.length) {
+                if (length > Integer.MAX_VALUE / 2) {
+                    throw new IOException("Key too long: " + length);
+                }
+                chars = new char[(int) length * 2];
+            }
+            int byteCount = (int) length;
+            source.require(byteCount);
+            Buffer buffer = source.buffer();
+            for (int i = 0; i < byteCount; i++) {
+                byte b = buffer.readByte();
+                chars[i * 2] = HEX_DIGITS[(b >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX_DIGITS[b & 0xF];
+            }
+            return new String(chars, 0, byteCount * 2);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = source.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private static int unzigzag(long value) {
+            int n = (int) value;
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+}
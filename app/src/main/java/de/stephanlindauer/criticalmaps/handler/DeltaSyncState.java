@@ -0,0 +1,193 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
+import de.stephanlindauer.criticalmaps.model.chat.ChatHistory;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import timber.log.Timber;
+
+// Client side of the versioned delta sync. Requests carry the version of the last applied
+// response as "snapshotVersion". A server that knows that version answers with only the
+// changes since then:
+//
+//   {"version": 43, "baseVersion": 42,
+//    "locations": {upserted riders}, "removedLocations": ["deviceKey", ...],
+//    "chatMessages": {new messages}, "removedChatMessages": ["identifier", ...]}
+//
+// Without "baseVersion" a response is a full snapshot like before, servers without delta
+// support simply never send one. Deltas are merged into a mirror of the server state kept
+// here, if a delta doesn't build on our version it's dropped and the next request asks for a
+// full snapshot again. The chat mirror outlives that, it also tells the decoders which
+// messages are already known and don't need to be decoded again.
+//
+// The rider mirror is the published buffer itself. A delta is merged into the spare buffer
+// OtherUsersLocationModel hands back, which usually is the one published before: it's one
+// delta behind, so catching it up replays the previous delta instead of copying every rider.
+// Any other buffer gets a copy first.
+//
+// Only touched from the sync thread, TaskPool.SYNC runs one task at a time.
+@Singleton
+public class DeltaSyncState {
+
+    public static final long NO_VERSION = -1;
+
+    private long version = NO_VERSION;
+    // published last and read-only since, null until a response had locations
+    @Nullable
+    private RiderLocationBuffer riders;
+    // published before riders, the last rider delta behind it
+    @Nullable
+    private RiderLocationBuffer previousRiders;
+    private final ArrayList<String> lastRemovedRiders = new ArrayList<>();
+    private final RiderLocationBuffer lastUpsertedRiders = new RiderLocationBuffer();
+    // responses are decoded into it, full snapshots are then published as they are
+    private RiderLocationBuffer decodeBuffer = new RiderLocationBuffer();
+    private final ChatHistory chatHistory = new ChatHistory();
+    private ChatChangeSet chatChanges = ChatChangeSet.none(0);
+
+    private long fullResponseCount;
+    private long fullResponseBytes;
+    private long deltaResponseCount;
+    private long deltaResponseBytes;
+    private long divergedResponseCount;
+
+    @Inject
+    public DeltaSyncState() {
+    }
+
+    // the version to send with the next request
+    public long getVersion() {
+        return version;
+    }
+
+    // cleared, owned by the caller until the response is applied
+    RiderLocationBuffer obtainDecodeBuffer() {
+        decodeBuffer.clear();
+        return decodeBuffer;
+    }
+
+    // takes the place of a decode buffer that was published with a full snapshot
+    void recycleDecodeBuffer(RiderLocationBuffer buffer) {
+        decodeBuffer = buffer;
+    }
+
+    // brings target, any buffer not published anymore, up to date with the delta. Returns
+    // false and forgets our version if the delta can't be applied, target is left as it was.
+    boolean applyDelta(long baseVersion, long newVersion, RiderLocationBuffer target,
+                       RiderLocations upsertedRiders, List<String> removedRiders,
+                       List<ReceivedChatMessage> upsertedMessages, List<String> removedMessages,
+                       long responseBytes) {
+        if (version == NO_VERSION || baseVersion != version) {
+            Timber.d("Delta for version %d doesn't apply to %d, requesting full snapshot",
+                    baseVersion, version);
+            version = NO_VERSION;
+            divergedResponseCount++;
+            return false;
+        }
+
+        if (target == previousRiders) {
+            applyRiderChanges(target, lastRemovedRiders, lastUpsertedRiders);
+        } else if (target != riders) {
+            target.clear();
+            if (riders != null) {
+                target.addAll(riders);
+            }
+        }
+        applyRiderChanges(target, removedRiders, upsertedRiders);
+        lastRemovedRiders.clear();
+        lastRemovedRiders.addAll(removedRiders);
+        lastUpsertedRiders.clear();
+        lastUpsertedRiders.addAll(upsertedRiders);
+        previousRiders = target != riders ? riders : null;
+        riders = target;
+
+        chatChanges = chatHistory.apply(removedMessages, upsertedMessages);
+
+        version = newVersion;
+        deltaResponseCount++;
+        deltaResponseBytes += responseBytes;
+        logTraffic("delta", responseBytes);
+        return true;
+    }
+
+    // sections that are null weren't part of the response and are kept as they are,
+    // allRiders is published as it is, newMessages only has to hold the chat messages that
+    // weren't known yet
+    void applyFullSnapshot(long newVersion, @Nullable RiderLocationBuffer allRiders,
+                           @Nullable Set<String> chatMessageIdentifiers,
+                           @Nullable List<ReceivedChatMessage> newMessages, long responseBytes) {
+        if (allRiders != null) {
+            riders = allRiders;
+            previousRiders = null;
+        }
+        if (chatMessageIdentifiers != null && newMessages != null) {
+            chatChanges = chatHistory.replace(chatMessageIdentifiers, newMessages);
+        } else {
+            chatChanges = ChatChangeSet.none(chatHistory.getRevision());
+        }
+
+        version = newVersion;
+        fullResponseCount++;
+        fullResponseBytes += responseBytes;
+        logTraffic("full", responseBytes);
+    }
+
+    private static void applyRiderChanges(RiderLocationBuffer target, List<String> removed,
+                                          RiderLocations upserted) {
+        for (int i = 0; i < removed.size(); i++) {
+            target.remove(removed.get(i));
+        }
+        target.addAll(upserted);
+    }
+
+    boolean isKnownChatMessage(String identifier) {
+        return chatHistory.contains(identifier);
+    }
+
+    // sorted by timestamp, unmodifiable
+    List<ReceivedChatMessage> getChatMessages() {
+        return chatHistory.getMessages();
+    }
+
+    // what the last applied response changed
+    ChatChangeSet getChatChanges() {
+        return chatChanges;
+    }
+
+    public long getFullResponseCount() {
+        return fullResponseCount;
+    }
+
+    public long getFullResponseBytes() {
+        return fullResponseBytes;
+    }
+
+    public long getDeltaResponseCount() {
+        return deltaResponseCount;
+    }
+
+    public long getDeltaResponseBytes() {
+        return deltaResponseBytes;
+    }
+
+    public long getDivergedResponseCount() {
+        return divergedResponseCount;
+    }
+
+    private void logTraffic(String kind, long responseBytes) {
+        Timber.d("Sync %s response: %d bytes (full: %d responses, %d bytes; "
+                        + "delta: %d responses, %d bytes; diverged: %d)",
+                kind, responseBytes, fullResponseCount, fullResponseBytes,
+                deltaResponseCount, deltaResponseBytes, divergedResponseCount);
+    }
+}
@@ -2,7 +2,6 @@ package de.stephanlindauer.criticalmaps.handler;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
-import android.os.AsyncTask;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -12,6 +11,9 @@ import java.io.IOException;
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
 import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.tasks.BackgroundTask;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
 import de.stephanlindauer.criticalmaps.utils.AlertBuilder;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 import de.stephanlindauer.criticalmaps.vo.ResultType;
@@ -27,7 +29,7 @@ import okio.ForwardingSink;
 import okio.Okio;
 
 
-public class ImageUploadHandler extends AsyncTask<Void, Integer, ResultType> {
+public class ImageUploadHandler extends BackgroundTask<Integer, ResultType> {
 
     private final OwnLocationModel ownLocationModel = App.components().ownLocationmodel();
 
@@ -36,6 +38,8 @@ public class ImageUploadHandler extends AsyncTask<Void, Integer, ResultType> {
     private ProgressDialog progressDialog;
 
     public ImageUploadHandler(File imageFileToUpload, Activity activity) {
+        // uploads are big and not time critical, let feed refreshes overtake them
+        super(App.components().taskExecutors(), TaskPool.IO, TaskPriority.LOW);
         this.activity = activity;
         this.imageFileToUpload = imageFileToUpload;
     }
@@ -54,7 +58,7 @@ public class ImageUploadHandler extends AsyncTask<Void, Integer, ResultType> {
     }
 
     @Override
-    protected ResultType doInBackground(Void... params) {
+    protected ResultType doInBackground() {
 
         final OkHttpClient okHttpClient = App.components().okHttpClient();
 
@@ -90,8 +94,8 @@ public class ImageUploadHandler extends AsyncTask<Void, Integer, ResultType> {
     }
 
     @Override
-    protected void onProgressUpdate(Integer... progress) {
-        progressDialog.setProgress(progress[0]);
+    protected void onProgressUpdate(Integer progress) {
+        progressDialog.setProgress(progress);
     }
 
     @Override
@@ -5,7 +5,6 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.text.Html;
 import android.text.method.LinkMovementMethod;
 import android.view.LayoutInflater;
@@ -24,11 +23,13 @@ import java.io.FileOutputStream;
 
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
+import de.stephanlindauer.criticalmaps.tasks.BackgroundTask;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
 import de.stephanlindauer.criticalmaps.utils.ImageUtils;
 import de.stephanlindauer.criticalmaps.vo.ResultType;
 import timber.log.Timber;
 
-public class ProcessCameraResultHandler extends AsyncTask<Void, Void, ResultType> {
+public class ProcessCameraResultHandler extends BackgroundTask<Void, ResultType> {
 
     private final Activity activity;
     private final File newCameraOutputFile;
@@ -37,6 +38,7 @@ public class ProcessCameraResultHandler extends AsyncTask<Void, Void, ResultType
     private ProgressDialog progressDialog;
 
     public ProcessCameraResultHandler(Activity activity, File newCameraOutputFile) {
+        super(App.components().taskExecutors(), TaskPool.CPU);
         this.activity = activity;
         this.newCameraOutputFile = newCameraOutputFile;
         this.picasso = App.components().picasso();
@@ -53,7 +55,7 @@ public class ProcessCameraResultHandler extends AsyncTask<Void, Void, ResultType
     }
 
     @Override
-    protected ResultType doInBackground(Void... params) {
+    protected ResultType doInBackground() {
         try {
             Bitmap processedBitmap = picasso.load(newCameraOutputFile)
                     .resize(1024, 1024)
@@ -1,11 +1,11 @@
 package de.stephanlindauer.criticalmaps.handler;
 
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.osmdroid.util.GeoPoint;
 
 import java.io.IOException;
 
@@ -14,8 +14,14 @@ import javax.inject.Inject;
 import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
 import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
 import de.stephanlindauer.criticalmaps.model.UserModel;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.service.SyncIntervalPolicy;
+import de.stephanlindauer.criticalmaps.tasks.BackgroundTask;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 import info.metadude.android.typedpreferences.BooleanPreference;
 import okhttp3.MediaType;
@@ -25,7 +31,12 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import timber.log.Timber;
 
-public class PullServerHandler extends AsyncTask<Void, Void, String> {
+public class PullServerHandler extends BackgroundTask<Void, ServerSnapshot> {
+
+    public interface OnSyncFinishedListener {
+        // success means the server answered, not that the response could be used
+        void onSyncFinished(boolean success);
+    }
 
     //dependencies
     private final ChatModel chatModel;
@@ -35,6 +46,13 @@ public class PullServerHandler extends AsyncTask<Void, Void, String> {
     private final OkHttpClient okHttpClient;
     private final SharedPreferences sharedPreferences;
     private final LocationUpdateManager locationUpdateManager;
+    private final DeltaSyncState deltaSyncState;
+    private final SyncIntervalPolicy syncIntervalPolicy;
+
+    private OnSyncFinishedListener onSyncFinishedListener;
+    private volatile boolean requestFailed = true;
+    // what went into the request, only counts as uploaded once the server answered
+    private volatile GeoPoint sentLocation;
 
     @Inject
     public PullServerHandler(ChatModel chatModel,
@@ -43,7 +61,11 @@ public class PullServerHandler extends AsyncTask<Void, Void, String> {
                              ServerResponseProcessor serverResponseProcessor,
                              OkHttpClient okHttpClient,
                              SharedPreferences sharedPreferences,
-                             LocationUpdateManager locationUpdateManager) {
+                             LocationUpdateManager locationUpdateManager,
+                             DeltaSyncState deltaSyncState,
+                             SyncIntervalPolicy syncIntervalPolicy,
+                             TaskExecutors taskExecutors) {
+        super(taskExecutors, TaskPool.SYNC, TaskPriority.HIGH);
         this.chatModel = chatModel;
         this.ownLocationModel = ownLocationModel;
         this.userModel = userModel;
@@ -51,31 +73,73 @@ public class PullServerHandler extends AsyncTask<Void, Void, String> {
         this.okHttpClient = okHttpClient;
         this.sharedPreferences = sharedPreferences;
         this.locationUpdateManager = locationUpdateManager;
+        this.deltaSyncState = deltaSyncState;
+        this.syncIntervalPolicy = syncIntervalPolicy;
+    }
+
+    public PullServerHandler setOnSyncFinishedListener(OnSyncFinishedListener listener) {
+        onSyncFinishedListener = listener;
+        return this;
     }
 
     @Override
-    protected String doInBackground(Void... params) {
+    protected ServerSnapshot doInBackground() {
         String jsonPostString = getJsonObject().toString();
 
         final RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonPostString);
-        final Request request = new Request.Builder().url(Endpoints.MAIN_POST).post(body).build();
+        // servers that don't know the binary format just keep answering with JSON
+        final Request request = new Request.Builder()
+                .url(Endpoints.MAIN_POST)
+                .header("Accept", BinarySyncFormat.MEDIA_TYPE + ", application/json;q=0.9")
+                .post(body)
+                .build();
 
         try {
             final Response response = okHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
-                //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
-                return response.body().string();
+            try {
+                if (response.isSuccessful()) {
+                    requestFailed = false;
+                    //noinspection ConstantConditions "Returns a non-null value if this response was [...] returned from Call.execute()."
+                    return serverResponseProcessor.parse(
+                            response.body().source(), response.body().contentType());
+                }
+            } finally {
+                response.close();
             }
         } catch (IOException e) {
             Timber.e(e);
         }
-        return "";
+        return null;
     }
 
     @Override
-    protected void onPostExecute(String result) {
-        if (!result.isEmpty()) {
-            serverResponseProcessor.process(result);
+    protected void onPostExecute(ServerSnapshot snapshot) {
+        if (snapshot != null) {
+            serverResponseProcessor.apply(snapshot);
+        }
+        if (!requestFailed && sentLocation != null) {
+            syncIntervalPolicy.onLocationUploaded(
+                    (int) (sentLocation.getLatitude() * 1000000.0D),
+                    (int) (sentLocation.getLongitude() * 1000000.0D));
+        }
+        notifySyncFinished(!requestFailed);
+    }
+
+    // the sync loop waits for every sync to report back, whichever way it ended
+    @Override
+    protected void onFailed(RuntimeException e) {
+        super.onFailed(e);
+        notifySyncFinished(false);
+    }
+
+    @Override
+    protected void onCancelled() {
+        notifySyncFinished(false);
+    }
+
+    private void notifySyncFinished(boolean success) {
+        if (onSyncFinishedListener != null) {
+            onSyncFinishedListener.onSyncFinished(success);
         }
     }
 
@@ -90,9 +154,16 @@ public class PullServerHandler extends AsyncTask<Void, Void, String> {
 
             Timber.d("observer mode enabled: %s", isObserverModeActive);
 
-            if (!isObserverModeActive && ownLocationModel.hasPreciseLocation()
+            // read once, the location is updated on the main thread while this runs
+            final GeoPoint location = ownLocationModel.ownLocation;
+            if (!isObserverModeActive && location != null && ownLocationModel.hasPreciseLocation()
                     && locationUpdateManager.isUpdating()) {
                 jsonObject.put("location", ownLocationModel.getLocationJson());
+                sentLocation = location;
+            }
+
+            if (deltaSyncState.getVersion() != DeltaSyncState.NO_VERSION) {
+                jsonObject.put("snapshotVersion", deltaSyncState.getVersion());
             }
 
             if (chatModel.hasOutgoingMessages()) {
@@ -0,0 +1,173 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import de.stephanlindauer.criticalmaps.utils.JsonPullReader;
+import okhttp3.internal.Util;
+import okio.BufferedSource;
+import okio.Options;
+import timber.log.Timber;
+
+// Streams the main sync response straight from the network into a Sink. Coordinates and
+// timestamps are read into primitives, no intermediate tree or wrapper objects are built.
+// Delta responses (see DeltaSyncState) additionally carry a baseVersion and lists of removed
+// riders and chat messages, their locations and chatMessages only hold upserts.
+public class ServerResponseDecoder {
+
+    public interface Sink {
+        void onLocationsStarted();
+
+        void onRiderLocation(String deviceKey, int latitudeE6, int longitudeE6);
+
+        void onChatMessagesStarted();
+
+        // called for every chat message before it's decoded, returning false skips it
+        boolean onChatMessageIdentifier(String identifier);
+
+        void onChatMessage(String identifier, String message, long timestampSeconds);
+
+        void onVersion(long version);
+
+        void onBaseVersion(long baseVersion);
+
+        void onRiderRemoved(String deviceKey);
+
+        void onChatMessageRemoved(String identifier);
+    }
+
+    private static final int RESPONSE_LOCATIONS = 0;
+    private static final int RESPONSE_CHAT_MESSAGES = 1;
+    private static final int RESPONSE_VERSION = 2;
+    private static final int RESPONSE_BASE_VERSION = 3;
+    private static final int RESPONSE_REMOVED_LOCATIONS = 4;
+    private static final int RESPONSE_REMOVED_CHAT_MESSAGES = 5;
+    private static final Options RESPONSE_NAMES = JsonPullReader.names("locations",
+            "chatMessages", "version", "baseVersion", "removedLocations", "removedChatMessages");
+
+    private static final int LOCATION_LATITUDE = 0;
+    private static final int LOCATION_LONGITUDE = 1;
+    private static final Options LOCATION_NAMES =
+            JsonPullReader.names("latitude", "longitude");
+
+    private static final int CHAT_MESSAGE = 0;
+    private static final int CHAT_TIMESTAMP = 1;
+    private static final Options CHAT_NAMES = JsonPullReader.names("message", "timestamp");
+
+    private ServerResponseDecoder() {
+    }
+
+    public static void decode(BufferedSource source, Sink sink) throws IOException {
+        JsonPullReader reader = new JsonPullReader(source);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.selectName(RESPONSE_NAMES)) {
+                case RESPONSE_LOCATIONS:
+                    sink.onLocationsStarted();
+                    readLocations(reader, sink);
+                    break;
+                case RESPONSE_CHAT_MESSAGES:
+                    sink.onChatMessagesStarted();
+                    readChatMessages(reader, sink);
+                    break;
+                case RESPONSE_VERSION:
+                    sink.onVersion(reader.nextLong());
+                    break;
+                case RESPONSE_BASE_VERSION:
+                    sink.onBaseVersion(reader.nextLong());
+                    break;
+                case RESPONSE_REMOVED_LOCATIONS:
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        sink.onRiderRemoved(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                case RESPONSE_REMOVED_CHAT_MESSAGES:
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        sink.onChatMessageRemoved(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readLocations(JsonPullReader reader, Sink sink) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String deviceKey = reader.nextName();
+            int latitudeE6 = 0;
+            int longitudeE6 = 0;
+            boolean hasLatitude = false;
+            boolean hasLongitude = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(LOCATION_NAMES)) {
+                    case LOCATION_LATITUDE:
+                        latitudeE6 = reader.nextInt();
+                        hasLatitude = true;
+                        break;
+                    case LOCATION_LONGITUDE:
+                        longitudeE6 = reader.nextInt();
+                        hasLongitude = true;
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (hasLatitude && hasLongitude) {
+                sink.onRiderLocation(deviceKey, latitudeE6, longitudeE6);
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readChatMessages(JsonPullReader reader, Sink sink) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String identifier = reader.nextName();
+            if (!sink.onChatMessageIdentifier(identifier)) {
+                reader.skipValue();
+                continue;
+            }
+            String message = null;
+            long timestamp = 0;
+            boolean hasTimestamp = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(CHAT_NAMES)) {
+                    case CHAT_MESSAGE:
+                        message = reader.nextString();
+                        break;
+                    case CHAT_TIMESTAMP:
+                        timestamp = reader.nextLong();
+                        hasTimestamp = true;
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (message != null && hasTimestamp) {
+                try {
+                    sink.onChatMessage(identifier,
+                            URLDecoder.decode(message, Util.UTF_8.name()), timestamp);
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    Timber.d(e);
+                }
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -1,6 +1,13 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import org.json.JSONObject;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -8,7 +15,18 @@ import dagger.Reusable;
 import de.stephanlindauer.criticalmaps.events.Events;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
 import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderClusters;
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 import timber.log.Timber;
 
 @Reusable
@@ -17,26 +35,205 @@ public class ServerResponseProcessor {
     private final OtherUsersLocationModel otherUsersLocationModel;
     private final EventBus eventBus;
     private final ChatModel chatModel;
+    private final DeltaSyncState deltaSyncState;
 
     @Inject
-    public ServerResponseProcessor(OtherUsersLocationModel otherUsersLocationModel, EventBus eventBus, ChatModel chatModel) {
+    public ServerResponseProcessor(OtherUsersLocationModel otherUsersLocationModel, EventBus eventBus, ChatModel chatModel,
+                                   DeltaSyncState deltaSyncState) {
         this.otherUsersLocationModel = otherUsersLocationModel;
         this.eventBus = eventBus;
         this.chatModel = chatModel;
+        this.deltaSyncState = deltaSyncState;
+    }
+
+    @Nullable
+    public ServerSnapshot parse(final String jsonString) {
+        return parse(new Buffer().writeUtf8(jsonString));
     }
 
-    public void process(final String jsonString) {
+    @Nullable
+    public ServerSnapshot parse(final BufferedSource source) {
+        return parse(source, null);
+    }
+
+    // does all the heavy lifting and is meant to be called off the main thread, the content
+    // type decides between the JSON and the binary format
+    @Nullable
+    public ServerSnapshot parse(final BufferedSource source, @Nullable MediaType contentType) {
+        SnapshotBuilder builder = new SnapshotBuilder(otherUsersLocationModel, deltaSyncState);
         try {
-            final JSONObject jsonObject = new JSONObject(jsonString);
-            if (jsonObject.has("locations")) {
-                otherUsersLocationModel.setFromJson(jsonObject.getJSONObject("locations"));
-            }
-            if (jsonObject.has("locations")) {
-                chatModel.setFromJson(jsonObject.getJSONObject("chatMessages"));
+            CountingSource countingSource = new CountingSource(source);
+            BufferedSource countedSource = Okio.buffer(countingSource);
+            if (BinarySyncFormat.isBinary(contentType)) {
+                BinarySyncFormat.decode(countedSource, builder);
+            } else {
+                ServerResponseDecoder.decode(countedSource, builder);
             }
-            eventBus.post(Events.NEW_SERVER_RESPONSE_EVENT);
+            return builder.build(countingSource.byteCount);
         } catch (Exception e) {
             Timber.d(e);
+            builder.release();
+            return null;
+        }
+    }
+
+    // main thread only, just swaps references
+    public void apply(final ServerSnapshot snapshot) {
+        if (snapshot.hasOtherUsersLocations()) {
+            otherUsersLocationModel.setOtherUsersLocations(snapshot.getOtherUsersLocations(),
+                    snapshot.hasRiderChanges());
+            otherUsersLocationModel.setRiderClusters(snapshot.getRiderClusters());
+        }
+        if (snapshot.hasChatMessages()) {
+            chatModel.setReceivedMessages(snapshot.getChatMessages(), snapshot.getChatChanges());
+        }
+        eventBus.post(Events.NEW_SERVER_RESPONSE_EVENT);
+    }
+
+    private static class CountingSource extends ForwardingSource {
+        long byteCount;
+
+        CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                this.byteCount += read;
+            }
+            return read;
+        }
+    }
+
+    private static class SnapshotBuilder implements ServerResponseDecoder.Sink {
+        private final OtherUsersLocationModel otherUsersLocationModel;
+        private final DeltaSyncState deltaSyncState;
+        // owned by deltaSyncState
+        private RiderLocationBuffer decodedLocations;
+        // what gets published, a spare from otherUsersLocationModel until then
+        private RiderLocationBuffer locations;
+        // only the ones DeltaSyncState didn't know yet
+        private ArrayList<ReceivedChatMessage> chatMessages;
+        private HashSet<String> chatMessageIdentifiers;
+
+        private long version = DeltaSyncState.NO_VERSION;
+        private long baseVersion = DeltaSyncState.NO_VERSION;
+        private final ArrayList<String> removedRiders = new ArrayList<>();
+        private final ArrayList<String> removedChatMessages = new ArrayList<>();
+
+        SnapshotBuilder(OtherUsersLocationModel otherUsersLocationModel,
+                        DeltaSyncState deltaSyncState) {
+            this.otherUsersLocationModel = otherUsersLocationModel;
+            this.deltaSyncState = deltaSyncState;
+        }
+
+        @Override
+        public void onLocationsStarted() {
+            if (decodedLocations == null) {
+                decodedLocations = deltaSyncState.obtainDecodeBuffer();
+            }
+        }
+
+        @Override
+        public void onRiderLocation(String deviceKey, int latitudeE6, int longitudeE6) {
+            decodedLocations.add(deviceKey, latitudeE6, longitudeE6);
+        }
+
+        @Override
+        public void onChatMessagesStarted() {
+            chatMessages = new ArrayList<>();
+            chatMessageIdentifiers = new HashSet<>();
+        }
+
+        @Override
+        public boolean onChatMessageIdentifier(String identifier) {
+            chatMessageIdentifiers.add(identifier);
+            return !deltaSyncState.isKnownChatMessage(identifier);
+        }
+
+        @Override
+        public void onChatMessage(String identifier, String message, long timestampSeconds) {
+            chatMessages.add(new ReceivedChatMessage(
+                    identifier, message, new Date(timestampSeconds * 1000)));
+        }
+
+        @Override
+        public void onVersion(long version) {
+            this.version = version;
+        }
+
+        @Override
+        public void onBaseVersion(long baseVersion) {
+            this.baseVersion = baseVersion;
+        }
+
+        @Override
+        public void onRiderRemoved(String deviceKey) {
+            removedRiders.add(deviceKey);
+        }
+
+        @Override
+        public void onChatMessageRemoved(String identifier) {
+            removedChatMessages.add(identifier);
+        }
+
+        @Nullable
+        ServerSnapshot build(long responseBytes) {
+            boolean hasRiderChanges;
+            if (baseVersion != DeltaSyncState.NO_VERSION) {
+                hasRiderChanges = decodedLocations != null && decodedLocations.size() > 0
+                        || !removedRiders.isEmpty();
+                if (!applyDelta(responseBytes)) {
+                    release();
+                    return null;
+                }
+            } else {
+                hasRiderChanges = decodedLocations != null;
+                if (decodedLocations != null) {
+                    // published as decoded, the spare decodes the next response instead
+                    deltaSyncState.recycleDecodeBuffer(otherUsersLocationModel.obtainBuffer());
+                }
+                deltaSyncState.applyFullSnapshot(version, decodedLocations,
+                        chatMessageIdentifiers, chatMessages, responseBytes);
+                locations = decodedLocations;
+            }
+
+            RiderClusters riderClusters = null;
+            if (locations != null) {
+                locations.buildSpatialIndex();
+                riderClusters = RiderClusters.build(locations);
+            }
+
+            List<ReceivedChatMessage> allChatMessages = null;
+            ChatChangeSet chatChanges = null;
+            if (chatMessages != null || baseVersion != DeltaSyncState.NO_VERSION) {
+                allChatMessages = deltaSyncState.getChatMessages();
+                chatChanges = deltaSyncState.getChatChanges();
+            }
+
+            return new ServerSnapshot(locations, riderClusters, hasRiderChanges,
+                    allChatMessages, chatChanges);
+        }
+
+        // merges into the mirrored state, the snapshot always contains the complete result
+        private boolean applyDelta(long responseBytes) {
+            if (decodedLocations == null) {
+                decodedLocations = deltaSyncState.obtainDecodeBuffer();
+            }
+            locations = otherUsersLocationModel.obtainBuffer();
+            List<ReceivedChatMessage> upsertedMessages = chatMessages != null
+                    ? chatMessages : Collections.<ReceivedChatMessage>emptyList();
+            return deltaSyncState.applyDelta(baseVersion, version, locations, decodedLocations,
+                    removedRiders, upsertedMessages, removedChatMessages, responseBytes);
+        }
+
+        void release() {
+            if (locations != null) {
+                otherUsersLocationModel.releaseBuffer(locations);
+                locations = null;
+            }
         }
     }
 }
@@ -1,92 +1,361 @@
 package de.stephanlindauer.criticalmaps.handler;
 
 import android.content.SharedPreferences;
-import android.graphics.Color;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
+import androidx.appcompat.content.res.AppCompatResources;
+
+import org.osmdroid.api.IGeoPoint;
+import org.osmdroid.events.MapListener;
+import org.osmdroid.events.ScrollEvent;
+import org.osmdroid.events.ZoomEvent;
 import org.osmdroid.views.MapView;
-import org.osmdroid.views.overlay.Marker;
-import org.osmdroid.views.overlay.Polyline;
-import org.xml.sax.SAXException;
+import org.osmdroid.views.Projection;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.inject.Singleton;
 
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.R;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxCache;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxLayer;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxLayers;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
-import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import de.stephanlindauer.criticalmaps.model.gpx.SimplifiedTrack;
+import de.stephanlindauer.criticalmaps.overlays.GpxLayersOverlay;
 import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
+import de.stephanlindauer.criticalmaps.tasks.BackgroundTask;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
 import de.stephanlindauer.criticalmaps.utils.GpxReader;
+import de.stephanlindauer.criticalmaps.utils.GpxUtils;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
 import info.metadude.android.typedpreferences.BooleanPreference;
 import info.metadude.android.typedpreferences.StringPreference;
+import okio.BufferedSource;
+import okio.HashingSource;
+import okio.Okio;
+import timber.log.Timber;
 
+// Keeps the GPX layers, loads the ones that are visible and near the viewport and drops the
+// ones that moved far out of it, so memory and drawing scale with what's on screen rather
+// than with the number of files. A layer that was never loaded has no bounds yet and is
+// loaded to learn them. Opening, parsing and simplifying a file happens on the IO pool, the
+// result is kept in GpxCache, a file that didn't change since is read from there, so
+// bringing a layer back is cheap. Files GpxUtils.fileIdentity() can't tell apart without
+// reading them are hashed while parsing, the hash stands in for their identity for the rest
+// of the session. Everything else is main thread only.
+@Singleton
 public class ShowGpxHandler {
 
+    // loaded once within half a screen of the viewport and only dropped again once more than
+    // two screens away, so panning back and forth doesn't reload it
+    private static final double LOAD_MARGIN = 0.5D;
+    private static final double UNLOAD_MARGIN = 2D;
+
     private final SharedPreferences sharedPreferences;
-    private final GpxModel gpxModel;
+    private final GpxLayers gpxLayers;
     private final App app;
     private final GpxReader gpxReader;
+    private final GpxCache gpxCache;
+    private final TaskExecutors taskExecutors;
 
+    private MapView mapView;
+    private final Map<String, LoadTask> loadTasks = new HashMap<>();
+    // not retried on every scroll, only once the layer is added or shown again
+    private final Set<String> failedUris = new HashSet<>();
+    // uri to content hash, written by the load tasks
+    private final Map<String, String> hashedIdentities = new ConcurrentHashMap<>();
+
+    private final MapListener mapListener = new MapListener() {
+        @Override
+        public boolean onScroll(ScrollEvent event) {
+            updateLayers();
+            return false;
+        }
+
+        @Override
+        public boolean onZoom(ZoomEvent event) {
+            updateLayers();
+            return false;
+        }
+    };
 
     @Inject
-    public ShowGpxHandler(SharedPreferences sharedPreferences, GpxModel gpxModel, App app, GpxReader gpxReader) {
+    public ShowGpxHandler(SharedPreferences sharedPreferences, GpxLayers gpxLayers, App app,
+                          GpxReader gpxReader, GpxCache gpxCache, TaskExecutors taskExecutors) {
         this.sharedPreferences = sharedPreferences;
-        this.gpxModel = gpxModel;
+        this.gpxLayers = gpxLayers;
         this.app = app;
         this.gpxReader = gpxReader;
+        this.gpxCache = gpxCache;
+        this.taskExecutors = taskExecutors;
+        // the index is rebuilt off the main thread, it's drawn once it's ready
+        gpxLayers.setOnIndexChanged(this::invalidateMap);
+        restoreLayers();
     }
 
     public void showGpx(MapView mapView) {
-        boolean showTrack = new BooleanPreference(sharedPreferences, SharedPrefsKeys.SHOW_GPX).get();
-        if (!showTrack) {
+        this.mapView = mapView;
+        Drawable poiIcon = AppCompatResources.getDrawable(
+                app, org.osmdroid.library.R.drawable.marker_default);
+        // at the bottom so riders stay on top
+        mapView.getOverlays().add(0, new GpxLayersOverlay(app, gpxLayers, poiIcon));
+        mapView.addMapListener(mapListener);
+        // the viewport is only known once the map is laid out
+        mapView.addOnFirstLayoutListener((v, left, top, right, bottom) -> updateLayers());
+        updateLayers();
+    }
+
+    // the map view is going away, running loads still finish for the next one
+    public void hideGpx() {
+        if (mapView != null) {
+            mapView.removeMapListener(mapListener);
+        }
+        mapView = null;
+    }
+
+    public List<GpxLayer> getLayers() {
+        return gpxLayers.getLayers();
+    }
+
+    // also called from the settings, loading starts right away so the file is ready by the
+    // time the map is back
+    public void addLayer(String gpxUri, String name) {
+        failedUris.remove(gpxUri);
+        GpxLayer layer = gpxLayers.find(gpxUri);
+        if (layer == null) {
+            gpxLayers.add(new GpxLayer(gpxUri, name, gpxLayers.nextColor(), true, null));
+        } else {
+            gpxLayers.setVisible(layer, true);
+        }
+        saveLayers();
+        updateLayers();
+    }
+
+    public void setLayerVisible(GpxLayer layer, boolean visible) {
+        failedUris.remove(layer.getUri());
+        gpxLayers.setVisible(layer, visible);
+        saveLayers();
+        updateLayers();
+    }
+
+    public void removeLayer(GpxLayer layer) {
+        cancelLoading(layer.getUri());
+        gpxLayers.remove(layer);
+        saveLayers();
+    }
+
+    // loads and drops layers for the current viewport, SharedPrefsKeys.SHOW_GPX and each
+    // layer's visibility
+    public void updateLayers() {
+        boolean showGpx = new BooleanPreference(sharedPreferences, SharedPrefsKeys.SHOW_GPX).get();
+        // unknown while the map isn't shown, nothing is judged to be offscreen then
+        double[] viewport = mapView != null ? viewport(mapView.getProjection()) : null;
+
+        for (GpxLayer layer : gpxLayers.getLayers()) {
+            boolean isShown = showGpx && layer.isVisible();
+            boolean isWanted = isShown && (layer.getBounds() == null
+                    || viewport != null && layer.isNear(viewport, LOAD_MARGIN));
+            boolean isUnwanted = !isShown
+                    || viewport != null && !layer.isNear(viewport, UNLOAD_MARGIN);
+            if (isWanted) {
+                if (!layer.isLoaded()) {
+                    startLoading(layer.getUri());
+                }
+            } else if (isUnwanted) {
+                cancelLoading(layer.getUri());
+                if (layer.isLoaded()) {
+                    gpxLayers.setLoaded(layer, null);
+                }
+            }
+        }
+    }
+
+    private void restoreLayers() {
+        StringPreference layersPreference =
+                new StringPreference(sharedPreferences, SharedPrefsKeys.GPX_LAYERS);
+        if (layersPreference.isSet()) {
+            for (GpxLayer layer : GpxLayers.decode(layersPreference.get())) {
+                gpxLayers.add(layer);
+            }
             return;
         }
+        // there used to be a single file
+        String gpxFile = new StringPreference(sharedPreferences, SharedPrefsKeys.GPX_FILE).get();
+        if (gpxFile != null && !gpxFile.isEmpty()) {
+            gpxLayers.add(new GpxLayer(gpxFile, Uri.parse(gpxFile).getLastPathSegment(),
+                    gpxLayers.nextColor(), true, null));
+            saveLayers();
+        }
+    }
 
-        String gpxUri = new StringPreference(sharedPreferences, SharedPrefsKeys.GPX_FILE).get();
-        if (gpxModel.getUri() == null || !gpxModel.getUri().equals(gpxUri)) {
-            readFile(gpxUri);
+    private void saveLayers() {
+        new StringPreference(sharedPreferences, SharedPrefsKeys.GPX_LAYERS)
+                .set(GpxLayers.encode(gpxLayers.getLayers()));
+    }
+
+    private void startLoading(String gpxUri) {
+        if (loadTasks.containsKey(gpxUri) || failedUris.contains(gpxUri)) {
+            return;
         }
+        LoadTask loadTask = new LoadTask(gpxUri);
+        loadTasks.put(gpxUri, loadTask);
+        loadTask.execute();
+    }
 
-        showModelOnMap(mapView);
+    private void cancelLoading(String gpxUri) {
+        LoadTask loadTask = loadTasks.remove(gpxUri);
+        if (loadTask != null) {
+            loadTask.cancel(false);
+        }
     }
 
-    private void readFile(String gpxUri) {
-        try {
-            InputStream gpxInputStream = app.getContentResolver().openInputStream(Uri.parse(gpxUri));
-            gpxReader.readDataFromStream(gpxInputStream, gpxUri);
-        } catch (SecurityException | IOException | SAXException | ParserConfigurationException e) {
+    private void onLoaded(LoadTask task, GpxModel loaded) {
+        if (loadTasks.get(task.gpxUri) != task) {
+            return;
+        }
+        loadTasks.remove(task.gpxUri);
+        GpxLayer layer = gpxLayers.find(task.gpxUri);
+        if (layer == null) {
+            return;
+        }
+        if (loaded == null) {
+            failedUris.add(task.gpxUri);
             Toast.makeText(app, R.string.gpx_reading_error, Toast.LENGTH_SHORT).show();
+            return;
         }
-    }
 
-    private void showModelOnMap(MapView mapView) {
-        for (GpxTrack track : gpxModel.getTracks()) {
-            addTrackToMap(mapView, track);
+        double[] oldBounds = layer.getBounds();
+        gpxLayers.setLoaded(layer, loaded);
+        if (!Arrays.equals(oldBounds, layer.getBounds())) {
+            saveLayers();
         }
+        // the map might have moved on in the meantime
+        updateLayers();
+    }
 
-        for (GpxPoi poi : gpxModel.getPoiList()) {
-            addPoiToMap(mapView, poi);
+    private void invalidateMap() {
+        if (mapView != null) {
+            mapView.invalidate();
         }
     }
 
-    private void addTrackToMap(MapView mapView, GpxTrack track) {
-        Polyline trackLine = new Polyline(mapView);
-        trackLine.setPoints(track.getWaypoints());
-        trackLine.setTitle(track.getName());
-        trackLine.getOutlinePaint().setColor(Color.RED);
-        mapView.getOverlayManager().add(trackLine);
+    // minX, minY, maxX, maxY in normalized web mercator, see MercatorUtils
+    private static double[] viewport(Projection projection) {
+        double halfWidth = projection.getWidth() / 2D;
+        double halfHeight = projection.getHeight() / 2D;
+        IGeoPoint center = projection.fromPixels((int) halfWidth, (int) halfHeight);
+        // with rotation everything within half the screen diagonal might end up visible
+        if (projection.getOrientation() != 0f) {
+            halfWidth = halfHeight = Math.hypot(halfWidth, halfHeight);
+        }
+        double worldSize = projection.getWorldMapSize();
+        double centerX = MercatorUtils.x(center.getLongitude());
+        double centerY = MercatorUtils.y(center.getLatitude());
+        return new double[]{
+                centerX - halfWidth / worldSize, centerY - halfHeight / worldSize,
+                centerX + halfWidth / worldSize, centerY + halfHeight / worldSize};
     }
 
-    private void addPoiToMap(MapView mapView, GpxPoi poi) {
-        Marker marker = new Marker(mapView);
-        marker.setPosition(poi.getPosition());
-        marker.setTitle(poi.getName());
-        mapView.getOverlayManager().add(marker);
+    private class LoadTask extends BackgroundTask<Void, Void> implements GpxReader.Callback {
+        private final String gpxUri;
+        private GpxModel loaded;
+        // set by readAndSimplify() when asked to hash the file
+        private String contentIdentity;
+
+        LoadTask(String gpxUri) {
+            super(taskExecutors, TaskPool.IO);
+            this.gpxUri = gpxUri;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            try {
+                Uri uri = Uri.parse(gpxUri);
+                String identity = GpxUtils.fileIdentity(app.getContentResolver(), uri);
+                boolean hashContent = identity == null;
+                if (hashContent) {
+                    identity = hashedIdentities.get(gpxUri);
+                }
+                GpxModel gpx = identity != null ? gpxCache.read(gpxUri, identity) : null;
+                if (gpx == null && !isCancelled()) {
+                    gpx = readAndSimplify(uri, hashContent);
+                    if (gpx != null) {
+                        if (hashContent) {
+                            identity = contentIdentity;
+                            hashedIdentities.put(gpxUri, identity);
+                        }
+                        gpxCache.write(gpx, identity);
+                    }
+                }
+                loaded = gpx;
+            } catch (CancellationException e) {
+                Timber.d("Loading %s cancelled", gpxUri);
+            } catch (SecurityException | IOException e) {
+                Timber.d(e);
+            }
+            return null;
+        }
+
+        @Nullable
+        private GpxModel readAndSimplify(Uri uri, boolean hashContent) throws IOException {
+            try (InputStream gpxInputStream = app.getContentResolver().openInputStream(uri)) {
+                if (gpxInputStream == null) {
+                    throw new IOException("Couldn't open " + gpxUri);
+                }
+                GpxModel gpx;
+                if (hashContent) {
+                    HashingSource hashingSource = HashingSource.sha1(Okio.source(gpxInputStream));
+                    BufferedSource source = Okio.buffer(hashingSource);
+                    gpx = gpxReader.readDataFromStream(source.inputStream(), gpxUri, this);
+                    // the reader stops at the closing tag, whatever follows counts too
+                    source.readAll(Okio.blackhole());
+                    contentIdentity = GpxUtils.contentIdentity(hashingSource.hash());
+                } else {
+                    gpx = gpxReader.readDataFromStream(gpxInputStream, gpxUri, this);
+                }
+                List<SimplifiedTrack> simplified = new ArrayList<>(gpx.getTracks().size());
+                for (GpxTrack track : gpx.getTracks()) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    simplified.add(SimplifiedTrack.build(track));
+                }
+                gpx.setSimplifiedTracks(simplified);
+                return gpx;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            onLoaded(this, loaded);
+        }
+
+        @Override
+        protected void onFailed(RuntimeException e) {
+            super.onFailed(e);
+            onLoaded(this, null);
+        }
+
+        @Override
+        public void onProgress(long bytesRead) {
+        }
     }
-}
\ No newline at end of file
+}
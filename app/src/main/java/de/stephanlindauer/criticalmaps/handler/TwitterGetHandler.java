@@ -1,7 +1,5 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import android.os.AsyncTask;
-
 import org.json.JSONException;
 
 import java.text.ParseException;
@@ -9,6 +7,8 @@ import java.text.ParseException;
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.fragments.TwitterFragment;
 import de.stephanlindauer.criticalmaps.model.TwitterModel;
+import de.stephanlindauer.criticalmaps.tasks.BackgroundTask;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
 import de.stephanlindauer.criticalmaps.vo.Endpoints;
 import de.stephanlindauer.criticalmaps.vo.ResultType;
 import okhttp3.OkHttpClient;
@@ -16,7 +16,7 @@ import okhttp3.Request;
 import okhttp3.Response;
 import timber.log.Timber;
 
-public class TwitterGetHandler extends AsyncTask<Void, Void, ResultType> {
+public class TwitterGetHandler extends BackgroundTask<Void, ResultType> {
 
     //dependencies
     private final TwitterModel twitterModel = App.components().twitterModel();
@@ -25,6 +25,7 @@ public class TwitterGetHandler extends AsyncTask<Void, Void, ResultType> {
     private String responseString = "";
 
     public TwitterGetHandler(TwitterFragment twitterFragment) {
+        super(App.components().taskExecutors(), TaskPool.IO);
         this.twitterFragment = twitterFragment;
     }
 
@@ -34,7 +35,7 @@ public class TwitterGetHandler extends AsyncTask<Void, Void, ResultType> {
     }
 
     @Override
-    protected ResultType doInBackground(Void... params) {
+    protected ResultType doInBackground() {
         final Request request = new Request.Builder().url(Endpoints.GET_TWITTER).get().build();
 
         final OkHttpClient httpClient = App.components().okHttpClient();
@@ -4,5 +4,7 @@ public interface IChatMessage {
 
     int MAX_LENGTH = 255;
 
+    String getIdentifier();
+
     String getMessage();
 }
@@ -35,10 +35,12 @@ public class LocationUpdateManager {
     private final PermissionCheckHandler permissionCheckHandler;
     private final App app;
     private boolean isUpdating = false;
+    private boolean isListening = false;
+    private long locationRefreshTime = LOCATION_REFRESH_TIME;
 
     //const
     private static final float LOCATION_REFRESH_DISTANCE = 20; //20 meters
-    private static final long LOCATION_REFRESH_TIME = 12 * 1000; //12 seconds
+    private static final long LOCATION_REFRESH_TIME = 12 * 1000; //12 seconds, until adapted
     private static final int LOCATION_NEW_THRESHOLD = 30 * 1000; //30 seconds
     private static final String[] USED_PROVIDERS = new String[]{
             LocationManager.GPS_PROVIDER,
@@ -186,7 +188,20 @@ public class LocationUpdateManager {
         registerLocationListeners();
     }
 
+    // follows the sync cadence, see SyncIntervalPolicy
+    public void setLocationRefreshTime(long locationRefreshTime) {
+        if (this.locationRefreshTime == locationRefreshTime) {
+            return;
+        }
+        this.locationRefreshTime = locationRefreshTime;
+        if (isListening) {
+            locationManager.removeUpdates(locationListener);
+            registerLocationListeners();
+        }
+    }
+
     private void registerLocationListeners() {
+        isListening = true;
         // register existing providers; if one isn't enabled, the listener will take care of that
         requestLocationUpdatesIfProviderExists(LocationManager.GPS_PROVIDER);
         requestLocationUpdatesIfProviderExists(LocationManager.NETWORK_PROVIDER);
@@ -196,7 +211,7 @@ public class LocationUpdateManager {
     private void requestLocationUpdatesIfProviderExists(String provider) {
         if (locationManager.getProvider(provider) != null) {
             locationManager.requestLocationUpdates(provider,
-                    LOCATION_REFRESH_TIME,
+                    locationRefreshTime,
                     LOCATION_REFRESH_DISTANCE,
                     locationListener);
         }
@@ -218,6 +233,7 @@ public class LocationUpdateManager {
     }
 
     public void handleShutdown() {
+        isListening = false;
         locationManager.removeUpdates(locationListener);
         try {
             eventBus.unregister(this);
@@ -1,5 +1,7 @@
 package de.stephanlindauer.criticalmaps.model;
 
+import androidx.annotation.Nullable;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -8,33 +10,65 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import de.stephanlindauer.criticalmaps.events.Events;
 import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
+import de.stephanlindauer.criticalmaps.model.chat.ChatHistory;
+import de.stephanlindauer.criticalmaps.model.chat.ChatOutbox;
+import de.stephanlindauer.criticalmaps.model.chat.ChatStore;
 import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
 import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
 import okhttp3.internal.Util;
 import timber.log.Timber;
 
 @Singleton
 public class ChatModel {
 
-    private final List<OutgoingChatMessage> outgoingMessages = new ArrayList<>();
-    private List<ReceivedChatMessage> chatMessages = new ArrayList<>();
+    public static final int PAGE_SIZE = 50;
+    // shown above the ones the server still lists, older ones have to be paged in again
+    static final int MAX_OLDER_MESSAGES = 1000;
+
+    // written on the main thread, read by the sync thread when building the request
+    private final ChatOutbox outbox;
+    private final ChatStore store;
+    private final EventBus eventBus;
+    // main thread only, merged on the sync thread by a ChatHistory
+    private List<ReceivedChatMessage> chatMessages = Collections.emptyList();
+    // main thread only, stored messages sorting before the first received one
+    private List<ReceivedChatMessage> olderMessages = Collections.emptyList();
+    private boolean loadingOlderMessages;
+    private boolean hasAllOlderMessages;
+    private ChatChangeSet chatChanges = ChatChangeSet.none(0);
+    private boolean hasReceivedMessages;
+    // bumped for every sent and newly received message, see SyncIntervalPolicy
+    private volatile long activityCount;
+
+    // from tapping send until the server lists the message
+    private long acknowledgedMessageCount;
+    private long acknowledgeLatencySumMillis;
+    private long maxAcknowledgeLatencyMillis;
 
     @Inject
-    public ChatModel() {
+    public ChatModel(ChatOutbox outbox, ChatStore store, EventBus eventBus) {
+        this.outbox = outbox;
+        this.store = store;
+        this.eventBus = eventBus;
     }
 
-    public void setFromJson(JSONObject jsonObject) throws JSONException,
-            UnsupportedEncodingException {
-        chatMessages = new ArrayList<>(jsonObject.length());
+    // safe to call from any thread, doesn't touch model state
+    public static List<ReceivedChatMessage> parseChatMessages(JSONObject jsonObject)
+            throws JSONException, UnsupportedEncodingException {
+        ArrayList<ReceivedChatMessage> messages = new ArrayList<>(jsonObject.length());
 
         Iterator<String> identifiers = jsonObject.keys();
         while (identifiers.hasNext()) {
@@ -43,33 +77,167 @@ public class ChatModel {
             String message = URLDecoder.decode(value.getString("message"), Util.UTF_8.name());
             Date timestamp = new Date(Long.parseLong(value.getString("timestamp")) * 1000);
 
-            Iterator<OutgoingChatMessage> outgoingChatMessageIterator = outgoingMessages.iterator();
-            while (outgoingChatMessageIterator.hasNext()) {
-                if (outgoingChatMessageIterator.next().getIdentifier().equals(identifier)) {
-                    outgoingChatMessageIterator.remove();
-                }
-            }
+            messages.add(new ReceivedChatMessage(identifier, message, timestamp));
+        }
+
+        Collections.sort(messages, ChatHistory.ORDER);
+        return Collections.unmodifiableList(messages);
+    }
+
+    // messages is the complete merged list, changes what lead there from the previous one
+    public void setReceivedMessages(List<ReceivedChatMessage> messages, ChatChangeSet changes) {
+        boolean contiguous = changes.getFromRevision() == chatChanges.getToRevision();
+        keepForgottenMessages(chatMessages, messages);
+        chatMessages = messages;
+        if (!changes.isEmpty() || !contiguous) {
+            chatChanges = changes;
+        }
+        // a missed snapshot might have brought messages the change set doesn't mention
+        store.save(contiguous ? changes.getInserted() : messages);
+
+        // the first response just brings us up to date and isn't activity
+        if (hasReceivedMessages) {
+            activityCount += changes.getInserted().size();
+        }
+        hasReceivedMessages = true;
 
-            chatMessages.add(new ReceivedChatMessage(message, timestamp));
+        Set<String> receivedIdentifiers;
+        if (contiguous) {
+            if (changes.getInserted().isEmpty()) {
+                return;
+            }
+            receivedIdentifiers = changes.getInsertedIdentifiers();
+        } else {
+            // missed a snapshot, its messages might have acknowledged something
+            receivedIdentifiers = new HashSet<>(messages.size() * 2);
+            for (int i = 0; i < messages.size(); i++) {
+                receivedIdentifiers.add(messages.get(i).getIdentifier());
+            }
+        }
+        for (OutgoingChatMessage outgoingChatMessage : outbox.acknowledge(receivedIdentifiers)) {
+            recordAcknowledged(outgoingChatMessage);
         }
+    }
+
+    // the last change set that did something, consumers that saw its from revision can apply
+    // it instead of reloading everything
+    public ChatChangeSet getChatChanges() {
+        return chatChanges;
+    }
 
-        Collections.sort(chatMessages, new Comparator<ReceivedChatMessage>() {
-            @Override
-            public int compare(ReceivedChatMessage oneChatMessages,
-                               ReceivedChatMessage otherChatMessage) {
-                return oneChatMessages.getTimestamp().compareTo(otherChatMessage.getTimestamp());
+    public List<ReceivedChatMessage> getReceivedMessages() {
+        return chatMessages;
+    }
+
+    // unmodifiable, replaced whenever messages are paged in or the server forgets some
+    public List<ReceivedChatMessage> getOlderMessages() {
+        return olderMessages;
+    }
+
+    // pages in stored messages from before the oldest one shown, posts
+    // OLDER_CHAT_MESSAGES_LOADED_EVENT once there are new ones
+    public void loadOlderMessages() {
+        if (loadingOlderMessages || hasAllOlderMessages
+                || olderMessages.size() >= MAX_OLDER_MESSAGES) {
+            return;
+        }
+        loadingOlderMessages = true;
+        store.loadPage(getOldestMessage(), PAGE_SIZE, page -> {
+            loadingOlderMessages = false;
+            if (page.size() < PAGE_SIZE) {
+                hasAllOlderMessages = true;
+            }
+            // a sync might have come in meanwhile
+            ReceivedChatMessage oldest = getOldestMessage();
+            ArrayList<ReceivedChatMessage> older =
+                    new ArrayList<>(page.size() + olderMessages.size());
+            for (int i = 0; i < page.size(); i++) {
+                ReceivedChatMessage message = page.get(i);
+                if (oldest == null || ChatHistory.ORDER.compare(message, oldest) < 0) {
+                    older.add(message);
+                }
+            }
+            if (older.isEmpty()) {
+                return;
             }
+            older.addAll(olderMessages);
+            olderMessages = Collections.unmodifiableList(older);
+            eventBus.post(Events.OLDER_CHAT_MESSAGES_LOADED_EVENT);
         });
     }
 
+    @Nullable
+    private ReceivedChatMessage getOldestMessage() {
+        if (!olderMessages.isEmpty()) {
+            return olderMessages.get(0);
+        }
+        return chatMessages.isEmpty() ? null : chatMessages.get(0);
+    }
+
+    // messages the server doesn't list anymore stay where they were instead of disappearing,
+    // and stored ones the server lists again aren't shown twice
+    private void keepForgottenMessages(List<ReceivedChatMessage> previous,
+                                       List<ReceivedChatMessage> current) {
+        ReceivedChatMessage first = current.isEmpty() ? null : current.get(0);
+        int kept = olderMessages.size();
+        while (kept > 0 && first != null
+                && ChatHistory.ORDER.compare(olderMessages.get(kept - 1), first) >= 0) {
+            kept--;
+        }
+        int forgotten = 0;
+        while (forgotten < previous.size() && (first == null
+                || ChatHistory.ORDER.compare(previous.get(forgotten), first) < 0)) {
+            forgotten++;
+        }
+        if (kept == olderMessages.size() && forgotten == 0) {
+            return;
+        }
+
+        ArrayList<ReceivedChatMessage> older = new ArrayList<>(kept + forgotten);
+        older.addAll(olderMessages.subList(0, kept));
+        older.addAll(previous.subList(0, forgotten));
+        if (older.size() > MAX_OLDER_MESSAGES) {
+            older.subList(0, older.size() - MAX_OLDER_MESSAGES).clear();
+            hasAllOlderMessages = false;
+        }
+        olderMessages = Collections.unmodifiableList(older);
+    }
+
     public void setNewOutgoingMessage(OutgoingChatMessage newOutgoingMessage) {
-        outgoingMessages.add(newOutgoingMessage);
+        outbox.add(newOutgoingMessage);
+        activityCount++;
+    }
+
+    public long getActivityCount() {
+        return activityCount;
+    }
+
+    public long getAcknowledgedMessageCount() {
+        return acknowledgedMessageCount;
+    }
+
+    public long getAverageAcknowledgeLatencyMillis() {
+        return acknowledgedMessageCount == 0
+                ? 0 : acknowledgeLatencySumMillis / acknowledgedMessageCount;
+    }
+
+    public long getMaxAcknowledgeLatencyMillis() {
+        return maxAcknowledgeLatencyMillis;
+    }
+
+    private void recordAcknowledged(OutgoingChatMessage message) {
+        long latencyMillis = System.currentTimeMillis() - message.getTimestamp().getTime();
+        acknowledgedMessageCount++;
+        acknowledgeLatencySumMillis += latencyMillis;
+        maxAcknowledgeLatencyMillis = Math.max(maxAcknowledgeLatencyMillis, latencyMillis);
+        Timber.d("Chat message acknowledged after %d ms (average %d ms over %d messages)",
+                latencyMillis, getAverageAcknowledgeLatencyMillis(), acknowledgedMessageCount);
     }
 
     public JSONArray getOutgoingMessagesAsJson() {
         JSONArray jsonArray = new JSONArray();
 
-        for (OutgoingChatMessage outgoingChatMessage : outgoingMessages) {
+        for (OutgoingChatMessage outgoingChatMessage : outbox.getBatch()) {
             try {
                 JSONObject messageObject = new JSONObject();
                 messageObject.put("text", outgoingChatMessage.getUrlEncodedMessage());
@@ -83,15 +251,22 @@ public class ChatModel {
         return jsonArray;
     }
 
+    // unmodifiable, replaced whenever a message is sent or acknowledged
+    public List<OutgoingChatMessage> getOutgoingMessages() {
+        return outbox.getPending();
+    }
+
     public ArrayList<IChatMessage> getSavedAndOutgoingMessages() {
-        int mergedListsSize = chatMessages.size() + outgoingMessages.size();
+        List<OutgoingChatMessage> outgoingMessages = outbox.getPending();
+        int mergedListsSize = olderMessages.size() + chatMessages.size() + outgoingMessages.size();
         ArrayList<IChatMessage> mergeArrayList = new ArrayList<>(mergedListsSize);
+        mergeArrayList.addAll(olderMessages);
         mergeArrayList.addAll(chatMessages);
         mergeArrayList.addAll(outgoingMessages);
         return mergeArrayList;
     }
 
     public boolean hasOutgoingMessages() {
-        return !outgoingMessages.isEmpty();
+        return !outbox.isEmpty();
     }
 }
@@ -0,0 +1,173 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.vo.Endpoints;
+import okhttp3.HttpUrl;
+import timber.log.Timber;
+
+// Body bytes per endpoint as the app sees them (raw) and as they go over the network (wire),
+// i.e. after request compression and before response decompression. Headers aren't counted.
+// Filled by TrafficCountingInterceptor from OkHttp's threads. Also keeps what the adaptive sync
+// cadence saved, published by SyncIntervalPolicy, so both can be read in one place.
+@Singleton
+public class NetworkTrafficModel {
+
+    public static final class EndpointTraffic {
+        private final String endpoint;
+        private final AtomicLong callCount = new AtomicLong();
+        private final AtomicLong requestRawBytes = new AtomicLong();
+        private final AtomicLong requestWireBytes = new AtomicLong();
+        private final AtomicLong responseRawBytes = new AtomicLong();
+        private final AtomicLong responseWireBytes = new AtomicLong();
+
+        EndpointTraffic(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getCallCount() {
+            return callCount.get();
+        }
+
+        public long getRequestRawBytes() {
+            return requestRawBytes.get();
+        }
+
+        public long getRequestWireBytes() {
+            return requestWireBytes.get();
+        }
+
+        public long getResponseRawBytes() {
+            return responseRawBytes.get();
+        }
+
+        public long getResponseWireBytes() {
+            return responseWireBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + ": " + callCount + " calls, sent " + requestRawBytes + " bytes ("
+                    + requestWireBytes + " on the wire), received " + responseRawBytes
+                    + " bytes (" + responseWireBytes + " on the wire)";
+        }
+    }
+
+    // how the adaptive sync cadence compares to the fixed 12 second timer it replaced
+    public static final class SyncSavings {
+        private final long syncCount;
+        private final long baselineSyncCount;
+        private final long averageLocationRefreshMillis;
+
+        public SyncSavings(long syncCount, long baselineSyncCount,
+                           long averageLocationRefreshMillis) {
+            this.syncCount = syncCount;
+            this.baselineSyncCount = baselineSyncCount;
+            this.averageLocationRefreshMillis = averageLocationRefreshMillis;
+        }
+
+        public long getSyncCount() {
+            return syncCount;
+        }
+
+        public long getBaselineSyncCount() {
+            return baselineSyncCount;
+        }
+
+        // radio wake-ups that didn't happen
+        public long getSavedSyncCount() {
+            return baselineSyncCount - syncCount;
+        }
+
+        public long getAverageLocationRefreshMillis() {
+            return averageLocationRefreshMillis;
+        }
+
+        @Override
+        public String toString() {
+            return syncCount + " syncs instead of " + baselineSyncCount
+                    + ", location fixes every " + averageLocationRefreshMillis
+                    + " ms on average";
+        }
+    }
+
+    private final ConcurrentHashMap<String, EndpointTraffic> endpoints = new ConcurrentHashMap<>();
+    private volatile SyncSavings syncSavings = new SyncSavings(0, 0, 0);
+
+    @Inject
+    public NetworkTrafficModel() {
+    }
+
+    public void addCall(HttpUrl url) {
+        get(url).callCount.incrementAndGet();
+    }
+
+    public void addRequestBytes(HttpUrl url, long byteCount, boolean wire) {
+        EndpointTraffic traffic = get(url);
+        (wire ? traffic.requestWireBytes : traffic.requestRawBytes).addAndGet(byteCount);
+    }
+
+    public void addResponseBytes(HttpUrl url, long byteCount, boolean wire) {
+        EndpointTraffic traffic = get(url);
+        (wire ? traffic.responseWireBytes : traffic.responseRawBytes).addAndGet(byteCount);
+    }
+
+    public EndpointTraffic get(HttpUrl url) {
+        String endpoint = endpoint(url);
+        EndpointTraffic traffic = endpoints.get(endpoint);
+        if (traffic == null) {
+            EndpointTraffic created = new EndpointTraffic(endpoint);
+            traffic = endpoints.putIfAbsent(endpoint, created);
+            if (traffic == null) {
+                traffic = created;
+            }
+        }
+        return traffic;
+    }
+
+    public List<EndpointTraffic> getAll() {
+        return Collections.unmodifiableList(new ArrayList<>(endpoints.values()));
+    }
+
+    public void setSyncSavings(SyncSavings syncSavings) {
+        this.syncSavings = syncSavings;
+    }
+
+    public SyncSavings getSyncSavings() {
+        return syncSavings;
+    }
+
+    // the syncs that didn't happen at the average wire cost of the ones that did
+    public long getSavedSyncBytes() {
+        EndpointTraffic traffic = endpoints.get(endpoint(HttpUrl.get(Endpoints.MAIN_POST)));
+        if (traffic == null || traffic.getCallCount() == 0) {
+            return 0;
+        }
+        long bytesPerSync = (traffic.getRequestWireBytes() + traffic.getResponseWireBytes())
+                / traffic.getCallCount();
+        return syncSavings.getSavedSyncCount() * bytesPerSync;
+    }
+
+    public void log() {
+        for (EndpointTraffic traffic : endpoints.values()) {
+            Timber.d("Traffic %s", traffic);
+        }
+        Timber.d("Adaptive sync: %s, ~%d kB saved", syncSavings, getSavedSyncBytes() / 1024);
+    }
+
+    // query parameters would split one endpoint into many
+    private static String endpoint(HttpUrl url) {
+        return url.host() + url.encodedPath();
+    }
+}
@@ -1,11 +1,6 @@
 package de.stephanlindauer.criticalmaps.model;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.osmdroid.util.GeoPoint;
-
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -13,28 +8,58 @@ import javax.inject.Singleton;
 @Singleton
 public class OtherUsersLocationModel {
 
-    private ArrayList<GeoPoint> otherUsersLocations = new ArrayList<>();
+    // double buffered: the sync thread fills the spare while the main thread reads the current
+    private RiderLocationBuffer otherUsersLocations = new RiderLocationBuffer();
+    private final AtomicReference<RiderLocationBuffer> spareBuffer = new AtomicReference<>();
+    private RiderClusters riderClusters = RiderClusters.empty();
+    // bumped whenever the riders changed, chat only responses publish the same riders again
+    private int ridersRevision;
 
     @Inject
     public OtherUsersLocationModel() {
     }
 
-    public void setFromJson(JSONObject jsonObject) throws JSONException {
-        otherUsersLocations = new ArrayList<>(jsonObject.length());
+    // safe to call from any thread, the returned buffer is exclusively owned by the caller
+    // until it's passed to setOtherUsersLocations(). It still holds what it held when it was
+    // handed back, DeltaSyncState builds on that.
+    public RiderLocationBuffer obtainBuffer() {
+        RiderLocationBuffer buffer = spareBuffer.getAndSet(null);
+        if (buffer == null) {
+            buffer = new RiderLocationBuffer();
+        }
+        return buffer;
+    }
 
-        Iterator<String> keys = jsonObject.keys();
-        while (keys.hasNext()) {
-            String key = keys.next();
-            JSONObject value = jsonObject.getJSONObject(key);
-            int latitudeE6 = Integer.parseInt(value.getString("latitude"));
-            int longitudeE6 = Integer.parseInt(value.getString("longitude"));
+    // hands back a buffer from obtainBuffer() that ended up not being used
+    public void releaseBuffer(RiderLocationBuffer buffer) {
+        spareBuffer.compareAndSet(null, buffer);
+    }
 
-            otherUsersLocations.add(
-                    new GeoPoint(latitudeE6 / 1000000.0D, longitudeE6 / 1000000.0D));
+    public void setOtherUsersLocations(RiderLocationBuffer locations, boolean hasChanged) {
+        if (hasChanged) {
+            ridersRevision++;
+        }
+        RiderLocationBuffer previous = otherUsersLocations;
+        otherUsersLocations = locations;
+        if (previous != locations) {
+            spareBuffer.set(previous);
         }
     }
 
-    public ArrayList<GeoPoint> getOtherUsersLocations() {
+    // main thread only, like the spatial index that comes with it
+    public RiderLocations getOtherUsersLocations() {
         return otherUsersLocations;
     }
+
+    public int getRidersRevision() {
+        return ridersRevision;
+    }
+
+    public void setRiderClusters(RiderClusters riderClusters) {
+        this.riderClusters = riderClusters;
+    }
+
+    public RiderClusters getRiderClusters() {
+        return riderClusters;
+    }
 }
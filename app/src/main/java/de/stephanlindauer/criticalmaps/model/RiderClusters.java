@@ -0,0 +1,141 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// Riders merged into grid clusters for every zoom level up to MAX_ZOOM, above that riders
+// are shown individually. That's only when zoomed out beyond a city, at the map's default
+// zoom riders are still told apart. Levels are built bottom up, each one clusters the centroids of the
+// next finer level, so building all of them is linear in the number of riders per level.
+// Immutable once built, so it can be handed from the sync thread to the map as is.
+public final class RiderClusters {
+
+    public static final int MIN_ZOOM = 0;
+    public static final int MAX_ZOOM = 11;
+
+    // side of a cluster cell in pixels of a 256px tile at the level's zoom
+    public static final double CELL_SIZE_PX = 48D;
+    private static final double TILE_SIZE_PX = 256D;
+
+    private static final RiderClusters EMPTY = build(new RiderLocationBuffer());
+
+    private final int riderCount;
+    private final int[] clusterCounts = new int[MAX_ZOOM + 1];
+    private final double[][] mercatorX = new double[MAX_ZOOM + 1][];
+    private final double[][] mercatorY = new double[MAX_ZOOM + 1][];
+    private final int[][] riderCounts = new int[MAX_ZOOM + 1][];
+
+    private RiderClusters(int riderCount) {
+        this.riderCount = riderCount;
+    }
+
+    public static RiderClusters empty() {
+        return EMPTY;
+    }
+
+    public static RiderClusters build(RiderLocations riders) {
+        int count = riders.size();
+        RiderClusters clusters = new RiderClusters(count);
+
+        double[] x = new double[count];
+        double[] y = new double[count];
+        int[] weights = new int[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = MercatorUtils.x(riders.getLongitudeE6(i) / 1E6D);
+            y[i] = MercatorUtils.y(riders.getLatitudeE6(i) / 1E6D);
+            weights[i] = 1;
+        }
+
+        int slots = Integer.highestOneBit(Math.max(1, count)) * 4;
+        long[] cellKeys = new long[slots];
+        int[] cellSlots = new int[slots];
+
+        for (int zoom = MAX_ZOOM; zoom >= MIN_ZOOM; zoom--) {
+            double[] sumX = new double[count];
+            double[] sumY = new double[count];
+            int[] levelWeights = new int[count];
+            int levelCount = 0;
+
+            // open addressing map from cell to cluster, slot holds cluster index + 1
+            Arrays.fill(cellSlots, 0);
+            int mask = slots - 1;
+            for (int i = 0; i < count; i++) {
+                long key = cellKey(zoom, x[i], y[i]);
+                int slot = mix(key) & mask;
+                while (cellSlots[slot] != 0 && cellKeys[slot] != key) {
+                    slot = (slot + 1) & mask;
+                }
+                int cluster;
+                if (cellSlots[slot] == 0) {
+                    cluster = levelCount++;
+                    cellKeys[slot] = key;
+                    cellSlots[slot] = cluster + 1;
+                } else {
+                    cluster = cellSlots[slot] - 1;
+                }
+                sumX[cluster] += x[i] * weights[i];
+                sumY[cluster] += y[i] * weights[i];
+                levelWeights[cluster] += weights[i];
+            }
+
+            for (int cluster = 0; cluster < levelCount; cluster++) {
+                sumX[cluster] /= levelWeights[cluster];
+                sumY[cluster] /= levelWeights[cluster];
+            }
+            x = Arrays.copyOf(sumX, levelCount);
+            y = Arrays.copyOf(sumY, levelCount);
+            weights = Arrays.copyOf(levelWeights, levelCount);
+            count = levelCount;
+
+            clusters.clusterCounts[zoom] = levelCount;
+            clusters.mercatorX[zoom] = x;
+            clusters.mercatorY[zoom] = y;
+            clusters.riderCounts[zoom] = weights;
+        }
+        return clusters;
+    }
+
+    // the grid cell a point falls into on a level. A cluster's centroid lies in its own cell,
+    // so clusters of two builds with the same cell hold mostly the same riders.
+    public static long cellKey(int zoom, double mercatorX, double mercatorY) {
+        double cellSize = CELL_SIZE_PX / (TILE_SIZE_PX * (1 << zoom));
+        return ((long) (int) Math.floor(mercatorX / cellSize) << 32)
+                | ((int) Math.floor(mercatorY / cellSize) & 0xffffffffL);
+    }
+
+    public static boolean isClustered(double zoomLevel) {
+        return zoomLevel < MAX_ZOOM + 1;
+    }
+
+    // the level to use when the map is at the given (fractional) zoom level
+    public static int levelFor(double zoomLevel) {
+        return (int) Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, Math.floor(zoomLevel)));
+    }
+
+    public int getRiderCount() {
+        return riderCount;
+    }
+
+    public int getClusterCount(int zoom) {
+        return clusterCounts[zoom];
+    }
+
+    // normalized web mercator, see MercatorUtils. Shared arrays, don't modify them.
+    public double[] getMercatorX(int zoom) {
+        return mercatorX[zoom];
+    }
+
+    public double[] getMercatorY(int zoom) {
+        return mercatorY[zoom];
+    }
+
+    public int getRiderCount(int zoom, int cluster) {
+        return riderCounts[zoom][cluster];
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,312 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import java.util.Arrays;
+
+// Uniform grid over the bounding box of one rider snapshot. Riders are bucketed with a
+// counting sort, so a rebuild is linear and doesn't allocate once the arrays have grown.
+// Positions are copied in cell order, queries only touch the cells they overlap.
+// Distances are in meters, see GeoUtils.
+public final class RiderGridIndex {
+
+    public interface Visitor {
+        void visit(int riderIndex);
+    }
+
+    private static final double METERS_PER_E6 = 0.1113194908D;
+    private static final int TARGET_RIDERS_PER_CELL = 2;
+    private static final int MAX_CELLS = 1 << 16;
+    private static final int MAX_CELL_OFFSET = 1 << 28;
+
+    private int count;
+    private int[] latitudesE6 = new int[0];
+    private int[] longitudesE6 = new int[0];
+    private int[] riderIndices = new int[0];
+    private int[] riderCells = new int[0];
+
+    private int rows;
+    private int columns;
+    private int minLatitudeE6;
+    private int minLongitudeE6;
+    private int cellHeightE6 = 1;
+    private int cellWidthE6 = 1;
+    // entries of cell c are at [cellStart[c], cellStart[c + 1])
+    private int[] cellStart = new int[1];
+
+    private int[] nearestIndices = new int[0];
+    private double[] nearestDistances = new double[0];
+
+    public void clear() {
+        count = 0;
+        rows = 0;
+        columns = 0;
+    }
+
+    public void rebuild(RiderLocations riders) {
+        clear();
+        int size = riders.size();
+        if (size == 0) {
+            return;
+        }
+        ensureCapacity(size);
+
+        int minLatitude = Integer.MAX_VALUE;
+        int maxLatitude = Integer.MIN_VALUE;
+        int minLongitude = Integer.MAX_VALUE;
+        int maxLongitude = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            int latitude = riders.getLatitudeE6(i);
+            int longitude = riders.getLongitudeE6(i);
+            minLatitude = Math.min(minLatitude, latitude);
+            maxLatitude = Math.max(maxLatitude, latitude);
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+        }
+        layoutCells(size, minLatitude, maxLatitude, minLongitude, maxLongitude);
+
+        int cellCount = rows * columns;
+        Arrays.fill(cellStart, 0, cellCount + 1, 0);
+        for (int i = 0; i < size; i++) {
+            int cell = cellOf(riders.getLatitudeE6(i), riders.getLongitudeE6(i));
+            riderCells[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int cell = 0; cell < cellCount; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        // cellStart[c] is used as insert cursor and ends up at the start of cell c + 1,
+        // shifting it back afterwards restores the starts
+        for (int i = 0; i < size; i++) {
+            int position = cellStart[riderCells[i]]++;
+            latitudesE6[position] = riders.getLatitudeE6(i);
+            longitudesE6[position] = riders.getLongitudeE6(i);
+            riderIndices[position] = i;
+        }
+        System.arraycopy(cellStart, 0, cellStart, 1, cellCount);
+        cellStart[0] = 0;
+        count = size;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // visits all riders within the box (inclusive) and returns how many there were
+    public int queryBoundingBox(int minLatitudeE6, int minLongitudeE6,
+                                int maxLatitudeE6, int maxLongitudeE6, Visitor visitor) {
+        if (count == 0) {
+            return 0;
+        }
+        int firstRow = clampRow(rowOf(minLatitudeE6));
+        int lastRow = clampRow(rowOf(maxLatitudeE6));
+        int firstColumn = clampColumn(columnOf(minLongitudeE6));
+        int lastColumn = clampColumn(columnOf(maxLongitudeE6));
+
+        int found = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            int end = cellStart[row * columns + lastColumn + 1];
+            for (int i = cellStart[row * columns + firstColumn]; i < end; i++) {
+                int latitude = latitudesE6[i];
+                int longitude = longitudesE6[i];
+                if (latitude >= minLatitudeE6 && latitude <= maxLatitudeE6
+                        && longitude >= minLongitudeE6 && longitude <= maxLongitudeE6) {
+                    visitor.visit(riderIndices[i]);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    // writes the indices of up to result.length riders closest to the given point into
+    // result, nearest first, and returns how many were written
+    public int findNearest(int latitudeE6, int longitudeE6, int[] result) {
+        int wanted = Math.min(result.length, count);
+        if (wanted == 0) {
+            return 0;
+        }
+        if (nearestIndices.length < wanted) {
+            nearestIndices = new int[wanted];
+            nearestDistances = new double[wanted];
+        }
+
+        double longitudeScale = Math.cos(Math.toRadians(latitudeE6 / 1E6D));
+        double minCellMeters = Math.min(cellHeightE6, cellWidthE6 * longitudeScale)
+                * METERS_PER_E6;
+        int centerRow = rowOf(latitudeE6);
+        int centerColumn = columnOf(longitudeE6);
+        int maxRing = Math.max(
+                Math.max(Math.abs(centerRow), Math.abs(rows - 1 - centerRow)),
+                Math.max(Math.abs(centerColumn), Math.abs(columns - 1 - centerColumn)));
+
+        // the first ring that touches the grid, the point itself might be outside of it
+        int firstRing = Math.max(
+                Math.max(Math.max(0, -centerRow), centerRow - (rows - 1)),
+                Math.max(-centerColumn, centerColumn - (columns - 1)));
+
+        int found = 0;
+        for (int ring = firstRing; ring <= maxRing; ring++) {
+            // everything in this ring is at least ring - 1 full cells away
+            if (found == wanted
+                    && (ring - 1) * minCellMeters > nearestDistances[found - 1]) {
+                break;
+            }
+            int lastRow = Math.min(rows - 1, centerRow + ring);
+            int firstColumn = Math.max(0, centerColumn - ring);
+            int lastColumn = Math.min(columns - 1, centerColumn + ring);
+            for (int row = Math.max(0, centerRow - ring); row <= lastRow; row++) {
+                if (Math.abs(row - centerRow) == ring) {
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        found = scanCell(row * columns + column, latitudeE6, longitudeE6,
+                                longitudeScale, found, wanted);
+                    }
+                } else {
+                    if (centerColumn - ring >= 0) {
+                        found = scanCell(row * columns + centerColumn - ring,
+                                latitudeE6, longitudeE6, longitudeScale, found, wanted);
+                    }
+                    if (centerColumn + ring < columns) {
+                        found = scanCell(row * columns + centerColumn + ring,
+                                latitudeE6, longitudeE6, longitudeScale, found, wanted);
+                    }
+                }
+            }
+        }
+
+        System.arraycopy(nearestIndices, 0, result, 0, found);
+        return found;
+    }
+
+    // the rider closest to the point within radiusMeters or -1 if there is none
+    public int hitTest(int latitudeE6, int longitudeE6, double radiusMeters) {
+        if (count == 0) {
+            return -1;
+        }
+        double longitudeScale = Math.cos(Math.toRadians(latitudeE6 / 1E6D));
+        int latitudeRadiusE6 = (int) Math.ceil(radiusMeters / METERS_PER_E6);
+        int longitudeRadiusE6 = (int) Math.min(Integer.MAX_VALUE,
+                Math.ceil(radiusMeters / (METERS_PER_E6 * Math.max(longitudeScale, 1E-9D))));
+        int firstRow = clampRow(rowOf((long) latitudeE6 - latitudeRadiusE6));
+        int lastRow = clampRow(rowOf((long) latitudeE6 + latitudeRadiusE6));
+        int firstColumn = clampColumn(columnOf((long) longitudeE6 - longitudeRadiusE6));
+        int lastColumn = clampColumn(columnOf((long) longitudeE6 + longitudeRadiusE6));
+
+        int hit = -1;
+        double hitDistance = radiusMeters;
+        for (int row = firstRow; row <= lastRow; row++) {
+            int end = cellStart[row * columns + lastColumn + 1];
+            for (int i = cellStart[row * columns + firstColumn]; i < end; i++) {
+                double distance = distanceMeters(latitudeE6, longitudeE6,
+                        latitudesE6[i], longitudesE6[i], longitudeScale);
+                if (distance <= hitDistance) {
+                    hit = riderIndices[i];
+                    hitDistance = distance;
+                }
+            }
+        }
+        return hit;
+    }
+
+    // GeoUtils.distanceMeters() with the longitude scale of the query point computed once
+    private static double distanceMeters(int latitudeE6, int longitudeE6,
+                                         int otherLatitudeE6, int otherLongitudeE6,
+                                         double longitudeScale) {
+        double dy = (double) (otherLatitudeE6 - latitudeE6);
+        double dx = (double) (otherLongitudeE6 - longitudeE6) * longitudeScale;
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_E6;
+    }
+
+    private int scanCell(int cell, int latitudeE6, int longitudeE6, double longitudeScale,
+                         int found, int wanted) {
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            double distance = distanceMeters(latitudeE6, longitudeE6,
+                    latitudesE6[i], longitudesE6[i], longitudeScale);
+            found = offerNearest(riderIndices[i], distance, found, wanted);
+        }
+        return found;
+    }
+
+    private int offerNearest(int riderIndex, double distance, int found, int wanted) {
+        if (found == wanted && distance >= nearestDistances[found - 1]) {
+            return found;
+        }
+        int position = found == wanted ? found - 1 : found;
+        while (position > 0 && nearestDistances[position - 1] > distance) {
+            nearestDistances[position] = nearestDistances[position - 1];
+            nearestIndices[position] = nearestIndices[position - 1];
+            position--;
+        }
+        nearestDistances[position] = distance;
+        nearestIndices[position] = riderIndex;
+        return found == wanted ? found : found + 1;
+    }
+
+    private void layoutCells(int size, int minLatitude, int maxLatitude,
+                             int minLongitude, int maxLongitude) {
+        long latitudeSpan = (long) maxLatitude - minLatitude + 1;
+        long longitudeSpan = (long) maxLongitude - minLongitude + 1;
+        int targetCells = Math.max(1, Math.min(MAX_CELLS, size / TARGET_RIDERS_PER_CELL));
+
+        // roughly square cells in E6 units, good enough at the latitudes rides happen at
+        double cellSide = Math.sqrt((double) latitudeSpan * longitudeSpan / targetCells);
+        cellHeightE6 = (int) Math.max(1, Math.min(latitudeSpan, Math.ceil(cellSide)));
+        cellWidthE6 = (int) Math.max(1, Math.min(longitudeSpan, Math.ceil(cellSide)));
+        rows = (int) ((latitudeSpan + cellHeightE6 - 1) / cellHeightE6);
+        columns = (int) ((longitudeSpan + cellWidthE6 - 1) / cellWidthE6);
+        // rounding up the side can't create more cells than wanted, but degenerate spans can
+        while ((long) rows * columns > MAX_CELLS) {
+            if (rows > columns) {
+                cellHeightE6 *= 2;
+                rows = (int) ((latitudeSpan + cellHeightE6 - 1) / cellHeightE6);
+            } else {
+                cellWidthE6 *= 2;
+                columns = (int) ((longitudeSpan + cellWidthE6 - 1) / cellWidthE6);
+            }
+        }
+        minLatitudeE6 = minLatitude;
+        minLongitudeE6 = minLongitude;
+
+        if (cellStart.length < rows * columns + 1) {
+            cellStart = new int[rows * columns + 1];
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (latitudesE6.length < size) {
+            int capacity = Math.max(size, latitudesE6.length * 2);
+            latitudesE6 = new int[capacity];
+            longitudesE6 = new int[capacity];
+            riderIndices = new int[capacity];
+            riderCells = new int[capacity];
+        }
+    }
+
+    private int cellOf(int latitudeE6, int longitudeE6) {
+        return rowOf(latitudeE6) * columns + columnOf(longitudeE6);
+    }
+
+    // unclamped, points outside the grid get negative or too large rows and columns
+    private int rowOf(long latitudeE6) {
+        return floorDiv(latitudeE6 - minLatitudeE6, cellHeightE6);
+    }
+
+    private int columnOf(long longitudeE6) {
+        return floorDiv(longitudeE6 - minLongitudeE6, cellWidthE6);
+    }
+
+    // clamped so far away points can't overflow the ring arithmetic
+    private static int floorDiv(long value, int divisor) {
+        long quotient = value / divisor;
+        if (value % divisor < 0) {
+            quotient--;
+        }
+        return (int) Math.max(-MAX_CELL_OFFSET, Math.min(MAX_CELL_OFFSET, quotient));
+    }
+
+    private int clampRow(int row) {
+        return Math.max(0, Math.min(rows - 1, row));
+    }
+
+    private int clampColumn(int column) {
+        return Math.max(0, Math.min(columns - 1, column));
+    }
+}
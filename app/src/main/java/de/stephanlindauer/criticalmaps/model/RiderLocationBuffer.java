@@ -0,0 +1,190 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import java.util.Arrays;
+
+// Rider positions in parallel primitive arrays plus an open addressing index on the device
+// key. Buffers only ever grow, so refilling it on every sync doesn't allocate once it has
+// reached the size of the ride.
+public final class RiderLocationBuffer implements RiderLocations {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    private int[] latitudesE6 = new int[INITIAL_CAPACITY];
+    private int[] longitudesE6 = new int[INITIAL_CAPACITY];
+    private String[] deviceKeys = new String[INITIAL_CAPACITY];
+
+    // slot holds index + 1 so the zeroed array reads as empty, load factor stays <= 0.5
+    private int[] keyIndex = new int[INITIAL_CAPACITY * 2];
+
+    private final RiderGridIndex spatialIndex = new RiderGridIndex();
+
+    public void clear() {
+        Arrays.fill(deviceKeys, 0, size, null);
+        Arrays.fill(keyIndex, 0);
+        size = 0;
+        spatialIndex.clear();
+    }
+
+    // call once all riders are added, still off the main thread
+    public void buildSpatialIndex() {
+        spatialIndex.rebuild(this);
+    }
+
+    public void add(String deviceKey, int latitudeE6, int longitudeE6) {
+        int existing = indexOf(deviceKey);
+        if (existing >= 0) {
+            latitudesE6[existing] = latitudeE6;
+            longitudesE6[existing] = longitudeE6;
+            return;
+        }
+
+        if (size == latitudesE6.length) {
+            grow();
+        }
+        latitudesE6[size] = latitudeE6;
+        longitudesE6[size] = longitudeE6;
+        deviceKeys[size] = deviceKey;
+        insertIntoIndex(deviceKey, size);
+        size++;
+    }
+
+    // moves the last rider into the freed index, so indices of other riders may change
+    public boolean remove(String deviceKey) {
+        int mask = keyIndex.length - 1;
+        int slot = hash(deviceKey) & mask;
+        while (true) {
+            int entry = keyIndex[slot];
+            if (entry == 0) {
+                return false;
+            }
+            if (deviceKeys[entry - 1].equals(deviceKey)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = keyIndex[slot] - 1;
+        removeFromIndex(slot);
+        int last = size - 1;
+        if (index != last) {
+            latitudesE6[index] = latitudesE6[last];
+            longitudesE6[index] = longitudesE6[last];
+            deviceKeys[index] = deviceKeys[last];
+            keyIndex[slotOf(deviceKeys[index])] = index + 1;
+        }
+        deviceKeys[last] = null;
+        size--;
+        return true;
+    }
+
+    public void addAll(RiderLocations riders) {
+        for (int i = 0, count = riders.size(); i < count; i++) {
+            add(riders.getDeviceKey(i), riders.getLatitudeE6(i), riders.getLongitudeE6(i));
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getLatitudeE6(int index) {
+        return latitudesE6[index];
+    }
+
+    @Override
+    public int getLongitudeE6(int index) {
+        return longitudesE6[index];
+    }
+
+    @Override
+    public String getDeviceKey(int index) {
+        return deviceKeys[index];
+    }
+
+    @Override
+    public int indexOf(String deviceKey) {
+        int mask = keyIndex.length - 1;
+        int slot = hash(deviceKey) & mask;
+        while (true) {
+            int entry = keyIndex[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (deviceKeys[entry - 1].equals(deviceKey)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public RiderGridIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    int capacity() {
+        return latitudesE6.length;
+    }
+
+    private void grow() {
+        int newCapacity = latitudesE6.length * 2;
+        latitudesE6 = Arrays.copyOf(latitudesE6, newCapacity);
+        longitudesE6 = Arrays.copyOf(longitudesE6, newCapacity);
+        deviceKeys = Arrays.copyOf(deviceKeys, newCapacity);
+
+        keyIndex = new int[newCapacity * 2];
+        for (int i = 0; i < size; i++) {
+            insertIntoIndex(deviceKeys[i], i);
+        }
+    }
+
+    private void insertIntoIndex(String deviceKey, int index) {
+        int mask = keyIndex.length - 1;
+        int slot = hash(deviceKey) & mask;
+        while (keyIndex[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keyIndex[slot] = index + 1;
+    }
+
+    private int slotOf(String deviceKey) {
+        int mask = keyIndex.length - 1;
+        int slot = hash(deviceKey) & mask;
+        while (!deviceKeys[keyIndex[slot] - 1].equals(deviceKey)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // backward shift deletion, keeps every probe chain free of holes
+    private void removeFromIndex(int slot) {
+        int mask = keyIndex.length - 1;
+        int hole = slot;
+        keyIndex[hole] = 0;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            int entry = keyIndex[next];
+            if (entry == 0) {
+                return;
+            }
+            int home = hash(deviceKeys[entry - 1]) & mask;
+            boolean reachableFromHole = hole <= next
+                    ? home <= hole || home > next
+                    : home <= hole && home > next;
+            if (reachableFromHole) {
+                keyIndex[hole] = entry;
+                keyIndex[next] = 0;
+                hole = next;
+            }
+        }
+    }
+
+    private static int hash(String deviceKey) {
+        int h = deviceKey.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,19 @@
+package de.stephanlindauer.criticalmaps.model;
+
+// Read-only view on the riders of one sync. Instances are recycled for later syncs, so don't
+// hold on to them, always fetch the current one from OtherUsersLocationModel instead.
+public interface RiderLocations {
+    int size();
+
+    int getLatitudeE6(int index);
+
+    int getLongitudeE6(int index);
+
+    String getDeviceKey(int index);
+
+    // -1 if the device isn't part of this snapshot
+    int indexOf(String deviceKey);
+
+    // indices handed out by the index refer to this snapshot
+    RiderGridIndex getSpatialIndex();
+}
@@ -0,0 +1,61 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+
+// Immutable result of parsing one server response. Built on a background thread and handed
+// over to the main thread as a whole, so the models never see a half merged state.
+public final class ServerSnapshot {
+
+    private final RiderLocationBuffer otherUsersLocations;
+    private final RiderClusters riderClusters;
+    private final boolean hasRiderChanges;
+    private final List<ReceivedChatMessage> chatMessages;
+    private final ChatChangeSet chatChanges;
+
+    public ServerSnapshot(@Nullable RiderLocationBuffer otherUsersLocations,
+                          @Nullable RiderClusters riderClusters, boolean hasRiderChanges,
+                          @Nullable List<ReceivedChatMessage> chatMessages,
+                          @Nullable ChatChangeSet chatChanges) {
+        this.otherUsersLocations = otherUsersLocations;
+        this.riderClusters = riderClusters;
+        this.hasRiderChanges = hasRiderChanges;
+        this.chatMessages = chatMessages;
+        this.chatChanges = chatChanges;
+    }
+
+    public boolean hasOtherUsersLocations() {
+        return otherUsersLocations != null;
+    }
+
+    public RiderLocationBuffer getOtherUsersLocations() {
+        return otherUsersLocations;
+    }
+
+    // present whenever locations are
+    public RiderClusters getRiderClusters() {
+        return riderClusters;
+    }
+
+    // false if the locations are the same as before, e.g. a delta that only had chat messages
+    public boolean hasRiderChanges() {
+        return hasRiderChanges;
+    }
+
+    public boolean hasChatMessages() {
+        return chatMessages != null;
+    }
+
+    public List<ReceivedChatMessage> getChatMessages() {
+        return chatMessages;
+    }
+
+    // present whenever chat messages are, relative to the previous snapshot
+    public ChatChangeSet getChatChanges() {
+        return chatChanges;
+    }
+}
@@ -6,6 +6,7 @@ import org.json.JSONObject;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -17,16 +18,17 @@ import de.stephanlindauer.criticalmaps.utils.TwitterUtils;
 @Singleton
 public class TwitterModel {
 
-    private final List<Tweet> tweets = new ArrayList<>();
+    // replaced on every refresh, never modified, so the adapter can diff old against new
+    private volatile List<Tweet> tweets = Collections.emptyList();
 
     @Inject
     public TwitterModel() {
     }
 
     public void setTweetsFromJsonString(String tweetsString) throws JSONException, ParseException {
-        tweets.clear();
         JSONObject jsonObject = new JSONObject(tweetsString);
         JSONArray statusesArray = jsonObject.getJSONArray("statuses");
+        List<Tweet> parsedTweets = new ArrayList<>(statusesArray.length());
 
         for (int i = 0, statusesArrayLength = statusesArray.length(); i < statusesArrayLength; i++) {
             JSONObject currentStatus = statusesArray.getJSONObject(i);
@@ -39,8 +41,9 @@ public class TwitterModel {
                     .setTimestamp(TwitterUtils.getTwitterDate(currentStatus.getString("created_at")))
                     .setProfileImageUrl(user.getString("profile_image_url_https"));
 
-            tweets.add(tweet);
+            parsedTweets.add(tweet);
         }
+        tweets = Collections.unmodifiableList(parsedTweets);
     }
 
     public List<Tweet> getTweets() {
@@ -0,0 +1,85 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// What one ChatHistory merge changed, taking the history from one revision to the next.
+// Removed ranges are positions in the previous list, inserted ranges positions in the new one,
+// so they're applied like RecyclerView expects: removals back to front, then insertions front
+// to back. Both are ascending and don't overlap.
+public final class ChatChangeSet {
+
+    private static final int[] NO_RANGES = new int[0];
+
+    private final long fromRevision;
+    private final long toRevision;
+    // start, count pairs
+    private final int[] removedRanges;
+    private final int[] insertedRanges;
+    private final List<ReceivedChatMessage> inserted;
+
+    ChatChangeSet(long fromRevision, long toRevision, int[] removedRanges, int[] insertedRanges,
+                  List<ReceivedChatMessage> inserted) {
+        this.fromRevision = fromRevision;
+        this.toRevision = toRevision;
+        this.removedRanges = removedRanges;
+        this.insertedRanges = insertedRanges;
+        this.inserted = inserted;
+    }
+
+    public static ChatChangeSet none(long revision) {
+        return new ChatChangeSet(revision, revision, NO_RANGES, NO_RANGES,
+                Collections.<ReceivedChatMessage>emptyList());
+    }
+
+    public boolean isEmpty() {
+        return fromRevision == toRevision;
+    }
+
+    public long getFromRevision() {
+        return fromRevision;
+    }
+
+    public long getToRevision() {
+        return toRevision;
+    }
+
+    public int getRemovedRangeCount() {
+        return removedRanges.length / 2;
+    }
+
+    public int getRemovedRangeStart(int range) {
+        return removedRanges[range * 2];
+    }
+
+    public int getRemovedRangeLength(int range) {
+        return removedRanges[range * 2 + 1];
+    }
+
+    public int getInsertedRangeCount() {
+        return insertedRanges.length / 2;
+    }
+
+    public int getInsertedRangeStart(int range) {
+        return insertedRanges[range * 2];
+    }
+
+    public int getInsertedRangeLength(int range) {
+        return insertedRanges[range * 2 + 1];
+    }
+
+    // in list order
+    public List<ReceivedChatMessage> getInserted() {
+        return inserted;
+    }
+
+    public Set<String> getInsertedIdentifiers() {
+        HashSet<String> identifiers = new HashSet<>(inserted.size() * 2);
+        for (int i = 0; i < inserted.size(); i++) {
+            identifiers.add(inserted.get(i).getIdentifier());
+        }
+        return identifiers;
+    }
+}
@@ -0,0 +1,155 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Received chat messages keyed by identifier and kept in timestamp order. Messages never change
+// once sent, so a merge only has to look at identifiers it doesn't know yet: those are sorted
+// among themselves and merged into the existing order in one pass, nothing gets re-sorted or
+// decoded again. Every merge that changes something bumps the revision and describes itself as
+// a ChatChangeSet.
+//
+// The ordered list is replaced instead of modified, it can be handed to other threads as is.
+// The history itself isn't thread safe, DeltaSyncState keeps the one mirroring the server on
+// the sync thread.
+public final class ChatHistory {
+
+    // timestamps only have seconds, the identifier keeps equal ones in a stable order
+    public static final Comparator<ReceivedChatMessage> ORDER =
+            new Comparator<ReceivedChatMessage>() {
+                @Override
+                public int compare(ReceivedChatMessage one, ReceivedChatMessage other) {
+                    int byTimestamp = one.getTimestamp().compareTo(other.getTimestamp());
+                    return byTimestamp != 0
+                            ? byTimestamp : one.getIdentifier().compareTo(other.getIdentifier());
+                }
+            };
+
+    private final HashMap<String, ReceivedChatMessage> byIdentifier = new HashMap<>();
+    private List<ReceivedChatMessage> messages = Collections.emptyList();
+    private long revision;
+
+    public boolean contains(String identifier) {
+        return byIdentifier.containsKey(identifier);
+    }
+
+    // unmodifiable and in order
+    public List<ReceivedChatMessage> getMessages() {
+        return messages;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    // a complete chat section: messages not listed in identifiers are gone, added may hold
+    // any of them, the ones already known are ignored
+    public ChatChangeSet replace(Set<String> identifiers, List<ReceivedChatMessage> added) {
+        HashSet<String> removed = new HashSet<>();
+        for (int i = 0; i < messages.size(); i++) {
+            String identifier = messages.get(i).getIdentifier();
+            if (!identifiers.contains(identifier)) {
+                removed.add(identifier);
+            }
+        }
+        return merge(removed, added);
+    }
+
+    // a delta, removals happen before additions
+    public ChatChangeSet apply(List<String> removedIdentifiers, List<ReceivedChatMessage> added) {
+        HashSet<String> removed = new HashSet<>();
+        for (int i = 0; i < removedIdentifiers.size(); i++) {
+            String identifier = removedIdentifiers.get(i);
+            if (byIdentifier.containsKey(identifier)) {
+                removed.add(identifier);
+            }
+        }
+        return merge(removed, added);
+    }
+
+    private ChatChangeSet merge(Set<String> removed, List<ReceivedChatMessage> added) {
+        ArrayList<ReceivedChatMessage> inserted = new ArrayList<>();
+        HashSet<String> insertedIdentifiers = new HashSet<>();
+        for (int i = 0; i < added.size(); i++) {
+            ReceivedChatMessage message = added.get(i);
+            String identifier = message.getIdentifier();
+            if ((!byIdentifier.containsKey(identifier) || removed.contains(identifier))
+                    && insertedIdentifiers.add(identifier)) {
+                inserted.add(message);
+            }
+        }
+        if (removed.isEmpty() && inserted.isEmpty()) {
+            return ChatChangeSet.none(revision);
+        }
+        Collections.sort(inserted, ORDER);
+
+        ArrayList<ReceivedChatMessage> merged =
+                new ArrayList<>(messages.size() - removed.size() + inserted.size());
+        Ranges removedRanges = new Ranges();
+        Ranges insertedRanges = new Ranges();
+        int next = 0;
+        int start = 0;
+        if (removed.isEmpty()) {
+            // usually new messages are the newest, skip ahead to where they go
+            int found = Collections.binarySearch(messages, inserted.get(0), ORDER);
+            start = found < 0 ? -found - 1 : found;
+            merged.addAll(messages.subList(0, start));
+        }
+        for (int i = start; i < messages.size(); i++) {
+            ReceivedChatMessage message = messages.get(i);
+            if (!removed.isEmpty() && removed.contains(message.getIdentifier())) {
+                removedRanges.add(i);
+                continue;
+            }
+            while (next < inserted.size() && ORDER.compare(inserted.get(next), message) < 0) {
+                insertedRanges.add(merged.size());
+                merged.add(inserted.get(next++));
+            }
+            merged.add(message);
+        }
+        while (next < inserted.size()) {
+            insertedRanges.add(merged.size());
+            merged.add(inserted.get(next++));
+        }
+
+        for (String identifier : removed) {
+            byIdentifier.remove(identifier);
+        }
+        for (int i = 0; i < inserted.size(); i++) {
+            ReceivedChatMessage message = inserted.get(i);
+            byIdentifier.put(message.getIdentifier(), message);
+        }
+        messages = Collections.unmodifiableList(merged);
+        revision++;
+        return new ChatChangeSet(revision - 1, revision, removedRanges.toArray(),
+                insertedRanges.toArray(), Collections.unmodifiableList(inserted));
+    }
+
+    // collects ascending positions into start, count pairs
+    private static final class Ranges {
+        private int[] ranges = new int[8];
+        private int size;
+
+        void add(int position) {
+            if (size > 0 && ranges[size - 2] + ranges[size - 1] == position) {
+                ranges[size - 1]++;
+                return;
+            }
+            if (size == ranges.length) {
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            ranges[size++] = position;
+            ranges[size++] = 1;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ranges, size);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
+import okhttp3.internal.Util;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import timber.log.Timber;
+
+// Outgoing chat messages the server hasn't listed yet. They're kept in an append-only file, one
+// line per record, so a service restart during a ride doesn't lose them:
+//
+//   A <identifier> <timestamp millis> <url encoded message>
+//   K <identifier>
+//
+// "A" is written when a message is sent, "K" once the server lists it. After a restart the file
+// is replayed and the messages go out again with their original identifiers, which the server
+// already deduplicates for regular retries. Once enough acknowledged records piled up the file is
+// rewritten with just the pending messages.
+//
+// Changed on the main thread (sending, acknowledging), read by the sync thread. The file is
+// loaded right away and written on the IO pool: changes queue up as a journal of file
+// operations, which is only written out once the previous file was replayed, so the replay
+// never sees records of this run.
+@Singleton
+public class ChatOutbox {
+
+    static final String FILE_NAME = "chat_outbox";
+    // messages per request, the rest follows with the next syncs
+    static final int MAX_BATCH_SIZE = 20;
+    static final int COMPACT_THRESHOLD = 32;
+    // the server has forgotten about the ride by then
+    static final long MAX_AGE_MILLIS = 12 * 60 * 60 * 1000;
+
+    private static final String RECORD_ADD = "A";
+    private static final String RECORD_ACKNOWLEDGED = "K";
+    private static final char SEPARATOR = ' ';
+
+    private final File file;
+    private final Executor ioExecutor;
+    private final Executor mainThreadExecutor;
+    // main thread only, insertion ordered, oldest first
+    private final LinkedHashMap<String, OutgoingChatMessage> pending = new LinkedHashMap<>();
+    // copy for lock free reads from the sync thread and the UI
+    private volatile List<OutgoingChatMessage> pendingSnapshot = Collections.emptyList();
+    // main thread only, no compaction before the restored messages are in pending
+    private int obsoleteRecordCount;
+    private boolean hasRestored;
+    // main thread only, what the server listed while the restore was still running, the
+    // restored messages among it are already delivered
+    private final Set<String> receivedBeforeRestore = new HashSet<>();
+
+    // guarded by journal: records to append, or the whole content if replacesFile
+    private final StringBuilder journal = new StringBuilder();
+    private boolean replacesFile;
+    private boolean isFileRestored;
+    // held while touching the file, taken before journal so the main thread never waits for IO
+    private final Object fileLock = new Object();
+
+    @Inject
+    public ChatOutbox(App app, TaskExecutors taskExecutors) {
+        this(new File(app.getFilesDir(), FILE_NAME),
+                runnable -> taskExecutors.submit(TaskPool.IO, TaskPriority.NORMAL, runnable),
+                taskExecutors.mainThread());
+    }
+
+    public ChatOutbox(File file, Executor ioExecutor, Executor mainThreadExecutor) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+        this.mainThreadExecutor = mainThreadExecutor;
+        ioExecutor.execute(this::restore);
+    }
+
+    public void add(OutgoingChatMessage message) {
+        if (pending.containsKey(message.getIdentifier())) {
+            return;
+        }
+        pending.put(message.getIdentifier(), message);
+        updateSnapshot();
+        write(addRecord(message), false);
+    }
+
+    // returns the messages acknowledged by this call, oldest first
+    public List<OutgoingChatMessage> acknowledge(Set<String> receivedIdentifiers) {
+        if (!hasRestored) {
+            receivedBeforeRestore.addAll(receivedIdentifiers);
+        }
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<OutgoingChatMessage> acknowledged = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        Iterator<OutgoingChatMessage> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            OutgoingChatMessage message = iterator.next();
+            if (receivedIdentifiers.contains(message.getIdentifier())) {
+                iterator.remove();
+                acknowledged.add(message);
+                records.append(acknowledgedRecord(message.getIdentifier()));
+            }
+        }
+        if (acknowledged.isEmpty()) {
+            return acknowledged;
+        }
+        updateSnapshot();
+
+        // an add and its acknowledgement
+        obsoleteRecordCount += 2 * acknowledged.size();
+        if (hasRestored && (obsoleteRecordCount >= COMPACT_THRESHOLD || pending.isEmpty())) {
+            obsoleteRecordCount = 0;
+            write(pendingRecords(pending.values()), true);
+        } else {
+            write(records.toString(), false);
+        }
+        return acknowledged;
+    }
+
+    public List<OutgoingChatMessage> getPending() {
+        return pendingSnapshot;
+    }
+
+    // what goes into the next request
+    public List<OutgoingChatMessage> getBatch() {
+        List<OutgoingChatMessage> messages = getPending();
+        return messages.size() <= MAX_BATCH_SIZE ? messages : messages.subList(0, MAX_BATCH_SIZE);
+    }
+
+    public boolean isEmpty() {
+        return getPending().isEmpty();
+    }
+
+    private void write(String records, boolean replaceFile) {
+        synchronized (journal) {
+            if (replaceFile) {
+                journal.setLength(0);
+                replacesFile = true;
+            }
+            journal.append(records);
+        }
+        ioExecutor.execute(this::flush);
+    }
+
+    // on the IO pool, whatever piled up in the journal goes out in one write
+    private void flush() {
+        synchronized (fileLock) {
+            String records;
+            boolean replaceFile;
+            synchronized (journal) {
+                if (!isFileRestored || journal.length() == 0 && !replacesFile) {
+                    return;
+                }
+                records = journal.toString();
+                replaceFile = replacesFile;
+                journal.setLength(0);
+                replacesFile = false;
+            }
+            if (replaceFile) {
+                replace(records);
+            } else {
+                append(records);
+            }
+        }
+    }
+
+    // on the IO pool, the restored messages go before the ones sent since
+    private void restore() {
+        LinkedHashMap<String, OutgoingChatMessage> restoredMessages = new LinkedHashMap<>();
+        synchronized (fileLock) {
+            int recordCount = 0;
+            if (file.exists()) {
+                try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+                    String line;
+                    while ((line = source.readUtf8Line()) != null) {
+                        recordCount++;
+                        replay(restoredMessages, line);
+                    }
+                } catch (IOException e) {
+                    Timber.d(e);
+                }
+            }
+
+            long oldest = System.currentTimeMillis() - MAX_AGE_MILLIS;
+            Iterator<OutgoingChatMessage> iterator = restoredMessages.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getTimestamp().getTime() < oldest) {
+                    iterator.remove();
+                }
+            }
+            Timber.d("Restored %d unsent chat messages", restoredMessages.size());
+
+            if (recordCount > restoredMessages.size()) {
+                replace(pendingRecords(restoredMessages.values()));
+            }
+            synchronized (journal) {
+                isFileRestored = true;
+            }
+        }
+        flush();
+        mainThreadExecutor.execute(() -> onRestored(restoredMessages));
+    }
+
+    private void onRestored(LinkedHashMap<String, OutgoingChatMessage> restoredMessages) {
+        hasRestored = true;
+        StringBuilder records = new StringBuilder();
+        Iterator<String> iterator = restoredMessages.keySet().iterator();
+        while (iterator.hasNext()) {
+            String identifier = iterator.next();
+            if (receivedBeforeRestore.contains(identifier)) {
+                iterator.remove();
+                records.append(acknowledgedRecord(identifier));
+                obsoleteRecordCount += 2;
+            }
+        }
+        receivedBeforeRestore.clear();
+        if (records.length() > 0) {
+            write(records.toString(), false);
+        }
+        if (restoredMessages.isEmpty()) {
+            return;
+        }
+        restoredMessages.putAll(pending);
+        pending.clear();
+        pending.putAll(restoredMessages);
+        updateSnapshot();
+    }
+
+    private static void replay(LinkedHashMap<String, OutgoingChatMessage> messages, String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), 4);
+        try {
+            if (RECORD_ADD.equals(fields[0]) && fields.length == 4) {
+                String message = URLDecoder.decode(fields[3], Util.UTF_8.name());
+                messages.put(fields[1], new OutgoingChatMessage(
+                        fields[1], message, new Date(Long.parseLong(fields[2]))));
+            } else if (RECORD_ACKNOWLEDGED.equals(fields[0]) && fields.length == 2) {
+                messages.remove(fields[1]);
+            } else {
+                Timber.d("Skipping chat outbox record: %s", line);
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // most likely the last line, cut short by the process dying mid write
+            Timber.d(e);
+        }
+    }
+
+    private void replace(String records) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (BufferedSink sink = Okio.buffer(Okio.sink(temporary))) {
+            sink.writeUtf8(records);
+        } catch (IOException e) {
+            Timber.d(e);
+            return;
+        }
+        // rename replaces the old file atomically, a crash leaves one or the other
+        if (!temporary.renameTo(file)) {
+            Timber.d("Couldn't replace %s", file);
+        }
+    }
+
+    private void append(String records) {
+        try (BufferedSink sink = Okio.buffer(Okio.appendingSink(file))) {
+            sink.writeUtf8(records);
+        } catch (IOException e) {
+            // still sent from memory, just not restart proof
+            Timber.d(e);
+        }
+    }
+
+    private void updateSnapshot() {
+        pendingSnapshot = Collections.unmodifiableList(new ArrayList<>(pending.values()));
+    }
+
+    private static String pendingRecords(Iterable<OutgoingChatMessage> messages) {
+        StringBuilder records = new StringBuilder();
+        for (OutgoingChatMessage message : messages) {
+            records.append(addRecord(message));
+        }
+        return records.toString();
+    }
+
+    private static String acknowledgedRecord(String identifier) {
+        return RECORD_ACKNOWLEDGED + SEPARATOR + identifier + '\n';
+    }
+
+    private static String addRecord(OutgoingChatMessage message) {
+        return RECORD_ADD + SEPARATOR + message.getIdentifier()
+                + SEPARATOR + message.getTimestamp().getTime()
+                + SEPARATOR + message.getUrlEncodedMessage() + '\n';
+    }
+}
@@ -0,0 +1,348 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.App;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
+import okhttp3.internal.Util;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Utf8;
+import timber.log.Timber;
+
+// Received chat messages kept on disk, so the chat isn't empty until the first sync and history
+// the server already forgot can be paged back in. The file is append-only and sorted by
+// ChatHistory.ORDER, one line per message:
+//
+//   <timestamp millis> <identifier> <url encoded message>
+//
+// Only an index is kept in memory, the file offset, timestamp and identifier hash of every line,
+// pages are read from disk when asked for. Messages arriving out of order rewrite the file, as
+// does growing COMPACT_SLACK messages past MAX_MESSAGES, which drops the oldest ones.
+//
+// Saving and loading happen on the IO pool, pages are handed back on the main thread.
+@Singleton
+public class ChatStore {
+
+    static final String FILE_NAME = "chat_history";
+    // a few rides worth, keeps the file and the index bounded
+    static final int MAX_MESSAGES = 5000;
+    static final int COMPACT_SLACK = 500;
+
+    private static final char SEPARATOR = ' ';
+
+    public interface PageCallback {
+        // oldest first
+        void onPage(List<ReceivedChatMessage> page);
+    }
+
+    private final File file;
+    private final Executor ioExecutor;
+    private final Executor mainThreadExecutor;
+
+    // one entry per line, in file order
+    private long[] offsets = new long[64];
+    private long[] timestamps = new long[64];
+    private int[] identifierHashes = new int[64];
+    private int size;
+    private long fileLength;
+    // last line, new messages have to sort after it to be appended
+    private long newestTimestamp;
+    private String newestIdentifier;
+    private boolean loaded;
+
+    @Inject
+    public ChatStore(App app, TaskExecutors taskExecutors) {
+        this(new File(app.getFilesDir(), FILE_NAME),
+                runnable -> taskExecutors.submit(TaskPool.IO, TaskPriority.NORMAL, runnable),
+                taskExecutors.mainThread());
+    }
+
+    public ChatStore(File file, Executor ioExecutor, Executor mainThreadExecutor) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+        this.mainThreadExecutor = mainThreadExecutor;
+    }
+
+    // messages already stored are skipped
+    public void save(List<ReceivedChatMessage> messages) {
+        if (!messages.isEmpty()) {
+            ioExecutor.execute(() -> append(messages));
+        }
+    }
+
+    // the newest messages sorting before the given one, or the newest ones at all
+    public void loadPage(@Nullable ReceivedChatMessage before, int limit,
+                         PageCallback callback) {
+        ioExecutor.execute(() -> {
+            List<ReceivedChatMessage> page = readPage(before, limit);
+            mainThreadExecutor.execute(() -> callback.onPage(page));
+        });
+    }
+
+    synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    synchronized void append(List<ReceivedChatMessage> messages) {
+        ensureLoaded();
+        List<ReceivedChatMessage> late = null;
+        StringBuilder records = new StringBuilder();
+        long offset = fileLength;
+        int firstAppended = size;
+        for (int i = 0; i < messages.size(); i++) {
+            ReceivedChatMessage message = messages.get(i);
+            long timestamp = message.getTimestamp().getTime();
+            if (contains(timestamp, message.getIdentifier())) {
+                continue;
+            }
+            if (!isAfterNewest(timestamp, message.getIdentifier())) {
+                if (late == null) {
+                    late = new ArrayList<>();
+                }
+                late.add(message);
+                continue;
+            }
+            String record = record(message);
+            addIndexEntry(offset, timestamp, message.getIdentifier());
+            offset += Utf8.size(record);
+            records.append(record);
+        }
+
+        if (size > firstAppended) {
+            try (BufferedSink sink = Okio.buffer(Okio.appendingSink(file))) {
+                sink.writeUtf8(records.toString());
+                fileLength = offset;
+            } catch (IOException e) {
+                Timber.d(e);
+                // the index doesn't match the file anymore, read it again next time
+                loaded = false;
+                return;
+            }
+        }
+        if (late != null || size > MAX_MESSAGES + COMPACT_SLACK) {
+            rewrite(late != null ? late : Collections.<ReceivedChatMessage>emptyList());
+        }
+    }
+
+    synchronized List<ReceivedChatMessage> readPage(@Nullable ReceivedChatMessage before,
+                                                    int limit) {
+        ensureLoaded();
+        if (before == null) {
+            return read(Math.max(0, size - limit), size);
+        }
+        // messages with the same second are ordered by identifier, which only the file has
+        long timestamp = before.getTimestamp().getTime();
+        int end = upperBound(timestamp);
+        List<ReceivedChatMessage> candidates =
+                read(Math.max(0, lowerBound(timestamp) - limit), end);
+        int count = candidates.size();
+        while (count > 0 && ChatHistory.ORDER.compare(candidates.get(count - 1), before) >= 0) {
+            count--;
+        }
+        return candidates.subList(Math.max(0, count - limit), count);
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        size = 0;
+        fileLength = 0;
+        newestIdentifier = null;
+        if (file.exists()) {
+            restore();
+        }
+        loaded = true;
+    }
+
+    private void restore() {
+        boolean damaged = false;
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            long offset = 0;
+            long newline;
+            while ((newline = source.indexOf((byte) '\n')) != -1) {
+                String[] fields = source.readUtf8(newline).split(String.valueOf(SEPARATOR), 3);
+                source.skip(1);
+                long timestamp = fields.length == 3 ? parseTimestamp(fields[0]) : -1;
+                if (timestamp >= 0 && isAfterNewest(timestamp, fields[1])) {
+                    addIndexEntry(offset, timestamp, fields[1]);
+                } else {
+                    damaged = true;
+                }
+                offset += newline + 1;
+            }
+            // the last line cut short by the process dying mid write
+            damaged |= !source.exhausted();
+            fileLength = offset;
+        } catch (IOException e) {
+            Timber.d(e);
+            damaged = true;
+        }
+        Timber.d("Chat history has %d stored messages", size);
+
+        if (damaged) {
+            rewrite(Collections.<ReceivedChatMessage>emptyList());
+        }
+    }
+
+    // merges in the given messages and writes just the newest MAX_MESSAGES, also leaves out
+    // whatever the index didn't accept
+    private void rewrite(List<ReceivedChatMessage> added) {
+        List<ReceivedChatMessage> messages = read(0, size);
+        messages.addAll(added);
+        Collections.sort(messages, ChatHistory.ORDER);
+        messages = messages.subList(Math.max(0, messages.size() - MAX_MESSAGES), messages.size());
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (BufferedSink sink = Okio.buffer(Okio.sink(temporary))) {
+            for (int i = 0; i < messages.size(); i++) {
+                sink.writeUtf8(record(messages.get(i)));
+            }
+        } catch (IOException e) {
+            Timber.d(e);
+            return;
+        }
+        // rename replaces the old file atomically, a crash leaves one or the other
+        if (!temporary.renameTo(file)) {
+            Timber.d("Couldn't replace %s", file);
+            return;
+        }
+
+        size = 0;
+        newestIdentifier = null;
+        long offset = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            ReceivedChatMessage message = messages.get(i);
+            String record = record(message);
+            addIndexEntry(offset, message.getTimestamp().getTime(), message.getIdentifier());
+            offset += Utf8.size(record);
+        }
+        fileLength = offset;
+    }
+
+    private List<ReceivedChatMessage> read(int start, int end) {
+        ArrayList<ReceivedChatMessage> messages = new ArrayList<>(end - start);
+        if (start >= end) {
+            return messages;
+        }
+        try (FileInputStream input = new FileInputStream(file)) {
+            input.getChannel().position(offsets[start]);
+            BufferedSource source = Okio.buffer(Okio.source(input));
+            for (int i = start; i < end; i++) {
+                ReceivedChatMessage message = parse(source.readUtf8LineStrict());
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        } catch (IOException e) {
+            Timber.d(e);
+        }
+        return messages;
+    }
+
+    // only compares hashes, a collision within the same millisecond just loses a message
+    private boolean contains(long timestamp, String identifier) {
+        int hash = identifier.hashCode();
+        for (int i = lowerBound(timestamp); i < size && timestamps[i] == timestamp; i++) {
+            if (identifierHashes[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAfterNewest(long timestamp, String identifier) {
+        return newestIdentifier == null || timestamp > newestTimestamp
+                || (timestamp == newestTimestamp && identifier.compareTo(newestIdentifier) > 0);
+    }
+
+    private void addIndexEntry(long offset, long timestamp, String identifier) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            identifierHashes = Arrays.copyOf(identifierHashes, size * 2);
+        }
+        offsets[size] = offset;
+        timestamps[size] = timestamp;
+        identifierHashes[size] = identifier.hashCode();
+        size++;
+        newestTimestamp = timestamp;
+        newestIdentifier = identifier;
+    }
+
+    // first entry with a timestamp not before the given one
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // first entry with a timestamp after the given one
+    private int upperBound(long timestamp) {
+        return lowerBound(timestamp == Long.MAX_VALUE ? timestamp : timestamp + 1);
+    }
+
+    private static long parseTimestamp(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private static ReceivedChatMessage parse(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), 3);
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new ReceivedChatMessage(fields[1],
+                    URLDecoder.decode(fields[2], Util.UTF_8.name()),
+                    new Date(Long.parseLong(fields[0])));
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            Timber.d(e);
+            return null;
+        }
+    }
+
+    private static String record(ReceivedChatMessage message) {
+        String encodedMessage;
+        try {
+            encodedMessage = URLEncoder.encode(message.getMessage(), Util.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            encodedMessage = "";
+        }
+        return String.valueOf(message.getTimestamp().getTime()) + SEPARATOR
+                + message.getIdentifier() + SEPARATOR + encodedMessage + '\n';
+    }
+}
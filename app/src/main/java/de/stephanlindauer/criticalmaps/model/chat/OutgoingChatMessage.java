@@ -22,6 +22,14 @@ public class OutgoingChatMessage implements IChatMessage {
         this.identifier = AeSimpleSHA1.SHA1(message + Math.random());
     }
 
+    // restored from ChatOutbox, keeps the identifier the server knows it by
+    public OutgoingChatMessage(String identifier, String message, Date timestamp) {
+        this.message = message;
+        this.urlEncodedMessage = urlEncodeMessage(message);
+        this.timestamp = timestamp;
+        this.identifier = identifier;
+    }
+
     public Date getTimestamp() {
         return timestamp;
     }
@@ -35,6 +43,7 @@ public class OutgoingChatMessage implements IChatMessage {
         return message;
     }
 
+    @Override
     public String getIdentifier() {
         return identifier;
     }
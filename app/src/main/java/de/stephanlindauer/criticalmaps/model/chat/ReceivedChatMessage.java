@@ -6,14 +6,21 @@ import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
 
 public class ReceivedChatMessage implements IChatMessage {
 
+    private final String identifier;
     private final Date timestamp;
     private final String message;
 
-    public ReceivedChatMessage(String message, Date timestamp) {
+    public ReceivedChatMessage(String identifier, String message, Date timestamp) {
+        this.identifier = identifier;
         this.message = message;
         this.timestamp = timestamp;
     }
 
+    @Override
+    public String getIdentifier() {
+        return identifier;
+    }
+
     public Date getTimestamp() {
         return timestamp;
     }
@@ -0,0 +1,289 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import androidx.annotation.Nullable;
+
+import org.osmdroid.util.GeoPoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.App;
+import okhttp3.internal.Util;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import timber.log.Timber;
+
+// Parsed and simplified GPX files, so showing the same file again after a restart maps one
+// file instead of parsing the XML and simplifying every track. One file per URI, named after
+// its SHA-1, holding everything a GpxModel has:
+//
+//   file    := MAGIC:int FORMAT_VERSION:int uri:string identity:string
+//              trackCount:int { track } poiCount:int { poi }
+//   track   := name:string pointCount:int latitudesE6:int[pointCount]
+//              longitudesE6:int[pointCount] keptCount:int mercatorX:double[keptCount]
+//              mercatorY:double[keptCount] { level } for every SimplifiedTrack zoom
+//   level   := count:int indices:int[count], count is -1 when same as the zoom before
+//   poi     := name:string latitude:double longitude:double altitude:double
+//   string  := length:int utf8, length is -1 for null
+//
+// Everything is fixed width and big endian, so arrays are bulk copied out of the mapped file.
+// The identity (see GpxUtils.fileIdentity()) changes with the file's content, an entry with
+// another identity is stale and deleted. Least recently used entries are dropped once the
+// directory grows beyond maxBytes.
+//
+// Reading and writing block, call them off the main thread.
+@Singleton
+public class GpxCache {
+
+    static final String DIRECTORY_NAME = "gpx";
+    // a few long routes
+    static final long MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final int MAGIC = 0x47505843;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SAME_LEVEL = -1;
+    private static final int NULL_STRING = -1;
+
+    private final File directory;
+    private final long maxBytes;
+
+    @Inject
+    public GpxCache(App app) {
+        this(new File(app.getCacheDir(), DIRECTORY_NAME), MAX_BYTES);
+    }
+
+    public GpxCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // null if nothing is cached for that uri and identity
+    @Nullable
+    public synchronized GpxModel read(String uri, String identity) {
+        File file = fileFor(uri);
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer =
+                    input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            GpxModel gpxModel = decode(buffer, uri, identity);
+            if (gpxModel != null) {
+                // for picking the least recently used ones to drop
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return gpxModel;
+            }
+            Timber.d("Cached %s is stale", uri);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Timber.d(e);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return null;
+    }
+
+    public synchronized void write(GpxModel gpxModel, String identity) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Timber.d("Couldn't create %s", directory);
+            return;
+        }
+        File file = fileFor(gpxModel.getUri());
+        File temporary = new File(file.getPath() + ".tmp");
+        try (BufferedSink sink = Okio.buffer(Okio.sink(temporary))) {
+            encode(sink, gpxModel, identity);
+        } catch (IOException e) {
+            Timber.d(e);
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+        // rename replaces the old entry atomically, a crash leaves one or the other
+        if (!temporary.renameTo(file)) {
+            Timber.d("Couldn't replace %s", file);
+            return;
+        }
+        trim();
+    }
+
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // most recently used first
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+            if (total > maxBytes) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private File fileFor(String uri) {
+        return new File(directory, ByteString.encodeUtf8(uri).sha1().hex());
+    }
+
+    private static void encode(BufferedSink sink, GpxModel gpxModel, String identity)
+            throws IOException {
+        sink.writeInt(MAGIC);
+        sink.writeInt(FORMAT_VERSION);
+        writeString(sink, gpxModel.getUri());
+        writeString(sink, identity);
+
+        List<GpxTrack> tracks = gpxModel.getTracks();
+        sink.writeInt(tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            GpxTrack track = tracks.get(i);
+            writeString(sink, track.getName());
+            sink.writeInt(track.getPointCount());
+            for (int p = 0; p < track.getPointCount(); p++) {
+                sink.writeInt(track.getLatitudeE6(p));
+            }
+            for (int p = 0; p < track.getPointCount(); p++) {
+                sink.writeInt(track.getLongitudeE6(p));
+            }
+
+            SimplifiedTrack simplified = gpxModel.getSimplifiedTracks().get(i);
+            double[] mercatorX = simplified.getMercatorX();
+            double[] mercatorY = simplified.getMercatorY();
+            sink.writeInt(mercatorX.length);
+            for (double x : mercatorX) {
+                sink.writeLong(Double.doubleToRawLongBits(x));
+            }
+            for (double y : mercatorY) {
+                sink.writeLong(Double.doubleToRawLongBits(y));
+            }
+            for (int zoom = SimplifiedTrack.MIN_ZOOM; zoom <= SimplifiedTrack.MAX_ZOOM; zoom++) {
+                int[] indices = simplified.getIndices(zoom);
+                if (zoom > SimplifiedTrack.MIN_ZOOM
+                        && indices == simplified.getIndices(zoom - 1)) {
+                    sink.writeInt(SAME_LEVEL);
+                    continue;
+                }
+                sink.writeInt(indices.length);
+                for (int index : indices) {
+                    sink.writeInt(index);
+                }
+            }
+        }
+
+        List<GpxPoi> poiList = gpxModel.getPoiList();
+        sink.writeInt(poiList.size());
+        for (GpxPoi poi : poiList) {
+            writeString(sink, poi.getName());
+            sink.writeLong(Double.doubleToRawLongBits(poi.getPosition().getLatitude()));
+            sink.writeLong(Double.doubleToRawLongBits(poi.getPosition().getLongitude()));
+            sink.writeLong(Double.doubleToRawLongBits(poi.getPosition().getAltitude()));
+        }
+    }
+
+    // null when the entry is for another file or version
+    @Nullable
+    private static GpxModel decode(ByteBuffer buffer, String uri, String identity) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                || !uri.equals(readString(buffer)) || !identity.equals(readString(buffer))) {
+            return null;
+        }
+
+        int trackCount = buffer.getInt();
+        List<GpxTrack> tracks = new ArrayList<>(trackCount);
+        List<SimplifiedTrack> simplifiedTracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            String name = readString(buffer);
+            int pointCount = buffer.getInt();
+            int[] latitudesE6 = readInts(buffer, pointCount);
+            int[] longitudesE6 = readInts(buffer, pointCount);
+            tracks.add(new GpxTrack(name, latitudesE6, longitudesE6, pointCount));
+
+            int keptCount = buffer.getInt();
+            double[] mercatorX = readDoubles(buffer, keptCount);
+            double[] mercatorY = readDoubles(buffer, keptCount);
+            int[][] indices = new int[SimplifiedTrack.MAX_ZOOM + 1][];
+            for (int zoom = SimplifiedTrack.MIN_ZOOM; zoom <= SimplifiedTrack.MAX_ZOOM; zoom++) {
+                int count = buffer.getInt();
+                indices[zoom] = count == SAME_LEVEL && zoom > SimplifiedTrack.MIN_ZOOM
+                        ? indices[zoom - 1]
+                        : readInts(buffer, count);
+            }
+            simplifiedTracks.add(
+                    SimplifiedTrack.restore(pointCount, mercatorX, mercatorY, indices));
+        }
+
+        int poiCount = buffer.getInt();
+        List<GpxPoi> poiList = new ArrayList<>(poiCount);
+        for (int i = 0; i < poiCount; i++) {
+            String name = readString(buffer);
+            poiList.add(new GpxPoi(name, new GeoPoint(
+                    buffer.getDouble(), buffer.getDouble(), buffer.getDouble())));
+        }
+
+        GpxModel gpxModel = new GpxModel();
+        gpxModel.setUri(uri);
+        gpxModel.setTracks(tracks);
+        gpxModel.setSimplifiedTracks(simplifiedTracks);
+        gpxModel.setPoiList(poiList);
+        return gpxModel;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        checkCount(buffer, count, 4);
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int count) {
+        checkCount(buffer, count, 8);
+        double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+
+    // a damaged count must not allocate a huge array before running out of data
+    private static void checkCount(ByteBuffer buffer, int count, int size) {
+        if (count < 0 || (long) count * size > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        checkCount(buffer, length, 1);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Util.UTF_8);
+    }
+
+    private static void writeString(BufferedSink sink, @Nullable String value)
+            throws IOException {
+        if (value == null) {
+            sink.writeInt(NULL_STRING);
+            return;
+        }
+        ByteString bytes = ByteString.encodeUtf8(value);
+        sink.writeInt(bytes.size());
+        sink.write(bytes);
+    }
+}
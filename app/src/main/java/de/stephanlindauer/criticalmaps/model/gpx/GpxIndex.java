@@ -0,0 +1,240 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// Bounding boxes of the tracks and POIs of all loaded and visible layers, so a frame only
+// touches what's in the viewport no matter how many files are shown. Entries are packed into
+// nodes of NODE_SIZE with sort-tile-recursive: sorted into vertical slices by x, each slice by
+// y, which keeps the nodes small and square. A query skips nodes outside the viewport as a
+// whole, like the chunks of a SimplifiedTrack. Tracks and POIs are packed separately, so
+// tracks are always visited first and POIs end up drawn on top.
+// Immutable once built.
+public final class GpxIndex {
+
+    public interface Visitor {
+        void visitTrack(SimplifiedTrack track, @Nullable String name, int color);
+
+        void visitPoi(GpxPoi poi, double mercatorX, double mercatorY, int color);
+    }
+
+    static final int NODE_SIZE = 16;
+
+    private static final GpxIndex EMPTY = build(new ArrayList<>());
+
+    private final int trackCount;
+    private final SimplifiedTrack[] tracks;
+    private final String[] trackNames;
+    private final GpxPoi[] pois;
+    // item of each entry, tracks first, then POIs at trackCount + poi index
+    private final int[] entryItems;
+    // color of the layer each entry came from
+    private final int[] entryColors;
+    // minX, minY, maxX, maxY per entry and per node
+    private final double[] entryBounds;
+    private final double[] nodeBounds;
+
+    private GpxIndex(int trackCount, int poiCount) {
+        this.trackCount = trackCount;
+        tracks = new SimplifiedTrack[trackCount];
+        trackNames = new String[trackCount];
+        pois = new GpxPoi[poiCount];
+        int entryCount = trackCount + poiCount;
+        entryItems = new int[entryCount];
+        entryColors = new int[entryCount];
+        entryBounds = new double[entryCount * 4];
+        nodeBounds = new double[(nodeCount(trackCount) + nodeCount(poiCount)) * 4];
+    }
+
+    public static GpxIndex empty() {
+        return EMPTY;
+    }
+
+    public static GpxIndex build(List<GpxLayer> layers) {
+        int trackCount = 0;
+        int poiCount = 0;
+        for (GpxLayer layer : layers) {
+            if (layer.isVisible() && layer.isLoaded()) {
+                trackCount += layer.getGpxModel().getSimplifiedTracks().size();
+                poiCount += layer.getGpxModel().getPoiList().size();
+            }
+        }
+        GpxIndex index = new GpxIndex(trackCount, poiCount);
+
+        int[] itemColors = new int[trackCount + poiCount];
+        double[] itemBounds = new double[(trackCount + poiCount) * 4];
+        int track = 0;
+        int poi = 0;
+        for (GpxLayer layer : layers) {
+            if (!layer.isVisible() || !layer.isLoaded()) {
+                continue;
+            }
+            GpxModel gpxModel = layer.getGpxModel();
+            for (int i = 0; i < gpxModel.getSimplifiedTracks().size(); i++) {
+                SimplifiedTrack simplified = gpxModel.getSimplifiedTracks().get(i);
+                index.tracks[track] = simplified;
+                index.trackNames[track] = gpxModel.getTracks().get(i).getName();
+                itemColors[track] = layer.getColor();
+                setTrackBounds(itemBounds, track, simplified);
+                track++;
+            }
+            for (GpxPoi gpxPoi : gpxModel.getPoiList()) {
+                int item = trackCount + poi;
+                index.pois[poi] = gpxPoi;
+                itemColors[item] = layer.getColor();
+                double x = MercatorUtils.x(gpxPoi.getPosition().getLongitude());
+                double y = MercatorUtils.y(gpxPoi.getPosition().getLatitude());
+                itemBounds[item * 4] = x;
+                itemBounds[item * 4 + 1] = y;
+                itemBounds[item * 4 + 2] = x;
+                itemBounds[item * 4 + 3] = y;
+                poi++;
+            }
+        }
+
+        index.pack(itemColors, itemBounds, 0, trackCount, 0);
+        index.pack(itemColors, itemBounds, trackCount, poiCount, nodeCount(trackCount));
+        return index;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public int getPoiCount() {
+        return pois.length;
+    }
+
+    // visits everything whose bounds touch the box (inclusive), all tracks before all POIs,
+    // and returns how many there were
+    public int query(double minX, double minY, double maxX, double maxY, Visitor visitor) {
+        int found = 0;
+        int nodeCount = nodeBounds.length / 4;
+        for (int node = 0; node < nodeCount; node++) {
+            if (!intersects(nodeBounds, node, minX, minY, maxX, maxY)) {
+                continue;
+            }
+            int end = nodeEnd(node);
+            for (int entry = nodeStart(node); entry < end; entry++) {
+                if (!intersects(entryBounds, entry, minX, minY, maxX, maxY)) {
+                    continue;
+                }
+                int item = entryItems[entry];
+                if (item < trackCount) {
+                    visitor.visitTrack(tracks[item], trackNames[item], entryColors[entry]);
+                } else {
+                    visitor.visitPoi(pois[item - trackCount],
+                            entryBounds[entry * 4], entryBounds[entry * 4 + 1],
+                            entryColors[entry]);
+                }
+                found++;
+            }
+        }
+        return found;
+    }
+
+    // the entries at [first, first + count) in sort-tile-recursive order, starting at firstNode
+    private void pack(int[] itemColors, double[] itemBounds, int first, int count,
+                      int firstNode) {
+        if (count == 0) {
+            return;
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = first + i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(
+                centerX(itemBounds, a), centerX(itemBounds, b)));
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount(count)));
+        int sliceSize = sliceCount * NODE_SIZE;
+        for (int start = 0; start < count; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(start + sliceSize, count), (a, b) ->
+                    Double.compare(centerY(itemBounds, a), centerY(itemBounds, b)));
+        }
+
+        for (int i = 0; i < count; i++) {
+            int entry = first + i;
+            int item = order[i];
+            entryItems[entry] = item;
+            entryColors[entry] = itemColors[item];
+            System.arraycopy(itemBounds, item * 4, entryBounds, entry * 4, 4);
+        }
+
+        for (int node = firstNode; node < firstNode + nodeCount(count); node++) {
+            int start = first + (node - firstNode) * NODE_SIZE;
+            int end = Math.min(start + NODE_SIZE, first + count);
+            double minX = Double.MAX_VALUE;
+            double minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE;
+            double maxY = -Double.MAX_VALUE;
+            for (int entry = start; entry < end; entry++) {
+                minX = Math.min(minX, entryBounds[entry * 4]);
+                minY = Math.min(minY, entryBounds[entry * 4 + 1]);
+                maxX = Math.max(maxX, entryBounds[entry * 4 + 2]);
+                maxY = Math.max(maxY, entryBounds[entry * 4 + 3]);
+            }
+            nodeBounds[node * 4] = minX;
+            nodeBounds[node * 4 + 1] = minY;
+            nodeBounds[node * 4 + 2] = maxX;
+            nodeBounds[node * 4 + 3] = maxY;
+        }
+    }
+
+    // track nodes come first and the last one of them may not be full
+    private int nodeStart(int node) {
+        int trackNodes = nodeCount(trackCount);
+        return node < trackNodes
+                ? node * NODE_SIZE
+                : trackCount + (node - trackNodes) * NODE_SIZE;
+    }
+
+    private int nodeEnd(int node) {
+        int trackNodes = nodeCount(trackCount);
+        return node < trackNodes
+                ? Math.min((node + 1) * NODE_SIZE, trackCount)
+                : Math.min(trackCount + (node - trackNodes + 1) * NODE_SIZE, entryItems.length);
+    }
+
+    private static void setTrackBounds(double[] bounds, int item, SimplifiedTrack track) {
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        // the finest level's chunks cover every point that is ever drawn
+        double[] chunkBounds = track.getChunkBounds(SimplifiedTrack.MAX_ZOOM);
+        for (int chunk = 0; chunk < chunkBounds.length / 4; chunk++) {
+            minX = Math.min(minX, chunkBounds[chunk * 4]);
+            minY = Math.min(minY, chunkBounds[chunk * 4 + 1]);
+            maxX = Math.max(maxX, chunkBounds[chunk * 4 + 2]);
+            maxY = Math.max(maxY, chunkBounds[chunk * 4 + 3]);
+        }
+        bounds[item * 4] = minX;
+        bounds[item * 4 + 1] = minY;
+        bounds[item * 4 + 2] = maxX;
+        bounds[item * 4 + 3] = maxY;
+    }
+
+    private static boolean intersects(double[] bounds, int i,
+                                      double minX, double minY, double maxX, double maxY) {
+        return bounds[i * 4] <= maxX && bounds[i * 4 + 2] >= minX
+                && bounds[i * 4 + 1] <= maxY && bounds[i * 4 + 3] >= minY;
+    }
+
+    // twice the center, only used for sorting
+    private static double centerX(double[] bounds, int item) {
+        return bounds[item * 4] + bounds[item * 4 + 2];
+    }
+
+    private static double centerY(double[] bounds, int item) {
+        return bounds[item * 4 + 1] + bounds[item * 4 + 3];
+    }
+
+    private static int nodeCount(int entryCount) {
+        return (entryCount + NODE_SIZE - 1) / NODE_SIZE;
+    }
+}
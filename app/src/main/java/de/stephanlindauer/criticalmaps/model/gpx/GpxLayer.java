@@ -0,0 +1,115 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import androidx.annotation.Nullable;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// One GPX file on the map. Its content is only kept while it's loaded, the bounds stay so an
+// unloaded layer knows when it's needed again. Changed through GpxLayers, main thread only.
+public class GpxLayer {
+
+    private final String uri;
+    private final String name;
+    private final int color;
+    private boolean visible;
+    // minX, minY, maxX, maxY in normalized web mercator, null until loaded once
+    @Nullable
+    private double[] bounds;
+    @Nullable
+    private GpxModel gpxModel;
+
+    public GpxLayer(String uri, String name, int color, boolean visible,
+                    @Nullable double[] bounds) {
+        this.uri = uri;
+        this.name = name;
+        this.color = color;
+        this.visible = visible;
+        this.bounds = bounds;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // of its tracks, see GpxLayers.nextColor()
+    public int getColor() {
+        return color;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    @Nullable
+    public double[] getBounds() {
+        return bounds;
+    }
+
+    public boolean isLoaded() {
+        return gpxModel != null;
+    }
+
+    @Nullable
+    public GpxModel getGpxModel() {
+        return gpxModel;
+    }
+
+    void setGpxModel(@Nullable GpxModel gpxModel) {
+        this.gpxModel = gpxModel;
+        if (gpxModel != null) {
+            bounds = boundsOf(gpxModel);
+        }
+    }
+
+    // a copy that the main thread can't change while GpxIndex is built from it
+    GpxLayer snapshot() {
+        GpxLayer snapshot = new GpxLayer(uri, name, color, visible, bounds);
+        snapshot.gpxModel = gpxModel;
+        return snapshot;
+    }
+
+    // whether the bounds come within margin times the viewport's size of the viewport, given
+    // as minX, minY, maxX, maxY in normalized web mercator. False while the bounds are unknown.
+    public boolean isNear(double[] viewport, double margin) {
+        if (bounds == null) {
+            return false;
+        }
+        double marginX = (viewport[2] - viewport[0]) * margin;
+        double marginY = (viewport[3] - viewport[1]) * margin;
+        return bounds[0] <= viewport[2] + marginX && bounds[2] >= viewport[0] - marginX
+                && bounds[1] <= viewport[3] + marginY && bounds[3] >= viewport[1] - marginY;
+    }
+
+    // of all kept track points and POIs, a file without any is near nothing
+    static double[] boundsOf(GpxModel gpxModel) {
+        double[] bounds = {
+                Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (SimplifiedTrack track : gpxModel.getSimplifiedTracks()) {
+            double[] x = track.getMercatorX();
+            double[] y = track.getMercatorY();
+            for (int i = 0; i < x.length; i++) {
+                include(bounds, x[i], y[i]);
+            }
+        }
+        for (GpxPoi poi : gpxModel.getPoiList()) {
+            include(bounds, MercatorUtils.x(poi.getPosition().getLongitude()),
+                    MercatorUtils.y(poi.getPosition().getLatitude()));
+        }
+        return bounds;
+    }
+
+    private static void include(double[] bounds, double x, double y) {
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.max(bounds[2], x);
+        bounds[3] = Math.max(bounds[3], y);
+    }
+}
@@ -0,0 +1,210 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import android.graphics.Color;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
+import de.stephanlindauer.criticalmaps.tasks.TaskPriority;
+import timber.log.Timber;
+
+// All GPX files added to the map in the order they were added, and the index over what the
+// loaded and visible ones contain. After something changed the index is rebuilt on the CPU
+// pool from a snapshot of the layers, so a frame never waits for it, and swapped in on the
+// main thread. Changes during a rebuild are picked up by another one once it finished.
+// Main thread only.
+@Singleton
+public class GpxLayers {
+
+    // handed out in this order, the first one keeps the red tracks always had
+    private static final int[] TRACK_COLORS = {
+            Color.RED, Color.BLUE, Color.MAGENTA, 0xff008000, 0xffff8000, Color.CYAN};
+
+    private final Executor cpuExecutor;
+    private final Executor mainThreadExecutor;
+    private final List<GpxLayer> layers = new ArrayList<>();
+    private GpxIndex index = GpxIndex.empty();
+    private boolean isIndexBuilding;
+    private boolean isIndexDirty;
+    @Nullable
+    private Runnable onIndexChanged;
+
+    @Inject
+    public GpxLayers(TaskExecutors taskExecutors) {
+        this(runnable -> taskExecutors.submit(TaskPool.CPU, TaskPriority.NORMAL, runnable),
+                taskExecutors.mainThread());
+    }
+
+    public GpxLayers(Executor cpuExecutor, Executor mainThreadExecutor) {
+        this.cpuExecutor = cpuExecutor;
+        this.mainThreadExecutor = mainThreadExecutor;
+    }
+
+    public List<GpxLayer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    @Nullable
+    public GpxLayer find(String uri) {
+        for (GpxLayer layer : layers) {
+            if (layer.getUri().equals(uri)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    // the color used by the fewest layers, so removing one doesn't recolor the others
+    public int nextColor() {
+        int[] useCounts = new int[TRACK_COLORS.length];
+        for (GpxLayer layer : layers) {
+            for (int i = 0; i < TRACK_COLORS.length; i++) {
+                if (layer.getColor() == TRACK_COLORS[i]) {
+                    useCounts[i]++;
+                }
+            }
+        }
+        int next = 0;
+        for (int i = 1; i < TRACK_COLORS.length; i++) {
+            if (useCounts[i] < useCounts[next]) {
+                next = i;
+            }
+        }
+        return TRACK_COLORS[next];
+    }
+
+    public void add(GpxLayer layer) {
+        layers.add(layer);
+        invalidateIndex();
+    }
+
+    public void remove(GpxLayer layer) {
+        layers.remove(layer);
+        invalidateIndex();
+    }
+
+    public void setVisible(GpxLayer layer, boolean visible) {
+        layer.setVisible(visible);
+        invalidateIndex();
+    }
+
+    // null unloads it
+    public void setLoaded(GpxLayer layer, @Nullable GpxModel gpxModel) {
+        layer.setGpxModel(gpxModel);
+        invalidateIndex();
+    }
+
+    // the one built last, changes show up once onIndexChanged ran
+    public GpxIndex getIndex() {
+        return index;
+    }
+
+    public void setOnIndexChanged(@Nullable Runnable onIndexChanged) {
+        this.onIndexChanged = onIndexChanged;
+    }
+
+    private void invalidateIndex() {
+        if (isIndexBuilding) {
+            isIndexDirty = true;
+            return;
+        }
+        List<GpxLayer> snapshot = new ArrayList<>();
+        for (GpxLayer layer : layers) {
+            if (layer.isVisible() && layer.isLoaded()) {
+                snapshot.add(layer.snapshot());
+            }
+        }
+        if (snapshot.isEmpty()) {
+            onIndexBuilt(GpxIndex.empty());
+            return;
+        }
+        isIndexBuilding = true;
+        cpuExecutor.execute(() -> {
+            GpxIndex built;
+            try {
+                built = GpxIndex.build(snapshot);
+            } catch (RuntimeException e) {
+                Timber.e(e);
+                built = GpxIndex.empty();
+            }
+            GpxIndex result = built;
+            mainThreadExecutor.execute(() -> {
+                isIndexBuilding = false;
+                onIndexBuilt(result);
+            });
+        });
+    }
+
+    private void onIndexBuilt(GpxIndex built) {
+        index = built;
+        if (onIndexChanged != null) {
+            onIndexChanged.run();
+        }
+        if (isIndexDirty) {
+            isIndexDirty = false;
+            invalidateIndex();
+        }
+    }
+
+    // For the preferences, one line per layer:
+    //
+    //   visible TAB color TAB bounds TAB uri TAB name
+    //
+    // visible is 1 or 0, color is an ARGB int, bounds are minX,minY,maxX,maxY or empty while unknown. Tabs and line
+    // breaks in names are replaced with spaces, uris are encoded and can't have them.
+    public static String encode(List<GpxLayer> layers) {
+        StringBuilder encoded = new StringBuilder();
+        for (GpxLayer layer : layers) {
+            encoded.append(layer.isVisible() ? '1' : '0').append('\t')
+                    .append(layer.getColor()).append('\t');
+            double[] bounds = layer.getBounds();
+            if (bounds != null) {
+                encoded.append(bounds[0]).append(',').append(bounds[1]).append(',')
+                        .append(bounds[2]).append(',').append(bounds[3]);
+            }
+            encoded.append('\t').append(layer.getUri())
+                    .append('\t').append(layer.getName().replaceAll("[\t\r\n]", " "))
+                    .append('\n');
+        }
+        return encoded.toString();
+    }
+
+    // skips lines it can't make sense of
+    public static List<GpxLayer> decode(String encoded) {
+        List<GpxLayer> layers = new ArrayList<>();
+        for (String line : encoded.split("\n")) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length != 5 || fields[3].isEmpty()) {
+                continue;
+            }
+            int color;
+            double[] bounds = null;
+            try {
+                color = Integer.parseInt(fields[1]);
+                if (!fields[2].isEmpty()) {
+                    String[] values = fields[2].split(",");
+                    if (values.length != 4) {
+                        continue;
+                    }
+                    bounds = new double[4];
+                    for (int i = 0; i < 4; i++) {
+                        bounds[i] = Double.parseDouble(values[i]);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            layers.add(new GpxLayer(fields[3], fields[4], color, fields[0].equals("1"), bounds));
+        }
+        return layers;
+    }
+}
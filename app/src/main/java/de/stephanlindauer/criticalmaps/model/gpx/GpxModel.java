@@ -3,19 +3,14 @@ package de.stephanlindauer.criticalmaps.model.gpx;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.inject.Inject;
-import javax.inject.Singleton;
-
-@Singleton
+// The content of one GPX file, see GpxLayer for how it's shown.
 public class GpxModel {
 
     private String uri;
     private List<GpxTrack> tracks = new ArrayList<>();
     private List<GpxPoi> poiList = new ArrayList<>();
-
-    @Inject
-    public GpxModel() {
-    }
+    // one per track, what the map draws
+    private List<SimplifiedTrack> simplifiedTracks = new ArrayList<>();
 
     public String getUri() {
         return uri;
@@ -41,9 +36,11 @@ public class GpxModel {
         this.poiList = poiList;
     }
 
-    public void clear() {
-        tracks.clear();
-        poiList.clear();
-        uri = null;
+    public List<SimplifiedTrack> getSimplifiedTracks() {
+        return simplifiedTracks;
+    }
+
+    public void setSimplifiedTracks(List<SimplifiedTrack> simplifiedTracks) {
+        this.simplifiedTracks = simplifiedTracks;
     }
 }
@@ -1,24 +1,34 @@
 package de.stephanlindauer.criticalmaps.model.gpx;
 
-import org.osmdroid.util.GeoPoint;
-
-import java.util.List;
+import java.util.Arrays;
 
+// Coordinates are kept as E6 ints in parallel arrays, long tracks would otherwise be hundreds of
+// thousands of GeoPoint objects. See SimplifiedTrack for what's drawn.
 public class GpxTrack {
 
-    private String name;
-    private List<GeoPoint> waypoints;
+    private final String name;
+    private final int[] latitudesE6;
+    private final int[] longitudesE6;
 
-    public GpxTrack(String name, List<GeoPoint> waypoints) {
+    public GpxTrack(String name, int[] latitudesE6, int[] longitudesE6, int pointCount) {
         this.name = name;
-        this.waypoints = waypoints;
+        this.latitudesE6 = Arrays.copyOf(latitudesE6, pointCount);
+        this.longitudesE6 = Arrays.copyOf(longitudesE6, pointCount);
     }
 
     public String getName() {
         return name;
     }
 
-    public List<GeoPoint> getWaypoints() {
-        return waypoints;
+    public int getPointCount() {
+        return latitudesE6.length;
+    }
+
+    public int getLatitudeE6(int index) {
+        return latitudesE6[index];
+    }
+
+    public int getLongitudeE6(int index) {
+        return longitudesE6[index];
     }
 }
@@ -0,0 +1,223 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// A track simplified with Douglas-Peucker for every zoom level up to MAX_ZOOM, so drawing it
+// only ever touches about as many points as can be told apart on screen. Douglas-Peucker runs
+// once, every point remembers the tolerance up to which it survives, a level is then just the
+// points above that level's tolerance. Each level is split into chunks of CHUNK_SIZE points
+// with their bounding boxes, so chunks outside the viewport are skipped as a whole.
+// Immutable once built, so it can be handed from the loading thread to the map as is.
+public final class SimplifiedTrack {
+
+    public static final int MIN_ZOOM = 0;
+    public static final int MAX_ZOOM = 20;
+    public static final int CHUNK_SIZE = 64;
+
+    // deviation allowed in pixels of a 256px tile at the level's zoom
+    private static final double TOLERANCE_PX = 0.5D;
+    private static final double TILE_SIZE_PX = 256D;
+
+    private final int pointCount;
+    // normalized web mercator of the points kept by MAX_ZOOM, see MercatorUtils
+    private final double[] mercatorX;
+    private final double[] mercatorY;
+    private final int[][] indices = new int[MAX_ZOOM + 1][];
+    // minX, minY, maxX, maxY per chunk, a chunk also covers the first point of the next one
+    private final double[][] chunkBounds = new double[MAX_ZOOM + 1][];
+
+    private SimplifiedTrack(int pointCount, double[] mercatorX, double[] mercatorY) {
+        this.pointCount = pointCount;
+        this.mercatorX = mercatorX;
+        this.mercatorY = mercatorY;
+    }
+
+    public static SimplifiedTrack build(GpxTrack track) {
+        int count = track.getPointCount();
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = MercatorUtils.x(track.getLongitudeE6(i) / 1E6D);
+            y[i] = MercatorUtils.y(track.getLatitudeE6(i) / 1E6D);
+        }
+        double[] significance = significance(x, y);
+
+        // points not even kept at MAX_ZOOM are dropped for good
+        double finestTolerance = toleranceFor(MAX_ZOOM);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (significance[i] > finestTolerance) {
+                x[kept] = x[i];
+                y[kept] = y[i];
+                significance[kept] = significance[i];
+                kept++;
+            }
+        }
+        SimplifiedTrack simplified = new SimplifiedTrack(count,
+                Arrays.copyOf(x, kept), Arrays.copyOf(y, kept));
+
+        int[] levelIndices = new int[kept];
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            double tolerance = toleranceFor(zoom);
+            int levelCount = 0;
+            for (int i = 0; i < kept; i++) {
+                if (significance[i] > tolerance) {
+                    levelIndices[levelCount++] = i;
+                }
+            }
+            if (zoom > MIN_ZOOM && levelCount == simplified.indices[zoom - 1].length) {
+                // nothing new at this zoom, share the coarser level
+                simplified.indices[zoom] = simplified.indices[zoom - 1];
+                simplified.chunkBounds[zoom] = simplified.chunkBounds[zoom - 1];
+                continue;
+            }
+            simplified.indices[zoom] = Arrays.copyOf(levelIndices, levelCount);
+            simplified.chunkBounds[zoom] = simplified.computeChunkBounds(
+                    simplified.indices[zoom]);
+        }
+        return simplified;
+    }
+
+    // from what GpxCache stored, levels with the same indices array share chunk bounds
+    static SimplifiedTrack restore(int pointCount, double[] mercatorX, double[] mercatorY,
+                                   int[][] indices) {
+        SimplifiedTrack simplified = new SimplifiedTrack(pointCount, mercatorX, mercatorY);
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            simplified.indices[zoom] = indices[zoom];
+            simplified.chunkBounds[zoom] = zoom > MIN_ZOOM && indices[zoom] == indices[zoom - 1]
+                    ? simplified.chunkBounds[zoom - 1]
+                    : simplified.computeChunkBounds(indices[zoom]);
+        }
+        return simplified;
+    }
+
+    // the level to use when the map is at the given (fractional) zoom level
+    public static int levelFor(double zoomLevel) {
+        return (int) Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, Math.floor(zoomLevel)));
+    }
+
+    // of the track before simplifying
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    // normalized web mercator, see MercatorUtils. Shared arrays, don't modify them.
+    public double[] getMercatorX() {
+        return mercatorX;
+    }
+
+    public double[] getMercatorY() {
+        return mercatorY;
+    }
+
+    // indices into getMercatorX() and getMercatorY() of the level's points, in track order
+    public int[] getIndices(int zoom) {
+        return indices[zoom];
+    }
+
+    public int getChunkCount(int zoom) {
+        return chunkBounds[zoom].length / 4;
+    }
+
+    // minX, minY, maxX, maxY of each chunk in normalized web mercator
+    public double[] getChunkBounds(int zoom) {
+        return chunkBounds[zoom];
+    }
+
+    private double[] computeChunkBounds(int[] levelIndices) {
+        int segmentCount = Math.max(0, levelIndices.length - 1);
+        int chunkCount = (segmentCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        double[] bounds = new double[chunkCount * 4];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int start = chunk * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, segmentCount);
+            double minX = Double.MAX_VALUE;
+            double minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE;
+            double maxY = -Double.MAX_VALUE;
+            for (int i = start; i <= end; i++) {
+                double px = mercatorX[levelIndices[i]];
+                double py = mercatorY[levelIndices[i]];
+                minX = Math.min(minX, px);
+                minY = Math.min(minY, py);
+                maxX = Math.max(maxX, px);
+                maxY = Math.max(maxY, py);
+            }
+            bounds[chunk * 4] = minX;
+            bounds[chunk * 4 + 1] = minY;
+            bounds[chunk * 4 + 2] = maxX;
+            bounds[chunk * 4 + 3] = maxY;
+        }
+        return bounds;
+    }
+
+    private static double toleranceFor(int zoom) {
+        return TOLERANCE_PX / (TILE_SIZE_PX * (1 << zoom));
+    }
+
+    // Douglas-Peucker with a stack instead of recursion, long tracks would overflow the call
+    // stack. A point's significance is its distance to the segment it split, capped by the one
+    // of the split before, so Douglas-Peucker with any tolerance keeps exactly the points
+    // above it. End points are always kept.
+    static double[] significance(double[] x, double[] y) {
+        int count = x.length;
+        double[] significance = new double[count];
+        if (count == 0) {
+            return significance;
+        }
+        significance[0] = Double.MAX_VALUE;
+        significance[count - 1] = Double.MAX_VALUE;
+
+        // first, last and the point whose split made the range
+        int[] stack = new int[64 * 3];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        stack[top++] = 0;
+        while (top > 0) {
+            double parentSignificance = significance[stack[--top]];
+            int last = stack[--top];
+            int first = stack[--top];
+            if (last - first < 2) {
+                continue;
+            }
+            double maxDistance = -1;
+            int split = first;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(x[i], y[i],
+                        x[first], y[first], x[last], y[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    split = i;
+                }
+            }
+            significance[split] = Math.min(Math.sqrt(maxDistance), parentSignificance);
+            if (top + 6 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = first;
+            stack[top++] = split;
+            stack[top++] = split;
+            stack[top++] = split;
+            stack[top++] = last;
+            stack[top++] = split;
+        }
+        return significance;
+    }
+
+    private static double segmentDistanceSquared(double px, double py,
+                                                 double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        }
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
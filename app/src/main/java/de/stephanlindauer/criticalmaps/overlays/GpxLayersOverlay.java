@@ -0,0 +1,212 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.drawable.Drawable;
+import android.view.MotionEvent;
+import android.widget.Toast;
+
+import androidx.annotation.Nullable;
+
+import org.osmdroid.api.IGeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxIndex;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxLayers;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
+import de.stephanlindauer.criticalmaps.model.gpx.SimplifiedTrack;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// Draws the tracks and POIs of all visible GPX layers in a single pass instead of one
+// overlay per track and a Marker per POI. GpxIndex hands out only what's in the viewport,
+// tracks are drawn at the level of detail of the zoom, see TrackDrawList, and the POI icon
+// is rasterized once and blitted like in RiderOverlay. Tracks are drawn in their layer's
+// color. Tapping a track or POI shows its name.
+public class GpxLayersOverlay extends Overlay {
+
+    // same as osmdroid's Polyline
+    private static final float STROKE_WIDTH_PX = 10f;
+
+    private final Context context;
+    private final GpxLayers gpxLayers;
+    private final TrackDrawList drawList = new TrackDrawList();
+    private final Paint trackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint iconPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Bitmap poiBitmap;
+    private final float poiHalfWidth;
+    private final float poiHeight;
+    private final Point tapPoint = new Point();
+
+    // state of the current draw() or tap, so the visitors don't allocate
+    private Canvas canvas;
+    private int zoom;
+    private double worldSize;
+    private double centerMercatorX;
+    private double centerMercatorY;
+    private float centerX;
+    private float centerY;
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+    private float tapX;
+    private float tapY;
+    @Nullable
+    private String tappedName;
+
+    private final GpxIndex.Visitor drawVisitor = new GpxIndex.Visitor() {
+        @Override
+        public void visitTrack(SimplifiedTrack track, @Nullable String name, int color) {
+            int lineCount = buildTrack(track);
+            if (lineCount > 0) {
+                trackPaint.setColor(color);
+                canvas.drawLines(drawList.getLines(), 0, lineCount, trackPaint);
+            }
+        }
+
+        @Override
+        public void visitPoi(GpxPoi poi, double mercatorX, double mercatorY, int color) {
+            // anchored at the bottom center like a Marker
+            canvas.drawBitmap(poiBitmap, screenX(mercatorX) - poiHalfWidth,
+                    screenY(mercatorY) - poiHeight, iconPaint);
+        }
+    };
+
+    private final GpxIndex.Visitor tapVisitor = new GpxIndex.Visitor() {
+        @Override
+        public void visitTrack(SimplifiedTrack track, @Nullable String name, int color) {
+            buildTrack(track);
+            if (name != null && drawList.isNear(tapX, tapY, STROKE_WIDTH_PX * 2)) {
+                tappedName = name;
+            }
+        }
+
+        @Override
+        public void visitPoi(GpxPoi poi, double mercatorX, double mercatorY, int color) {
+            float x = screenX(mercatorX);
+            float y = screenY(mercatorY);
+            // POIs are visited last and drawn on top, so they win over tracks
+            if (poi.getName() != null
+                    && Math.abs(tapX - x) <= poiHalfWidth && tapY <= y && tapY >= y - poiHeight) {
+                tappedName = poi.getName();
+            }
+        }
+    };
+
+    public GpxLayersOverlay(Context context, GpxLayers gpxLayers, Drawable poiIcon) {
+        this.context = context;
+        this.gpxLayers = gpxLayers;
+
+        int width = Math.max(1, poiIcon.getIntrinsicWidth());
+        int height = Math.max(1, poiIcon.getIntrinsicHeight());
+        poiBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        poiIcon.setBounds(0, 0, width, height);
+        poiIcon.draw(new Canvas(poiBitmap));
+        poiHalfWidth = width / 2f;
+        poiHeight = height;
+
+        trackPaint.setStyle(Paint.Style.STROKE);
+        trackPaint.setStrokeWidth(STROKE_WIDTH_PX);
+        trackPaint.setStrokeCap(Paint.Cap.ROUND);
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        GpxIndex index = gpxLayers.getIndex();
+        if (shadow || !isEnabled() || index.getTrackCount() + index.getPoiCount() == 0) {
+            return;
+        }
+
+        Projection projection = mapView.getProjection();
+        float halfWidth = projection.getWidth() / 2f;
+        float halfHeight = projection.getHeight() / 2f;
+        // same as in RiderOverlay, with rotation everything within half the screen diagonal
+        // might end up visible
+        float halfExtentX = halfWidth;
+        float halfExtentY = halfHeight;
+        if (projection.getOrientation() != 0f) {
+            halfExtentX = halfExtentY = (float) Math.hypot(halfWidth, halfHeight);
+        }
+        // icons stick out of their position at the top and the sides
+        halfExtentX += Math.max(STROKE_WIDTH_PX, poiHalfWidth);
+        halfExtentY += Math.max(STROKE_WIDTH_PX, poiHeight);
+        setViewport(projection, halfWidth - halfExtentX, halfHeight - halfExtentY,
+                halfWidth + halfExtentX, halfHeight + halfExtentY);
+
+        this.canvas = canvas;
+        query(index, drawVisitor);
+        this.canvas = null;
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent event, MapView mapView) {
+        GpxIndex index = gpxLayers.getIndex();
+        if (!isEnabled() || index.getTrackCount() + index.getPoiCount() == 0) {
+            return false;
+        }
+        // drawing happens on the rotated canvas, so the tap goes the other way like in Marker
+        Projection projection = mapView.getProjection();
+        projection.unrotateAndScalePoint((int) event.getX(), (int) event.getY(), tapPoint);
+        tapX = tapPoint.x;
+        tapY = tapPoint.y;
+        float radius = Math.max(STROKE_WIDTH_PX * 2, poiHeight);
+        setViewport(projection,
+                tapX - radius, tapY - radius, tapX + radius, tapY + radius);
+
+        tappedName = null;
+        query(index, tapVisitor);
+        if (tappedName == null) {
+            return false;
+        }
+        Toast.makeText(context, tappedName, Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
+    private void setViewport(Projection projection,
+                             float minX, float minY, float maxX, float maxY) {
+        centerX = projection.getWidth() / 2f;
+        centerY = projection.getHeight() / 2f;
+        IGeoPoint center = projection.fromPixels((int) centerX, (int) centerY);
+        zoom = SimplifiedTrack.levelFor(projection.getZoomLevel());
+        worldSize = projection.getWorldMapSize();
+        centerMercatorX = MercatorUtils.x(center.getLongitude());
+        centerMercatorY = MercatorUtils.y(center.getLatitude());
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    // everything within the screen box set by setViewport()
+    private void query(GpxIndex index, GpxIndex.Visitor visitor) {
+        index.query(centerMercatorX + (minX - centerX) / worldSize,
+                centerMercatorY + (minY - centerY) / worldSize,
+                centerMercatorX + (maxX - centerX) / worldSize,
+                centerMercatorY + (maxY - centerY) / worldSize,
+                visitor);
+    }
+
+    private int buildTrack(SimplifiedTrack track) {
+        return drawList.build(track, zoom, worldSize, centerMercatorX, centerMercatorY,
+                centerX, centerY, minX, minY, maxX, maxY);
+    }
+
+    private float screenX(double mercatorX) {
+        return (float) ((mercatorX - centerMercatorX) * worldSize) + centerX;
+    }
+
+    private float screenY(double mercatorY) {
+        return (float) ((mercatorY - centerMercatorY) * worldSize) + centerY;
+    }
+
+    @Override
+    public void onDetach(MapView mapView) {
+        poiBitmap.recycle();
+        super.onDetach(mapView);
+    }
+}
@@ -0,0 +1,223 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.model.RiderClusters;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+
+// Screen positions of all visible riders for one frame. Rider positions come from
+// RiderMotion in normalized web mercator, after that projecting a frame is a multiply-add
+// per rider instead of a full osmdroid projection call. Clusters blend from the previous
+// sync's cluster of the same cell, like riders blend towards a new fix. No allocations once
+// the arrays have grown to the size of the ride.
+public class RiderDrawList {
+
+    private final RiderMotion motion = new RiderMotion();
+    private double[] mercatorX = new double[0];
+    private double[] mercatorY = new double[0];
+
+    private RiderClusters clusters = RiderClusters.empty();
+    private RiderClusters previousClusters = RiderClusters.empty();
+    private long clustersMillis;
+    private double[] clusterX = new double[0];
+    private double[] clusterY = new double[0];
+    // cells of previousClusters on cellLevel, open addressing, a slot holds cluster index + 1
+    private int cellLevel = -1;
+    private long[] cellKeys = new long[0];
+    private int[] cellSlots = new int[0];
+
+    private int visibleCount;
+    private float[] screenX = new float[0];
+    private float[] screenY = new float[0];
+    private int[] riderIndices = new int[0];
+
+    // copies the positions, the passed riders are recycled by OtherUsersLocationModel
+    public void setRiders(RiderLocations riders, long nowMillis) {
+        motion.update(riders, nowMillis);
+        int riderCount = riders.size();
+        if (mercatorX.length < riderCount) {
+            int capacity = Math.max(riderCount, mercatorX.length * 2);
+            mercatorX = new double[capacity];
+            mercatorY = new double[capacity];
+        }
+        ensureCapacity(riderCount);
+        visibleCount = 0;
+    }
+
+    public void setClusters(RiderClusters clusters, long nowMillis) {
+        // too old to blend from, like RiderMotion's fixes
+        previousClusters = nowMillis - clustersMillis <= RiderMotion.MAX_FIX_AGE_MILLIS
+                ? this.clusters : RiderClusters.empty();
+        this.clusters = clusters;
+        clustersMillis = nowMillis;
+        cellLevel = -1;
+    }
+
+    public RiderClusters getClusters() {
+        return clusters;
+    }
+
+    // see RiderMotion.nextFrameDelayMillis()
+    public long nextFrameDelayMillis(long nowMillis, double worldSize) {
+        return motion.nextFrameDelayMillis(nowMillis, worldSize);
+    }
+
+    // every frame while clusters blend, -1 after that, they aren't extrapolated
+    public long nextClusterFrameDelayMillis(long nowMillis) {
+        return nowMillis - clustersMillis < RiderMotion.BLEND_MILLIS
+                && previousClusters.getRiderCount() > 0 ? 0 : -1;
+    }
+
+    // worldSize is the map size in pixels at the current zoom, (centerX, centerY) the pixel
+    // the mercator point (centerMercatorX, centerMercatorY) is drawn at. Riders outside of
+    // [minX, maxX] x [minY, maxY] are culled.
+    public int build(long nowMillis, double worldSize,
+                     double centerMercatorX, double centerMercatorY,
+                     float centerX, float centerY,
+                     float minX, float minY, float maxX, float maxY) {
+        motion.positionsAt(nowMillis, mercatorX, mercatorY);
+        return project(mercatorX, mercatorY, motion.size(), worldSize,
+                centerMercatorX, centerMercatorY, centerX, centerY, minX, minY, maxX, maxY);
+    }
+
+    // same as build() but for the clusters of one zoom level last passed to setClusters(),
+    // getRiderIndex() then returns cluster indices
+    public int buildClusters(long nowMillis, int zoom, double worldSize,
+                             double centerMercatorX, double centerMercatorY,
+                             float centerX, float centerY,
+                             float minX, float minY, float maxX, float maxY) {
+        int clusterCount = clusters.getClusterCount(zoom);
+        ensureCapacity(clusterCount);
+        long elapsedMillis = nowMillis - clustersMillis;
+        if (elapsedMillis >= RiderMotion.BLEND_MILLIS
+                || previousClusters.getClusterCount(zoom) == 0) {
+            return project(clusters.getMercatorX(zoom), clusters.getMercatorY(zoom),
+                    clusterCount, worldSize, centerMercatorX, centerMercatorY, centerX, centerY,
+                    minX, minY, maxX, maxY);
+        }
+        blendClusters(zoom, RiderMotion.blendFactor(elapsedMillis));
+        return project(clusterX, clusterY, clusterCount, worldSize,
+                centerMercatorX, centerMercatorY, centerX, centerY, minX, minY, maxX, maxY);
+    }
+
+    // clusters without a predecessor in their cell are drawn where they are right away
+    private void blendClusters(int zoom, double t) {
+        if (cellLevel != zoom) {
+            indexPreviousClusters(zoom);
+        }
+        int clusterCount = clusters.getClusterCount(zoom);
+        if (clusterX.length < clusterCount) {
+            int capacity = Math.max(clusterCount, clusterX.length * 2);
+            clusterX = new double[capacity];
+            clusterY = new double[capacity];
+        }
+        double[] toX = clusters.getMercatorX(zoom);
+        double[] toY = clusters.getMercatorY(zoom);
+        double[] fromX = previousClusters.getMercatorX(zoom);
+        double[] fromY = previousClusters.getMercatorY(zoom);
+        for (int i = 0; i < clusterCount; i++) {
+            int previous = findPreviousCluster(RiderClusters.cellKey(zoom, toX[i], toY[i]));
+            if (previous < 0) {
+                clusterX[i] = toX[i];
+                clusterY[i] = toY[i];
+            } else {
+                clusterX[i] = fromX[previous] + (toX[i] - fromX[previous]) * t;
+                clusterY[i] = fromY[previous] + (toY[i] - fromY[previous]) * t;
+            }
+        }
+    }
+
+    private void indexPreviousClusters(int zoom) {
+        int count = previousClusters.getClusterCount(zoom);
+        int slots = Integer.highestOneBit(Math.max(1, count)) * 4;
+        if (cellSlots.length < slots) {
+            cellKeys = new long[slots];
+            cellSlots = new int[slots];
+        } else {
+            slots = cellSlots.length;
+            Arrays.fill(cellSlots, 0);
+        }
+        double[] x = previousClusters.getMercatorX(zoom);
+        double[] y = previousClusters.getMercatorY(zoom);
+        for (int i = 0; i < count; i++) {
+            long key = RiderClusters.cellKey(zoom, x[i], y[i]);
+            int slot = slotOf(key, slots);
+            while (cellSlots[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            cellKeys[slot] = key;
+            cellSlots[slot] = i + 1;
+        }
+        cellLevel = zoom;
+    }
+
+    private int findPreviousCluster(long key) {
+        int slots = cellSlots.length;
+        int slot = slotOf(key, slots);
+        while (cellSlots[slot] != 0) {
+            if (cellKeys[slot] == key) {
+                return cellSlots[slot] - 1;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    // the top bits of a multiplicative hash, slots is a power of two
+    private static int slotOf(long key, int slots) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(slots)));
+    }
+
+    private int project(double[] pointsX, double[] pointsY, int pointCount, double worldSize,
+                        double centerMercatorX, double centerMercatorY,
+                        float centerX, float centerY,
+                        float minX, float minY, float maxX, float maxY) {
+        int count = 0;
+        for (int i = 0; i < pointCount; i++) {
+            float x = (float) ((pointsX[i] - centerMercatorX) * worldSize) + centerX;
+            if (x < minX || x > maxX) {
+                continue;
+            }
+            float y = (float) ((pointsY[i] - centerMercatorY) * worldSize) + centerY;
+            if (y < minY || y > maxY) {
+                continue;
+            }
+            screenX[count] = x;
+            screenY[count] = y;
+            riderIndices[count] = i;
+            count++;
+        }
+        visibleCount = count;
+        return count;
+    }
+
+    public int getRiderCount() {
+        return motion.size();
+    }
+
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+    public float getScreenX(int visibleIndex) {
+        return screenX[visibleIndex];
+    }
+
+    public float getScreenY(int visibleIndex) {
+        return screenY[visibleIndex];
+    }
+
+    // index into the RiderLocations last passed to setRiders()
+    public int getRiderIndex(int visibleIndex) {
+        return riderIndices[visibleIndex];
+    }
+
+    private void ensureCapacity(int pointCount) {
+        if (screenX.length < pointCount) {
+            int capacity = Math.max(pointCount, screenX.length * 2);
+            screenX = new float[capacity];
+            screenY = new float[capacity];
+            riderIndices = new int[capacity];
+        }
+    }
+}
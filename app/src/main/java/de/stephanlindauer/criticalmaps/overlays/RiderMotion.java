@@ -0,0 +1,175 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.utils.GeoUtils;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// Animated rider positions between syncs. Riders are matched across snapshots by device key,
+// their velocity is estimated from the last two fixes and used to extrapolate until the next
+// sync. On a new fix riders blend from where they are drawn right now towards the new track,
+// so they never jump. Positions are in normalized web mercator, computing them for a frame
+// doesn't allocate.
+public class RiderMotion {
+
+    static final long BLEND_MILLIS = 1000;
+    // roughly one sync interval, beyond that we'd only be guessing
+    static final long MAX_EXTRAPOLATION_MILLIS = 12_000;
+    // faster than any bike, most likely a GPS glitch or a rider reappearing elsewhere
+    static final double MAX_SPEED_METERS_PER_SECOND = 20D;
+    static final long MAX_FIX_AGE_MILLIS = 60_000;
+
+    private RiderLocationBuffer fixes = new RiderLocationBuffer();
+    private RiderLocationBuffer previousFixes = new RiderLocationBuffer();
+
+    private int size;
+    private long fixTimeMillis;
+    private boolean hasMotion;
+    // of the fastest rider, mercator units per millisecond
+    private double maxSpeed;
+    private Track track = new Track(0);
+    private Track previousTrack = new Track(0);
+
+    public void update(RiderLocations riders, long nowMillis) {
+        RiderLocationBuffer swappedFixes = previousFixes;
+        previousFixes = fixes;
+        fixes = swappedFixes;
+        fixes.clear();
+        Track swappedTrack = previousTrack;
+        previousTrack = track;
+        track = swappedTrack.ensureCapacity(riders.size());
+
+        long elapsedMillis = nowMillis - fixTimeMillis;
+        boolean canEstimate = size > 0 && elapsedMillis > 0 && elapsedMillis <= MAX_FIX_AGE_MILLIS;
+
+        boolean motion = false;
+        double fastest = 0D;
+        int count = riders.size();
+        for (int i = 0; i < count; i++) {
+            int latitudeE6 = riders.getLatitudeE6(i);
+            int longitudeE6 = riders.getLongitudeE6(i);
+            fixes.add(riders.getDeviceKey(i), latitudeE6, longitudeE6);
+
+            double x = MercatorUtils.x(longitudeE6 / 1E6D);
+            double y = MercatorUtils.y(latitudeE6 / 1E6D);
+            track.fixX[i] = x;
+            track.fixY[i] = y;
+            track.startX[i] = x;
+            track.startY[i] = y;
+            track.velocityX[i] = 0;
+            track.velocityY[i] = 0;
+
+            int previous = canEstimate ? previousFixes.indexOf(riders.getDeviceKey(i)) : -1;
+            if (previous < 0) {
+                continue;
+            }
+            double meters = GeoUtils.distanceMeters(
+                    previousFixes.getLatitudeE6(previous), previousFixes.getLongitudeE6(previous),
+                    latitudeE6, longitudeE6);
+            if (meters > MAX_SPEED_METERS_PER_SECOND * elapsedMillis / 1000D) {
+                continue;
+            }
+            track.startX[i] = previousTrack.x(previous, elapsedMillis);
+            track.startY[i] = previousTrack.y(previous, elapsedMillis);
+            track.velocityX[i] = (x - previousTrack.fixX[previous]) / elapsedMillis;
+            track.velocityY[i] = (y - previousTrack.fixY[previous]) / elapsedMillis;
+            motion |= track.velocityX[i] != 0 || track.velocityY[i] != 0
+                    || track.startX[i] != x || track.startY[i] != y;
+            fastest = Math.max(fastest, Math.hypot(track.velocityX[i], track.velocityY[i]));
+        }
+
+        size = count;
+        fixTimeMillis = nowMillis;
+        hasMotion = motion;
+        maxSpeed = fastest;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // true as long as positions still change over time
+    public boolean isMoving(long nowMillis) {
+        return hasMotion && nowMillis - fixTimeMillis < MAX_EXTRAPOLATION_MILLIS;
+    }
+
+    // how long until a frame would show any rider a pixel away from where it's drawn now,
+    // worldSize being the map size in pixels. Every frame while blending towards a new fix,
+    // -1 once nothing moves by a pixel anymore before extrapolation ends.
+    public long nextFrameDelayMillis(long nowMillis, double worldSize) {
+        if (!isMoving(nowMillis)) {
+            return -1;
+        }
+        long elapsedMillis = nowMillis - fixTimeMillis;
+        if (elapsedMillis < BLEND_MILLIS) {
+            return 0;
+        }
+        double delayMillis = Math.ceil(1D / (maxSpeed * worldSize));
+        return delayMillis < MAX_EXTRAPOLATION_MILLIS - elapsedMillis ? (long) delayMillis : -1;
+    }
+
+    // writes the positions at the given time, the arrays need room for size() riders
+    public void positionsAt(long nowMillis, double[] outX, double[] outY) {
+        long elapsedMillis = nowMillis - fixTimeMillis;
+        if (!hasMotion) {
+            System.arraycopy(track.fixX, 0, outX, 0, size);
+            System.arraycopy(track.fixY, 0, outY, 0, size);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            outX[i] = track.x(i, elapsedMillis);
+            outY[i] = track.y(i, elapsedMillis);
+        }
+    }
+
+    // how far along the way from the old to the new position, eased in and out
+    static double blendFactor(long elapsedMillis) {
+        double t = Math.max(0D, Math.min(1D, (double) elapsedMillis / BLEND_MILLIS));
+        return t * t * (3D - 2D * t);
+    }
+
+    // parallel arrays describing where each rider of one snapshot is drawn over time
+    private static final class Track {
+        double[] fixX;
+        double[] fixY;
+        double[] startX;
+        double[] startY;
+        // mercator units per millisecond
+        double[] velocityX;
+        double[] velocityY;
+
+        Track(int capacity) {
+            fixX = new double[capacity];
+            fixY = new double[capacity];
+            startX = new double[capacity];
+            startY = new double[capacity];
+            velocityX = new double[capacity];
+            velocityY = new double[capacity];
+        }
+
+        Track ensureCapacity(int capacity) {
+            if (fixX.length >= capacity) {
+                return this;
+            }
+            return new Track(Math.max(capacity, fixX.length * 2));
+        }
+
+        double x(int index, long elapsedMillis) {
+            return blend(startX[index], fixX[index], velocityX[index], elapsedMillis);
+        }
+
+        double y(int index, long elapsedMillis) {
+            return blend(startY[index], fixY[index], velocityY[index], elapsedMillis);
+        }
+
+        private static double blend(double start, double fix, double velocity,
+                                    long elapsedMillis) {
+            long extrapolated = Math.max(0, Math.min(elapsedMillis, MAX_EXTRAPOLATION_MILLIS));
+            double target = fix + velocity * extrapolated;
+            if (elapsedMillis >= BLEND_MILLIS) {
+                return target;
+            }
+            return start + (target - start) * blendFactor(elapsedMillis);
+        }
+    }
+}
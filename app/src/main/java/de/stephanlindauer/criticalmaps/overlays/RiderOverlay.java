@@ -0,0 +1,235 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+
+import org.osmdroid.api.IGeoPoint;
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderClusters;
+import de.stephanlindauer.criticalmaps.model.RiderGridIndex;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+// Draws all riders in a single pass instead of one Marker overlay per rider. Positions are
+// projected in bulk by RiderDrawList and the icon is rasterized once and blitted. Up to
+// RiderClusters.MAX_ZOOM riders are drawn as clusters with their rider count, otherwise
+// they're animated between syncs. Redraws are scheduled on every frame while riders or
+// clusters blend towards a new fix and afterwards only once the fastest rider moved a pixel.
+// Tapping a cluster zooms in on the rider closest to the tap, see RiderGridIndex.
+public class RiderOverlay extends Overlay {
+
+    private static final long NO_FRAME = Long.MAX_VALUE;
+    private static final double EARTH_CIRCUMFERENCE_METERS = 40_075_016.686D;
+
+    private final MapView mapView;
+    private final OtherUsersLocationModel otherUsersLocationModel;
+    private final RiderDrawList drawList = new RiderDrawList();
+    private final Bitmap iconBitmap;
+    private final float iconHalfWidth;
+    private final float iconHalfHeight;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint clusterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint clusterTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float clusterTextOffset;
+    private final Point tapPoint = new Point();
+
+    // of the riders shown, see OtherUsersLocationModel.getRidersRevision()
+    private int ridersRevision = -1;
+
+    private final Choreographer.FrameCallback invalidateOnFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            scheduledFrameMillis = NO_FRAME;
+            mapView.invalidate();
+        }
+    };
+    // uptime the redraw is scheduled for
+    private long scheduledFrameMillis = NO_FRAME;
+
+    public RiderOverlay(MapView mapView, OtherUsersLocationModel otherUsersLocationModel,
+                        Drawable icon, int clusterColor, int clusterTextColor,
+                        float clusterTextSize) {
+        this.mapView = mapView;
+        this.otherUsersLocationModel = otherUsersLocationModel;
+
+        int width = Math.max(1, icon.getIntrinsicWidth());
+        int height = Math.max(1, icon.getIntrinsicHeight());
+        iconBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(new Canvas(iconBitmap));
+        iconHalfWidth = width / 2f;
+        iconHalfHeight = height / 2f;
+
+        clusterPaint.setColor(clusterColor);
+        clusterTextPaint.setColor(clusterTextColor);
+        clusterTextPaint.setTextSize(clusterTextSize);
+        clusterTextPaint.setTextAlign(Paint.Align.CENTER);
+        clusterTextOffset = -(clusterTextPaint.ascent() + clusterTextPaint.descent()) / 2f;
+    }
+
+    // the same revision again keeps the riders moving as they are, a new fix of unchanged
+    // riders would stop them
+    public void setRiders(RiderLocations riders, int ridersRevision, RiderClusters clusters) {
+        if (ridersRevision == this.ridersRevision) {
+            return;
+        }
+        this.ridersRevision = ridersRevision;
+        long nowMillis = SystemClock.uptimeMillis();
+        drawList.setRiders(riders, nowMillis);
+        drawList.setClusters(clusters, nowMillis);
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || !isEnabled() || drawList.getRiderCount() == 0) {
+            return;
+        }
+
+        Projection projection = mapView.getProjection();
+        int width = projection.getWidth();
+        int height = projection.getHeight();
+        float centerX = width / 2f;
+        float centerY = height / 2f;
+        IGeoPoint center = projection.fromPixels((int) centerX, (int) centerY);
+
+        // the canvas is rotated around the center, so with rotation everything within half the
+        // screen diagonal might end up visible
+        float halfExtentX = centerX;
+        float halfExtentY = centerY;
+        if (projection.getOrientation() != 0f) {
+            halfExtentX = halfExtentY = (float) Math.hypot(centerX, centerY);
+        }
+        halfExtentX += iconHalfWidth;
+        halfExtentY += iconHalfHeight;
+
+        double worldSize = projection.getWorldMapSize();
+        double centerMercatorX = MercatorUtils.x(center.getLongitude());
+        double centerMercatorY = MercatorUtils.y(center.getLatitude());
+        double zoomLevel = projection.getZoomLevel();
+        long nowMillis = SystemClock.uptimeMillis();
+
+        if (RiderClusters.isClustered(zoomLevel)) {
+            // clusters are bigger than a single icon, leave some more room for them
+            halfExtentX += iconHalfWidth * 2;
+            halfExtentY += iconHalfHeight * 2;
+            int level = RiderClusters.levelFor(zoomLevel);
+            RiderClusters clusters = drawList.getClusters();
+            int visibleCount = drawList.buildClusters(nowMillis, level, worldSize,
+                    centerMercatorX, centerMercatorY, centerX, centerY,
+                    centerX - halfExtentX, centerY - halfExtentY,
+                    centerX + halfExtentX, centerY + halfExtentY);
+            for (int i = 0; i < visibleCount; i++) {
+                int riderCount = clusters.getRiderCount(level, drawList.getRiderIndex(i));
+                if (riderCount == 1) {
+                    drawIcon(canvas, drawList.getScreenX(i), drawList.getScreenY(i));
+                } else {
+                    drawCluster(canvas, drawList.getScreenX(i), drawList.getScreenY(i),
+                            riderCount);
+                }
+            }
+
+            long delayMillis = drawList.nextClusterFrameDelayMillis(nowMillis);
+            if (delayMillis >= 0) {
+                scheduleFrame(nowMillis, delayMillis);
+            }
+            return;
+        }
+
+        int visibleCount = drawList.build(nowMillis, worldSize, centerMercatorX, centerMercatorY,
+                centerX, centerY,
+                centerX - halfExtentX, centerY - halfExtentY,
+                centerX + halfExtentX, centerY + halfExtentY);
+        for (int i = 0; i < visibleCount; i++) {
+            drawIcon(canvas, drawList.getScreenX(i), drawList.getScreenY(i));
+        }
+
+        long delayMillis = drawList.nextFrameDelayMillis(nowMillis, worldSize);
+        if (delayMillis >= 0) {
+            scheduleFrame(nowMillis, delayMillis);
+        }
+    }
+
+    // goes by the last fixes, not the animated positions, clusters don't move far between syncs
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent event, MapView mapView) {
+        Projection projection = mapView.getProjection();
+        if (!isEnabled() || !RiderClusters.isClustered(projection.getZoomLevel())) {
+            return false;
+        }
+        // the riders drawn might already be handed back to the sync thread, the model's are
+        // owned by the main thread
+        RiderLocations riders = otherUsersLocationModel.getOtherUsersLocations();
+        RiderGridIndex index = riders.getSpatialIndex();
+        if (index.size() == 0) {
+            return false;
+        }
+
+        // drawing happens on the rotated canvas, so the tap goes the other way like in Marker
+        projection.unrotateAndScalePoint((int) event.getX(), (int) event.getY(), tapPoint);
+        float centerX = projection.getWidth() / 2f;
+        float centerY = projection.getHeight() / 2f;
+        IGeoPoint center = projection.fromPixels((int) centerX, (int) centerY);
+        double worldSize = projection.getWorldMapSize();
+        double latitude = MercatorUtils.latitude(
+                MercatorUtils.y(center.getLatitude()) + (tapPoint.y - centerY) / worldSize);
+        double longitude = MercatorUtils.longitude(
+                MercatorUtils.x(center.getLongitude()) + (tapPoint.x - centerX) / worldSize);
+        // a rider within a cluster cell of the tap belongs to the tapped cluster or one of
+        // its neighbours
+        double metersPerPixel =
+                EARTH_CIRCUMFERENCE_METERS * Math.cos(Math.toRadians(latitude)) / worldSize;
+        int rider = index.hitTest((int) (latitude * 1E6D), (int) (longitude * 1E6D),
+                RiderClusters.CELL_SIZE_PX * metersPerPixel);
+        if (rider < 0) {
+            return false;
+        }
+
+        mapView.getController().setZoom((double) RiderClusters.MAX_ZOOM + 1);
+        mapView.getController().animateTo(new GeoPoint(
+                riders.getLatitudeE6(rider) / 1E6D, riders.getLongitudeE6(rider) / 1E6D));
+        return true;
+    }
+
+    // an earlier request replaces a later one, e.g. when a new fix arrives mid wait
+    private void scheduleFrame(long nowMillis, long delayMillis) {
+        if (nowMillis + delayMillis >= scheduledFrameMillis) {
+            return;
+        }
+        Choreographer choreographer = Choreographer.getInstance();
+        choreographer.removeFrameCallback(invalidateOnFrame);
+        choreographer.postFrameCallbackDelayed(invalidateOnFrame, delayMillis);
+        scheduledFrameMillis = nowMillis + delayMillis;
+    }
+
+    private void drawIcon(Canvas canvas, float x, float y) {
+        canvas.drawBitmap(iconBitmap, x - iconHalfWidth, y - iconHalfHeight, paint);
+    }
+
+    private void drawCluster(Canvas canvas, float x, float y, int riderCount) {
+        // grows with the number of digits, up to twice the icon size
+        float radius = iconHalfWidth
+                * Math.min(2f, 1f + (float) Math.log10(riderCount) / 3f);
+        canvas.drawCircle(x, y, radius, clusterPaint);
+        canvas.drawText(Integer.toString(riderCount), x, y + clusterTextOffset,
+                clusterTextPaint);
+    }
+
+    @Override
+    public void onDetach(MapView mapView) {
+        Choreographer.getInstance().removeFrameCallback(invalidateOnFrame);
+        scheduledFrameMillis = NO_FRAME;
+        iconBitmap.recycle();
+        super.onDetach(mapView);
+    }
+}
@@ -0,0 +1,90 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import java.util.Arrays;
+
+import de.stephanlindauer.criticalmaps.model.gpx.SimplifiedTrack;
+
+// Screen coordinates of the visible part of a track for one frame, as segment pairs for
+// Canvas.drawLines(). Only the level of the current zoom is projected and chunks and segments
+// outside of the viewport are skipped, so a frame costs about as much as the points on screen
+// no matter how long the track is. No allocations once the buffer has grown.
+public class TrackDrawList {
+
+    private float[] lines = new float[256];
+    private int lineCount;
+
+    // like RiderDrawList.build(), segments not touching [minX, maxX] x [minY, maxY] are culled,
+    // returns the number of floats in getLines()
+    public int build(SimplifiedTrack track, int zoom, double worldSize,
+                     double centerMercatorX, double centerMercatorY,
+                     float centerX, float centerY,
+                     float minX, float minY, float maxX, float maxY) {
+        lineCount = 0;
+        double viewMinX = centerMercatorX + (minX - centerX) / worldSize;
+        double viewMinY = centerMercatorY + (minY - centerY) / worldSize;
+        double viewMaxX = centerMercatorX + (maxX - centerX) / worldSize;
+        double viewMaxY = centerMercatorY + (maxY - centerY) / worldSize;
+
+        double[] pointsX = track.getMercatorX();
+        double[] pointsY = track.getMercatorY();
+        int[] indices = track.getIndices(zoom);
+        double[] bounds = track.getChunkBounds(zoom);
+        int segmentCount = indices.length - 1;
+        for (int chunk = 0; chunk < track.getChunkCount(zoom); chunk++) {
+            if (bounds[chunk * 4] > viewMaxX || bounds[chunk * 4 + 2] < viewMinX
+                    || bounds[chunk * 4 + 1] > viewMaxY || bounds[chunk * 4 + 3] < viewMinY) {
+                continue;
+            }
+            int end = Math.min((chunk + 1) * SimplifiedTrack.CHUNK_SIZE, segmentCount);
+            for (int i = chunk * SimplifiedTrack.CHUNK_SIZE; i < end; i++) {
+                double ax = pointsX[indices[i]];
+                double ay = pointsY[indices[i]];
+                double bx = pointsX[indices[i + 1]];
+                double by = pointsY[indices[i + 1]];
+                if (Math.min(ax, bx) > viewMaxX || Math.max(ax, bx) < viewMinX
+                        || Math.min(ay, by) > viewMaxY || Math.max(ay, by) < viewMinY) {
+                    continue;
+                }
+                if (lineCount + 4 > lines.length) {
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                }
+                lines[lineCount++] = (float) ((ax - centerMercatorX) * worldSize) + centerX;
+                lines[lineCount++] = (float) ((ay - centerMercatorY) * worldSize) + centerY;
+                lines[lineCount++] = (float) ((bx - centerMercatorX) * worldSize) + centerX;
+                lines[lineCount++] = (float) ((by - centerMercatorY) * worldSize) + centerY;
+            }
+        }
+        return lineCount;
+    }
+
+    // reused between frames, only as many floats as build() returned are valid
+    public float[] getLines() {
+        return lines;
+    }
+
+    // whether a segment of the last build() passes within radius of (x, y)
+    public boolean isNear(float x, float y, float radius) {
+        float radiusSquared = radius * radius;
+        for (int i = 0; i < lineCount; i += 4) {
+            if (distanceSquared(x, y, lines[i], lines[i + 1], lines[i + 2], lines[i + 3])
+                    <= radiusSquared) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static float distanceSquared(float px, float py,
+                                         float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        }
+        float ex = px - (ax + t * dx);
+        float ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -19,6 +19,9 @@ public interface SharedPrefsKeys {
             BuildConfig.APPLICATION_ID + ".USE_HIGH_RES_MAP_TILES";
     String SHOW_GPX =
             BuildConfig.APPLICATION_ID + ".SHOW_GPX";
+    // only read to move it over to GPX_LAYERS
     String GPX_FILE =
             BuildConfig.APPLICATION_ID + ".GPX_FILE";
+    String GPX_LAYERS =
+            BuildConfig.APPLICATION_ID + ".GPX_LAYERS";
 }
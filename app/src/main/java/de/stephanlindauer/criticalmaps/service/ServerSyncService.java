@@ -2,32 +2,38 @@ package de.stephanlindauer.criticalmaps.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.IBinder;
+import android.os.SystemClock;
 
 import androidx.core.content.ContextCompat;
 
 import com.squareup.otto.Subscribe;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import javax.inject.Inject;
 import javax.inject.Provider;
 
 import de.stephanlindauer.criticalmaps.App;
 import de.stephanlindauer.criticalmaps.events.NetworkConnectivityChangedEvent;
+import de.stephanlindauer.criticalmaps.events.NewLocationEvent;
+import de.stephanlindauer.criticalmaps.events.NewOutgoingChatMessageEvent;
 import de.stephanlindauer.criticalmaps.handler.NetworkConnectivityChangeHandler;
 import de.stephanlindauer.criticalmaps.handler.PullServerHandler;
 import de.stephanlindauer.criticalmaps.managers.LocationUpdateManager;
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import de.stephanlindauer.criticalmaps.model.OwnLocationModel;
+import de.stephanlindauer.criticalmaps.prefs.SharedPrefsKeys;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
+import de.stephanlindauer.criticalmaps.tasks.TaskExecutors;
+import de.stephanlindauer.criticalmaps.tasks.TaskPool;
 import de.stephanlindauer.criticalmaps.utils.TrackingInfoNotificationBuilder;
+import info.metadude.android.typedpreferences.BooleanPreference;
+import timber.log.Timber;
 
 public class ServerSyncService extends Service {
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int SERVER_SYNC_INTERVAL = 12 * 1000; // 12 sec -> 5 times a minute
-
-    private Timer timerPullServer;
+    private final SyncLoop syncLoop = new SyncLoop(this::startSync, this::nextSyncInterval);
 
     @Inject
     LocationUpdateManager locationUpdateManager;
@@ -41,6 +47,24 @@ public class ServerSyncService extends Service {
     @Inject
     EventBus eventBus;
 
+    @Inject
+    NetworkTrafficModel networkTrafficModel;
+
+    @Inject
+    SyncIntervalPolicy syncIntervalPolicy;
+
+    @Inject
+    OwnLocationModel ownLocationModel;
+
+    @Inject
+    ChatModel chatModel;
+
+    @Inject
+    SharedPreferences sharedPreferences;
+
+    @Inject
+    TaskExecutors taskExecutors;
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -57,25 +81,40 @@ public class ServerSyncService extends Service {
 
         networkConnectivityChangeHandler.start();
 
+        syncIntervalPolicy.setOnCadenceChangedListener(syncLoop::reschedule);
+
         eventBus.register(this);
     }
 
-    private void startPullServerTimer() {
-        timerPullServer = new Timer();
+    private void startSync(SyncLoop loop, long syncId) {
+        syncIntervalPolicy.onSync(SystemClock.elapsedRealtime());
+        pullServerHandler.get()
+                .setOnSyncFinishedListener(success -> loop.onSyncFinished(syncId, success))
+                .execute();
+    }
+
+    private long nextSyncInterval(long now) {
+        syncIntervalPolicy.setObserverMode(new BooleanPreference(
+                sharedPreferences, SharedPrefsKeys.OBSERVER_MODE_ACTIVE).get());
+        syncIntervalPolicy.onChatActivityCount(chatModel.getActivityCount(), now);
+        final long interval = syncIntervalPolicy.nextIntervalMillis(now);
 
-        TimerTask timerTaskPullServer = new TimerTask() {
-            @Override
-            public void run() {
-                pullServerHandler.get().execute();
-            }
-        };
-        timerPullServer.scheduleAtFixedRate(timerTaskPullServer, 0, SERVER_SYNC_INTERVAL);
+        final long locationRefreshTime = SyncIntervalPolicy.locationRefreshMillisFor(interval);
+        syncIntervalPolicy.onLocationRefreshChanged(locationRefreshTime, now);
+        locationUpdateManager.setLocationRefreshTime(locationRefreshTime);
+        return interval;
     }
 
-    private void stopPullServerTimer() {
-        if (timerPullServer != null) {
-            timerPullServer.cancel();
-            timerPullServer = null;
+    private void logSyncStats() {
+        Timber.d("Sync loop: %d syncs, %d failed, circuit opened %d times",
+                syncLoop.getSyncCount(), syncLoop.getFailureCount(),
+                syncLoop.getCircuitOpenedCount());
+        Timber.d("Chat: %d messages acknowledged, %d ms on average, %d ms at most",
+                chatModel.getAcknowledgedMessageCount(),
+                chatModel.getAverageAcknowledgeLatencyMillis(),
+                chatModel.getMaxAcknowledgeLatencyMillis());
+        for (TaskPool pool : TaskPool.values()) {
+            Timber.d("Task queue %s", taskExecutors.getQueueWaitStats(pool));
         }
     }
 
@@ -84,7 +123,10 @@ public class ServerSyncService extends Service {
         eventBus.unregister(this);
         locationUpdateManager.handleShutdown();
         networkConnectivityChangeHandler.stop();
-        stopPullServerTimer();
+        syncIntervalPolicy.setOnCadenceChangedListener(null);
+        syncLoop.stop();
+        networkTrafficModel.log();
+        logSyncStats();
     }
 
     @Override
@@ -95,10 +137,25 @@ public class ServerSyncService extends Service {
 
     @Subscribe
     public void handleNetworkConnectivityChanged(NetworkConnectivityChangedEvent e) {
-        if (e.isConnected && timerPullServer == null) {
-            startPullServerTimer();
+        if (e.isConnected) {
+            syncLoop.onConnected();
         } else {
-            stopPullServerTimer();
+            syncLoop.stop();
+        }
+    }
+
+    @Subscribe
+    public void handleNewOutgoingChatMessage(NewOutgoingChatMessageEvent e) {
+        syncLoop.requestSyncSoon();
+    }
+
+    @Subscribe
+    public void handleNewLocation(NewLocationEvent e) {
+        if (ownLocationModel.ownLocation != null) {
+            syncIntervalPolicy.onLocation(
+                    (int) (ownLocationModel.ownLocation.getLatitude() * 1000000.0D),
+                    (int) (ownLocationModel.ownLocation.getLongitude() * 1000000.0D),
+                    SystemClock.elapsedRealtime());
         }
     }
 
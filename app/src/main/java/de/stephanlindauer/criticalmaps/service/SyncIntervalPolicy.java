@@ -0,0 +1,243 @@
+package de.stephanlindauer.criticalmaps.service;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import de.stephanlindauer.criticalmaps.utils.GeoUtils;
+
+// Decides how often ServerSyncService syncs. Riders moving with the map in front of them get
+// the fastest cadence, stationary or backgrounded devices back off, recent chat activity
+// speeds things up again. Times are SystemClock.elapsedRealtime() millis passed in by callers.
+// What that saves is published to NetworkTrafficModel next to the traffic it's measured with.
+//
+// Fed on the main thread, the getters may be called from anywhere, hence synchronized.
+@Singleton
+public class SyncIntervalPolicy {
+
+    // the fixed interval used before, savings are reported against it
+    static final long BASELINE_INTERVAL_MILLIS = 12 * 1000;
+
+    static final long MOVING_MAP_VISIBLE_INTERVAL_MILLIS = 6 * 1000;
+    static final long MOVING_INTERVAL_MILLIS = 12 * 1000;
+    static final long STATIONARY_MAP_VISIBLE_INTERVAL_MILLIS = 20 * 1000;
+    static final long STATIONARY_INTERVAL_MILLIS = 30 * 1000;
+    static final long BACKGROUND_MOVING_INTERVAL_MILLIS = 30 * 1000;
+    static final long BACKGROUND_STATIONARY_INTERVAL_MILLIS = 120 * 1000;
+    static final long OBSERVER_INTERVAL_MILLIS = 15 * 1000;
+    static final long CHAT_ACTIVE_INTERVAL_MILLIS = 6 * 1000;
+
+    static final long MIN_LOCATION_REFRESH_MILLIS = 5 * 1000;
+    static final long MAX_LOCATION_REFRESH_MILLIS = 30 * 1000;
+
+    // ~5 km/h, the CM averages around 4 m/s
+    static final double MOVING_SPEED_METERS_PER_SECOND = 1.5;
+    // moved that far since the last upload, others should see it soon
+    static final double UPLOAD_DISTANCE_METERS = 100;
+    // fixes are only delivered every 20m, no fix for this long means standing still
+    static final long LOCATION_STALE_MILLIS = 60 * 1000;
+    static final long CHAT_ACTIVE_MILLIS = 2 * 60 * 1000;
+
+    private final NetworkTrafficModel networkTrafficModel;
+    private Runnable onCadenceChangedListener;
+
+    private boolean foreground;
+    private boolean mapVisible;
+    private boolean observerMode;
+
+    private boolean hasFix;
+    private int fixLatitudeE6;
+    private int fixLongitudeE6;
+    private long fixMillis;
+    private double speedMetersPerSecond;
+
+    private boolean hasUpload;
+    private int uploadLatitudeE6;
+    private int uploadLongitudeE6;
+
+    private long chatActivityCount;
+    private long chatActivityMillis = Long.MIN_VALUE;
+
+    // metrics
+    private long syncCount;
+    private long firstSyncMillis;
+    private long lastSyncMillis;
+    private long locationRefreshMillis = BASELINE_INTERVAL_MILLIS;
+    private long locationRefreshSinceMillis = -1;
+    private double locationRefreshWeightedSum;
+    private long locationRefreshDuration;
+
+    @Inject
+    public SyncIntervalPolicy(NetworkTrafficModel networkTrafficModel) {
+        this.networkTrafficModel = networkTrafficModel;
+    }
+
+    // invoked on the calling thread whenever a change might shorten or extend the interval
+    public void setOnCadenceChangedListener(Runnable onCadenceChangedListener) {
+        synchronized (this) {
+            this.onCadenceChangedListener = onCadenceChangedListener;
+        }
+    }
+
+    public void setForeground(boolean foreground) {
+        Runnable listener;
+        synchronized (this) {
+            if (this.foreground == foreground) {
+                return;
+            }
+            this.foreground = foreground;
+            listener = onCadenceChangedListener;
+        }
+        notifyChanged(listener);
+    }
+
+    public void setMapVisible(boolean mapVisible) {
+        Runnable listener;
+        synchronized (this) {
+            if (this.mapVisible == mapVisible) {
+                return;
+            }
+            this.mapVisible = mapVisible;
+            listener = onCadenceChangedListener;
+        }
+        notifyChanged(listener);
+    }
+
+    public synchronized void setObserverMode(boolean observerMode) {
+        this.observerMode = observerMode;
+    }
+
+    // ChatModel counts sent and newly received messages, a change counts as activity
+    public synchronized void onChatActivityCount(long activityCount, long nowMillis) {
+        if (activityCount != chatActivityCount) {
+            chatActivityCount = activityCount;
+            chatActivityMillis = nowMillis;
+        }
+    }
+
+    public void onLocation(int latitudeE6, int longitudeE6, long nowMillis) {
+        Runnable listener = null;
+        synchronized (this) {
+            boolean wasMoving = isMoving(nowMillis);
+            if (hasFix) {
+                long elapsedMillis = nowMillis - fixMillis;
+                if (elapsedMillis < 1000) {
+                    // too close to tell speed apart from jitter, keep the earlier fix as base
+                    return;
+                }
+                double meters = GeoUtils.distanceMeters(
+                        fixLatitudeE6, fixLongitudeE6, latitudeE6, longitudeE6);
+                double speed = meters * 1000 / elapsedMillis;
+                // smoothed a little, single bad fixes shouldn't flip the cadence
+                speedMetersPerSecond = (speedMetersPerSecond + speed) / 2;
+            }
+            hasFix = true;
+            fixLatitudeE6 = latitudeE6;
+            fixLongitudeE6 = longitudeE6;
+            fixMillis = nowMillis;
+            if (wasMoving != isMoving(nowMillis)) {
+                listener = onCadenceChangedListener;
+            }
+        }
+        notifyChanged(listener);
+    }
+
+    public synchronized void onLocationUploaded(int latitudeE6, int longitudeE6) {
+        hasUpload = true;
+        uploadLatitudeE6 = latitudeE6;
+        uploadLongitudeE6 = longitudeE6;
+    }
+
+    public synchronized long nextIntervalMillis(long nowMillis) {
+        boolean chatActive = chatActivityMillis != Long.MIN_VALUE
+                && nowMillis - chatActivityMillis < CHAT_ACTIVE_MILLIS;
+        if (chatActive && foreground) {
+            return CHAT_ACTIVE_INTERVAL_MILLIS;
+        }
+
+        if (observerMode) {
+            // nothing to upload, only worth syncing while someone's looking
+            return foreground ? OBSERVER_INTERVAL_MILLIS : BACKGROUND_STATIONARY_INTERVAL_MILLIS;
+        }
+
+        boolean moving = isMoving(nowMillis) || getDistanceSinceUpload() > UPLOAD_DISTANCE_METERS;
+        if (!foreground) {
+            return moving ? BACKGROUND_MOVING_INTERVAL_MILLIS
+                    : BACKGROUND_STATIONARY_INTERVAL_MILLIS;
+        }
+        if (mapVisible) {
+            return moving ? MOVING_MAP_VISIBLE_INTERVAL_MILLIS
+                    : STATIONARY_MAP_VISIBLE_INTERVAL_MILLIS;
+        }
+        return moving ? MOVING_INTERVAL_MILLIS : STATIONARY_INTERVAL_MILLIS;
+    }
+
+    // no point in getting fixes much faster than they're uploaded
+    public static long locationRefreshMillisFor(long syncIntervalMillis) {
+        return Math.max(MIN_LOCATION_REFRESH_MILLIS,
+                Math.min(MAX_LOCATION_REFRESH_MILLIS, syncIntervalMillis));
+    }
+
+    public synchronized boolean isMoving(long nowMillis) {
+        return hasFix && nowMillis - fixMillis < LOCATION_STALE_MILLIS
+                && speedMetersPerSecond >= MOVING_SPEED_METERS_PER_SECOND;
+    }
+
+    public synchronized double getDistanceSinceUpload() {
+        if (!hasFix || !hasUpload) {
+            return 0;
+        }
+        return GeoUtils.distanceMeters(
+                uploadLatitudeE6, uploadLongitudeE6, fixLatitudeE6, fixLongitudeE6);
+    }
+
+    public synchronized void onSync(long nowMillis) {
+        if (syncCount == 0) {
+            firstSyncMillis = nowMillis;
+        }
+        syncCount++;
+        lastSyncMillis = nowMillis;
+        publishSavings();
+    }
+
+    public synchronized void onLocationRefreshChanged(long refreshMillis, long nowMillis) {
+        if (locationRefreshSinceMillis >= 0) {
+            long duration = nowMillis - locationRefreshSinceMillis;
+            locationRefreshWeightedSum += (double) locationRefreshMillis * duration;
+            locationRefreshDuration += duration;
+        }
+        locationRefreshMillis = refreshMillis;
+        locationRefreshSinceMillis = nowMillis;
+        publishSavings();
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    // what the fixed 12 second timer would have done over the same time
+    public synchronized long getBaselineSyncCount() {
+        if (syncCount == 0) {
+            return 0;
+        }
+        return (lastSyncMillis - firstSyncMillis) / BASELINE_INTERVAL_MILLIS + 1;
+    }
+
+    public synchronized long getAverageLocationRefreshMillis() {
+        if (locationRefreshDuration == 0) {
+            return locationRefreshMillis;
+        }
+        return Math.round(locationRefreshWeightedSum / locationRefreshDuration);
+    }
+
+    private void publishSavings() {
+        networkTrafficModel.setSyncSavings(new NetworkTrafficModel.SyncSavings(
+                syncCount, getBaselineSyncCount(), getAverageLocationRefreshMillis()));
+    }
+
+    private static void notifyChanged(Runnable listener) {
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
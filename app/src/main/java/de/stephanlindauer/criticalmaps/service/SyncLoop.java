@@ -0,0 +1,241 @@
+package de.stephanlindauer.criticalmaps.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+import timber.log.Timber;
+
+// Drives ServerSyncService's syncs on the main thread. The next sync is only scheduled once the
+// previous one finished, so a request hanging on a timeout never piles up with newer ones.
+// Intervals come from an IntervalSource and get a bit of jitter so devices of one ride don't
+// hit the server in lockstep. Failures back off exponentially, after FAILURES_TO_OPEN_CIRCUIT
+// in a row the circuit opens and only a single trial sync is made every OPEN_CIRCUIT_MILLIS
+// until one succeeds again. Regaining connectivity resets all of that and syncs right away.
+// requestSyncSoon() pulls the next sync forward for things the user is waiting on, like sent
+// chat messages, the regular cadence then continues from that sync. A sync that doesn't
+// report back within SYNC_TIMEOUT_MILLIS counts as failed, so a lost callback can't stall
+// the loop for good. Each sync reports back with its own id, so a hung sync finishing late
+// can't be taken for the one started after it.
+public class SyncLoop {
+
+    public interface Sync {
+        // has to end with a call to onSyncFinished() with syncId, on the main thread, also when
+        // it fails
+        void start(SyncLoop loop, long syncId);
+    }
+
+    public interface IntervalSource {
+        long nextIntervalMillis(long nowMillis);
+    }
+
+    // seam for tests, see MainThreadScheduler
+    interface Scheduler {
+        long now();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void cancel(Runnable runnable);
+    }
+
+    // spread of each interval in both directions
+    static final double JITTER = 0.2;
+    // riders of a ride usually regain connectivity together, e.g. leaving a tunnel
+    static final long RECONNECT_JITTER_MILLIS = 3 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 3 * 60 * 1000;
+    static final int FAILURES_TO_OPEN_CIRCUIT = 5;
+    static final long OPEN_CIRCUIT_MILLIS = 10 * 60 * 1000;
+    // messages typed in quick succession go out with the same request
+    static final long URGENT_COALESCE_MILLIS = 300;
+    // well beyond what OkHttp's connect, write and read timeouts add up to
+    static final long SYNC_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    private final Sync sync;
+    private final IntervalSource intervalSource;
+    private final Scheduler scheduler;
+    private final Random random;
+    private final Runnable startSyncRunnable = this::startSync;
+    private final Runnable syncTimeoutRunnable = this::onSyncTimedOut;
+
+    private boolean running;
+    private boolean inFlight;
+    private boolean urgentSyncRequested;
+    private long pendingAtMillis = -1;
+    private int consecutiveFailures;
+    private long lastStartMillis;
+    // drawn once per interval, so reschedules within the interval keep the same spread
+    private double jitterFactor = 1;
+
+    private long syncCount;
+    private long failureCount;
+    private long circuitOpenedCount;
+
+    public SyncLoop(Sync sync, IntervalSource intervalSource) {
+        this(sync, intervalSource, new MainThreadScheduler(), new Random());
+    }
+
+    SyncLoop(Sync sync, IntervalSource intervalSource, Scheduler scheduler, Random random) {
+        this.sync = sync;
+        this.intervalSource = intervalSource;
+        this.scheduler = scheduler;
+        this.random = random;
+    }
+
+    public void onConnected() {
+        running = true;
+        // a new network deserves a fresh chance
+        consecutiveFailures = 0;
+        if (!inFlight) {
+            schedule((long) (random.nextDouble() * RECONNECT_JITTER_MILLIS));
+        }
+    }
+
+    public void stop() {
+        running = false;
+        urgentSyncRequested = false;
+        pendingAtMillis = -1;
+        scheduler.cancel(startSyncRunnable);
+    }
+
+    // an open circuit still wins, users sending into a dead network can wait for the trial sync
+    public void requestSyncSoon() {
+        if (!running || isCircuitOpen()) {
+            return;
+        }
+        if (inFlight) {
+            // the running request may have been built before the message was queued
+            urgentSyncRequested = true;
+            return;
+        }
+        long now = scheduler.now();
+        if (pendingAtMillis < 0 || pendingAtMillis > now + URGENT_COALESCE_MILLIS) {
+            schedule(URGENT_COALESCE_MILLIS);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // moves the pending sync after the interval changed, backoff and open circuit stay as is
+    public void reschedule() {
+        if (!running || inFlight || consecutiveFailures > 0) {
+            return;
+        }
+        if (pendingAtMillis >= 0 && pendingAtMillis <= scheduler.now() + URGENT_COALESCE_MILLIS) {
+            // about to sync anyway, possibly on request
+            return;
+        }
+        long interval = (long) (intervalSource.nextIntervalMillis(scheduler.now()) * jitterFactor);
+        schedule(Math.max(0, lastStartMillis + interval - scheduler.now()));
+    }
+
+    // reports of a sync that already timed out are ignored, also once the next one started
+    public void onSyncFinished(long syncId, boolean success) {
+        if (!inFlight || syncId != syncCount) {
+            return;
+        }
+        inFlight = false;
+        scheduler.cancel(syncTimeoutRunnable);
+        if (success) {
+            consecutiveFailures = 0;
+        } else {
+            consecutiveFailures++;
+            failureCount++;
+            if (consecutiveFailures == FAILURES_TO_OPEN_CIRCUIT) {
+                circuitOpenedCount++;
+                Timber.d("%d syncs in a row failed, backing off for %d ms",
+                        consecutiveFailures, OPEN_CIRCUIT_MILLIS);
+            }
+        }
+        boolean urgent = urgentSyncRequested;
+        urgentSyncRequested = false;
+        if (!running) {
+            return;
+        }
+
+        long now = scheduler.now();
+        jitterFactor = 1 - JITTER + random.nextDouble() * 2 * JITTER;
+        long interval = (long) (intervalSource.nextIntervalMillis(now) * jitterFactor);
+        long delay;
+        if (urgent && !isCircuitOpen()) {
+            delay = URGENT_COALESCE_MILLIS;
+        } else if (consecutiveFailures == 0) {
+            delay = lastStartMillis + interval - now;
+        } else {
+            delay = backoffMillis(interval);
+        }
+        schedule(Math.max(0, delay));
+    }
+
+    public boolean isCircuitOpen() {
+        return consecutiveFailures >= FAILURES_TO_OPEN_CIRCUIT;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getCircuitOpenedCount() {
+        return circuitOpenedCount;
+    }
+
+    private long backoffMillis(long interval) {
+        if (isCircuitOpen()) {
+            return OPEN_CIRCUIT_MILLIS;
+        }
+        // doubles per failure, the shift is bounded by FAILURES_TO_OPEN_CIRCUIT
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, interval << consecutiveFailures);
+        // equal jitter, half fixed and half random
+        return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+
+    private void schedule(long delayMillis) {
+        scheduler.cancel(startSyncRunnable);
+        scheduler.postDelayed(startSyncRunnable, delayMillis);
+        pendingAtMillis = scheduler.now() + delayMillis;
+    }
+
+    private void startSync() {
+        pendingAtMillis = -1;
+        if (!running || inFlight) {
+            return;
+        }
+        inFlight = true;
+        syncCount++;
+        lastStartMillis = scheduler.now();
+        // stays scheduled across stop(), the loop can't start again until the sync is done
+        scheduler.postDelayed(syncTimeoutRunnable, SYNC_TIMEOUT_MILLIS);
+        sync.start(this, syncCount);
+    }
+
+    private void onSyncTimedOut() {
+        Timber.w("Sync didn't finish within %d ms", SYNC_TIMEOUT_MILLIS);
+        onSyncFinished(syncCount, false);
+    }
+
+    private static class MainThreadScheduler implements Scheduler {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            handler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+// Drop-in replacement for AsyncTask that runs on one of our dedicated pools instead of the
+// global serial executor. Callbacks other than doInBackground() run on the main thread.
+// Exactly one of onPostExecute(), onFailed() and onCancelled() is called once the task
+// was executed, so callers can rely on hearing back.
+public abstract class BackgroundTask<Progress, Result> {
+
+    private final TaskExecutors taskExecutors;
+    private final TaskPool pool;
+    private final TaskPriority priority;
+
+    private volatile boolean cancelled;
+    // only touched on the main thread, set once the result or failure was handed out
+    private boolean delivered;
+    private Future<?> future;
+
+    protected BackgroundTask(TaskExecutors taskExecutors, TaskPool pool) {
+        this(taskExecutors, pool, TaskPriority.NORMAL);
+    }
+
+    protected BackgroundTask(TaskExecutors taskExecutors, TaskPool pool, TaskPriority priority) {
+        this.taskExecutors = taskExecutors;
+        this.pool = pool;
+        this.priority = priority;
+    }
+
+    public final BackgroundTask<Progress, Result> execute() {
+        if (future != null) {
+            throw new IllegalStateException("Task can only be executed once");
+        }
+        onPreExecute();
+        future = taskExecutors.submit(pool, priority, this::runInBackground);
+        return this;
+    }
+
+    // false if it was cancelled before or already delivered its result
+    public final boolean cancel(boolean mayInterruptIfRunning) {
+        if (cancelled || delivered) {
+            return false;
+        }
+        cancelled = true;
+        boolean stopped = future == null
+                || taskExecutors.cancel(pool, future, mayInterruptIfRunning);
+        // a result that's already posted is dropped by deliver(), so this is the only callback
+        taskExecutors.mainThread().execute(this::onCancelled);
+        return stopped;
+    }
+
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+
+    protected void onPreExecute() {
+    }
+
+    protected abstract Result doInBackground();
+
+    protected void onProgressUpdate(Progress progress) {
+    }
+
+    protected void onPostExecute(Result result) {
+    }
+
+    // doInBackground() threw
+    protected void onFailed(RuntimeException e) {
+        Timber.e(e, "%s failed", getClass().getSimpleName());
+    }
+
+    protected void onCancelled() {
+    }
+
+    protected final void publishProgress(final Progress progress) {
+        if (cancelled) {
+            return;
+        }
+        taskExecutors.mainThread().execute(() -> {
+            if (!cancelled) {
+                onProgressUpdate(progress);
+            }
+        });
+    }
+
+    private void runInBackground() {
+        if (cancelled) {
+            return;
+        }
+        final Result result;
+        try {
+            result = doInBackground();
+        } catch (final RuntimeException e) {
+            taskExecutors.mainThread().execute(() -> {
+                if (deliver()) {
+                    onFailed(e);
+                }
+            });
+            return;
+        }
+        taskExecutors.mainThread().execute(() -> {
+            if (deliver()) {
+                onPostExecute(result);
+            }
+        });
+    }
+
+    // on the main thread, false if cancel() got there first and already posted onCancelled()
+    private boolean deliver() {
+        if (cancelled) {
+            return false;
+        }
+        delivered = true;
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+import java.util.Locale;
+
+public final class QueueWaitStats {
+    private final TaskPool pool;
+    private final long taskCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    QueueWaitStats(TaskPool pool, long taskCount, long totalWaitNanos, long maxWaitNanos) {
+        this.pool = pool;
+        this.taskCount = taskCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public TaskPool getPool() {
+        return pool;
+    }
+
+    public long getTaskCount() {
+        return taskCount;
+    }
+
+    public long getAverageWaitMillis() {
+        return taskCount == 0 ? 0 : totalWaitNanos / taskCount / 1_000_000L;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000L;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d tasks, avg wait %d ms, max wait %d ms",
+                pool, taskCount, getAverageWaitMillis(), getMaxWaitMillis());
+    }
+}
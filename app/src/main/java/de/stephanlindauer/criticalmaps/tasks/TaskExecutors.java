@@ -0,0 +1,155 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+import androidx.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+public class TaskExecutors {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Executor mainThreadExecutor;
+    private final EnumMap<TaskPool, ThreadPoolExecutor> executors = new EnumMap<>(TaskPool.class);
+    private final EnumMap<TaskPool, WaitRecorder> waitRecorders = new EnumMap<>(TaskPool.class);
+    // keeps FIFO order among tasks of the same priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    public TaskExecutors(Executor mainThreadExecutor) {
+        this.mainThreadExecutor = mainThreadExecutor;
+
+        for (TaskPool pool : TaskPool.values()) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    pool.threadCount, pool.threadCount,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(),
+                    new PoolThreadFactory(pool));
+            executor.allowCoreThreadTimeOut(true);
+            executors.put(pool, executor);
+            waitRecorders.put(pool, new WaitRecorder());
+        }
+    }
+
+    public Executor mainThread() {
+        return mainThreadExecutor;
+    }
+
+    public Future<?> submit(TaskPool pool, TaskPriority priority, Runnable runnable) {
+        PrioritizedTask task = new PrioritizedTask(
+                runnable, pool, priority, sequence.getAndIncrement(), System.nanoTime());
+        executors.get(pool).execute(task);
+        return task;
+    }
+
+    public boolean cancel(TaskPool pool, Future<?> future, boolean mayInterruptIfRunning) {
+        boolean cancelled = future.cancel(mayInterruptIfRunning);
+        if (cancelled && future instanceof Runnable) {
+            // drop it from the queue right away instead of waiting for a worker to skip it
+            executors.get(pool).remove((Runnable) future);
+        }
+        return cancelled;
+    }
+
+    public QueueWaitStats getQueueWaitStats(TaskPool pool) {
+        return waitRecorders.get(pool).snapshot(pool);
+    }
+
+    public int getQueuedTaskCount(TaskPool pool) {
+        return executors.get(pool).getQueue().size();
+    }
+
+    private void recordQueueWait(TaskPool pool, long waitNanos) {
+        waitRecorders.get(pool).record(waitNanos);
+    }
+
+    private static class WaitRecorder {
+        private long taskCount;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        synchronized void record(long waitNanos) {
+            taskCount++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        synchronized QueueWaitStats snapshot(TaskPool pool) {
+            return new QueueWaitStats(pool, taskCount, totalWaitNanos, maxWaitNanos);
+        }
+    }
+
+    private final class PrioritizedTask extends FutureTask<Void>
+            implements Comparable<PrioritizedTask> {
+        private final TaskPool pool;
+        private final TaskPriority priority;
+        private final long sequenceNumber;
+        private final long enqueuedAtNanos;
+
+        PrioritizedTask(Runnable runnable, TaskPool pool, TaskPriority priority,
+                        long sequenceNumber, long enqueuedAtNanos) {
+            super(runnable, null);
+            this.pool = pool;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+
+        @Override
+        public void run() {
+            if (!isCancelled()) {
+                recordQueueWait(pool, System.nanoTime() - enqueuedAtNanos);
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (Exception e) {
+                // FutureTask swallows exceptions, surface them at least in the log
+                Timber.e(e, "%s task failed", pool);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull PrioritizedTask other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final TaskPool pool;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        PoolThreadFactory(TaskPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format(Locale.US, "cm-%s-%d",
+                    pool.name().toLowerCase(Locale.US), threadNumber.getAndIncrement()));
+            thread.setPriority(pool.threadPriority);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+public enum TaskPool {
+    // latency critical server sync, never waits behind uploads or parsing
+    SYNC(1, Thread.NORM_PRIORITY),
+    // network and disk bound work like image uploads and the twitter feed
+    IO(3, Thread.NORM_PRIORITY - 1),
+    // image processing, gpx parsing and other number crunching
+    CPU(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)),
+            Thread.MIN_PRIORITY + 1);
+
+    final int threadCount;
+    final int threadPriority;
+
+    TaskPool(int threadCount, int threadPriority) {
+        this.threadCount = threadCount;
+        this.threadPriority = threadPriority;
+    }
+}
@@ -0,0 +1,8 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+public enum TaskPriority {
+    // declared in order of precedence, tasks with a lower ordinal are dequeued first
+    HIGH,
+    NORMAL,
+    LOW
+}
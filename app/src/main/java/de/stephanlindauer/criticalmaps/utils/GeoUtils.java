@@ -0,0 +1,18 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+// Distances between E6 coordinates using an equirectangular approximation, which is plenty for
+// the extent of a ride and a lot cheaper than haversine.
+public class GeoUtils {
+    private static final double METERS_PER_E6 = 0.1113194908D;
+
+    private GeoUtils() {
+    }
+
+    public static double distanceMeters(int latitudeE6, int longitudeE6,
+                                        int otherLatitudeE6, int otherLongitudeE6) {
+        double longitudeScale = Math.cos(Math.toRadians(latitudeE6 / 1E6D));
+        double dy = (double) (otherLatitudeE6 - latitudeE6);
+        double dx = (double) (otherLongitudeE6 - longitudeE6) * longitudeScale;
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_E6;
+    }
+}
@@ -1,28 +1,29 @@
 package de.stephanlindauer.criticalmaps.utils;
 
-import org.jetbrains.annotations.NotNull;
 import org.osmdroid.util.GeoPoint;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import javax.inject.Inject;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxPoi;
 import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
+// Reads tracks and waypoints in a single pass over the file, track points go straight into int
+// buffers, so memory follows the number of points and not the size of the document.
 public class GpxReader {
 
+    private static final String ELEMENT_GPX = "gpx";
     private static final String ELEMENT_TRK = "trk";
     private static final String ELEMENT_NAME = "name";
     private static final String ELEMENT_TRKSEG = "trkseg";
@@ -32,85 +33,242 @@ public class GpxReader {
     private static final String ELEMENT_ELE = "ele";
     private static final String ELEMENT_WPT = "wpt";
 
-    private final GpxModel gpxModel;
+    // how often progress is reported and cancellation checked
+    private static final int CALLBACK_INTERVAL_POINTS = 4096;
+
+    public interface Callback {
+        void onProgress(long bytesRead);
+
+        boolean isCancelled();
+    }
+
+    private static final Callback NO_CALLBACK = new Callback() {
+        @Override
+        public void onProgress(long bytesRead) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
 
     @Inject
-    public GpxReader(GpxModel gpxModel) {
-        this.gpxModel = gpxModel;
+    public GpxReader() {
+    }
+
+    public GpxModel readDataFromStream(InputStream gpxInputStream, String uri)
+            throws IOException {
+        return readDataFromStream(gpxInputStream, uri, NO_CALLBACK);
     }
 
-    public void readDataFromStream(InputStream gpxInputStream, String uri) throws IOException, SAXException, ParserConfigurationException {
-        gpxModel.clear();
-        readGpxFile(gpxInputStream);
+    // reads into a new model, so it's fine on any thread, throws CancellationException when the
+    // callback cancels
+    public GpxModel readDataFromStream(InputStream gpxInputStream, String uri, Callback callback)
+            throws IOException {
+        ParseState state = new ParseState(new CountingSource(Okio.source(gpxInputStream)),
+                callback);
+        readGpxFile(state);
+        GpxModel gpxModel = new GpxModel();
+        gpxModel.setTracks(state.tracks);
+        gpxModel.setPoiList(state.poiList);
         gpxModel.setUri(uri);
+        return gpxModel;
     }
 
-    private void readGpxFile(InputStream gpxInputStream) throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document gpxDocument = documentBuilder.parse(gpxInputStream);
-        Element gpxElement = gpxDocument.getDocumentElement();
-        readTracks(gpxElement);
-        readWaypoints(gpxElement);
+    private void readGpxFile(ParseState state) throws IOException {
+        XmlPullReader reader = state.reader;
+        if (!reader.nextChild(0) || !ELEMENT_GPX.equals(reader.getName())) {
+            throw new IOException("Not a gpx file");
+        }
+        while (reader.nextChild(1)) {
+            switch (reader.getName()) {
+                case ELEMENT_TRK:
+                    readTrack(state);
+                    break;
+                case ELEMENT_WPT:
+                    readWaypoint(state);
+                    break;
+                default:
+                    reader.skipElement();
+            }
+        }
+        state.checkCallback();
     }
 
-    private void readWaypoints(Element gpxElement) {
-        NodeList wptList = gpxElement.getElementsByTagName(ELEMENT_WPT);
-        for (int i = 0; i < wptList.getLength(); i++) {
-            Element wpt = (Element) wptList.item(i);
-            GeoPoint location = parsePoint(wpt);
-            String pointName = parseName(wpt);
-            gpxModel.getPoiList().add(new GpxPoi(pointName, location));
+    private void readWaypoint(ParseState state) throws IOException {
+        XmlPullReader reader = state.reader;
+        String lat = reader.getAttributeValue(ATTRIBUTE_LAT);
+        String lon = reader.getAttributeValue(ATTRIBUTE_LON);
+        String name = null;
+        String ele = null;
+        int depth = reader.getDepth();
+        while (reader.nextChild(depth)) {
+            switch (reader.getName()) {
+                case ELEMENT_NAME:
+                    name = reader.nextText();
+                    break;
+                case ELEMENT_ELE:
+                    ele = reader.nextText();
+                    break;
+                default:
+                    reader.skipElement();
+            }
+        }
+        if (lat == null || lon == null) {
+            return;
+        }
+        GeoPoint position = ele != null
+                ? new GeoPoint(parseDouble(lat), parseDouble(lon), parseDouble(ele))
+                : new GeoPoint(parseDouble(lat), parseDouble(lon));
+        state.poiList.add(new GpxPoi(name, position));
+    }
+
+    // all segments end up in one line, elevation isn't shown for tracks so it's skipped
+    private void readTrack(ParseState state) throws IOException {
+        XmlPullReader reader = state.reader;
+        String name = null;
+        state.pointCount = 0;
+        int trackDepth = reader.getDepth();
+        while (reader.nextChild(trackDepth)) {
+            if (ELEMENT_NAME.equals(reader.getName())) {
+                name = reader.nextText();
+            } else if (ELEMENT_TRKSEG.equals(reader.getName())) {
+                int segmentDepth = reader.getDepth();
+                while (reader.nextChild(segmentDepth)) {
+                    if (ELEMENT_TRKPT.equals(reader.getName())) {
+                        readTrackPoint(state);
+                    }
+                    reader.skipElement();
+                }
+            } else {
+                reader.skipElement();
+            }
         }
+        state.tracks.add(new GpxTrack(name, state.latitudesE6, state.longitudesE6,
+                state.pointCount));
     }
 
-    private void readTracks(Element gpxElement) {
-        NodeList trkList = gpxElement.getElementsByTagName(ELEMENT_TRK);
-        for (int i = 0; i < trkList.getLength(); i++) {
-            Element track = (Element) trkList.item(i);
-            List<GeoPoint> trackPoints = getTrackPoints(track);
-            String trackName = parseName(track);
-            gpxModel.getTracks().add(new GpxTrack(trackName, trackPoints));
+    private void readTrackPoint(ParseState state) throws IOException {
+        String lat = state.reader.getAttributeValue(ATTRIBUTE_LAT);
+        String lon = state.reader.getAttributeValue(ATTRIBUTE_LON);
+        if (lat == null || lon == null) {
+            return;
         }
+        state.addPoint(parseE6(lat), parseE6(lon));
     }
 
-    @NotNull
-    private List<GeoPoint> getTrackPoints(Element track) {
-        List<GeoPoint> trackPoints = new ArrayList<>();
-        NodeList trksegList = track.getElementsByTagName(ELEMENT_TRKSEG);
-        for (int j = 0; j < trksegList.getLength(); j++) {
-            Element trkseg = (Element) trksegList.item(j);
-            NodeList trkptList = trkseg.getElementsByTagName(ELEMENT_TRKPT);
-            for (int k = 0; k < trkptList.getLength(); k++) {
-                Element trkpt = (Element) trkptList.item(k);
-                trackPoints.add(parsePoint(trkpt));
+    // decimal degrees to E6 without going through a double for the usual plain notation,
+    // rounds half away from zero on the seventh decimal, anything else falls back to a double
+    static int parseE6(String value) throws IOException {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+        long result = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (decimals < 0) {
+                    if (++digits > 3) {
+                        return parseE6Slow(value);
+                    }
+                    result = result * 10 + (c - '0');
+                } else if (decimals < 6) {
+                    result = result * 10 + (c - '0');
+                    decimals++;
+                } else if (decimals == 6) {
+                    if (c >= '5') {
+                        result++;
+                    }
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return parseE6Slow(value);
             }
         }
-        return trackPoints;
+        if (digits == 0 && decimals <= 0) {
+            return parseE6Slow(value);
+        }
+        for (int d = Math.max(decimals, 0); d < 6; d++) {
+            result *= 10;
+        }
+        return (int) (negative ? -result : result);
+    }
+
+    private static int parseE6Slow(String value) throws IOException {
+        return (int) Math.round(parseDouble(value) * 1E6D);
     }
 
-    private String parseName(Element track) {
-        NodeList nameList = track.getElementsByTagName(ELEMENT_NAME);
-        if (nameList.getLength() > 0) {
-            return nameList.item(0).getTextContent();
+    private static double parseDouble(String value) throws IOException {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number " + value, e);
         }
-        return null;
     }
 
-    @NotNull
-    private GeoPoint parsePoint(Element point) {
-        GeoPoint newPoint;
-        double lat = Double.parseDouble(point.getAttributes().getNamedItem(ATTRIBUTE_LAT).getNodeValue());
-        double lon = Double.parseDouble(point.getAttributes().getNamedItem(ATTRIBUTE_LON).getNodeValue());
+    private static class ParseState {
+        final CountingSource countingSource;
+        final XmlPullReader reader;
+        final Callback callback;
+        final List<GpxTrack> tracks = new ArrayList<>();
+        final List<GpxPoi> poiList = new ArrayList<>();
+        // reused for every track, each GpxTrack copies out what it needs
+        int[] latitudesE6 = new int[1024];
+        int[] longitudesE6 = new int[1024];
+        int pointCount;
+        int pointsSinceCallback;
+
+        ParseState(CountingSource countingSource, Callback callback) {
+            this.countingSource = countingSource;
+            this.reader = new XmlPullReader(Okio.buffer(countingSource));
+            this.callback = callback;
+        }
+
+        void addPoint(int latitudeE6, int longitudeE6) {
+            if (pointCount == latitudesE6.length) {
+                latitudesE6 = Arrays.copyOf(latitudesE6, pointCount * 2);
+                longitudesE6 = Arrays.copyOf(longitudesE6, pointCount * 2);
+            }
+            latitudesE6[pointCount] = latitudeE6;
+            longitudesE6[pointCount] = longitudeE6;
+            pointCount++;
+            if (++pointsSinceCallback == CALLBACK_INTERVAL_POINTS) {
+                checkCallback();
+            }
+        }
 
-        NodeList eleList = point.getElementsByTagName(ELEMENT_ELE);
-        if (eleList.getLength() > 0) {
-            double ele = Double.parseDouble(eleList.item(0).getTextContent());
-            newPoint = new GeoPoint(lat, lon, ele);
-        } else {
-            newPoint = new GeoPoint(lat, lon);
+        void checkCallback() {
+            pointsSinceCallback = 0;
+            if (callback.isCancelled()) {
+                throw new CancellationException();
+            }
+            callback.onProgress(countingSource.byteCount);
         }
-        return newPoint;
     }
 
+    private static class CountingSource extends ForwardingSource {
+        long byteCount;
+
+        CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                this.byteCount += read;
+            }
+            return read;
+        }
+    }
 }
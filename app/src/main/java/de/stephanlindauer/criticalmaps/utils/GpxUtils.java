@@ -2,14 +2,122 @@ package de.stephanlindauer.criticalmaps.utils;
 
 import android.content.ContentResolver;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.ByteString;
+import timber.log.Timber;
 
 public class GpxUtils {
 
+    // DocumentsContract.Document.COLUMN_LAST_MODIFIED, which needs API 19
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    // GPX files start with their metadata and end with the last points, edits that keep the
+    // size almost always touch one of them
+    private static final int IDENTITY_BLOCK_SIZE = 64 * 1024;
+
     public static void persistPermissionOnFile(Intent data, ContentResolver contentResolver) {
         final int permissionFlags = data.getFlags() & Intent.FLAG_GRANT_READ_URI_PERMISSION;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && data.getData() != null) {
             contentResolver.takePersistableUriPermission(data.getData(), permissionFlags);
         }
     }
+
+    // what the file is called in the picker, the uri's last segment if the provider won't say
+    public static String displayName(ContentResolver contentResolver, Uri uri) {
+        try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameColumn = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (nameColumn != -1 && !cursor.isNull(nameColumn)) {
+                    return cursor.getString(nameColumn);
+                }
+            }
+        } catch (SecurityException e) {
+            Timber.d(e);
+        }
+        String lastPathSegment = uri.getLastPathSegment();
+        return lastPathSegment != null ? lastPathSegment : uri.toString();
+    }
+
+    // changes whenever the file's content does, size and modification time if the provider
+    // knows them, else the size and a hash of the first and last block of the file. Null for
+    // streams that can't seek, only hashing all of it while reading tells those apart, see
+    // contentIdentity(). Opens the file, so better not on the main thread.
+    @Nullable
+    public static String fileIdentity(ContentResolver contentResolver, Uri uri)
+            throws IOException {
+        try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int lastModifiedColumn = cursor.getColumnIndex(COLUMN_LAST_MODIFIED);
+                if (sizeColumn != -1 && lastModifiedColumn != -1
+                        && !cursor.isNull(sizeColumn) && !cursor.isNull(lastModifiedColumn)) {
+                    return cursor.getLong(sizeColumn) + "@" + cursor.getLong(lastModifiedColumn);
+                }
+            }
+        }
+
+        ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new IOException("Couldn't open " + uri);
+        }
+        try (FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+            long size = descriptor.getStatSize();
+            if (size < 0) {
+                // a pipe or socket
+                return null;
+            }
+            FileChannel channel = input.getChannel();
+            long headSize = Math.min(size, IDENTITY_BLOCK_SIZE);
+            long tailStart = Math.max(headSize, size - IDENTITY_BLOCK_SIZE);
+            ByteBuffer blocks = ByteBuffer.allocate((int) (headSize + size - tailStart));
+            readFully(channel, blocks, 0, headSize);
+            readFully(channel, blocks, tailStart, size - tailStart);
+            return "blocks:" + size + "@" + lastModified(descriptor) + ":"
+                    + ByteString.of(blocks.array()).sha1().hex();
+        }
+    }
+
+    // for files fileIdentity() can't tell apart, sha1 is the hash of the whole content
+    public static String contentIdentity(ByteString sha1) {
+        return "sha1:" + sha1.hex();
+    }
+
+    // 0 where stat() isn't available
+    private static long lastModified(ParcelFileDescriptor descriptor) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+        try {
+            return Os.fstat(descriptor.getFileDescriptor()).st_mtime;
+        } catch (ErrnoException e) {
+            Timber.d(e);
+            return 0;
+        }
+    }
+
+    // appends byteCount bytes starting at position in the file to buffer
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position,
+                                  long byteCount) throws IOException {
+        buffer.limit(buffer.position() + (int) byteCount);
+        while (buffer.hasRemaining()) {
+            long offset = byteCount - buffer.remaining();
+            if (channel.read(buffer, position + offset) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.GzipSink;
+import okio.Okio;
+import timber.log.Timber;
+
+// Gzips text and JSON request bodies, responses are already compressed transparently by OkHttp.
+// Only hosts that advertised gzip with an Accept-Encoding header on one of their responses
+// (RFC 7694) get compressed bodies, everything before that goes out as is. Bodies are only sent
+// compressed if that actually makes them smaller. A host that can't read a compressed request,
+// answering 415 or 400, gets it again uncompressed and no compressed ones after. Other errors
+// are passed on as they are, retrying those is up to the caller.
+public class GzipRequestInterceptor implements Interceptor {
+
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private final Set<String> hostsAcceptingGzip =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> hostsRejectingGzip =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String host = request.url().host();
+        RequestBody body = request.body();
+        if (body == null
+                || request.header("Content-Encoding") != null
+                || !isCompressible(body.contentType())
+                || !hostsAcceptingGzip.contains(host)
+                || hostsRejectingGzip.contains(host)) {
+            return rememberAcceptEncoding(host, chain.proceed(request));
+        }
+
+        Buffer raw = new Buffer();
+        body.writeTo(raw);
+        ByteString rawBytes = raw.readByteString();
+        ByteString compressedBytes = gzip(rawBytes);
+
+        Request uncompressedRequest = request.newBuilder()
+                .method(request.method(), RequestBody.create(body.contentType(), rawBytes))
+                .build();
+        if (compressedBytes.size() >= rawBytes.size()) {
+            return rememberAcceptEncoding(host, chain.proceed(uncompressedRequest));
+        }
+
+        Request compressedRequest = request.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(request.method(), RequestBody.create(body.contentType(), compressedBytes))
+                .build();
+        Response response = chain.proceed(compressedRequest);
+        // 400 from servers that took the gzip bytes for a malformed body
+        if (response.code() != HTTP_UNSUPPORTED_MEDIA_TYPE
+                && response.code() != HTTP_BAD_REQUEST) {
+            return response;
+        }
+
+        Timber.d("%s answered a compressed request with %d, not compressing anymore",
+                host, response.code());
+        hostsRejectingGzip.add(host);
+        response.close();
+        return chain.proceed(uncompressedRequest);
+    }
+
+    private Response rememberAcceptEncoding(String host, Response response) {
+        String acceptEncoding = response.header("Accept-Encoding");
+        if (acceptEncoding != null && acceptsGzip(acceptEncoding)) {
+            hostsAcceptingGzip.add(host);
+        }
+        return response;
+    }
+
+    // e.g. "gzip, deflate" or "identity, gzip;q=0.5", q=0 rules it out
+    static boolean acceptsGzip(String acceptEncoding) {
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                if (parameters[i].replace(" ", "").matches("q=0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(MediaType contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String subtype = contentType.subtype();
+        return contentType.type().equals("text")
+                || subtype.equals("json") || subtype.endsWith("+json")
+                || subtype.equals("xml") || subtype.endsWith("+xml");
+    }
+
+    private static ByteString gzip(ByteString bytes) throws IOException {
+        Buffer compressed = new Buffer();
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(compressed));
+        gzipSink.write(bytes);
+        gzipSink.close();
+        return compressed.readByteString();
+    }
+}
@@ -0,0 +1,424 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Options;
+
+// Minimal pull based JSON reader working directly on an okio source. Only supports what our
+// endpoints need, but doesn't allocate for names matched via selectName(), skipped values or
+// numbers, which makes up most of a sync response.
+public class JsonPullReader implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT
+    }
+
+    private static final ByteString QUOTE_OR_BACKSLASH = ByteString.encodeUtf8("\"\\");
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final BufferedSource source;
+    private final Buffer buffer;
+
+    private int[] scopes = new int[16];
+    private int depth = 1;
+
+    public JsonPullReader(BufferedSource source) {
+        this.source = source;
+        this.buffer = source.buffer();
+        scopes[0] = EMPTY_DOCUMENT;
+    }
+
+    // names have to be passed including their quotes, i.e. "\"locations\""
+    public static Options names(String... names) {
+        ByteString[] quoted = new ByteString[names.length];
+        for (int i = 0; i < names.length; i++) {
+            quoted[i] = ByteString.encodeUtf8("\"" + names[i] + "\"");
+        }
+        return Options.of(quoted);
+    }
+
+    public void beginObject() throws IOException {
+        consumeValuePrefix();
+        expect('{');
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect('}');
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        consumeValuePrefix();
+        expect('[');
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(']');
+        depth--;
+    }
+
+    public boolean hasNext() throws IOException {
+        int c = peekNonWhitespace();
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    public Token peek() throws IOException {
+        int scope = scopes[depth - 1];
+        int c = peekNonWhitespace();
+        if (c == ',' && (scope == NONEMPTY_ARRAY || scope == NONEMPTY_OBJECT)) {
+            buffer.readByte();
+            c = peekNonWhitespace();
+            pushBack(scope);
+        }
+        switch (c) {
+            case -1:
+                return Token.END_DOCUMENT;
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '}':
+                return Token.END_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case ']':
+                return Token.END_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                return Token.NUMBER;
+        }
+    }
+
+    public String nextName() throws IOException {
+        consumeNamePrefix();
+        String name = readQuotedString();
+        consumeNameSuffix();
+        return name;
+    }
+
+    // returns the index of the matching name in options or -1 if it isn't one of them
+    public int selectName(Options options) throws IOException {
+        consumeNamePrefix();
+        int index = source.select(options);
+        if (index == -1) {
+            skipQuotedString();
+        }
+        consumeNameSuffix();
+        return index;
+    }
+
+    public String nextString() throws IOException {
+        consumeValuePrefix();
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            return readQuotedString();
+        }
+        // be lenient and hand out numbers and literals as strings
+        return readLiteral();
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw new IOException("Expected an int but was " + value + " at " + getPath());
+        }
+        return (int) value;
+    }
+
+    // also accepts integers wrapped in a string, which is how coordinates are sent
+    public long nextLong() throws IOException {
+        consumeValuePrefix();
+        int c = peekNonWhitespace();
+        boolean quoted = c == '"';
+        if (quoted) {
+            buffer.readByte();
+        }
+
+        boolean negative = false;
+        if (peekByte() == '-') {
+            negative = true;
+            buffer.readByte();
+        }
+
+        long value = 0;
+        int digits = 0;
+        while (true) {
+            int b = peekByte();
+            if (b < '0' || b > '9') {
+                break;
+            }
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                throw new IOException("Number too large at " + getPath());
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+            buffer.readByte();
+        }
+
+        if (digits == 0) {
+            throw new IOException("Expected a number at " + getPath());
+        }
+        if (quoted) {
+            expectImmediate('"');
+        } else if (!isLiteralEnd(peekByte())) {
+            throw new IOException("Expected an integer at " + getPath());
+        }
+        return negative ? -value : value;
+    }
+
+    public void skipValue() throws IOException {
+        consumeValuePrefix();
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            skipQuotedString();
+        } else if (c == '{' || c == '[') {
+            skipNested();
+        } else if (c == -1) {
+            throw new EOFException("Unexpected end of input at " + getPath());
+        } else {
+            while (!isLiteralEnd(peekByte())) {
+                buffer.readByte();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private void skipNested() throws IOException {
+        int nesting = 0;
+        do {
+            if (!source.request(1)) {
+                throw new EOFException("Unterminated value at " + getPath());
+            }
+            byte b = buffer.readByte();
+            if (b == '"') {
+                skipQuotedStringBody();
+            } else if (b == '{' || b == '[') {
+                nesting++;
+            } else if (b == '}' || b == ']') {
+                nesting--;
+            }
+        } while (nesting > 0);
+    }
+
+    private void consumeNamePrefix() throws IOException {
+        int scope = scopes[depth - 1];
+        if (scope == NONEMPTY_OBJECT) {
+            expect(',');
+        } else if (scope != EMPTY_OBJECT) {
+            throw new IOException("Expected a name at " + getPath());
+        }
+        peekNonWhitespace();
+        scopes[depth - 1] = DANGLING_NAME;
+    }
+
+    private void consumeNameSuffix() throws IOException {
+        expect(':');
+    }
+
+    private void consumeValuePrefix() throws IOException {
+        int scope = scopes[depth - 1];
+        switch (scope) {
+            case DANGLING_NAME:
+                scopes[depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_ARRAY:
+                scopes[depth - 1] = NONEMPTY_ARRAY;
+                break;
+            case NONEMPTY_ARRAY:
+                expect(',');
+                break;
+            case EMPTY_DOCUMENT:
+                scopes[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                throw new IOException("Expected a value at " + getPath());
+        }
+    }
+
+    private String readQuotedString() throws IOException {
+        expect('"');
+        StringBuilder builder = null;
+        while (true) {
+            long index = source.indexOfElement(QUOTE_OR_BACKSLASH);
+            if (index == -1) {
+                throw new EOFException("Unterminated string at " + getPath());
+            }
+            if (buffer.getByte(index) == '\\') {
+                if (builder == null) {
+                    builder = new StringBuilder();
+                }
+                builder.append(buffer.readUtf8(index));
+                buffer.readByte();
+                builder.append(readEscapeCharacter());
+                continue;
+            }
+            String part = buffer.readUtf8(index);
+            buffer.readByte();
+            if (builder == null) {
+                return part;
+            }
+            return builder.append(part).toString();
+        }
+    }
+
+    private void skipQuotedString() throws IOException {
+        expect('"');
+        skipQuotedStringBody();
+    }
+
+    private void skipQuotedStringBody() throws IOException {
+        while (true) {
+            long index = source.indexOfElement(QUOTE_OR_BACKSLASH);
+            if (index == -1) {
+                throw new EOFException("Unterminated string at " + getPath());
+            }
+            boolean escape = buffer.getByte(index) == '\\';
+            // for escapes also skip the escaped character, \\uXXXX digits are harmless
+            source.skip(index + (escape ? 2 : 1));
+            if (!escape) {
+                return;
+            }
+        }
+    }
+
+    private char readEscapeCharacter() throws IOException {
+        if (!source.request(1)) {
+            throw new EOFException("Unterminated escape sequence at " + getPath());
+        }
+        byte escaped = buffer.readByte();
+        switch (escaped) {
+            case 'u':
+                source.require(4);
+                char result = 0;
+                for (int i = 0; i < 4; i++) {
+                    byte c = buffer.readByte();
+                    result <<= 4;
+                    if (c >= '0' && c <= '9') {
+                        result += (c - '0');
+                    } else if (c >= 'a' && c <= 'f') {
+                        result += (c - 'a' + 10);
+                    } else if (c >= 'A' && c <= 'F') {
+                        result += (c - 'A' + 10);
+                    } else {
+                        throw new IOException("Malformed \\u escape at " + getPath());
+                    }
+                }
+                return result;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                return (char) escaped;
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (!isLiteralEnd(peekByte())) {
+            builder.append((char) buffer.readByte());
+        }
+        if (builder.length() == 0) {
+            throw new IOException("Expected a value at " + getPath());
+        }
+        return builder.toString();
+    }
+
+    private static boolean isLiteralEnd(int b) {
+        switch (b) {
+            case -1:
+            case ',':
+            case '}':
+            case ']':
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+            case ':':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peekNonWhitespace();
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' but was "
+                    + (c == -1 ? "end of input" : "'" + (char) c + "'") + " at " + getPath());
+        }
+        buffer.readByte();
+    }
+
+    private void expectImmediate(char expected) throws IOException {
+        if (peekByte() != expected) {
+            throw new IOException("Expected '" + expected + "' at " + getPath());
+        }
+        buffer.readByte();
+    }
+
+    private int peekByte() throws IOException {
+        if (!source.request(1)) {
+            return -1;
+        }
+        return buffer.getByte(0);
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (source.request(1)) {
+            byte b = buffer.getByte(0);
+            if (b == ' ' || b == '\n' || b == '\t' || b == '\r') {
+                buffer.readByte();
+            } else {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    private void push(int scope) {
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        }
+        scopes[depth++] = scope;
+    }
+
+    // peek() consumed a separating comma, so the next read must not expect it again
+    private void pushBack(int scope) {
+        scopes[depth - 1] = scope == NONEMPTY_ARRAY ? EMPTY_ARRAY : EMPTY_OBJECT;
+    }
+
+    private String getPath() {
+        return "depth " + (depth - 1);
+    }
+}
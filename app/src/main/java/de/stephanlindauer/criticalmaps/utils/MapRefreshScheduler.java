@@ -0,0 +1,105 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import android.view.Choreographer;
+
+// Collects refresh requests for the map's layers and runs at most one refresh per frame.
+// Bursts of location fixes and server responses within a frame are merged into one rebuild of
+// every layer that was marked dirty in the meantime.
+public class MapRefreshScheduler {
+
+    public static final int LAYER_RIDERS = 1;
+    public static final int LAYER_OWN_LOCATION = 1 << 1;
+
+    public interface Refresher {
+        void refresh(int dirtyLayers);
+    }
+
+    // seam for tests, the app uses the Choreographer
+    interface FrameSource {
+        void postFrame(Runnable frame);
+
+        void removeFrame(Runnable frame);
+    }
+
+    private final Refresher refresher;
+    private final FrameSource frameSource;
+    private final Runnable onFrame = new Runnable() {
+        @Override
+        public void run() {
+            isFramePending = false;
+            int layers = dirtyLayers;
+            dirtyLayers = 0;
+            executedRefreshCount++;
+            refresher.refresh(layers);
+        }
+    };
+
+    private int dirtyLayers;
+    private boolean isFramePending;
+    private long executedRefreshCount;
+    private long coalescedRefreshCount;
+
+    public MapRefreshScheduler(Refresher refresher) {
+        this(refresher, new ChoreographerFrameSource());
+    }
+
+    MapRefreshScheduler(Refresher refresher, FrameSource frameSource) {
+        this.refresher = refresher;
+        this.frameSource = frameSource;
+    }
+
+    // main thread only
+    public void markDirty(int layers) {
+        dirtyLayers |= layers;
+        if (isFramePending) {
+            coalescedRefreshCount++;
+            return;
+        }
+        isFramePending = true;
+        frameSource.postFrame(onFrame);
+    }
+
+    // drops pending refreshes, e.g. when the map goes away
+    public void cancel() {
+        if (isFramePending) {
+            frameSource.removeFrame(onFrame);
+            isFramePending = false;
+        }
+        dirtyLayers = 0;
+    }
+
+    public long getExecutedRefreshCount() {
+        return executedRefreshCount;
+    }
+
+    public long getCoalescedRefreshCount() {
+        return coalescedRefreshCount;
+    }
+
+    private static class ChoreographerFrameSource implements FrameSource {
+        private Runnable frame;
+        private final Choreographer.FrameCallback frameCallback =
+                new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        Runnable pendingFrame = frame;
+                        frame = null;
+                        if (pendingFrame != null) {
+                            pendingFrame.run();
+                        }
+                    }
+                };
+
+        @Override
+        public void postFrame(Runnable frame) {
+            this.frame = frame;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+
+        @Override
+        public void removeFrame(Runnable frame) {
+            this.frame = null;
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+// Normalized web mercator, (0, 0) is the top left and (1, 1) the bottom right corner of the
+// world. Multiplying by the map size at a zoom level gives osmdroid's pixel coordinates.
+public class MercatorUtils {
+    private static final double MAX_LATITUDE = 85.05112877980659D;
+
+    private MercatorUtils() {
+    }
+
+    public static double x(double longitude) {
+        return (longitude + 180D) / 360D;
+    }
+
+    public static double y(double latitude) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sin = Math.sin(Math.toRadians(clamped));
+        return 0.5D - Math.log((1D + sin) / (1D - sin)) / (4D * Math.PI);
+    }
+
+    public static double longitude(double x) {
+        return x * 360D - 180D;
+    }
+
+    public static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1D - 2D * y))));
+    }
+}
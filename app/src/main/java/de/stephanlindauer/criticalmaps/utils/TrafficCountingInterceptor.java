@@ -0,0 +1,91 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import java.io.IOException;
+
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+// Counts request and response body bytes per endpoint into NetworkTrafficModel. Registered
+// twice: as application interceptor in front of GzipRequestInterceptor it sees raw bodies, as
+// network interceptor it sees what actually goes over the wire.
+public class TrafficCountingInterceptor implements Interceptor {
+
+    private final NetworkTrafficModel networkTrafficModel;
+    private final boolean wire;
+
+    public TrafficCountingInterceptor(NetworkTrafficModel networkTrafficModel, boolean wire) {
+        this.networkTrafficModel = networkTrafficModel;
+        this.wire = wire;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        HttpUrl url = request.url();
+        if (!wire) {
+            networkTrafficModel.addCall(url);
+        }
+        RequestBody requestBody = request.body();
+        if (requestBody != null && requestBody.contentLength() > 0) {
+            networkTrafficModel.addRequestBytes(url, requestBody.contentLength(), wire);
+        }
+
+        Response response = chain.proceed(request);
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return response;
+        }
+        return response.newBuilder()
+                .body(new CountingResponseBody(responseBody, url))
+                .build();
+    }
+
+    // bytes are counted as they're read, bodies that are never consumed don't cost anything
+    private class CountingResponseBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final HttpUrl url;
+        private BufferedSource source;
+
+        CountingResponseBody(ResponseBody delegate, HttpUrl url) {
+            this.delegate = delegate;
+            this.url = url;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        long read = super.read(sink, byteCount);
+                        if (read > 0) {
+                            networkTrafficModel.addResponseBytes(url, read, wire);
+                        }
+                        return read;
+                    }
+                });
+            }
+            return source;
+        }
+    }
+}
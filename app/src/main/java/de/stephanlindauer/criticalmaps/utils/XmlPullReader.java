@@ -0,0 +1,385 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+// Minimal pull based XML reader working directly on an okio source, enough for GPX files.
+// Text is skipped unless asked for with nextText(), comments, processing instructions and the
+// doctype are skipped, namespace prefixes are dropped from element names. Element and attribute
+// names are cached, so the same tags over and over don't allocate new strings.
+public class XmlPullReader implements Closeable {
+
+    public static final int START_TAG = 1;
+    public static final int END_TAG = 2;
+    public static final int END_DOCUMENT = 3;
+
+    private static final ByteString NAME_END = ByteString.encodeUtf8(" \t\r\n/>=");
+    private static final ByteString COMMENT_START = ByteString.encodeUtf8("!--");
+    private static final ByteString COMMENT_END = ByteString.encodeUtf8("-->");
+    private static final ByteString CDATA_START = ByteString.encodeUtf8("![CDATA[");
+    private static final ByteString CDATA_END = ByteString.encodeUtf8("]]>");
+    private static final ByteString PROCESSING_INSTRUCTION_END = ByteString.encodeUtf8("?>");
+    private static final int NAME_CACHE_SIZE = 32;
+
+    private final BufferedSource source;
+    private final Buffer buffer;
+
+    private int depth;
+    private String name;
+    // the end tag of a self closing element still has to be reported
+    private boolean pendingEndTag;
+
+    private int attributeCount;
+    private String[] attributeNames = new String[8];
+    private String[] attributeValues = new String[8];
+
+    private final ByteString[] cachedNameBytes = new ByteString[NAME_CACHE_SIZE];
+    private final String[] cachedNames = new String[NAME_CACHE_SIZE];
+    private int nextCacheSlot;
+
+    public XmlPullReader(BufferedSource source) {
+        this.source = source;
+        this.buffer = source.buffer();
+    }
+
+    // the next start or end tag, everything in between is skipped
+    public int next() throws IOException {
+        attributeCount = 0;
+        if (pendingEndTag) {
+            pendingEndTag = false;
+            depth--;
+            return END_TAG;
+        }
+        while (true) {
+            long tagStart = source.indexOf((byte) '<');
+            if (tagStart == -1) {
+                if (depth > 0) {
+                    throw new EOFException("Unclosed element " + name);
+                }
+                return END_DOCUMENT;
+            }
+            source.skip(tagStart + 1);
+            if (readMarkup()) {
+                continue;
+            }
+            if (peekByte() == '/') {
+                buffer.readByte();
+                name = readName();
+                skipPast((byte) '>');
+                depth--;
+                return END_TAG;
+            }
+            name = readName();
+            readAttributes();
+            depth++;
+            return START_TAG;
+        }
+    }
+
+    // advances to the next element directly inside the one at parentDepth, skipping anything
+    // nested deeper, false once parentDepth's end tag is consumed
+    public boolean nextChild(int parentDepth) throws IOException {
+        while (true) {
+            int event = next();
+            if (event == START_TAG) {
+                if (depth == parentDepth + 1) {
+                    return true;
+                }
+                skipElement();
+            } else if (event == END_TAG) {
+                if (depth < parentDepth) {
+                    return false;
+                }
+            } else {
+                throw new EOFException("Unexpected end of document");
+            }
+        }
+    }
+
+    // call right after START_TAG, skips everything up to and including the matching end tag
+    public void skipElement() throws IOException {
+        int parentDepth = depth - 1;
+        while (depth > parentDepth) {
+            if (next() == END_DOCUMENT) {
+                throw new EOFException("Unexpected end of document");
+            }
+        }
+    }
+
+    // call right after START_TAG for an element with only text, consumes its end tag
+    public String nextText() throws IOException {
+        if (pendingEndTag) {
+            next();
+            return "";
+        }
+        StringBuilder text = null;
+        String chunk = "";
+        while (true) {
+            long tagStart = source.indexOf((byte) '<');
+            if (tagStart == -1) {
+                throw new EOFException("Unclosed element " + name);
+            }
+            String part = decodeEntities(source.readUtf8(tagStart));
+            source.skip(1);
+            if (rangeEquals(CDATA_START)) {
+                source.skip(CDATA_START.size());
+                part += readUntil(CDATA_END);
+            } else if (readMarkup()) {
+                // comment or processing instruction inside the text
+            } else if (peekByte() == '/') {
+                buffer.readByte();
+                readName();
+                skipPast((byte) '>');
+                depth--;
+                attributeCount = 0;
+                chunk = text == null ? chunk + part : text.append(part).toString();
+                return chunk.trim();
+            } else {
+                throw new IOException("Unexpected element inside the text of " + name);
+            }
+            if (text == null) {
+                text = new StringBuilder(chunk);
+            }
+            text.append(part);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    // without namespace prefix
+    public String getName() {
+        return name;
+    }
+
+    @Nullable
+    public String getAttributeValue(String attributeName) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (attributeNames[i].equals(attributeName)) {
+                return attributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    // skips comments, CDATA, processing instructions and the doctype after a '<', returns false
+    // if a tag follows instead
+    private boolean readMarkup() throws IOException {
+        int c = peekByte();
+        if (c == '?') {
+            readUntil(PROCESSING_INSTRUCTION_END);
+            return true;
+        }
+        if (c != '!') {
+            return false;
+        }
+        if (rangeEquals(COMMENT_START)) {
+            source.skip(COMMENT_START.size());
+            readUntil(COMMENT_END);
+        } else if (rangeEquals(CDATA_START)) {
+            source.skip(CDATA_START.size());
+            readUntil(CDATA_END);
+        } else {
+            skipDoctype();
+        }
+        return true;
+    }
+
+    private void skipDoctype() throws IOException {
+        int nesting = 0;
+        while (true) {
+            if (!source.request(1)) {
+                throw new EOFException("Unterminated doctype");
+            }
+            byte b = buffer.readByte();
+            if (b == '[') {
+                nesting++;
+            } else if (b == ']') {
+                nesting--;
+            } else if (b == '>' && nesting <= 0) {
+                return;
+            }
+        }
+    }
+
+    private void readAttributes() throws IOException {
+        while (true) {
+            skipWhitespace();
+            int c = peekByte();
+            if (c == '>') {
+                buffer.readByte();
+                return;
+            }
+            if (c == '/') {
+                skipPast((byte) '>');
+                pendingEndTag = true;
+                return;
+            }
+            if (c == -1) {
+                throw new EOFException("Unterminated tag " + name);
+            }
+            String attributeName = readName();
+            skipWhitespace();
+            if (peekByte() != '=') {
+                throw new IOException("Expected '=' after " + attributeName + " in " + name);
+            }
+            buffer.readByte();
+            skipWhitespace();
+            int quote = peekByte();
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("Expected a quoted value for " + attributeName);
+            }
+            buffer.readByte();
+            long valueEnd = source.indexOf((byte) quote);
+            if (valueEnd == -1) {
+                throw new EOFException("Unterminated value for " + attributeName);
+            }
+            String value = decodeEntities(source.readUtf8(valueEnd));
+            buffer.readByte();
+            addAttribute(attributeName, value);
+        }
+    }
+
+    private void addAttribute(String attributeName, String value) {
+        if (attributeCount == attributeNames.length) {
+            attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+            attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+        }
+        attributeNames[attributeCount] = attributeName;
+        attributeValues[attributeCount] = value;
+        attributeCount++;
+    }
+
+    private String readName() throws IOException {
+        long nameEnd = source.indexOfElement(NAME_END);
+        if (nameEnd <= 0) {
+            throw new EOFException("Expected a name");
+        }
+        String qualifiedName = null;
+        for (int i = 0; i < NAME_CACHE_SIZE; i++) {
+            ByteString cached = cachedNameBytes[i];
+            if (cached != null && cached.size() == nameEnd && source.rangeEquals(0, cached)) {
+                qualifiedName = cachedNames[i];
+                break;
+            }
+        }
+        if (qualifiedName == null) {
+            ByteString bytes = source.readByteString(nameEnd);
+            int prefixEnd = bytes.lastIndexOf(ByteString.encodeUtf8(":"));
+            qualifiedName = bytes.substring(prefixEnd + 1).utf8();
+            cachedNameBytes[nextCacheSlot] = bytes;
+            cachedNames[nextCacheSlot] = qualifiedName;
+            nextCacheSlot = (nextCacheSlot + 1) % NAME_CACHE_SIZE;
+        } else {
+            source.skip(nameEnd);
+        }
+        return qualifiedName;
+    }
+
+    private String readUntil(ByteString end) throws IOException {
+        long index = source.indexOf(end);
+        if (index == -1) {
+            throw new EOFException("Expected " + end.utf8());
+        }
+        String content = source.readUtf8(index);
+        source.skip(end.size());
+        return content;
+    }
+
+    private void skipPast(byte b) throws IOException {
+        long index = source.indexOf(b);
+        if (index == -1) {
+            throw new EOFException("Expected " + (char) b);
+        }
+        source.skip(index + 1);
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (source.request(1)) {
+            byte b = buffer.getByte(0);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;
+            }
+            buffer.readByte();
+        }
+    }
+
+    private boolean rangeEquals(ByteString bytes) throws IOException {
+        return source.rangeEquals(0, bytes);
+    }
+
+    private int peekByte() throws IOException {
+        return source.request(1) ? buffer.getByte(0) : -1;
+    }
+
+    private static String decodeEntities(String text) {
+        int ampersand = text.indexOf('&');
+        if (ampersand == -1) {
+            return text;
+        }
+        StringBuilder decoded = new StringBuilder(text.length());
+        int position = 0;
+        while (ampersand != -1) {
+            int semicolon = text.indexOf(';', ampersand);
+            if (semicolon == -1) {
+                break;
+            }
+            decoded.append(text, position, ampersand);
+            String entity = text.substring(ampersand + 1, semicolon);
+            switch (entity) {
+                case "amp":
+                    decoded.append('&');
+                    break;
+                case "lt":
+                    decoded.append('<');
+                    break;
+                case "gt":
+                    decoded.append('>');
+                    break;
+                case "quot":
+                    decoded.append('"');
+                    break;
+                case "apos":
+                    decoded.append('\'');
+                    break;
+                default:
+                    appendCharacterReference(decoded, entity);
+            }
+            position = semicolon + 1;
+            ampersand = text.indexOf('&', position);
+        }
+        decoded.append(text, position, text.length());
+        return decoded.toString();
+    }
+
+    private static void appendCharacterReference(StringBuilder decoded, String entity) {
+        try {
+            if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                decoded.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                return;
+            }
+            if (entity.startsWith("#")) {
+                decoded.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through and keep it as it was
+        }
+        // unknown entity, keep it as it was
+        decoded.append('&').append(entity).append(';');
+    }
+}
@@ -0,0 +1,55 @@
+package de.stephanlindauer.criticalmaps.adapter;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ChatMessageDiffCallbackTest {
+
+    private final ChatMessageDiffCallback tested = new ChatMessageDiffCallback();
+
+    @Test
+    public void sameIdentifierAndContent_notChanged() {
+        final ReceivedChatMessage oldMessage = new ReceivedChatMessage("a", "hi", new Date(1000));
+        final ReceivedChatMessage newMessage = new ReceivedChatMessage("a", "hi", new Date(1000));
+
+        assertThat(tested.areItemsTheSame(oldMessage, newMessage)).isTrue();
+        assertThat(tested.areContentsTheSame(oldMessage, newMessage)).isTrue();
+    }
+
+    @Test
+    public void acknowledgedOutgoingMessage_onlyTimeLabelRebound() {
+        final OutgoingChatMessage outgoing = new OutgoingChatMessage("hi");
+        final ReceivedChatMessage received =
+                new ReceivedChatMessage(outgoing.getIdentifier(), "hi", new Date());
+
+        assertThat(tested.areItemsTheSame(outgoing, received)).isTrue();
+        assertThat(tested.areContentsTheSame(outgoing, received)).isFalse();
+        assertThat(tested.getChangePayload(outgoing, received))
+                .isSameInstanceAs(ListDiffing.PAYLOAD_TIME_LABEL);
+    }
+
+    @Test
+    public void changedText_fullRebind() {
+        final ReceivedChatMessage oldMessage = new ReceivedChatMessage("a", "hi", new Date(1000));
+        final ReceivedChatMessage newMessage = new ReceivedChatMessage("a", "ho", new Date(1000));
+
+        assertThat(tested.areContentsTheSame(oldMessage, newMessage)).isFalse();
+        assertThat(tested.getChangePayload(oldMessage, newMessage)).isNull();
+    }
+
+    @Test
+    public void differentIdentifiers_differentItemsAndStableIds() {
+        final ReceivedChatMessage one = new ReceivedChatMessage("a", "hi", new Date(1000));
+        final ReceivedChatMessage other = new ReceivedChatMessage("b", "hi", new Date(1000));
+
+        assertThat(tested.areItemsTheSame(one, other)).isFalse();
+        assertThat(ListDiffing.stableId("a")).isNotEqualTo(ListDiffing.stableId("b"));
+        assertThat(ListDiffing.stableId("a")).isEqualTo(ListDiffing.stableId("a"));
+    }
+}
@@ -0,0 +1,52 @@
+package de.stephanlindauer.criticalmaps.adapter;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import de.stephanlindauer.criticalmaps.model.twitter.Tweet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TweetDiffCallbackTest {
+
+    private final TweetDiffCallback tested = new TweetDiffCallback();
+
+    @Test
+    public void refreshedTweet_notChanged() {
+        final Tweet oldTweet = tweet("1", "Critical Mass tonight", 1000);
+        final Tweet newTweet = tweet("1", "Critical Mass tonight", 1000);
+
+        assertThat(tested.areItemsTheSame(oldTweet, newTweet)).isTrue();
+        assertThat(tested.areContentsTheSame(oldTweet, newTweet)).isTrue();
+    }
+
+    @Test
+    public void onlyTimestampChanged_timeLabelPayload() {
+        final Tweet oldTweet = tweet("1", "Critical Mass tonight", 1000);
+        final Tweet newTweet = tweet("1", "Critical Mass tonight", 2000);
+
+        assertThat(tested.areContentsTheSame(oldTweet, newTweet)).isFalse();
+        assertThat(tested.getChangePayload(oldTweet, newTweet))
+                .isSameInstanceAs(ListDiffing.PAYLOAD_TIME_LABEL);
+    }
+
+    @Test
+    public void textChanged_fullRebind() {
+        final Tweet oldTweet = tweet("1", "Critical Mass tonight", 1000);
+        final Tweet newTweet = tweet("1", "Critical Mass tomorrow", 1000);
+
+        assertThat(tested.areContentsTheSame(oldTweet, newTweet)).isFalse();
+        assertThat(tested.getChangePayload(oldTweet, newTweet)).isNull();
+    }
+
+    private static Tweet tweet(String tweetId, String text, long timestamp) {
+        return new Tweet()
+                .setTweetId(tweetId)
+                .setText(text)
+                .setUserName("Critical Maps")
+                .setUserScreenName("CriticalMaps")
+                .setProfileImageUrl("https://example.com/avatar.png")
+                .setTimestamp(new Date(timestamp));
+    }
+}
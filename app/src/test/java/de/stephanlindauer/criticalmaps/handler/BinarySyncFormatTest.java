@@ -0,0 +1,231 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okhttp3.MediaType;
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class BinarySyncFormatTest {
+
+    private static final int RIDERS = 10_000;
+    private static final MediaType BINARY = MediaType.parse(BinarySyncFormat.MEDIA_TYPE);
+
+    @Test
+    public void isBinary_matchesMediaTypeIgnoringParameters() {
+        assertThat(BinarySyncFormat.isBinary(BINARY)).isTrue();
+        assertThat(BinarySyncFormat.isBinary(
+                MediaType.parse(BinarySyncFormat.MEDIA_TYPE + "; charset=utf-8"))).isTrue();
+        assertThat(BinarySyncFormat.isBinary(MediaType.parse("application/json"))).isFalse();
+        assertThat(BinarySyncFormat.isBinary(null)).isFalse();
+    }
+
+    @Test
+    public void parse_binaryMatchesJsonPath() throws Exception {
+        final Random random = new Random(1446113099L);
+        final RiderLocationBuffer riders = generateRiders(random, RIDERS);
+        riders.add("not hex", -90_000_000, 180_000_000);
+        riders.add("ABCDEF", 90_000_000, -180_000_000);
+        final List<ReceivedChatMessage> messages = generateMessages(random);
+
+        final ServerSnapshot fromJson = newProcessor().parse(toJson(7, riders, messages));
+        final ServerSnapshot fromBinary = newProcessor().parse(
+                toBinary(7, DeltaSyncState.NO_VERSION, riders, null, messages, null), BINARY);
+
+        assertThat(fromBinary).isNotNull();
+        assertThat(fromJson).isNotNull();
+        assertThat(locationStrings(fromBinary.getOtherUsersLocations()))
+                .isEqualTo(locationStrings(fromJson.getOtherUsersLocations()));
+        assertThat(locationStrings(fromBinary.getOtherUsersLocations()))
+                .isEqualTo(locationStrings(riders));
+        assertThat(messageStrings(fromBinary.getChatMessages()))
+                .isEqualTo(messageStrings(fromJson.getChatMessages()));
+    }
+
+    @Test
+    public void decode_deltaFieldsRoundTrip() throws IOException {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("a1", 1, -1);
+        final Buffer encoded = toBinary(43, 42, riders, Arrays.asList("b2", "gone"),
+                Collections.<ReceivedChatMessage>emptyList(), Collections.singletonList("c3"));
+        final List<String> events = new ArrayList<>();
+
+        BinarySyncFormat.decode(encoded, new ServerResponseDecoder.Sink() {
+            @Override
+            public void onLocationsStarted() {
+                events.add("locations");
+            }
+
+            @Override
+            public void onRiderLocation(String deviceKey, int latitudeE6, int longitudeE6) {
+                events.add(deviceKey + ":" + latitudeE6 + "," + longitudeE6);
+            }
+
+            @Override
+            public void onChatMessagesStarted() {
+                events.add("chat");
+            }
+
+            @Override
+            public boolean onChatMessageIdentifier(String identifier) {
+                return true;
+            }
+
+            @Override
+            public void onChatMessage(String identifier, String message, long timestamp) {
+                events.add(identifier);
+            }
+
+            @Override
+            public void onVersion(long version) {
+                events.add("version " + version);
+            }
+
+            @Override
+            public void onBaseVersion(long baseVersion) {
+                events.add("base " + baseVersion);
+            }
+
+            @Override
+            public void onRiderRemoved(String deviceKey) {
+                events.add("-" + deviceKey);
+            }
+
+            @Override
+            public void onChatMessageRemoved(String identifier) {
+                events.add("-chat " + identifier);
+            }
+        });
+
+        assertThat(events).containsExactly("version 43", "base 42", "locations", "a1:1,-1",
+                "-b2", "-gone", "chat", "-chat c3").inOrder();
+        assertThat(encoded.exhausted()).isTrue();
+    }
+
+    @Test
+    public void parse_truncatedBinaryFails() throws IOException {
+        final Buffer encoded = toBinary(1, DeltaSyncState.NO_VERSION,
+                generateRiders(new Random(3), 10), null, null, null);
+        final Buffer truncated = new Buffer();
+        truncated.write(encoded, encoded.size() - 3);
+
+        assertThat(newProcessor().parse(truncated, BINARY)).isNull();
+        assertThat(newProcessor().parse(new Buffer().writeByte(9), BINARY)).isNull();
+    }
+
+    @Test
+    public void binary_lessThanAThirdOfJson() throws Exception {
+        final Random random = new Random(20200601L);
+        final RiderLocationBuffer riders = generateRiders(random, RIDERS);
+        final List<ReceivedChatMessage> messages = generateMessages(random);
+
+        final long jsonBytes = new Buffer().writeUtf8(toJson(1, riders, messages)).size();
+        final long binaryBytes =
+                toBinary(1, DeltaSyncState.NO_VERSION, riders, null, messages, null).size();
+
+        assertThat(binaryBytes).isLessThan(jsonBytes / 3);
+    }
+
+    private static ServerResponseProcessor newProcessor() {
+        return new ServerResponseProcessor(new OtherUsersLocationModel(), mock(EventBus.class),
+                mock(ChatModel.class), new DeltaSyncState());
+    }
+
+    private static RiderLocationBuffer generateRiders(Random random, int count) {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < count; i++) {
+            riders.add(String.format(Locale.US, "%016x%016x%08x",
+                    random.nextLong(), random.nextLong(), random.nextInt()),
+                    52_400_000 + random.nextInt(200_000), 13_300_000 + random.nextInt(200_000));
+        }
+        return riders;
+    }
+
+    private static List<ReceivedChatMessage> generateMessages(Random random) {
+        final String[] samples = {"foo", "Critical Mass ✊ Berlin", "äöü ß", "quote \" here",
+                "50% & more", "line\nbreak"};
+        final List<ReceivedChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new ReceivedChatMessage(Long.toHexString(random.nextLong()) + i,
+                    samples[random.nextInt(samples.length)] + " " + i,
+                    new Date((1446113000L + random.nextInt(100_000)) * 1000)));
+        }
+        return messages;
+    }
+
+    private static String toJson(long version, RiderLocations riders,
+                                 List<ReceivedChatMessage> messages)
+            throws JSONException, IOException {
+        final JSONObject locations = new JSONObject();
+        for (int i = 0; i < riders.size(); i++) {
+            final JSONObject location = new JSONObject();
+            location.put("latitude", Integer.toString(riders.getLatitudeE6(i)));
+            location.put("longitude", Integer.toString(riders.getLongitudeE6(i)));
+            location.put("timestamp", 1446113116);
+            locations.put(riders.getDeviceKey(i), location);
+        }
+        final JSONObject chat = new JSONObject();
+        for (ReceivedChatMessage message : messages) {
+            final JSONObject value = new JSONObject();
+            value.put("message", URLEncoder.encode(message.getMessage(), "UTF-8"));
+            value.put("timestamp", Long.toString(message.getTimestamp().getTime() / 1000));
+            chat.put(message.getIdentifier(), value);
+        }
+        final JSONObject response = new JSONObject();
+        response.put("version", version);
+        response.put("locations", locations);
+        response.put("chatMessages", chat);
+        return response.toString();
+    }
+
+    private static Buffer toBinary(long version, long baseVersion, RiderLocations riders,
+                                   List<String> removedRiders,
+                                   List<ReceivedChatMessage> messages,
+                                   List<String> removedMessages) throws IOException {
+        final Buffer buffer = new Buffer();
+        BinarySyncFormat.encode(buffer, version, baseVersion, riders, removedRiders,
+                messages, removedMessages);
+        return buffer;
+    }
+
+    private static List<String> locationStrings(RiderLocations locations) {
+        final List<String> result = new ArrayList<>(locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            result.add(locations.getDeviceKey(i) + ":" + locations.getLatitudeE6(i)
+                    + "," + locations.getLongitudeE6(i));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> messageStrings(List<ReceivedChatMessage> messages) {
+        final List<String> result = new ArrayList<>(messages.size());
+        for (ReceivedChatMessage message : messages) {
+            result.add(message.getIdentifier() + "|" + message.getTimestamp().getTime()
+                    + "|" + message.getMessage());
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,240 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
+import de.stephanlindauer.criticalmaps.model.chat.ChatOutbox;
+import de.stephanlindauer.criticalmaps.model.chat.ChatStore;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class DeltaSyncTest {
+
+    private static final int RIDERS = 10_000;
+    private static final int TICKS = 30;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockSyncServer server = new MockSyncServer();
+    private final DeltaSyncState state = new DeltaSyncState();
+    private final OtherUsersLocationModel locationModel = new OtherUsersLocationModel();
+    private final Random random = new Random(1446113099L);
+    private ChatModel chatModel;
+    private ServerResponseProcessor processor;
+    private int nextRider;
+    private int nextMessage;
+
+    @Before
+    public void setUp() {
+        chatModel = new ChatModel(new ChatOutbox(new File(folder.getRoot(), "outbox"),
+                        Runnable::run, Runnable::run),
+                new ChatStore(new File(folder.getRoot(), "chat_history"),
+                        Runnable::run, Runnable::run),
+                mock(EventBus.class));
+        processor = new ServerResponseProcessor(
+                locationModel, mock(EventBus.class), chatModel, state);
+    }
+
+    @Test
+    public void sync_deltasKeepModelEqualToServer() throws Exception {
+        populate();
+
+        for (int tick = 0; tick < TICKS; tick++) {
+            final long version = server.commit();
+            sync();
+
+            assertThat(state.getVersion()).isEqualTo(version);
+            assertModelMatchesServer();
+            mutate();
+        }
+
+        assertThat(state.getFullResponseCount()).isEqualTo(1);
+        assertThat(state.getDeltaResponseCount()).isEqualTo(TICKS - 1);
+        assertThat(state.getDivergedResponseCount()).isEqualTo(0);
+
+        final long fullBytes = state.getFullResponseBytes();
+        final long averageDeltaBytes = state.getDeltaResponseBytes() / state.getDeltaResponseCount();
+        assertThat(averageDeltaBytes).isLessThan(fullBytes / 5);
+    }
+
+    @Test
+    public void sync_deltasAlternateBetweenTwoBuffers() throws Exception {
+        populate();
+        final List<RiderLocations> published = new ArrayList<>();
+        for (int tick = 0; tick < 4; tick++) {
+            if (tick > 0) {
+                mutate();
+            }
+            server.commit();
+            sync();
+            published.add(locationModel.getOtherUsersLocations());
+        }
+
+        // the full snapshot's buffer is caught up by replaying deltas from then on
+        assertThat(published.get(2)).isSameInstanceAs(published.get(0));
+        assertThat(published.get(3)).isSameInstanceAs(published.get(1));
+        assertThat(published.get(1)).isNotSameInstanceAs(published.get(0));
+        assertModelMatchesServer();
+    }
+
+    @Test
+    public void sync_chatOnlyDeltaKeepsRidersRevision() throws Exception {
+        populate();
+        server.commit();
+        sync();
+        final int revision = locationModel.getRidersRevision();
+
+        server.postChatMessage("message" + nextMessage++, "just chat", 1446114000);
+        server.commit();
+        sync();
+        assertThat(locationModel.getRidersRevision()).isEqualTo(revision);
+
+        addRider();
+        server.commit();
+        sync();
+        assertThat(locationModel.getRidersRevision()).isEqualTo(revision + 1);
+        assertModelMatchesServer();
+    }
+
+    @Test
+    public void sync_serverWithoutHistoryFallsBackToFullSnapshot() throws Exception {
+        populate();
+        server.commit();
+        sync();
+        mutate();
+        server.commit();
+        server.forgetHistory();
+
+        sync();
+
+        assertModelMatchesServer();
+        assertThat(state.getFullResponseCount()).isEqualTo(2);
+        assertThat(state.getDeltaResponseCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void sync_divergedDeltaIsDroppedAndNextRequestIsFull() throws Exception {
+        populate();
+        server.commit();
+        sync();
+        final RiderLocations before = locationModel.getOtherUsersLocations();
+        mutate();
+        server.commit();
+
+        final ServerSnapshot snapshot = processor.parse(server.deltaFrom(state.getVersion() + 7));
+
+        assertThat(snapshot).isNull();
+        assertThat(state.getVersion()).isEqualTo(DeltaSyncState.NO_VERSION);
+        assertThat(state.getDivergedResponseCount()).isEqualTo(1);
+        assertThat(locationModel.getOtherUsersLocations()).isSameInstanceAs(before);
+
+        sync();
+
+        assertModelMatchesServer();
+        assertThat(state.getFullResponseCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void sync_serverWithoutVersionsAlwaysSendsFullSnapshots() throws Exception {
+        server.disableVersions();
+        populate();
+
+        for (int tick = 0; tick < 3; tick++) {
+            server.commit();
+            sync();
+            assertThat(state.getVersion()).isEqualTo(DeltaSyncState.NO_VERSION);
+            assertModelMatchesServer();
+            mutate();
+        }
+
+        assertThat(state.getFullResponseCount()).isEqualTo(3);
+        assertThat(state.getDeltaResponseCount()).isEqualTo(0);
+    }
+
+    private void sync() throws Exception {
+        final String request = state.getVersion() == DeltaSyncState.NO_VERSION
+                ? "{}" : "{\"snapshotVersion\":" + state.getVersion() + "}";
+        final ServerSnapshot snapshot = processor.parse(server.respond(request));
+        assertThat(snapshot).isNotNull();
+        processor.apply(snapshot);
+    }
+
+    private void populate() {
+        for (int i = 0; i < RIDERS; i++) {
+            addRider();
+        }
+        for (int i = 0; i < 50; i++) {
+            server.postChatMessage("message" + nextMessage++, "hello " + i, 1446113000 + i);
+        }
+    }
+
+    // about 5% of riders move each tick, a few leave and join, some chat is posted and expires
+    private void mutate() {
+        final List<String> keys = new ArrayList<>(server.getRiders().keySet());
+        for (int i = 0; i < RIDERS / 20; i++) {
+            final String key = keys.get(random.nextInt(keys.size()));
+            final int[] position = server.getRiders().get(key);
+            server.upsertRider(key, position[0] + random.nextInt(200) - 100,
+                    position[1] + random.nextInt(200) - 100);
+        }
+        for (int i = 0; i < 20; i++) {
+            server.removeRider(keys.get(random.nextInt(keys.size())));
+            addRider();
+        }
+
+        final List<String> messages = new ArrayList<>(server.getChatMessages().keySet());
+        server.removeChatMessage(messages.get(0));
+        server.postChatMessage("message" + nextMessage, "tick äöü & more " + nextMessage,
+                1446113000 + nextMessage);
+        nextMessage++;
+    }
+
+    private void addRider() {
+        server.upsertRider(String.format(Locale.US, "%040x", nextRider++),
+                52_500_000 + random.nextInt(100_000), 13_400_000 + random.nextInt(100_000));
+    }
+
+    private void assertModelMatchesServer() {
+        final RiderLocations riders = locationModel.getOtherUsersLocations();
+        assertThat(riders.size()).isEqualTo(server.getRiders().size());
+        for (Map.Entry<String, int[]> rider : server.getRiders().entrySet()) {
+            final int index = riders.indexOf(rider.getKey());
+            assertThat(index).isAtLeast(0);
+            assertThat(riders.getLatitudeE6(index)).isEqualTo(rider.getValue()[0]);
+            assertThat(riders.getLongitudeE6(index)).isEqualTo(rider.getValue()[1]);
+        }
+        assertThat(locationModel.getRiderClusters().getRiderCount())
+                .isEqualTo(server.getRiders().size());
+
+        final List<String> expectedMessages = new ArrayList<>();
+        for (Map.Entry<String, Object[]> message : server.getChatMessages().entrySet()) {
+            expectedMessages.add(message.getKey() + "|" + message.getValue()[0]);
+        }
+        final List<String> actualMessages = new ArrayList<>();
+        for (ReceivedChatMessage message : state.getChatMessages()) {
+            actualMessages.add(message.getIdentifier() + "|" + message.getMessage());
+        }
+        Collections.sort(expectedMessages);
+        Collections.sort(actualMessages);
+        assertThat(actualMessages).isEqualTo(expectedMessages);
+        assertThat(chatModel.getReceivedMessages()).hasSize(expectedMessages.size());
+    }
+}
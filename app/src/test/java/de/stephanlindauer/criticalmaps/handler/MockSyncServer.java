@@ -0,0 +1,164 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// In-memory stand-in for the sync endpoint that speaks the delta protocol described in
+// DeltaSyncState. Every commit() creates a new version, the last few versions are kept to
+// answer delta requests.
+class MockSyncServer {
+
+    private static final int KEPT_VERSIONS = 5;
+
+    private final LinkedHashMap<String, int[]> riders = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Object[]> chatMessages = new LinkedHashMap<>();
+    private final HashMap<Long, State> history = new HashMap<>();
+    private long version;
+    private boolean sendsVersions = true;
+
+    void upsertRider(String deviceKey, int latitudeE6, int longitudeE6) {
+        riders.put(deviceKey, new int[]{latitudeE6, longitudeE6});
+    }
+
+    void removeRider(String deviceKey) {
+        riders.remove(deviceKey);
+    }
+
+    void postChatMessage(String identifier, String text, long timestampSeconds) {
+        chatMessages.put(identifier, new Object[]{text, timestampSeconds});
+    }
+
+    void removeChatMessage(String identifier) {
+        chatMessages.remove(identifier);
+    }
+
+    long commit() {
+        version++;
+        history.put(version, new State(riders, chatMessages));
+        history.remove(version - KEPT_VERSIONS);
+        return version;
+    }
+
+    void forgetHistory() {
+        history.clear();
+        history.put(version, new State(riders, chatMessages));
+    }
+
+    // behaves like the server before delta support
+    void disableVersions() {
+        sendsVersions = false;
+    }
+
+    Map<String, int[]> getRiders() {
+        return riders;
+    }
+
+    Map<String, Object[]> getChatMessages() {
+        return chatMessages;
+    }
+
+    String respond(String requestJson) throws JSONException, UnsupportedEncodingException {
+        JSONObject request = new JSONObject(requestJson);
+        long clientVersion = request.optLong("snapshotVersion", -1);
+        State base = sendsVersions ? history.get(clientVersion) : null;
+        if (base == null) {
+            return full();
+        }
+        return delta(clientVersion, base);
+    }
+
+    // a delta against a version the client never saw, like after a server restart
+    String deltaFrom(long claimedBaseVersion) throws JSONException, UnsupportedEncodingException {
+        return delta(claimedBaseVersion, new State(riders, chatMessages));
+    }
+
+    private String full() throws JSONException, UnsupportedEncodingException {
+        JSONObject response = new JSONObject();
+        response.put("locations", locationsJson(riders, null));
+        response.put("chatMessages", chatJson(chatMessages, null));
+        if (sendsVersions) {
+            response.put("version", version);
+        }
+        return response.toString();
+    }
+
+    private String delta(long baseVersion, State base)
+            throws JSONException, UnsupportedEncodingException {
+        JSONObject response = new JSONObject();
+        response.put("version", version);
+        response.put("baseVersion", baseVersion);
+        response.put("locations", locationsJson(riders, base.riders));
+        response.put("chatMessages", chatJson(chatMessages, base.chatMessages));
+
+        JSONArray removedRiders = new JSONArray();
+        for (String deviceKey : base.riders.keySet()) {
+            if (!riders.containsKey(deviceKey)) {
+                removedRiders.put(deviceKey);
+            }
+        }
+        response.put("removedLocations", removedRiders);
+
+        JSONArray removedMessages = new JSONArray();
+        for (String identifier : base.chatMessages.keySet()) {
+            if (!chatMessages.containsKey(identifier)) {
+                removedMessages.put(identifier);
+            }
+        }
+        response.put("removedChatMessages", removedMessages);
+        return response.toString();
+    }
+
+    // only riders that differ from base, all of them without a base
+    private static JSONObject locationsJson(Map<String, int[]> riders, Map<String, int[]> base)
+            throws JSONException {
+        JSONObject locations = new JSONObject();
+        for (Map.Entry<String, int[]> rider : riders.entrySet()) {
+            int[] previous = base == null ? null : base.get(rider.getKey());
+            if (previous != null && previous[0] == rider.getValue()[0]
+                    && previous[1] == rider.getValue()[1]) {
+                continue;
+            }
+            JSONObject location = new JSONObject();
+            location.put("latitude", Integer.toString(rider.getValue()[0]));
+            location.put("longitude", Integer.toString(rider.getValue()[1]));
+            location.put("timestamp", 1446113116);
+            locations.put(rider.getKey(), location);
+        }
+        return locations;
+    }
+
+    private static JSONObject chatJson(Map<String, Object[]> messages, Map<String, Object[]> base)
+            throws JSONException, UnsupportedEncodingException {
+        JSONObject chat = new JSONObject();
+        for (Map.Entry<String, Object[]> message : messages.entrySet()) {
+            if (base != null && base.containsKey(message.getKey())) {
+                continue;
+            }
+            JSONObject value = new JSONObject();
+            value.put("message", URLEncoder.encode((String) message.getValue()[0], "UTF-8"));
+            value.put("timestamp", Long.toString((Long) message.getValue()[1]));
+            chat.put(message.getKey(), value);
+        }
+        return chat;
+    }
+
+    private static class State {
+        final Map<String, int[]> riders;
+        final Map<String, Object[]> chatMessages;
+
+        State(Map<String, int[]> riders, Map<String, Object[]> chatMessages) {
+            this.riders = new HashMap<>();
+            for (Map.Entry<String, int[]> rider : riders.entrySet()) {
+                this.riders.put(rider.getKey(), rider.getValue().clone());
+            }
+            this.chatMessages = new HashMap<>(chatMessages);
+        }
+    }
+}
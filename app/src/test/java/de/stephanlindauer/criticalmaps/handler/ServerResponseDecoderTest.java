@@ -0,0 +1,219 @@
+package de.stephanlindauer.criticalmaps.handler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.ChatModel;
+import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.RiderLocations;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
+import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ServerResponseDecoderTest {
+
+    private static final int RIDERS_PER_PAYLOAD = 10_000;
+    private static final int CHAT_MESSAGES_PER_PAYLOAD = 200;
+    private static final long[] CORPUS_SEEDS = {1L, 42L, 1446113099L, 20200601L};
+
+    private final ServerResponseProcessor processor = new ServerResponseProcessor(
+            new OtherUsersLocationModel(), mock(EventBus.class), mock(ChatModel.class),
+            new DeltaSyncState());
+
+    @Test
+    public void decode_largePayloadsMatchJsonObjectParser() throws Exception {
+        for (long seed : CORPUS_SEEDS) {
+            final String json = generatePayload(new Random(seed));
+
+            final ServerSnapshot streamed = processor.parse(new Buffer().writeUtf8(json));
+            final JSONObject tree = new JSONObject(json);
+
+            assertThat(streamed).isNotNull();
+            assertThat(locationStrings(streamed.getOtherUsersLocations()))
+                    .containsExactlyElementsIn(
+                            locationStringsFromTree(tree.getJSONObject("locations")));
+            assertThat(messageStrings(streamed.getChatMessages()))
+                    .containsExactlyElementsIn(messageStrings(
+                            ChatModel.parseChatMessages(tree.getJSONObject("chatMessages"))));
+            assertThat(streamed.getOtherUsersLocations().size()).isEqualTo(RIDERS_PER_PAYLOAD);
+        }
+    }
+
+    @Test
+    public void decode_chatMessagesAreSortedByTimestamp() throws Exception {
+        final ServerSnapshot streamed = processor.parse(generatePayload(new Random(7L)));
+
+        //noinspection ConstantConditions
+        final List<ReceivedChatMessage> messages = streamed.getChatMessages();
+        for (int i = 1; i < messages.size(); i++) {
+            assertThat(messages.get(i - 1).getTimestamp())
+                    .isAtMost(messages.get(i).getTimestamp());
+        }
+    }
+
+    @Test
+    public void decode_knownChatMessagesAreNotDecodedAgain() throws Exception {
+        final String json = generatePayload(new Random(7L));
+
+        final ServerSnapshot first = processor.parse(json);
+        final ServerSnapshot second = processor.parse(json);
+
+        //noinspection ConstantConditions
+        assertThat(first.getChatChanges().getInserted()).hasSize(CHAT_MESSAGES_PER_PAYLOAD);
+        //noinspection ConstantConditions
+        assertThat(second.getChatChanges().isEmpty()).isTrue();
+        assertThat(second.getChatMessages()).isSameInstanceAs(first.getChatMessages());
+    }
+
+    @Test
+    public void decode_unknownAndNestedValuesAreSkipped() {
+        final String json = "{ \"unknown\" : {\"a\":[1, 2, {\"b\":\"}]\\\"\"}], \"c\":null},"
+                + "\"locations\":{\"k1\":{\"timestamp\":1446113116,\"longitude\":\"-56253312\","
+                + "\"extra\":[true,false],\"latitude\":\"-34111877\"},"
+                + "\"k2\":{\"latitude\":12}},"
+                + "\"chatMessages\":{\"id\\u0031\":{\"message\":\"a%20b \\\"q\\\"\","
+                + "\"timestamp\":\"1446113099\"}}, \"trailing\": 1.5e3 }";
+
+        final ServerSnapshot snapshot = processor.parse(json);
+
+        assertThat(snapshot).isNotNull();
+        // k2 has no longitude and is dropped instead of failing the whole response
+        assertThat(snapshot.getOtherUsersLocations().size()).isEqualTo(1);
+        assertThat(snapshot.getOtherUsersLocations().getDeviceKey(0)).isEqualTo("k1");
+        assertThat(snapshot.getOtherUsersLocations().getLatitudeE6(0)).isEqualTo(-34111877);
+        assertThat(snapshot.getOtherUsersLocations().getLongitudeE6(0)).isEqualTo(-56253312);
+        assertThat(snapshot.getChatMessages()).hasSize(1);
+        assertThat(snapshot.getChatMessages().get(0).getIdentifier()).isEqualTo("id1");
+        assertThat(snapshot.getChatMessages().get(0).getMessage()).isEqualTo("a b \"q\"");
+        assertThat(snapshot.getChatMessages().get(0).getTimestamp().getTime())
+                .isEqualTo(1446113099000L);
+    }
+
+    @Test
+    public void decode_missingSectionsStayAbsent() {
+        final ServerSnapshot snapshot = processor.parse("{\"locations\":{}}");
+
+        assertThat(snapshot).isNotNull();
+        assertThat(snapshot.hasOtherUsersLocations()).isTrue();
+        assertThat(snapshot.getOtherUsersLocations().size()).isEqualTo(0);
+        assertThat(snapshot.hasChatMessages()).isFalse();
+    }
+
+    @Test
+    public void decode_truncatedInputFails() {
+        assertThat(processor.parse("{\"locations\":{\"k1\":{\"latitude\":\"1")).isNull();
+        assertThat(processor.parse("")).isNull();
+    }
+
+    private static String generatePayload(Random random) throws UnsupportedEncodingException {
+        final StringBuilder builder = new StringBuilder(RIDERS_PER_PAYLOAD * 110);
+        final boolean chatFirst = random.nextBoolean();
+        builder.append('{');
+        if (chatFirst) {
+            appendChatMessages(builder, random);
+            builder.append(",\n");
+        }
+        builder.append("\"locations\" : {");
+        for (int i = 0; i < RIDERS_PER_PAYLOAD; i++) {
+            if (i > 0) {
+                builder.append(random.nextInt(10) == 0 ? ",\n  " : ",");
+            }
+            final int latitudeE6 = random.nextInt(180_000_000) - 90_000_000;
+            final int longitudeE6 = random.nextInt(360_000_000) - 180_000_000;
+            builder.append('"').append(deviceKey(random)).append("\":{");
+            if (random.nextBoolean()) {
+                builder.append("\"longitude\":\"").append(longitudeE6)
+                        .append("\",\"latitude\":\"").append(latitudeE6).append('"');
+            } else {
+                builder.append("\"latitude\":\"").append(latitudeE6)
+                        .append("\", \"longitude\" : \"").append(longitudeE6).append('"');
+            }
+            builder.append(",\"timestamp\":").append(1446113000 + random.nextInt(1000));
+            builder.append('}');
+        }
+        builder.append('}');
+        if (!chatFirst) {
+            builder.append(", ");
+            appendChatMessages(builder, random);
+        }
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static void appendChatMessages(StringBuilder builder, Random random)
+            throws UnsupportedEncodingException {
+        final String[] samples = {"foo", "Critical Mass ✊ Berlin", "äöü ß", "quote \" here",
+                "back\\slash", "line\nbreak", "50% & more"};
+        builder.append("\"chatMessages\":{");
+        for (int i = 0; i < CHAT_MESSAGES_PER_PAYLOAD; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            final String text = samples[random.nextInt(samples.length)] + " " + i;
+            final String encoded = URLEncoder.encode(text, "UTF-8");
+            builder.append('"').append(deviceKey(random)).append("\":{\"message\":");
+            builder.append(JSONObject.quote(encoded));
+            final int timestamp = 1446113000 + random.nextInt(100_000);
+            if (random.nextBoolean()) {
+                builder.append(",\"timestamp\":").append(timestamp);
+            } else {
+                builder.append(",\"timestamp\":\"").append(timestamp).append('"');
+            }
+            builder.append('}');
+        }
+        builder.append('}');
+    }
+
+    private static String deviceKey(Random random) {
+        return String.format(Locale.US, "%016x%016x%08x",
+                random.nextLong(), random.nextLong(), random.nextInt());
+    }
+
+    private static List<String> locationStrings(RiderLocations locations) {
+        final List<String> result = new ArrayList<>(locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            result.add(locations.getDeviceKey(i) + ":" + locations.getLatitudeE6(i)
+                    + "," + locations.getLongitudeE6(i));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // the org.json based parsing the app used before streaming was introduced
+    private static List<String> locationStringsFromTree(JSONObject locations)
+            throws JSONException {
+        final List<String> result = new ArrayList<>(locations.length());
+        final Iterator<String> keys = locations.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            final JSONObject value = locations.getJSONObject(key);
+            result.add(key + ":" + Integer.parseInt(value.getString("latitude"))
+                    + "," + Integer.parseInt(value.getString("longitude")));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<String> messageStrings(List<ReceivedChatMessage> messages) {
+        final List<String> result = new ArrayList<>(messages.size());
+        for (ReceivedChatMessage message : messages) {
+            result.add(message.getIdentifier() + "|" + message.getTimestamp().getTime()
+                    + "|" + message.getMessage());
+        }
+        return result;
+    }
+}
@@ -1,7 +1,5 @@
 package de.stephanlindauer.criticalmaps.handler;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.junit.Test;
 import org.ligi.axt.AXT;
 
@@ -12,50 +10,101 @@ import java.net.URISyntaxException;
 import de.stephanlindauer.criticalmaps.events.Events;
 import de.stephanlindauer.criticalmaps.model.ChatModel;
 import de.stephanlindauer.criticalmaps.model.OtherUsersLocationModel;
+import de.stephanlindauer.criticalmaps.model.ServerSnapshot;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
 import de.stephanlindauer.criticalmaps.provider.EventBus;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 public class ServerResponseProcessorTest {
     @Test
-    public void process_chatmessagesAreSetOnModel() throws IOException, URISyntaxException,
-            JSONException {
+    public void parse_validJsonIsParsedWithoutTouchingModels() throws IOException,
+            URISyntaxException {
+        final String json = AXT.at(new File(getClass().getClassLoader()
+                .getResource("simple_server_response.json").toURI())).readToString();
+        final ChatModel chatModel = mock(ChatModel.class);
+        final OtherUsersLocationModel locationModel = new OtherUsersLocationModel();
+        final EventBus eventMock = mock(EventBus.class);
+        final ServerResponseProcessor tested = new ServerResponseProcessor(
+                locationModel, eventMock, chatModel,
+                new DeltaSyncState());
+
+        final ServerSnapshot snapshot = tested.parse(json);
+
+        assertThat(snapshot).isNotNull();
+        assertThat(snapshot.getOtherUsersLocations().size()).isEqualTo(1);
+        assertThat(snapshot.getOtherUsersLocations().indexOf(
+                "13918e88a36cb8cf0325820dbf47e0403f8a9640")).isEqualTo(0);
+        assertThat(locationModel.getOtherUsersLocations().size()).isEqualTo(0);
+        assertThat(snapshot.getChatMessages()).hasSize(2);
+        assertThat(snapshot.getChatChanges().getInserted()).hasSize(2);
+        assertThat(snapshot.getChatMessages().get(0).getIdentifier())
+                .isEqualTo("738e6f90c27936f64bd9bd9ea98ad9d3707ffb8f");
+        verifyZeroInteractions(chatModel, eventMock);
+    }
+
+    @Test
+    public void apply_chatmessagesAreSetOnModel() throws IOException, URISyntaxException {
         final String json = AXT.at(new File(getClass().getClassLoader()
                 .getResource("simple_server_response.json").toURI())).readToString();
         final ChatModel chatModel = mock(ChatModel.class);
         final ServerResponseProcessor tested = new ServerResponseProcessor(
-                mock(OtherUsersLocationModel.class), mock(EventBus.class), chatModel);
+                new OtherUsersLocationModel(), mock(EventBus.class), chatModel,
+                new DeltaSyncState());
 
-        tested.process(json);
+        //noinspection ConstantConditions
+        tested.apply(tested.parse(json));
 
-        verify(chatModel).setFromJson(any(JSONObject.class));
+        verify(chatModel).setReceivedMessages(anyList(), any(ChatChangeSet.class));
     }
 
     @Test
-    public void process_eventIsFiredForValidJSON() throws IOException, URISyntaxException {
+    public void apply_locationsAreSetOnModel() throws IOException, URISyntaxException {
+        final String json = AXT.at(new File(getClass().getClassLoader()
+                .getResource("simple_server_response.json").toURI())).readToString();
+        final OtherUsersLocationModel locationModel = new OtherUsersLocationModel();
+        final ServerResponseProcessor tested = new ServerResponseProcessor(
+                locationModel, mock(EventBus.class), mock(ChatModel.class),
+                new DeltaSyncState());
+
+        //noinspection ConstantConditions
+        tested.apply(tested.parse(json));
+
+        assertThat(locationModel.getOtherUsersLocations().size()).isEqualTo(1);
+        assertThat(locationModel.getOtherUsersLocations().getLatitudeE6(0)).isEqualTo(-34111877);
+        assertThat(locationModel.getRiderClusters().getRiderCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void apply_eventIsFiredForValidJSON() throws IOException, URISyntaxException {
         final String json = AXT.at(new File(getClass().getClassLoader()
                 .getResource("simple_server_response.json").toURI())).readToString();
         final EventBus eventMock = mock(EventBus.class);
         final ServerResponseProcessor tested = new ServerResponseProcessor(
-                mock(OtherUsersLocationModel.class), eventMock, mock(ChatModel.class));
+                new OtherUsersLocationModel(), eventMock, mock(ChatModel.class),
+                new DeltaSyncState());
 
-        tested.process(json);
+        //noinspection ConstantConditions
+        tested.apply(tested.parse(json));
 
         verify(eventMock, times(1)).post(Events.NEW_SERVER_RESPONSE_EVENT);
     }
 
     @Test
-    public void process_noEventIsFiredForInvalidJSON() {
+    public void parse_invalidJsonYieldsNoSnapshot() {
         final EventBus eventMock = mock(EventBus.class);
         final ServerResponseProcessor tested = new ServerResponseProcessor(
-                mock(OtherUsersLocationModel.class), eventMock, mock(ChatModel.class));
-
-        tested.process("borken");
+                mock(OtherUsersLocationModel.class), eventMock, mock(ChatModel.class),
+                new DeltaSyncState());
 
+        assertThat(tested.parse("borken")).isNull();
         verify(eventMock, never()).post(Events.NEW_SERVER_RESPONSE_EVENT);
     }
 }
@@ -2,23 +2,46 @@ package de.stephanlindauer.criticalmaps.model;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.ligi.axt.AXT;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
+import de.stephanlindauer.criticalmaps.events.Events;
+import de.stephanlindauer.criticalmaps.interfaces.IChatMessage;
+import de.stephanlindauer.criticalmaps.model.chat.ChatChangeSet;
+import de.stephanlindauer.criticalmaps.model.chat.ChatHistory;
+import de.stephanlindauer.criticalmaps.model.chat.ChatOutbox;
+import de.stephanlindauer.criticalmaps.model.chat.ChatStore;
 import de.stephanlindauer.criticalmaps.model.chat.OutgoingChatMessage;
 import de.stephanlindauer.criticalmaps.model.chat.ReceivedChatMessage;
+import de.stephanlindauer.criticalmaps.provider.EventBus;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class ChatModelTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void hasOutgoingChatmessages_isTrueIfOutgoingMessagesExist() {
-        final ChatModel tested = new ChatModel();
+        final ChatModel tested = newChatModel();
         tested.setNewOutgoingMessage(new OutgoingChatMessage("test"));
 
         assertThat(tested.hasOutgoingMessages()).isTrue();
@@ -26,20 +49,20 @@ public class ChatModelTest {
 
     @Test
     public void hasOutgoingChatmessages_isFalseIfNoOutgoingMessagesExist() {
-        final ChatModel tested = new ChatModel();
+        final ChatModel tested = newChatModel();
 
         assertThat(tested.hasOutgoingMessages()).isFalse();
     }
 
     @Test
-    public void setFromJson_testThatChatmessagesAreSorted() throws IOException, URISyntaxException,
-            JSONException {
+    public void setReceivedMessages_testThatChatmessagesAreSorted() throws IOException,
+            URISyntaxException, JSONException {
         final String json = AXT.at(new File(getClass().getClassLoader()
                 .getResource("simple_server_response.json").toURI())).readToString();
         final JSONObject response = new JSONObject(json);
-        final ChatModel tested = new ChatModel();
+        final ChatModel tested = newChatModel();
 
-        tested.setFromJson(response.getJSONObject("chatMessages"));
+        receive(tested, new ChatHistory(), response.getJSONObject("chatMessages"));
         final ReceivedChatMessage message0 =
                 (ReceivedChatMessage) tested.getSavedAndOutgoingMessages().get(0);
         final ReceivedChatMessage message1 =
@@ -49,33 +72,187 @@ public class ChatModelTest {
     }
 
     @Test
-    public void setFromJson_outgoingMessagesAreRemovedAfterSend() throws JSONException,
+    public void setReceivedMessages_outgoingMessagesAreRemovedAfterSend() throws JSONException,
             UnsupportedEncodingException {
         final OutgoingChatMessage outgoingChatMessage = new OutgoingChatMessage("test");
         final JSONObject testResponse = new JSONObject("{\"" + outgoingChatMessage.getIdentifier()
                 + "\":{\"message\":\"" + outgoingChatMessage.getMessage()
                 + "\",\"timestamp\":1446113099}}");
-        final ChatModel tested = new ChatModel();
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
 
-        tested.setFromJson(testResponse);
+        receive(tested, history, new JSONObject());
         tested.setNewOutgoingMessage(outgoingChatMessage);
-        tested.setFromJson(testResponse);
+        receive(tested, history, testResponse);
 
         assertThat(tested.hasOutgoingMessages()).isFalse();
     }
 
     @Test
-    public void setFromJson_existingMessagesAreReplaced() throws URISyntaxException, IOException,
-            JSONException {
+    public void setReceivedMessages_existingMessagesAreReplaced() throws URISyntaxException,
+            IOException, JSONException {
         final String json = AXT.at(new File(getClass().getClassLoader()
                 .getResource("simple_server_response.json").toURI())).readToString();
         final JSONObject testResponse = new JSONObject(json).getJSONObject("chatMessages");
-        final ChatModel tested = new ChatModel();
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
 
-        tested.setFromJson(testResponse);
+        receive(tested, history, testResponse);
         final int sizeBefore = tested.getSavedAndOutgoingMessages().size();
 
-        tested.setFromJson(testResponse);
+        receive(tested, history, testResponse);
         assertThat(tested.getSavedAndOutgoingMessages()).hasSize(sizeBefore);
+        assertThat(tested.getChatChanges().getToRevision()).isEqualTo(1);
+    }
+
+    @Test
+    public void getActivityCount_countsSentAndNewlyReceivedMessages() {
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
+
+        receive(tested, history, "a");
+        assertThat(tested.getActivityCount()).isEqualTo(0);
+
+        tested.setNewOutgoingMessage(new OutgoingChatMessage("test"));
+        receive(tested, history, "a", "b", "c");
+        receive(tested, history, "b", "c");
+
+        assertThat(tested.getActivityCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void setReceivedMessages_recordsAcknowledgeLatency() {
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
+        final OutgoingChatMessage outgoing = new OutgoingChatMessage("test");
+        tested.setNewOutgoingMessage(outgoing);
+
+        receive(tested, history, "other");
+        assertThat(tested.getAcknowledgedMessageCount()).isEqualTo(0);
+
+        receive(tested, history, "other", outgoing.getIdentifier());
+        assertThat(tested.getAcknowledgedMessageCount()).isEqualTo(1);
+        assertThat(tested.getMaxAcknowledgeLatencyMillis()).isAtLeast(0L);
+        assertThat(tested.getAverageAcknowledgeLatencyMillis())
+                .isAtMost(tested.getMaxAcknowledgeLatencyMillis());
+    }
+
+    @Test
+    public void setReceivedMessages_acknowledgesFromMissedSnapshots() {
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
+        final OutgoingChatMessage outgoing = new OutgoingChatMessage("test");
+        tested.setNewOutgoingMessage(outgoing);
+
+        // parsed but never applied, e.g. the service went away meanwhile
+        history.replace(Collections.singleton(outgoing.getIdentifier()),
+                messages(outgoing.getIdentifier()));
+        receive(tested, history, outgoing.getIdentifier(), "later");
+
+        assertThat(tested.hasOutgoingMessages()).isFalse();
+    }
+
+    @Test
+    public void setNewOutgoingMessage_survivesRestart() {
+        final File file = new File(folder.getRoot(), "outbox");
+        final OutgoingChatMessage outgoing = new OutgoingChatMessage("test");
+        newChatModel(file).setNewOutgoingMessage(outgoing);
+
+        final ChatModel restarted = newChatModel(file);
+
+        assertThat(restarted.hasOutgoingMessages()).isTrue();
+        final OutgoingChatMessage restored =
+                (OutgoingChatMessage) restarted.getSavedAndOutgoingMessages().get(0);
+        assertThat(restored.getIdentifier()).isEqualTo(outgoing.getIdentifier());
+    }
+
+    @Test
+    public void setReceivedMessages_forgottenMessagesStayAboveNewOnes() {
+        final ChatModel tested = newChatModel();
+        final ChatHistory history = new ChatHistory();
+
+        receive(tested, history, "a", "b");
+        receive(tested, history, "b", "c");
+
+        assertThat(identifiersOf(tested.getOlderMessages())).containsExactly("a");
+        assertThat(identifiersOf(tested.getSavedAndOutgoingMessages()))
+                .containsExactly("a", "b", "c").inOrder();
+    }
+
+    @Test
+    public void loadOlderMessages_pagesInStoredHistoryAfterRestart() {
+        final List<ReceivedChatMessage> ride = new ArrayList<>();
+        for (int i = 0; i < ChatModel.PAGE_SIZE + 10; i++) {
+            ride.add(new ReceivedChatMessage("m" + i, "hi", new Date(i * 1000L)));
+        }
+        final ChatHistory history = new ChatHistory();
+        final ChatChangeSet rideChanges = history.replace(identifiersOf(ride), ride);
+        newChatModel().setReceivedMessages(history.getMessages(), rideChanges);
+
+        final EventBus eventBus = mock(EventBus.class);
+        final ChatModel restarted = newChatModel(new File(folder.getRoot(), "outbox"), eventBus);
+        restarted.loadOlderMessages();
+        assertThat(restarted.getOlderMessages()).hasSize(ChatModel.PAGE_SIZE);
+
+        // the server still lists the newest five
+        final ChatHistory restartedHistory = new ChatHistory();
+        final List<ReceivedChatMessage> listed = ride.subList(ride.size() - 5, ride.size());
+        final ChatChangeSet listedChanges =
+                restartedHistory.replace(identifiersOf(listed), listed);
+        restarted.setReceivedMessages(restartedHistory.getMessages(), listedChanges);
+        restarted.loadOlderMessages();
+
+        assertThat(identifiersOf(restarted.getSavedAndOutgoingMessages()))
+                .containsExactlyElementsIn(identifiersOf(ride)).inOrder();
+        verify(eventBus, times(2)).post(Events.OLDER_CHAT_MESSAGES_LOADED_EVENT);
+    }
+
+    // what the sync thread does with a full chat section
+    private static void receive(ChatModel tested, ChatHistory history, JSONObject chatMessages)
+            throws JSONException, UnsupportedEncodingException {
+        final List<ReceivedChatMessage> messages = ChatModel.parseChatMessages(chatMessages);
+        final Set<String> identifiers = new HashSet<>();
+        for (ReceivedChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        final ChatChangeSet changes = history.replace(identifiers, messages);
+        tested.setReceivedMessages(history.getMessages(), changes);
+    }
+
+    private static void receive(ChatModel tested, ChatHistory history, String... identifiers) {
+        final ChatChangeSet changes = history.replace(
+                new HashSet<>(Arrays.asList(identifiers)), messages(identifiers));
+        tested.setReceivedMessages(history.getMessages(), changes);
+    }
+
+    private static List<ReceivedChatMessage> messages(String... identifiers) {
+        final List<ReceivedChatMessage> messages = new ArrayList<>();
+        for (String identifier : identifiers) {
+            messages.add(new ReceivedChatMessage(identifier, "hi", new Date(0)));
+        }
+        return messages;
+    }
+
+    private static Set<String> identifiersOf(List<? extends IChatMessage> messages) {
+        final Set<String> identifiers = new LinkedHashSet<>();
+        for (IChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        return identifiers;
+    }
+
+    private ChatModel newChatModel() {
+        return newChatModel(new File(folder.getRoot(), "outbox"));
+    }
+
+    private ChatModel newChatModel(File outboxFile) {
+        return newChatModel(outboxFile, mock(EventBus.class));
+    }
+
+    private ChatModel newChatModel(File outboxFile, EventBus eventBus) {
+        final ChatStore store = new ChatStore(
+                new File(folder.getRoot(), "chat_history"), Runnable::run, Runnable::run);
+        return new ChatModel(
+                new ChatOutbox(outboxFile, Runnable::run, Runnable::run), store, eventBus);
     }
 }
@@ -0,0 +1,92 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderClustersTest {
+
+    @Test
+    public void build_everyLevelAccountsForAllRiders() {
+        final RiderClusters tested = RiderClusters.build(randomRiders(5_000, 200_000, 1L));
+
+        int previousClusterCount = Integer.MAX_VALUE;
+        for (int zoom = RiderClusters.MAX_ZOOM; zoom >= RiderClusters.MIN_ZOOM; zoom--) {
+            int riders = 0;
+            for (int cluster = 0; cluster < tested.getClusterCount(zoom); cluster++) {
+                riders += tested.getRiderCount(zoom, cluster);
+            }
+            assertThat(riders).isEqualTo(5_000);
+            // coarser levels never have more clusters than finer ones
+            assertThat(tested.getClusterCount(zoom)).isAtMost(previousClusterCount);
+            previousClusterCount = tested.getClusterCount(zoom);
+        }
+        assertThat(tested.getClusterCount(RiderClusters.MIN_ZOOM)).isEqualTo(1);
+    }
+
+    @Test
+    public void build_clusterIsAtCentroidOfItsRiders() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("a", 52_500_000, 13_400_000);
+        riders.add("b", 52_500_100, 13_400_000);
+        riders.add("c", 52_500_000, 13_400_300);
+
+        final RiderClusters tested = RiderClusters.build(riders);
+
+        assertThat(tested.getClusterCount(10)).isEqualTo(1);
+        assertThat(tested.getRiderCount(10, 0)).isEqualTo(3);
+        final double expectedX = (2 * MercatorUtils.x(13.4) + MercatorUtils.x(13.4003)) / 3;
+        final double expectedY = (2 * MercatorUtils.y(52.5) + MercatorUtils.y(52.5001)) / 3;
+        assertThat(tested.getMercatorX(10)[0]).isWithin(1E-12).of(expectedX);
+        assertThat(tested.getMercatorY(10)[0]).isWithin(1E-12).of(expectedY);
+    }
+
+    @Test
+    public void build_distantRidersStaySeparateWhenZoomedIn() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("a", 52_500_000, 13_400_000);
+        riders.add("b", 52_700_000, 13_400_000);
+
+        final RiderClusters tested = RiderClusters.build(riders);
+
+        // ~22km apart, a cell at zoom 11 is ~2km
+        assertThat(tested.getClusterCount(RiderClusters.MAX_ZOOM)).isEqualTo(2);
+        assertThat(tested.getClusterCount(RiderClusters.MIN_ZOOM)).isEqualTo(1);
+    }
+
+    @Test
+    public void build_emptySnapshotHasNoClusters() {
+        final RiderClusters tested = RiderClusters.empty();
+
+        assertThat(tested.getRiderCount()).isEqualTo(0);
+        for (int zoom = RiderClusters.MIN_ZOOM; zoom <= RiderClusters.MAX_ZOOM; zoom++) {
+            assertThat(tested.getClusterCount(zoom)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void levelFor_clampsToClusterLevels() {
+        assertThat(RiderClusters.levelFor(-1)).isEqualTo(RiderClusters.MIN_ZOOM);
+        assertThat(RiderClusters.levelFor(10.7)).isEqualTo(10);
+        assertThat(RiderClusters.levelFor(14)).isEqualTo(RiderClusters.MAX_ZOOM);
+        assertThat(RiderClusters.isClustered(RiderClusters.MAX_ZOOM + 0.5)).isTrue();
+        assertThat(RiderClusters.isClustered(RiderClusters.MAX_ZOOM + 1)).isFalse();
+        // the zoom the map starts at
+        assertThat(RiderClusters.isClustered(12)).isFalse();
+    }
+
+    private static RiderLocationBuffer randomRiders(int count, int spreadE6, long seed) {
+        final Random random = new Random(seed);
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < count; i++) {
+            riders.add("rider" + i,
+                    52_500_000 + random.nextInt(2 * spreadE6) - spreadE6,
+                    13_400_000 + random.nextInt(2 * spreadE6) - spreadE6);
+        }
+        return riders;
+    }
+}
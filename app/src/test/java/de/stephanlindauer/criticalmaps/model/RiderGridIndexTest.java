@@ -0,0 +1,153 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.utils.GeoUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderGridIndexTest {
+
+    private static final int BERLIN_LATITUDE_E6 = 52_500_000;
+    private static final int BERLIN_LONGITUDE_E6 = 13_400_000;
+
+    @Test
+    public void queryBoundingBox_matchesLinearScan() {
+        final RiderLocationBuffer riders = randomRiders(10_000, 100_000, 1L);
+        final RiderGridIndex tested = riders.getSpatialIndex();
+        riders.buildSpatialIndex();
+        final Random random = new Random(2L);
+
+        for (int query = 0; query < 200; query++) {
+            final int minLatitude = BERLIN_LATITUDE_E6 + random.nextInt(240_000) - 120_000;
+            final int minLongitude = BERLIN_LONGITUDE_E6 + random.nextInt(240_000) - 120_000;
+            final int maxLatitude = minLatitude + random.nextInt(50_000);
+            final int maxLongitude = minLongitude + random.nextInt(50_000);
+
+            final List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < riders.size(); i++) {
+                if (riders.getLatitudeE6(i) >= minLatitude
+                        && riders.getLatitudeE6(i) <= maxLatitude
+                        && riders.getLongitudeE6(i) >= minLongitude
+                        && riders.getLongitudeE6(i) <= maxLongitude) {
+                    expected.add(i);
+                }
+            }
+            final List<Integer> actual = new ArrayList<>();
+            final int found = tested.queryBoundingBox(
+                    minLatitude, minLongitude, maxLatitude, maxLongitude, actual::add);
+
+            assertThat(found).isEqualTo(expected.size());
+            assertThat(actual).containsExactlyElementsIn(expected);
+        }
+    }
+
+    @Test
+    public void findNearest_matchesLinearScan() {
+        final RiderLocationBuffer riders = randomRiders(10_000, 100_000, 3L);
+        riders.buildSpatialIndex();
+        final Random random = new Random(4L);
+        final int[] result = new int[10];
+
+        for (int query = 0; query < 200; query++) {
+            // some of the queries start far outside of the ride
+            final int spread = query % 4 == 0 ? 5_000_000 : 150_000;
+            final int latitude = BERLIN_LATITUDE_E6 + random.nextInt(2 * spread) - spread;
+            final int longitude = BERLIN_LONGITUDE_E6 + random.nextInt(2 * spread) - spread;
+
+            final int found = riders.getSpatialIndex().findNearest(latitude, longitude, result);
+
+            assertThat(found).isEqualTo(result.length);
+            final double[] expected = sortedDistances(riders, latitude, longitude);
+            for (int i = 0; i < found; i++) {
+                assertThat(distance(riders, result[i], latitude, longitude))
+                        .isWithin(1E-6).of(expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void findNearest_returnsAtMostAllRiders() {
+        final RiderLocationBuffer riders = randomRiders(3, 1000, 5L);
+        riders.buildSpatialIndex();
+
+        final int[] result = new int[10];
+        assertThat(riders.getSpatialIndex().findNearest(0, 0, result)).isEqualTo(3);
+        assertThat(Arrays.copyOf(result, 3)).asList().containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void hitTest_findsClosestRiderWithinRadius() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("a", BERLIN_LATITUDE_E6, BERLIN_LONGITUDE_E6);
+        riders.add("b", BERLIN_LATITUDE_E6 + 100, BERLIN_LONGITUDE_E6);
+        riders.add("c", BERLIN_LATITUDE_E6 + 10_000, BERLIN_LONGITUDE_E6 + 10_000);
+        riders.buildSpatialIndex();
+        final RiderGridIndex tested = riders.getSpatialIndex();
+
+        // 100 E6 of latitude are ~11m
+        assertThat(tested.hitTest(BERLIN_LATITUDE_E6 + 80, BERLIN_LONGITUDE_E6, 20))
+                .isEqualTo(1);
+        assertThat(tested.hitTest(BERLIN_LATITUDE_E6 - 20, BERLIN_LONGITUDE_E6, 20))
+                .isEqualTo(0);
+        assertThat(tested.hitTest(BERLIN_LATITUDE_E6 + 5_000, BERLIN_LONGITUDE_E6, 20))
+                .isEqualTo(-1);
+    }
+
+    @Test
+    public void clear_emptiesIndex() {
+        final RiderLocationBuffer riders = randomRiders(100, 1000, 6L);
+        riders.buildSpatialIndex();
+
+        riders.clear();
+
+        assertThat(riders.getSpatialIndex().size()).isEqualTo(0);
+        assertThat(riders.getSpatialIndex().hitTest(BERLIN_LATITUDE_E6, BERLIN_LONGITUDE_E6, 1E6))
+                .isEqualTo(-1);
+        assertThat(riders.getSpatialIndex().findNearest(0, 0, new int[1])).isEqualTo(0);
+    }
+
+    @Test
+    public void rebuild_handlesRidersOnOneSpot() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < 1000; i++) {
+            riders.add("rider" + i, BERLIN_LATITUDE_E6, BERLIN_LONGITUDE_E6);
+        }
+        riders.buildSpatialIndex();
+
+        assertThat(riders.getSpatialIndex().queryBoundingBox(
+                BERLIN_LATITUDE_E6, BERLIN_LONGITUDE_E6, BERLIN_LATITUDE_E6, BERLIN_LONGITUDE_E6,
+                riderIndex -> {
+                })).isEqualTo(1000);
+    }
+
+    private static RiderLocationBuffer randomRiders(int count, int spreadE6, long seed) {
+        final Random random = new Random(seed);
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < count; i++) {
+            riders.add("rider" + i,
+                    BERLIN_LATITUDE_E6 + random.nextInt(2 * spreadE6) - spreadE6,
+                    BERLIN_LONGITUDE_E6 + random.nextInt(2 * spreadE6) - spreadE6);
+        }
+        return riders;
+    }
+
+    private static double[] sortedDistances(RiderLocations riders, int latitude, int longitude) {
+        final double[] distances = new double[riders.size()];
+        for (int i = 0; i < riders.size(); i++) {
+            distances[i] = distance(riders, i, latitude, longitude);
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private static double distance(RiderLocations riders, int index, int latitude, int longitude) {
+        return GeoUtils.distanceMeters(latitude, longitude,
+                riders.getLatitudeE6(index), riders.getLongitudeE6(index));
+    }
+}
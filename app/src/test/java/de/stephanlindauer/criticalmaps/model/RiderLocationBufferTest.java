@@ -0,0 +1,134 @@
+package de.stephanlindauer.criticalmaps.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderLocationBufferTest {
+    @Test
+    public void add_ridersCanBeLookedUpByDeviceKey() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+
+        tested.add("a", 1, 2);
+        tested.add("b", 3, 4);
+
+        assertThat(tested.size()).isEqualTo(2);
+        assertThat(tested.indexOf("b")).isEqualTo(1);
+        assertThat(tested.getLatitudeE6(1)).isEqualTo(3);
+        assertThat(tested.getLongitudeE6(1)).isEqualTo(4);
+        assertThat(tested.indexOf("c")).isEqualTo(-1);
+    }
+
+    @Test
+    public void add_duplicateKeyUpdatesPosition() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+
+        tested.add("a", 1, 2);
+        tested.add("a", 5, 6);
+
+        assertThat(tested.size()).isEqualTo(1);
+        assertThat(tested.getLatitudeE6(0)).isEqualTo(5);
+    }
+
+    @Test
+    public void add_growsPastInitialCapacityAndKeepsIndex() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+
+        for (int i = 0; i < 5000; i++) {
+            tested.add("rider" + i, i, -i);
+        }
+
+        assertThat(tested.size()).isEqualTo(5000);
+        for (int i = 0; i < 5000; i += 7) {
+            final int index = tested.indexOf("rider" + i);
+            assertThat(tested.getLongitudeE6(index)).isEqualTo(-i);
+        }
+    }
+
+    @Test
+    public void clear_keepsCapacityForReuse() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+        for (int i = 0; i < 1000; i++) {
+            tested.add("rider" + i, i, i);
+        }
+        final int capacity = tested.capacity();
+
+        tested.clear();
+        tested.add("rider1", 7, 7);
+
+        assertThat(tested.size()).isEqualTo(1);
+        assertThat(tested.capacity()).isEqualTo(capacity);
+        assertThat(tested.indexOf("rider2")).isEqualTo(-1);
+        assertThat(tested.indexOf("rider1")).isEqualTo(0);
+    }
+
+    @Test
+    public void remove_movesLastRiderIntoGap() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+        tested.add("a", 1, 1);
+        tested.add("b", 2, 2);
+        tested.add("c", 3, 3);
+
+        assertThat(tested.remove("a")).isTrue();
+        assertThat(tested.remove("a")).isFalse();
+
+        assertThat(tested.size()).isEqualTo(2);
+        assertThat(tested.indexOf("a")).isEqualTo(-1);
+        assertThat(tested.indexOf("c")).isEqualTo(0);
+        assertThat(tested.getLatitudeE6(0)).isEqualTo(3);
+        assertThat(tested.indexOf("b")).isEqualTo(1);
+    }
+
+    @Test
+    public void remove_randomChurnKeepsIndexConsistent() {
+        final RiderLocationBuffer tested = new RiderLocationBuffer();
+        final Map<String, Integer> expected = new HashMap<>();
+        final ArrayList<String> keys = new ArrayList<>();
+        final Random random = new Random(3);
+
+        for (int i = 0; i < 20_000; i++) {
+            if (!keys.isEmpty() && random.nextInt(3) == 0) {
+                final String key = keys.remove(random.nextInt(keys.size()));
+                assertThat(tested.remove(key)).isTrue();
+                expected.remove(key);
+            } else {
+                final String key = "rider" + random.nextInt(5000);
+                if (expected.put(key, i) == null) {
+                    keys.add(key);
+                }
+                tested.add(key, i, -i);
+            }
+        }
+
+        assertThat(tested.size()).isEqualTo(expected.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            final int index = tested.indexOf(entry.getKey());
+            assertThat(tested.getDeviceKey(index)).isEqualTo(entry.getKey());
+            assertThat(tested.getLatitudeE6(index)).isEqualTo(entry.getValue());
+        }
+        for (int i = 0; i < 5000; i++) {
+            if (!expected.containsKey("rider" + i)) {
+                assertThat(tested.indexOf("rider" + i)).isEqualTo(-1);
+            }
+        }
+    }
+
+    @Test
+    public void otherUsersLocationModel_recyclesReplacedBuffer() {
+        final OtherUsersLocationModel model = new OtherUsersLocationModel();
+        final RiderLocationBuffer first = model.obtainBuffer();
+        model.setOtherUsersLocations(first, true);
+        final RiderLocationBuffer second = model.obtainBuffer();
+        model.setOtherUsersLocations(second, true);
+
+        final RiderLocationBuffer third = model.obtainBuffer();
+
+        assertThat(third).isSameInstanceAs(first);
+        assertThat(model.getOtherUsersLocations()).isSameInstanceAs(second);
+    }
+}
@@ -0,0 +1,179 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ChatHistoryTest {
+
+    private static final int HISTORY_SIZE = 5_000;
+
+    @Test
+    public void replace_newMessagesAppendedAsOneRange() {
+        final ChatHistory tested = new ChatHistory();
+        tested.replace(identifiers("a", "b"), Arrays.asList(message("a", 1), message("b", 2)));
+
+        final ChatChangeSet changes = tested.replace(identifiers("a", "b", "c", "d"),
+                Arrays.asList(message("d", 4), message("c", 3)));
+
+        assertThat(identifiersOf(tested.getMessages())).containsExactly("a", "b", "c", "d")
+                .inOrder();
+        assertThat(changes.getFromRevision()).isEqualTo(1);
+        assertThat(changes.getToRevision()).isEqualTo(2);
+        assertThat(changes.getRemovedRangeCount()).isEqualTo(0);
+        assertThat(changes.getInsertedRangeCount()).isEqualTo(1);
+        assertThat(changes.getInsertedRangeStart(0)).isEqualTo(2);
+        assertThat(changes.getInsertedRangeLength(0)).isEqualTo(2);
+        assertThat(identifiersOf(changes.getInserted())).containsExactly("c", "d").inOrder();
+    }
+
+    @Test
+    public void replace_knownMessagesChangeNothing() {
+        final ChatHistory tested = new ChatHistory();
+        tested.replace(identifiers("a"), Collections.singletonList(message("a", 1)));
+        final List<ReceivedChatMessage> before = tested.getMessages();
+
+        final ChatChangeSet changes = tested.replace(identifiers("a"),
+                Collections.singletonList(message("a", 1)));
+
+        assertThat(changes.isEmpty()).isTrue();
+        assertThat(tested.getMessages()).isSameInstanceAs(before);
+        assertThat(tested.getRevision()).isEqualTo(1);
+    }
+
+    @Test
+    public void replace_equalTimestampsOrderedByIdentifier() {
+        final ChatHistory tested = new ChatHistory();
+
+        tested.replace(identifiers("b", "a", "c"),
+                Arrays.asList(message("b", 1), message("a", 1), message("c", 0)));
+
+        assertThat(identifiersOf(tested.getMessages())).containsExactly("c", "a", "b").inOrder();
+    }
+
+    @Test
+    public void apply_removesBeforeAdding() {
+        final ChatHistory tested = new ChatHistory();
+        tested.replace(identifiers("a", "b", "c"),
+                Arrays.asList(message("a", 1), message("b", 2), message("c", 3)));
+
+        final ChatChangeSet changes = tested.apply(Arrays.asList("b", "unknown"),
+                Arrays.asList(message("b", 2), message("a", 1), message("e", 0)));
+
+        assertThat(identifiersOf(tested.getMessages())).containsExactly("e", "a", "b", "c")
+                .inOrder();
+        assertThat(changes.getRemovedRangeCount()).isEqualTo(1);
+        assertThat(changes.getRemovedRangeStart(0)).isEqualTo(1);
+        assertThat(identifiersOf(changes.getInserted())).containsExactly("e", "b").inOrder();
+    }
+
+    @Test
+    public void merge_changeSetsReplayToSameList() {
+        final Random random = new Random(1446113099L);
+        final ChatHistory tested = new ChatHistory();
+        final TreeMap<String, ReceivedChatMessage> server = new TreeMap<>();
+        List<ReceivedChatMessage> replayed = new ArrayList<>();
+
+        for (int round = 0; round < 200; round++) {
+            final List<String> removed = new ArrayList<>();
+            for (String identifier : new ArrayList<>(server.keySet())) {
+                if (random.nextInt(30) == 0) {
+                    server.remove(identifier);
+                    removed.add(identifier);
+                }
+            }
+            final List<ReceivedChatMessage> added = new ArrayList<>();
+            for (int i = random.nextInt(20); i > 0; i--) {
+                final ReceivedChatMessage message = message(
+                        Long.toHexString(random.nextLong()), random.nextInt(1000));
+                server.put(message.getIdentifier(), message);
+                added.add(message);
+            }
+
+            final ChatChangeSet changes;
+            if (random.nextBoolean()) {
+                changes = tested.apply(removed, added);
+            } else {
+                // full responses list everything, known messages included
+                changes = tested.replace(server.keySet(), new ArrayList<>(server.values()));
+            }
+
+            replayed = replay(replayed, changes, tested.getMessages());
+            final List<ReceivedChatMessage> expected = new ArrayList<>(server.values());
+            Collections.sort(expected, ChatHistory.ORDER);
+            assertThat(tested.getMessages()).containsExactlyElementsIn(expected).inOrder();
+            assertThat(replayed).containsExactlyElementsIn(expected).inOrder();
+        }
+    }
+
+    @Test
+    public void replace_mergesNewMessagesIntoLargeHistory() {
+        final List<ReceivedChatMessage> all = largeHistoryAndFiveNew();
+        final List<ReceivedChatMessage> history = all.subList(0, HISTORY_SIZE);
+        final ChatHistory tested = new ChatHistory();
+        tested.replace(new HashSet<>(identifiersOf(history)), history);
+
+        final ChatChangeSet changes = tested.replace(new HashSet<>(identifiersOf(all)),
+                all.subList(HISTORY_SIZE, all.size()));
+
+        final List<ReceivedChatMessage> expected = new ArrayList<>(all);
+        Collections.sort(expected, ChatHistory.ORDER);
+        assertThat(tested.getMessages()).containsExactlyElementsIn(expected).inOrder();
+        assertThat(changes.getInsertedRangeCount()).isEqualTo(1);
+    }
+
+    // HISTORY_SIZE messages in random order followed by 5 newer ones
+    private static List<ReceivedChatMessage> largeHistoryAndFiveNew() {
+        final Random random = new Random(20200601L);
+        final List<ReceivedChatMessage> all = new ArrayList<>();
+        for (int i = 0; i < HISTORY_SIZE + 5; i++) {
+            all.add(message(String.format(Locale.US, "%016x", random.nextLong()),
+                    i < HISTORY_SIZE ? random.nextInt(100_000) : 100_000 + i));
+        }
+        return all;
+    }
+
+    // applies changes to previous the way a RecyclerView adapter would
+    private static List<ReceivedChatMessage> replay(List<ReceivedChatMessage> previous,
+                                                    ChatChangeSet changes,
+                                                    List<ReceivedChatMessage> current) {
+        final List<ReceivedChatMessage> result = new ArrayList<>(previous);
+        for (int i = changes.getRemovedRangeCount() - 1; i >= 0; i--) {
+            final int start = changes.getRemovedRangeStart(i);
+            result.subList(start, start + changes.getRemovedRangeLength(i)).clear();
+        }
+        for (int i = 0; i < changes.getInsertedRangeCount(); i++) {
+            final int start = changes.getInsertedRangeStart(i);
+            result.addAll(start,
+                    current.subList(start, start + changes.getInsertedRangeLength(i)));
+        }
+        return result;
+    }
+
+    private static ReceivedChatMessage message(String identifier, long timestampSeconds) {
+        return new ReceivedChatMessage(identifier, "hi", new Date(timestampSeconds * 1000));
+    }
+
+    private static Set<String> identifiers(String... identifiers) {
+        return new HashSet<>(Arrays.asList(identifiers));
+    }
+
+    private static List<String> identifiersOf(List<ReceivedChatMessage> messages) {
+        final List<String> identifiers = new ArrayList<>(messages.size());
+        for (ReceivedChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        return identifiers;
+    }
+}
@@ -0,0 +1,193 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ChatOutboxTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void add_restoredAfterRestartWithSameIdentifierAndTimestamp() {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final OutgoingChatMessage message = new OutgoingChatMessage("Critical Mass ✊ 50% & more\n");
+        newChatOutbox(file).add(message);
+
+        final List<OutgoingChatMessage> restored = newChatOutbox(file).getPending();
+
+        assertThat(restored).hasSize(1);
+        assertThat(restored.get(0).getIdentifier()).isEqualTo(message.getIdentifier());
+        assertThat(restored.get(0).getMessage()).isEqualTo(message.getMessage());
+        assertThat(restored.get(0).getTimestamp()).isEqualTo(message.getTimestamp());
+    }
+
+    @Test
+    public void add_sameIdentifierOnlyOnce() {
+        final ChatOutbox tested = newChatOutbox(new File(folder.getRoot(), ChatOutbox.FILE_NAME));
+        final OutgoingChatMessage message = new OutgoingChatMessage("test");
+
+        tested.add(message);
+        tested.add(new OutgoingChatMessage(message.getIdentifier(), "test", new Date()));
+
+        assertThat(tested.getPending()).containsExactly(message);
+    }
+
+    @Test
+    public void acknowledge_notResentAfterRestart() {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final ChatOutbox tested = newChatOutbox(file);
+        final OutgoingChatMessage acknowledged = new OutgoingChatMessage("one");
+        final OutgoingChatMessage unacknowledged = new OutgoingChatMessage("two");
+        tested.add(acknowledged);
+        tested.add(unacknowledged);
+
+        assertThat(tested.acknowledge(Collections.singleton(acknowledged.getIdentifier())))
+                .containsExactly(acknowledged);
+        assertThat(tested.acknowledge(Collections.singleton(acknowledged.getIdentifier())))
+                .isEmpty();
+
+        final List<OutgoingChatMessage> restored = newChatOutbox(file).getPending();
+        assertThat(restored).hasSize(1);
+        assertThat(restored.get(0).getIdentifier()).isEqualTo(unacknowledged.getIdentifier());
+    }
+
+    @Test
+    public void acknowledge_compactsFile() throws IOException {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final ChatOutbox tested = newChatOutbox(file);
+        tested.add(new OutgoingChatMessage("kept"));
+
+        for (int i = 0; i < ChatOutbox.COMPACT_THRESHOLD; i++) {
+            final OutgoingChatMessage message = new OutgoingChatMessage("message " + i);
+            tested.add(message);
+            tested.acknowledge(Collections.singleton(message.getIdentifier()));
+        }
+
+        // one line per pending message plus at most the records since the last compaction
+        assertThat(lineCount(file)).isLessThan(ChatOutbox.COMPACT_THRESHOLD + 1);
+        assertThat(newChatOutbox(file).getPending()).hasSize(1);
+    }
+
+    @Test
+    public void getBatch_oldestFirstAndLimited() {
+        final ChatOutbox tested = newChatOutbox(new File(folder.getRoot(), ChatOutbox.FILE_NAME));
+        final List<OutgoingChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < ChatOutbox.MAX_BATCH_SIZE + 5; i++) {
+            final OutgoingChatMessage message = new OutgoingChatMessage("message " + i);
+            messages.add(message);
+            tested.add(message);
+        }
+
+        assertThat(tested.getBatch())
+                .containsExactlyElementsIn(messages.subList(0, ChatOutbox.MAX_BATCH_SIZE))
+                .inOrder();
+
+        final HashSet<String> firstBatch = new HashSet<>();
+        for (OutgoingChatMessage message : tested.getBatch()) {
+            firstBatch.add(message.getIdentifier());
+        }
+        tested.acknowledge(firstBatch);
+        assertThat(tested.getBatch()).hasSize(5);
+    }
+
+    @Test
+    public void restore_skipsTornAndExpiredRecords() throws IOException {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final long now = System.currentTimeMillis();
+        try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+            sink.writeUtf8("A old " + (now - ChatOutbox.MAX_AGE_MILLIS - 1) + " old\n");
+            sink.writeUtf8("A fresh " + now + " fresh\n");
+            sink.writeUtf8("A torn 14461");
+        }
+
+        final ChatOutbox tested = newChatOutbox(file);
+
+        assertThat(tested.getPending()).hasSize(1);
+        assertThat(tested.getPending().get(0).getIdentifier()).isEqualTo("fresh");
+        // rewritten without the dropped records
+        assertThat(lineCount(file)).isEqualTo(1);
+    }
+
+    @Test
+    public void add_beforeRestoreFinishedGoesAfterRestoredMessages() {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final OutgoingChatMessage old = new OutgoingChatMessage("old");
+        newChatOutbox(file).add(old);
+        final List<Runnable> ioTasks = new ArrayList<>();
+        final ChatOutbox tested = new ChatOutbox(file, ioTasks::add, Runnable::run);
+
+        final OutgoingChatMessage sent = new OutgoingChatMessage("sent");
+        tested.add(sent);
+        assertThat(tested.getPending()).containsExactly(sent);
+        // restoring first, then the write of the new message
+        for (int i = 0; i < ioTasks.size(); i++) {
+            ioTasks.get(i).run();
+        }
+
+        assertThat(identifiers(tested.getPending()))
+                .containsExactly(old.getIdentifier(), sent.getIdentifier()).inOrder();
+        assertThat(identifiers(newChatOutbox(file).getPending()))
+                .containsExactly(old.getIdentifier(), sent.getIdentifier()).inOrder();
+    }
+
+    @Test
+    public void acknowledge_beforeRestoreFinishedDropsRestoredMessage() {
+        final File file = new File(folder.getRoot(), ChatOutbox.FILE_NAME);
+        final OutgoingChatMessage delivered = new OutgoingChatMessage("delivered");
+        final OutgoingChatMessage undelivered = new OutgoingChatMessage("undelivered");
+        final ChatOutbox previous = newChatOutbox(file);
+        previous.add(delivered);
+        previous.add(undelivered);
+        final List<Runnable> mainThreadTasks = new ArrayList<>();
+        final ChatOutbox tested = new ChatOutbox(file, Runnable::run, mainThreadTasks::add);
+
+        // the response came in while the restored messages were on their way to the main thread
+        assertThat(tested.acknowledge(Collections.singleton(delivered.getIdentifier()))).isEmpty();
+        for (Runnable task : mainThreadTasks) {
+            task.run();
+        }
+
+        assertThat(identifiers(tested.getPending()))
+                .containsExactly(undelivered.getIdentifier());
+        assertThat(identifiers(newChatOutbox(file).getPending()))
+                .containsExactly(undelivered.getIdentifier());
+    }
+
+    private static ChatOutbox newChatOutbox(File file) {
+        return new ChatOutbox(file, Runnable::run, Runnable::run);
+    }
+
+    private static List<String> identifiers(List<OutgoingChatMessage> messages) {
+        final List<String> identifiers = new ArrayList<>();
+        for (OutgoingChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        return identifiers;
+    }
+
+    private static int lineCount(File file) throws IOException {
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            int count = 0;
+            while (source.readUtf8Line() != null) {
+                count++;
+            }
+            return count;
+        }
+    }
+}
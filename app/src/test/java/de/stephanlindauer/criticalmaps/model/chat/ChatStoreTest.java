@@ -0,0 +1,138 @@
+package de.stephanlindauer.criticalmaps.model.chat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ChatStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void save_restoredAfterRestart() {
+        final File file = new File(folder.getRoot(), ChatStore.FILE_NAME);
+        final ReceivedChatMessage message =
+                new ReceivedChatMessage("a", "Critical Mass ✊ 50% & more\n", new Date(1000));
+        newStore(file).save(Collections.singletonList(message));
+
+        final List<ReceivedChatMessage> restored = newStore(file).readPage(null, 10);
+
+        assertThat(restored).hasSize(1);
+        assertThat(restored.get(0).getIdentifier()).isEqualTo("a");
+        assertThat(restored.get(0).getMessage()).isEqualTo(message.getMessage());
+        assertThat(restored.get(0).getTimestamp()).isEqualTo(message.getTimestamp());
+    }
+
+    @Test
+    public void save_storedMessagesSkipped() {
+        final ChatStore tested = newStore(new File(folder.getRoot(), ChatStore.FILE_NAME));
+
+        tested.save(messages("a", "b"));
+        tested.save(messages("a", "b", "c"));
+
+        assertThat(identifiersOf(tested.readPage(null, 10))).containsExactly("a", "b", "c")
+                .inOrder();
+    }
+
+    @Test
+    public void save_lateMessageSortedIn() {
+        final File file = new File(folder.getRoot(), ChatStore.FILE_NAME);
+        final ChatStore tested = newStore(file);
+
+        tested.save(Arrays.asList(message("a", 1), message("c", 3)));
+        tested.save(Collections.singletonList(message("b", 2)));
+
+        assertThat(identifiersOf(tested.readPage(null, 10))).containsExactly("a", "b", "c")
+                .inOrder();
+        assertThat(identifiersOf(newStore(file).readPage(null, 10)))
+                .containsExactly("a", "b", "c").inOrder();
+    }
+
+    @Test
+    public void readPage_pagesBackwardsWithEqualTimestamps() {
+        final ChatStore tested = newStore(new File(folder.getRoot(), ChatStore.FILE_NAME));
+        tested.save(Arrays.asList(message("a", 1), message("b", 2), message("c", 2),
+                message("d", 2), message("e", 3)));
+
+        final List<ReceivedChatMessage> newest = tested.readPage(null, 2);
+        final List<ReceivedChatMessage> older = tested.readPage(newest.get(0), 2);
+        final List<ReceivedChatMessage> oldest = tested.readPage(older.get(0), 2);
+
+        assertThat(identifiersOf(newest)).containsExactly("d", "e").inOrder();
+        assertThat(identifiersOf(older)).containsExactly("b", "c").inOrder();
+        assertThat(identifiersOf(oldest)).containsExactly("a");
+    }
+
+    @Test
+    public void save_keepsNewestMaxMessages() {
+        final File file = new File(folder.getRoot(), ChatStore.FILE_NAME);
+        final ChatStore tested = newStore(file);
+        final int count = ChatStore.MAX_MESSAGES + ChatStore.COMPACT_SLACK + 1;
+        final List<ReceivedChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(message(String.format(Locale.US, "m%05d", i), i));
+        }
+
+        tested.save(messages);
+
+        assertThat(tested.size()).isEqualTo(ChatStore.MAX_MESSAGES);
+        final ChatStore restarted = newStore(file);
+        assertThat(restarted.size()).isEqualTo(ChatStore.MAX_MESSAGES);
+        assertThat(restarted.readPage(null, 1).get(0).getIdentifier())
+                .isEqualTo(messages.get(count - 1).getIdentifier());
+    }
+
+    @Test
+    public void restore_skipsTornRecordAndAppendsAfterwards() throws IOException {
+        final File file = new File(folder.getRoot(), ChatStore.FILE_NAME);
+        try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+            sink.writeUtf8("1000 a hi\n");
+            sink.writeUtf8("2000 b h");
+        }
+        final ChatStore tested = newStore(file);
+
+        tested.save(Collections.singletonList(message("c", 3)));
+
+        assertThat(identifiersOf(newStore(file).readPage(null, 10))).containsExactly("a", "c")
+                .inOrder();
+    }
+
+    private static ChatStore newStore(File file) {
+        return new ChatStore(file, Runnable::run, Runnable::run);
+    }
+
+    private static ReceivedChatMessage message(String identifier, long timestampSeconds) {
+        return new ReceivedChatMessage(identifier, "hi", new Date(timestampSeconds * 1000));
+    }
+
+    private static List<ReceivedChatMessage> messages(String... identifiers) {
+        final List<ReceivedChatMessage> messages = new ArrayList<>();
+        for (String identifier : identifiers) {
+            messages.add(message(identifier, 0));
+        }
+        return messages;
+    }
+
+    private static List<String> identifiersOf(List<ReceivedChatMessage> messages) {
+        final List<String> identifiers = new ArrayList<>(messages.size());
+        for (ReceivedChatMessage message : messages) {
+            identifiers.add(message.getIdentifier());
+        }
+        return identifiers;
+    }
+}
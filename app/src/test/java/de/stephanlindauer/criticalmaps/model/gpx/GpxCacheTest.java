@@ -0,0 +1,152 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osmdroid.util.GeoPoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class GpxCacheTest {
+
+    private static final String URI = "content://com.example/ride.gpx";
+    private static final String IDENTITY = "1234@5678";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void write_readBackUnchanged() {
+        final GpxCache tested = newCache(GpxCache.MAX_BYTES);
+        final GpxModel written = gpxModel(URI, new Random(1L), 5_000);
+
+        tested.write(written, IDENTITY);
+        final GpxModel read = newCache(GpxCache.MAX_BYTES).read(URI, IDENTITY);
+
+        assertThat(read).isNotNull();
+        assertThat(read.getUri()).isEqualTo(URI);
+        assertThat(read.getTracks()).hasSize(2);
+        for (int i = 0; i < 2; i++) {
+            final GpxTrack expectedTrack = written.getTracks().get(i);
+            final GpxTrack track = read.getTracks().get(i);
+            assertThat(track.getName()).isEqualTo(expectedTrack.getName());
+            assertThat(track.getPointCount()).isEqualTo(expectedTrack.getPointCount());
+            for (int p = 0; p < track.getPointCount(); p++) {
+                assertThat(track.getLatitudeE6(p)).isEqualTo(expectedTrack.getLatitudeE6(p));
+                assertThat(track.getLongitudeE6(p)).isEqualTo(expectedTrack.getLongitudeE6(p));
+            }
+
+            final SimplifiedTrack expected = written.getSimplifiedTracks().get(i);
+            final SimplifiedTrack simplified = read.getSimplifiedTracks().get(i);
+            assertThat(simplified.getPointCount()).isEqualTo(expected.getPointCount());
+            assertThat(simplified.getMercatorX()).isEqualTo(expected.getMercatorX());
+            assertThat(simplified.getMercatorY()).isEqualTo(expected.getMercatorY());
+            for (int zoom = SimplifiedTrack.MIN_ZOOM; zoom <= SimplifiedTrack.MAX_ZOOM; zoom++) {
+                assertThat(simplified.getIndices(zoom)).isEqualTo(expected.getIndices(zoom));
+                assertThat(simplified.getChunkBounds(zoom))
+                        .isEqualTo(expected.getChunkBounds(zoom));
+            }
+        }
+        assertThat(read.getTracks().get(1).getName()).isNull();
+
+        assertThat(read.getPoiList()).hasSize(2);
+        assertThat(read.getPoiList().get(0).getName()).isEqualTo("Start ✊");
+        assertThat(read.getPoiList().get(0).getPosition().getLatitude()).isEqualTo(52.5);
+        assertThat(read.getPoiList().get(0).getPosition().getAltitude()).isEqualTo(34.5);
+        assertThat(read.getPoiList().get(1).getName()).isNull();
+    }
+
+    @Test
+    public void read_otherIdentityIsStaleAndDeleted() {
+        final GpxCache tested = newCache(GpxCache.MAX_BYTES);
+        tested.write(gpxModel(URI, new Random(2L), 100), IDENTITY);
+
+        assertThat(tested.read(URI, "1234@9999")).isNull();
+        assertThat(tested.read(URI, IDENTITY)).isNull();
+        assertThat(tested.read("content://com.example/other.gpx", IDENTITY)).isNull();
+    }
+
+    @Test
+    public void read_damagedEntryDeleted() throws IOException {
+        final GpxCache tested = newCache(GpxCache.MAX_BYTES);
+        tested.write(gpxModel(URI, new Random(3L), 1_000), IDENTITY);
+        final File file = cacheDirectory().listFiles()[0];
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(file.length() / 2);
+        }
+
+        assertThat(tested.read(URI, IDENTITY)).isNull();
+        assertThat(file.exists()).isFalse();
+    }
+
+    @Test
+    public void write_dropsLeastRecentlyUsedBeyondMaxBytes() {
+        newCache(GpxCache.MAX_BYTES).write(gpxModel("a", new Random(4L), 1_000), IDENTITY);
+        final long entryBytes = cacheDirectory().listFiles()[0].length();
+        final GpxCache tested = newCache(entryBytes * 5 / 2);
+
+        tested.write(gpxModel("b", new Random(4L), 1_000), IDENTITY);
+        backdate();
+        // reading "a" makes "b" the least recently used one
+        assertThat(tested.read("a", IDENTITY)).isNotNull();
+        tested.write(gpxModel("c", new Random(4L), 1_000), IDENTITY);
+
+        assertThat(tested.read("a", IDENTITY)).isNotNull();
+        assertThat(tested.read("b", IDENTITY)).isNull();
+        assertThat(tested.read("c", IDENTITY)).isNotNull();
+    }
+
+    private GpxCache newCache(long maxBytes) {
+        return new GpxCache(cacheDirectory(), maxBytes);
+    }
+
+    private File cacheDirectory() {
+        return new File(folder.getRoot(), GpxCache.DIRECTORY_NAME);
+    }
+
+    // makes everything in the cache look a minute old
+    private void backdate() {
+        for (File file : cacheDirectory().listFiles()) {
+            assertThat(file.setLastModified(file.lastModified() - 60_000)).isTrue();
+        }
+    }
+
+    private static GpxModel gpxModel(String uri, Random random, int points) {
+        final List<GpxTrack> tracks = Arrays.asList(
+                randomTrack("Friday ride", random, points), randomTrack(null, random, 3));
+        final List<SimplifiedTrack> simplified = new ArrayList<>();
+        for (GpxTrack track : tracks) {
+            simplified.add(SimplifiedTrack.build(track));
+        }
+        final GpxModel gpxModel = new GpxModel();
+        gpxModel.setUri(uri);
+        gpxModel.setTracks(tracks);
+        gpxModel.setSimplifiedTracks(simplified);
+        gpxModel.setPoiList(Arrays.asList(
+                new GpxPoi("Start ✊", new GeoPoint(52.5, 13.4, 34.5)),
+                new GpxPoi(null, new GeoPoint(52.6, 13.5))));
+        return gpxModel;
+    }
+
+    private static GpxTrack randomTrack(String name, Random random, int count) {
+        final int[] latitudesE6 = new int[count];
+        final int[] longitudesE6 = new int[count];
+        int latitudeE6 = 52_500_000;
+        int longitudeE6 = 13_400_000;
+        for (int i = 0; i < count; i++) {
+            latitudeE6 += random.nextInt(41) - 20;
+            longitudeE6 += random.nextInt(61) - 30;
+            latitudesE6[i] = latitudeE6;
+            longitudesE6[i] = longitudeE6;
+        }
+        return new GpxTrack(name, latitudesE6, longitudesE6, count);
+    }
+}
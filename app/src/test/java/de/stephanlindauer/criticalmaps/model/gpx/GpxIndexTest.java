@@ -0,0 +1,196 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class GpxIndexTest {
+
+    @Test
+    public void query_onlyVisitsWhatTouchesTheBox() {
+        final GpxLayer layer = loadedLayer("a", true,
+                Arrays.asList(track("north", 53.0, 13.0, 53.1, 13.1),
+                        track("south", 52.0, 13.0, 52.1, 13.1)),
+                Arrays.asList(poi("meeting point", 52.05, 13.05), poi("far away", 48.0, 11.0)));
+        final GpxIndex tested = GpxIndex.build(Collections.singletonList(layer));
+
+        final Recorder recorder = new Recorder();
+        final int found = tested.query(MercatorUtils.x(12.9), MercatorUtils.y(52.2),
+                MercatorUtils.x(13.2), MercatorUtils.y(51.9), recorder);
+
+        assertThat(found).isEqualTo(2);
+        assertThat(recorder.visited).containsExactly("track south 0", "poi meeting point 0")
+                .inOrder();
+    }
+
+    @Test
+    public void build_skipsHiddenAndUnloadedLayers() {
+        final GpxLayer hidden = loadedLayer("hidden", false,
+                Collections.singletonList(track("hidden track", 52.0, 13.0, 52.1, 13.1)),
+                Collections.emptyList());
+        final GpxLayer unloaded = new GpxLayer("unloaded", "unloaded", 1, true, null);
+        final GpxLayer shown = loadedLayer("shown", 2, true,
+                Collections.singletonList(track("shown track", 52.0, 13.0, 52.1, 13.1)),
+                Collections.singletonList(poi("shown poi", 52.0, 13.0)));
+
+        final GpxIndex tested = GpxIndex.build(Arrays.asList(hidden, unloaded, shown));
+
+        assertThat(tested.getTrackCount()).isEqualTo(1);
+        assertThat(tested.getPoiCount()).isEqualTo(1);
+        final Recorder recorder = new Recorder();
+        tested.query(0, 0, 1, 1, recorder);
+        // in the color of the layer they came from
+        assertThat(recorder.visited).containsExactly("track shown track 2", "poi shown poi 2")
+                .inOrder();
+    }
+
+    @Test
+    public void query_sameAsCheckingEveryEntry() {
+        final Random random = new Random(7L);
+        final List<GpxLayer> layers = new ArrayList<>();
+        final List<GpxTrack> allTracks = new ArrayList<>();
+        final List<GpxPoi> allPois = new ArrayList<>();
+        for (int l = 0; l < 20; l++) {
+            final List<GpxTrack> tracks = new ArrayList<>();
+            final List<GpxPoi> pois = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                final double latitude = 52 + random.nextDouble();
+                final double longitude = 13 + random.nextDouble();
+                tracks.add(track("t" + l + "/" + i, latitude, longitude,
+                        latitude + random.nextDouble() * 0.1,
+                        longitude + random.nextDouble() * 0.1));
+            }
+            for (int i = 0; i < 50; i++) {
+                pois.add(poi("p" + l + "/" + i,
+                        52 + random.nextDouble(), 13 + random.nextDouble()));
+            }
+            layers.add(loadedLayer("l" + l, true, tracks, pois));
+            allTracks.addAll(tracks);
+            allPois.addAll(pois);
+        }
+        final GpxIndex tested = GpxIndex.build(layers);
+
+        for (int q = 0; q < 100; q++) {
+            final double minLatitude = 52 + random.nextDouble();
+            final double minLongitude = 13 + random.nextDouble();
+            final double maxLatitude = minLatitude + random.nextDouble() * 0.3;
+            final double maxLongitude = minLongitude + random.nextDouble() * 0.3;
+
+            final Set<String> expected = new HashSet<>();
+            for (GpxTrack track : allTracks) {
+                if (intersects(track, minLatitude, minLongitude, maxLatitude, maxLongitude)) {
+                    expected.add(track.getName());
+                }
+            }
+            for (GpxPoi poi : allPois) {
+                final GeoPoint position = poi.getPosition();
+                if (position.getLatitude() >= minLatitude && position.getLatitude() <= maxLatitude
+                        && position.getLongitude() >= minLongitude
+                        && position.getLongitude() <= maxLongitude) {
+                    expected.add(poi.getName());
+                }
+            }
+
+            final Set<String> found = new HashSet<>();
+            tested.query(MercatorUtils.x(minLongitude), MercatorUtils.y(maxLatitude),
+                    MercatorUtils.x(maxLongitude), MercatorUtils.y(minLatitude),
+                    new GpxIndex.Visitor() {
+                        @Override
+                        public void visitTrack(SimplifiedTrack track, @Nullable String name,
+                                               int color) {
+                            found.add(name);
+                        }
+
+                        @Override
+                        public void visitPoi(GpxPoi poi, double mercatorX, double mercatorY,
+                                             int color) {
+                            found.add(poi.getName());
+                        }
+                    });
+            assertThat(found).isEqualTo(expected);
+        }
+    }
+
+    private static boolean intersects(GpxTrack track, double minLatitude, double minLongitude,
+                                      double maxLatitude, double maxLongitude) {
+        double trackMinLatitude = Double.MAX_VALUE;
+        double trackMaxLatitude = -Double.MAX_VALUE;
+        double trackMinLongitude = Double.MAX_VALUE;
+        double trackMaxLongitude = -Double.MAX_VALUE;
+        for (int i = 0; i < track.getPointCount(); i++) {
+            trackMinLatitude = Math.min(trackMinLatitude, track.getLatitudeE6(i) / 1E6D);
+            trackMaxLatitude = Math.max(trackMaxLatitude, track.getLatitudeE6(i) / 1E6D);
+            trackMinLongitude = Math.min(trackMinLongitude, track.getLongitudeE6(i) / 1E6D);
+            trackMaxLongitude = Math.max(trackMaxLongitude, track.getLongitudeE6(i) / 1E6D);
+        }
+        return trackMinLatitude <= maxLatitude && trackMaxLatitude >= minLatitude
+                && trackMinLongitude <= maxLongitude && trackMaxLongitude >= minLongitude;
+    }
+
+    static GpxLayer loadedLayer(String uri, boolean visible, List<GpxTrack> tracks,
+                                List<GpxPoi> pois) {
+        return loadedLayer(uri, 0, visible, tracks, pois);
+    }
+
+    static GpxLayer loadedLayer(String uri, int color, boolean visible, List<GpxTrack> tracks,
+                                List<GpxPoi> pois) {
+        final List<SimplifiedTrack> simplified = new ArrayList<>();
+        for (GpxTrack track : tracks) {
+            simplified.add(SimplifiedTrack.build(track));
+        }
+        final GpxModel gpxModel = new GpxModel();
+        gpxModel.setUri(uri);
+        gpxModel.setTracks(tracks);
+        gpxModel.setSimplifiedTracks(simplified);
+        gpxModel.setPoiList(pois);
+        final GpxLayer layer = new GpxLayer(uri, uri, color, visible, null);
+        layer.setGpxModel(gpxModel);
+        return layer;
+    }
+
+    // a straight line, so simplifying keeps just the ends
+    static GpxTrack track(String name, double fromLatitude, double fromLongitude,
+                          double toLatitude, double toLongitude) {
+        final int count = 10;
+        final int[] latitudesE6 = new int[count];
+        final int[] longitudesE6 = new int[count];
+        for (int i = 0; i < count; i++) {
+            latitudesE6[i] = (int) Math.round(
+                    (fromLatitude + (toLatitude - fromLatitude) * i / (count - 1)) * 1E6D);
+            longitudesE6[i] = (int) Math.round(
+                    (fromLongitude + (toLongitude - fromLongitude) * i / (count - 1)) * 1E6D);
+        }
+        return new GpxTrack(name, latitudesE6, longitudesE6, count);
+    }
+
+    static GpxPoi poi(String name, double latitude, double longitude) {
+        return new GpxPoi(name, new GeoPoint(latitude, longitude));
+    }
+
+    private static class Recorder implements GpxIndex.Visitor {
+        final List<String> visited = new ArrayList<>();
+
+        @Override
+        public void visitTrack(SimplifiedTrack track, @Nullable String name, int color) {
+            visited.add("track " + name + " " + color);
+        }
+
+        @Override
+        public void visitPoi(GpxPoi poi, double mercatorX, double mercatorY, int color) {
+            visited.add("poi " + poi.getName() + " " + color);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static de.stephanlindauer.criticalmaps.model.gpx.GpxIndexTest.poi;
+import static de.stephanlindauer.criticalmaps.model.gpx.GpxIndexTest.track;
+
+public class GpxLayersTest {
+
+    @Test
+    public void encode_decodesBackUnchanged() {
+        final double[] bounds = {0.53, 0.32, 0.5375, 0.3312345678901234};
+        final List<GpxLayer> layers = Arrays.asList(
+                new GpxLayer("content://a/route.gpx", "Main route", 0xffff0000, true, bounds),
+                new GpxLayer("content://a/alt%09.gpx", "Alternative\tone\n", 0xff0000ff, false,
+                        null));
+
+        final List<GpxLayer> decoded = GpxLayers.decode(GpxLayers.encode(layers));
+
+        assertThat(decoded).hasSize(2);
+        assertThat(decoded.get(0).getUri()).isEqualTo("content://a/route.gpx");
+        assertThat(decoded.get(0).getName()).isEqualTo("Main route");
+        assertThat(decoded.get(0).getColor()).isEqualTo(0xffff0000);
+        assertThat(decoded.get(0).isVisible()).isTrue();
+        assertThat(decoded.get(0).getBounds()).isEqualTo(bounds);
+        assertThat(decoded.get(1).getUri()).isEqualTo("content://a/alt%09.gpx");
+        assertThat(decoded.get(1).getName()).isEqualTo("Alternative one ");
+        assertThat(decoded.get(1).getColor()).isEqualTo(0xff0000ff);
+        assertThat(decoded.get(1).isVisible()).isFalse();
+        assertThat(decoded.get(1).getBounds()).isNull();
+        assertThat(decoded.get(1).isLoaded()).isFalse();
+    }
+
+    @Test
+    public void decode_skipsDamagedLines() {
+        final List<GpxLayer> decoded = GpxLayers.decode(
+                "garbage\n1\t0\t1,2\turi\tname\n1\t0\ta,b,c,d\turi\tname\n1\tred\t\turi\tname\n"
+                        + "\n0\t-65536\t\tgood\tGood\n");
+
+        assertThat(decoded).hasSize(1);
+        assertThat(decoded.get(0).getUri()).isEqualTo("good");
+    }
+
+    @Test
+    public void setLoaded_keepsBoundsAfterUnloading() {
+        final GpxLayers tested = newGpxLayers();
+        final GpxLayer layer = new GpxLayer("uri", "name", 0, true, null);
+        tested.add(layer);
+        final GpxLayer loaded = GpxIndexTest.loadedLayer("uri", true,
+                Collections.singletonList(track("t", 52.0, 13.0, 52.1, 13.2)),
+                Collections.singletonList(poi("p", 51.9, 13.1)));
+
+        tested.setLoaded(layer, loaded.getGpxModel());
+        assertThat(tested.getIndex().getTrackCount()).isEqualTo(1);
+        tested.setLoaded(layer, null);
+
+        assertThat(layer.isLoaded()).isFalse();
+        assertThat(tested.getIndex().getTrackCount()).isEqualTo(0);
+        final double[] bounds = layer.getBounds();
+        assertThat(bounds[0]).isWithin(1E-9).of(MercatorUtils.x(13.0));
+        assertThat(bounds[1]).isWithin(1E-9).of(MercatorUtils.y(52.1));
+        assertThat(bounds[2]).isWithin(1E-9).of(MercatorUtils.x(13.2));
+        assertThat(bounds[3]).isWithin(1E-9).of(MercatorUtils.y(51.9));
+    }
+
+    @Test
+    public void setVisible_rebuildsIndex() {
+        final GpxLayers tested = newGpxLayers();
+        final GpxLayer layer = GpxIndexTest.loadedLayer("uri", true,
+                Collections.emptyList(), Collections.singletonList(poi("p", 52.0, 13.0)));
+        tested.add(layer);
+        assertThat(tested.getIndex().getPoiCount()).isEqualTo(1);
+
+        tested.setVisible(layer, false);
+
+        assertThat(tested.getIndex().getPoiCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void setLoaded_indexIsBuiltOffTheMainThreadAndRebuiltForLaterChanges() {
+        final List<Runnable> cpuTasks = new ArrayList<>();
+        final GpxLayers tested = new GpxLayers(cpuTasks::add, Runnable::run);
+        final int[] changes = new int[1];
+        tested.setOnIndexChanged(() -> changes[0]++);
+        final GpxLayer first = GpxIndexTest.loadedLayer("first", true,
+                Collections.emptyList(), Collections.singletonList(poi("p", 52.0, 13.0)));
+        final GpxLayer second = GpxIndexTest.loadedLayer("second", true,
+                Collections.emptyList(), Collections.singletonList(poi("q", 52.0, 13.0)));
+
+        tested.add(first);
+        tested.add(second);
+
+        assertThat(tested.getIndex().getPoiCount()).isEqualTo(0);
+        assertThat(cpuTasks).hasSize(1);
+        cpuTasks.remove(0).run();
+        assertThat(tested.getIndex().getPoiCount()).isEqualTo(1);
+        assertThat(cpuTasks).hasSize(1);
+        cpuTasks.remove(0).run();
+        assertThat(tested.getIndex().getPoiCount()).isEqualTo(2);
+        assertThat(cpuTasks).isEmpty();
+        assertThat(changes[0]).isEqualTo(2);
+    }
+
+    @Test
+    public void nextColor_reusesTheColorOfARemovedLayer() {
+        final GpxLayers tested = newGpxLayers();
+        final GpxLayer first = new GpxLayer("first", "first", tested.nextColor(), true, null);
+        tested.add(first);
+        final GpxLayer second = new GpxLayer("second", "second", tested.nextColor(), true, null);
+        tested.add(second);
+        tested.add(new GpxLayer("third", "third", tested.nextColor(), true, null));
+        assertThat(second.getColor()).isNotEqualTo(first.getColor());
+
+        tested.remove(second);
+
+        assertThat(tested.nextColor()).isEqualTo(second.getColor());
+    }
+
+    @Test
+    public void isNear_withinMarginOfViewportSize() {
+        final GpxLayer layer = new GpxLayer("uri", "name", 0, true, new double[]{2.5, 0, 3, 1});
+        final double[] viewport = {0, 0, 1, 1};
+
+        assertThat(layer.isNear(viewport, 0)).isFalse();
+        assertThat(layer.isNear(viewport, 1)).isFalse();
+        assertThat(layer.isNear(viewport, 1.5)).isTrue();
+        assertThat(new GpxLayer("uri", "name", 0, true, null).isNear(viewport, 100)).isFalse();
+    }
+
+    @Test
+    public void boundsOf_emptyFileIsNearNothing() {
+        final GpxLayer layer = GpxIndexTest.loadedLayer("uri", true,
+                Collections.emptyList(), Collections.emptyList());
+
+        assertThat(layer.getBounds()).isNotNull();
+        assertThat(layer.isNear(new double[]{0, 0, 1, 1}, 100)).isFalse();
+    }
+
+    private static GpxLayers newGpxLayers() {
+        return new GpxLayers(Runnable::run, Runnable::run);
+    }
+}
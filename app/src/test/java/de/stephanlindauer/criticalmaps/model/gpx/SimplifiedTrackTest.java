@@ -0,0 +1,157 @@
+package de.stephanlindauer.criticalmaps.model.gpx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SimplifiedTrackTest {
+
+    @Test
+    public void significance_matchesRecursiveDouglasPeucker() {
+        final Random random = new Random(1L);
+        final int count = 500;
+        final double[] x = new double[count];
+        final double[] y = new double[count];
+        for (int i = 1; i < count; i++) {
+            x[i] = x[i - 1] + random.nextDouble();
+            y[i] = y[i - 1] + random.nextGaussian();
+        }
+
+        final double[] significance = SimplifiedTrack.significance(x, y);
+
+        for (double tolerance : new double[]{0.1, 0.5, 1, 2, 5, 20}) {
+            final List<Integer> expected = new ArrayList<>();
+            expected.add(0);
+            douglasPeucker(x, y, 0, count - 1, tolerance, expected);
+            expected.add(count - 1);
+            final List<Integer> kept = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (significance[i] > tolerance) {
+                    kept.add(i);
+                }
+            }
+            assertThat(kept).containsExactlyElementsIn(expected).inOrder();
+        }
+    }
+
+    @Test
+    public void build_coarserLevelsAreSubsets() {
+        final SimplifiedTrack tested = SimplifiedTrack.build(randomWalk(new Random(2L), 20_000));
+
+        assertThat(tested.getPointCount()).isEqualTo(20_000);
+        for (int zoom = SimplifiedTrack.MIN_ZOOM + 1; zoom <= SimplifiedTrack.MAX_ZOOM; zoom++) {
+            final int[] coarser = tested.getIndices(zoom - 1);
+            final int[] finer = tested.getIndices(zoom);
+            assertThat(finer.length).isAtLeast(coarser.length);
+            final List<Integer> finerList = new ArrayList<>();
+            for (int index : finer) {
+                finerList.add(index);
+            }
+            for (int index : coarser) {
+                assertThat(finerList).contains(index);
+            }
+            // first and last point always stay
+            assertThat(coarser[0]).isEqualTo(0);
+            assertThat(coarser[coarser.length - 1]).isEqualTo(tested.getMercatorX().length - 1);
+        }
+        assertThat(tested.getIndices(SimplifiedTrack.MIN_ZOOM).length).isLessThan(100);
+    }
+
+    @Test
+    public void build_chunkBoundsContainTheirPoints() {
+        final SimplifiedTrack tested = SimplifiedTrack.build(randomWalk(new Random(3L), 5_000));
+        final int zoom = 16;
+        final int[] indices = tested.getIndices(zoom);
+        final double[] bounds = tested.getChunkBounds(zoom);
+
+        assertThat(tested.getChunkCount(zoom))
+                .isEqualTo((indices.length - 1 + SimplifiedTrack.CHUNK_SIZE - 1)
+                        / SimplifiedTrack.CHUNK_SIZE);
+        for (int i = 0; i < indices.length; i++) {
+            // the last point of a chunk is the first of the next one
+            final int chunk = Math.min(i / SimplifiedTrack.CHUNK_SIZE,
+                    tested.getChunkCount(zoom) - 1);
+            final double px = tested.getMercatorX()[indices[i]];
+            final double py = tested.getMercatorY()[indices[i]];
+            assertThat(px).isAtLeast(bounds[chunk * 4]);
+            assertThat(py).isAtLeast(bounds[chunk * 4 + 1]);
+            assertThat(px).isAtMost(bounds[chunk * 4 + 2]);
+            assertThat(py).isAtMost(bounds[chunk * 4 + 3]);
+        }
+    }
+
+    @Test
+    public void build_duplicatesAndShortTracks() {
+        final SimplifiedTrack duplicates = SimplifiedTrack.build(new GpxTrack("d",
+                new int[]{52_500_000, 52_500_000, 52_500_000},
+                new int[]{13_400_000, 13_400_000, 13_400_000}, 3));
+        final SimplifiedTrack single = SimplifiedTrack.build(new GpxTrack("s",
+                new int[]{52_500_000}, new int[]{13_400_000}, 1));
+        final SimplifiedTrack empty = SimplifiedTrack.build(new GpxTrack("e",
+                new int[0], new int[0], 0));
+
+        assertThat(duplicates.getIndices(SimplifiedTrack.MAX_ZOOM)).hasLength(2);
+        assertThat(single.getIndices(SimplifiedTrack.MAX_ZOOM)).hasLength(1);
+        assertThat(single.getChunkCount(SimplifiedTrack.MAX_ZOOM)).isEqualTo(0);
+        assertThat(empty.getIndices(SimplifiedTrack.MAX_ZOOM)).hasLength(0);
+        assertThat(empty.getChunkCount(SimplifiedTrack.MAX_ZOOM)).isEqualTo(0);
+    }
+
+    @Test
+    public void levelFor_clampsAndFloors() {
+        assertThat(SimplifiedTrack.levelFor(-1)).isEqualTo(SimplifiedTrack.MIN_ZOOM);
+        assertThat(SimplifiedTrack.levelFor(14.9)).isEqualTo(14);
+        assertThat(SimplifiedTrack.levelFor(25)).isEqualTo(SimplifiedTrack.MAX_ZOOM);
+    }
+
+    // a ride around Berlin with a point every couple of meters
+    static GpxTrack randomWalk(Random random, int count) {
+        final int[] latitudesE6 = new int[count];
+        final int[] longitudesE6 = new int[count];
+        double latitude = 52.5;
+        double longitude = 13.4;
+        double heading = 0;
+        for (int i = 0; i < count; i++) {
+            heading += random.nextGaussian() * 0.2;
+            latitude += Math.cos(heading) * 0.00002;
+            longitude += Math.sin(heading) * 0.00003;
+            latitudesE6[i] = (int) Math.round(latitude * 1E6);
+            longitudesE6[i] = (int) Math.round(longitude * 1E6);
+        }
+        return new GpxTrack("Random walk", latitudesE6, longitudesE6, count);
+    }
+
+    private static void douglasPeucker(double[] x, double[] y, int first, int last,
+                                       double tolerance, List<Integer> kept) {
+        double maxDistance = -1;
+        int split = -1;
+        for (int i = first + 1; i < last; i++) {
+            final double distance = segmentDistance(x[i], y[i], x[first], y[first],
+                    x[last], y[last]);
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                split = i;
+            }
+        }
+        if (split == -1 || maxDistance <= tolerance) {
+            return;
+        }
+        douglasPeucker(x, y, first, split, tolerance, kept);
+        kept.add(split);
+        douglasPeucker(x, y, split, last, tolerance, kept);
+    }
+
+    private static double segmentDistance(double px, double py,
+                                          double ax, double ay, double bx, double by) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        final double lengthSquared = dx * dx + dy * dy;
+        final double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+}
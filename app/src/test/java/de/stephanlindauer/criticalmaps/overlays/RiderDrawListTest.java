@@ -0,0 +1,188 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.RiderClusters;
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderDrawListTest {
+
+    private static final double WORLD_SIZE_ZOOM_15 = 256D * (1 << 15);
+    private static final float SCREEN_WIDTH = 1080f;
+    private static final float SCREEN_HEIGHT = 1920f;
+
+    @Test
+    public void build_matchesPerPointProjection() {
+        final RiderLocationBuffer riders = randomRidersAround(52.5, 13.4, 0.05, 2000, 1L);
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setRiders(riders, 0L);
+
+        final double centerMercatorX = MercatorUtils.x(13.4);
+        final double centerMercatorY = MercatorUtils.y(52.5);
+        final int visible = tested.build(0L, WORLD_SIZE_ZOOM_15,
+                centerMercatorX, centerMercatorY, SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+
+        assertThat(visible).isEqualTo(riders.size());
+        for (int i = 0; i < visible; i++) {
+            final int rider = tested.getRiderIndex(i);
+            final double latitude = riders.getLatitudeE6(rider) / 1E6D;
+            final double longitude = riders.getLongitudeE6(rider) / 1E6D;
+            final double expectedX = ((longitude + 180D) / 360D - centerMercatorX)
+                    * WORLD_SIZE_ZOOM_15 + SCREEN_WIDTH / 2;
+            final double expectedY = (0.5D - Math.log(Math.tan(Math.PI / 4
+                    + Math.toRadians(latitude) / 2)) / (2 * Math.PI) - centerMercatorY)
+                    * WORLD_SIZE_ZOOM_15 + SCREEN_HEIGHT / 2;
+            assertThat((double) tested.getScreenX(i)).isWithin(0.01).of(expectedX);
+            assertThat((double) tested.getScreenY(i)).isWithin(0.01).of(expectedY);
+        }
+    }
+
+    @Test
+    public void build_cullsRidersOutsideViewport() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("center", 52_500_000, 13_400_000);
+        riders.add("east", 52_500_000, 13_600_000);
+        riders.add("north", 52_700_000, 13_400_000);
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setRiders(riders, 0L);
+
+        final int visible = tested.build(0L, WORLD_SIZE_ZOOM_15,
+                MercatorUtils.x(13.4), MercatorUtils.y(52.5),
+                SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+
+        assertThat(visible).isEqualTo(1);
+        assertThat(tested.getRiderIndex(0)).isEqualTo(0);
+        assertThat(tested.getScreenX(0)).isEqualTo(SCREEN_WIDTH / 2);
+        assertThat(tested.getScreenY(0)).isEqualTo(SCREEN_HEIGHT / 2);
+    }
+
+    @Test
+    public void buildClusters_projectsClusterCentroids() {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        riders.add("a", 52_500_000, 13_400_000);
+        riders.add("b", 52_500_000, 13_400_000);
+        final RiderClusters clusters = RiderClusters.build(riders);
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setClusters(clusters, 0L);
+
+        final int visible = tested.buildClusters(0L, 11, WORLD_SIZE_ZOOM_15,
+                MercatorUtils.x(13.4), MercatorUtils.y(52.5),
+                SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+
+        assertThat(visible).isEqualTo(1);
+        assertThat(clusters.getRiderCount(11, tested.getRiderIndex(0))).isEqualTo(2);
+        assertThat((double) tested.getScreenX(0)).isWithin(0.01).of(SCREEN_WIDTH / 2);
+        assertThat(tested.nextClusterFrameDelayMillis(0L)).isEqualTo(-1L);
+    }
+
+    @Test
+    public void buildClusters_blendsFromPreviousCentroidInSameCell() {
+        final RiderLocationBuffer before = new RiderLocationBuffer();
+        before.add("a", 52_500_000, 13_400_000);
+        before.add("b", 52_500_000, 13_400_000);
+        final RiderLocationBuffer after = new RiderLocationBuffer();
+        after.add("a", 52_500_000, 13_401_000);
+        after.add("b", 52_500_000, 13_401_000);
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setClusters(RiderClusters.build(before), 0L);
+        tested.setClusters(RiderClusters.build(after), 10_000L);
+
+        final double fromX = clusterScreenX(tested, 10_000L);
+        final double halfwayX = clusterScreenX(tested, 10_000L + RiderMotion.BLEND_MILLIS / 2);
+        final double toX = clusterScreenX(tested, 10_000L + RiderMotion.BLEND_MILLIS);
+
+        // ~2.2px apart at zoom 15
+        assertThat(fromX).isWithin(0.01).of(SCREEN_WIDTH / 2);
+        assertThat(toX).isWithin(0.01).of(SCREEN_WIDTH / 2
+                + (MercatorUtils.x(13.401) - MercatorUtils.x(13.4)) * WORLD_SIZE_ZOOM_15);
+        assertThat(halfwayX).isWithin(0.01).of((fromX + toX) / 2);
+        assertThat(tested.nextClusterFrameDelayMillis(10_000L)).isEqualTo(0L);
+        assertThat(tested.nextClusterFrameDelayMillis(10_000L + RiderMotion.BLEND_MILLIS))
+                .isEqualTo(-1L);
+    }
+
+    @Test
+    public void buildClusters_newCellIsNotBlended() {
+        final RiderLocationBuffer before = new RiderLocationBuffer();
+        before.add("a", 52_500_000, 13_400_000);
+        final RiderLocationBuffer after = new RiderLocationBuffer();
+        after.add("a", 52_500_000, 13_600_000);
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setClusters(RiderClusters.build(before), 0L);
+        tested.setClusters(RiderClusters.build(after), 10_000L);
+
+        assertThat(clusterScreenX(tested, 10_000L)).isWithin(0.01).of(SCREEN_WIDTH / 2
+                + (MercatorUtils.x(13.6) - MercatorUtils.x(13.4)) * WORLD_SIZE_ZOOM_15);
+    }
+
+    private static double clusterScreenX(RiderDrawList drawList, long nowMillis) {
+        final int visible = drawList.buildClusters(nowMillis, 11, WORLD_SIZE_ZOOM_15,
+                MercatorUtils.x(13.4), MercatorUtils.y(52.5), SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        assertThat(visible).isEqualTo(1);
+        return drawList.getScreenX(0);
+    }
+
+    @Test
+    public void setRiders_shrinkingSnapshotDropsOldRiders() {
+        final RiderDrawList tested = new RiderDrawList();
+        tested.setRiders(randomRidersAround(0, 0, 1, 100, 2L), 0L);
+        tested.setRiders(randomRidersAround(0, 0, 1, 3, 3L), 0L);
+
+        assertThat(tested.getRiderCount()).isEqualTo(3);
+        assertThat(tested.build(0L, WORLD_SIZE_ZOOM_15, 0.5, 0.5, 0, 0,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void build_panningAnimatedRidersOnlyKeepsThoseOnScreen() {
+        final RiderLocationBuffer[] snapshots = {
+                randomRidersAround(52.5, 13.4, 0.2, 10_000, 4L),
+                randomRidersAround(52.5, 13.40005, 0.2, 10_000, 4L)};
+        final RiderDrawList tested = new RiderDrawList();
+
+        for (int frame = 0; frame < 150; frame++) {
+            final int visible = buildFrame(tested, snapshots, frame);
+
+            assertThat(visible).isAtMost(tested.getRiderCount());
+            for (int i = 0; i < visible; i++) {
+                assertThat(tested.getScreenX(i)).isIn(Range.closed(0f, SCREEN_WIDTH));
+                assertThat(tested.getScreenY(i)).isIn(Range.closed(0f, SCREEN_HEIGHT));
+            }
+        }
+    }
+
+    private static int buildFrame(RiderDrawList drawList, RiderLocationBuffer[] snapshots,
+                                  int frame) {
+        final long frameMillis = frame * 16L;
+        // a sync with slightly moved riders every 30 frames keeps them animating
+        if (frame % 30 == 0) {
+            drawList.setRiders(snapshots[frame / 30 % 2], frameMillis);
+        }
+        final double worldSize = 256D * (1 << (12 + frame / 30 % 5));
+        return drawList.build(frameMillis, worldSize,
+                MercatorUtils.x(13.4 + frame * 1E-5), MercatorUtils.y(52.5),
+                SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+    }
+
+    private static RiderLocationBuffer randomRidersAround(
+            double latitude, double longitude, double spread, int count, long seed) {
+        final Random random = new Random(seed);
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < count; i++) {
+            riders.add("rider" + i,
+                    (int) ((latitude + (random.nextDouble() - 0.5) * spread) * 1E6),
+                    (int) ((longitude + (random.nextDouble() - 0.5) * spread) * 1E6));
+        }
+        return riders;
+    }
+}
@@ -0,0 +1,134 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+
+import de.stephanlindauer.criticalmaps.model.RiderLocationBuffer;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RiderMotionTest {
+
+    private static final long SYNC_MILLIS = 12_000;
+
+    private final double[] x = new double[8];
+    private final double[] y = new double[8];
+
+    @Test
+    public void update_firstSnapshotIsShownAsIs() {
+        final RiderMotion tested = new RiderMotion();
+
+        tested.update(riders("a", 52_500_000, 13_400_000), 1000);
+        tested.positionsAt(1500, x, y);
+
+        assertThat(tested.isMoving(1500)).isFalse();
+        assertThat(x[0]).isEqualTo(MercatorUtils.x(13.4));
+        assertThat(y[0]).isEqualTo(MercatorUtils.y(52.5));
+    }
+
+    @Test
+    public void update_ridersContinueWithEstimatedVelocity() {
+        final RiderMotion tested = new RiderMotion();
+        // ~60m east in 12s, a relaxed 5m/s
+        tested.update(riders("a", 52_500_000, 13_400_000), 0);
+        tested.update(riders("a", 52_500_000, 13_400_900), SYNC_MILLIS);
+
+        final double velocity = (MercatorUtils.x(13.4009) - MercatorUtils.x(13.4)) / SYNC_MILLIS;
+
+        // right at the sync the rider is still where it was drawn before
+        tested.positionsAt(SYNC_MILLIS, x, y);
+        assertThat(x[0]).isWithin(1E-12).of(MercatorUtils.x(13.4));
+        // after blending in it follows the new fix plus the estimated velocity
+        tested.positionsAt(SYNC_MILLIS + 6000, x, y);
+        assertThat(x[0]).isWithin(1E-12).of(MercatorUtils.x(13.4009) + velocity * 6000);
+        assertThat(y[0]).isWithin(1E-12).of(MercatorUtils.y(52.5));
+        assertThat(tested.isMoving(SYNC_MILLIS + 6000)).isTrue();
+    }
+
+    @Test
+    public void update_blendStartsFromDrawnPosition() {
+        final RiderMotion tested = new RiderMotion();
+        tested.update(riders("a", 52_500_000, 13_400_000), 0);
+        tested.update(riders("a", 52_500_000, 13_400_900), SYNC_MILLIS);
+        tested.positionsAt(SYNC_MILLIS + 6000, x, y);
+        final double drawnBeforeSync = x[0];
+
+        // next fix arrives early, the rider must not jump
+        tested.update(riders("a", 52_500_000, 13_401_200), SYNC_MILLIS + 6000);
+        tested.positionsAt(SYNC_MILLIS + 6000, x, y);
+
+        assertThat(x[0]).isWithin(1E-12).of(drawnBeforeSync);
+    }
+
+    @Test
+    public void update_ridersAreMatchedByDeviceKey() {
+        final RiderMotion tested = new RiderMotion();
+        tested.update(riders("a", 52_500_000, 13_400_000, "b", 52_600_000, 13_500_000), 0);
+
+        // order changes and "a" disappears, "c" is new
+        tested.update(riders("c", 52_700_000, 13_600_000, "b", 52_600_000, 13_500_300),
+                SYNC_MILLIS);
+        tested.positionsAt(SYNC_MILLIS, x, y);
+
+        assertThat(x[0]).isEqualTo(MercatorUtils.x(13.6));
+        assertThat(x[1]).isWithin(1E-12).of(MercatorUtils.x(13.5));
+        tested.positionsAt(SYNC_MILLIS + RiderMotion.BLEND_MILLIS, x, y);
+        assertThat(x[1]).isGreaterThan(MercatorUtils.x(13.5003));
+    }
+
+    @Test
+    public void update_implausibleJumpsAreNotAnimated() {
+        final RiderMotion tested = new RiderMotion();
+        tested.update(riders("a", 52_500_000, 13_400_000), 0);
+
+        // ~7km in 12s
+        tested.update(riders("a", 52_500_000, 13_500_000), SYNC_MILLIS);
+        tested.positionsAt(SYNC_MILLIS, x, y);
+
+        assertThat(x[0]).isEqualTo(MercatorUtils.x(13.5));
+        assertThat(tested.isMoving(SYNC_MILLIS)).isFalse();
+    }
+
+    @Test
+    public void isMoving_stopsAfterExtrapolationWindow() {
+        final RiderMotion tested = new RiderMotion();
+        tested.update(riders("a", 52_500_000, 13_400_000), 0);
+        tested.update(riders("a", 52_500_000, 13_400_900), SYNC_MILLIS);
+
+        final long restingAt = SYNC_MILLIS + RiderMotion.MAX_EXTRAPOLATION_MILLIS;
+        tested.positionsAt(restingAt, x, y);
+        final double resting = x[0];
+        tested.positionsAt(restingAt + 60_000, x, y);
+
+        assertThat(tested.isMoving(restingAt)).isFalse();
+        assertThat(x[0]).isEqualTo(resting);
+    }
+
+    @Test
+    public void nextFrameDelayMillis_everyFrameWhileBlendingThenOncePerPixel() {
+        final RiderMotion tested = new RiderMotion();
+        tested.update(riders("a", 52_500_000, 13_400_000), 0);
+        tested.update(riders("a", 52_500_000, 13_400_900), SYNC_MILLIS);
+        // zoom 16, the rider covers about 3.5 pixels a second
+        final double worldSize = 256 * Math.pow(2, 16);
+
+        assertThat(tested.nextFrameDelayMillis(SYNC_MILLIS + 500, worldSize)).isEqualTo(0);
+        final long delay = tested.nextFrameDelayMillis(SYNC_MILLIS + 2000, worldSize);
+        assertThat(delay).isIn(Range.closed(250L, 320L));
+        // zoomed out far enough nothing moves by a pixel before extrapolation ends
+        assertThat(tested.nextFrameDelayMillis(SYNC_MILLIS + 2000, 256)).isEqualTo(-1);
+        assertThat(tested.nextFrameDelayMillis(
+                SYNC_MILLIS + RiderMotion.MAX_EXTRAPOLATION_MILLIS, worldSize)).isEqualTo(-1);
+    }
+
+    private static RiderLocationBuffer riders(Object... keysAndPositions) {
+        final RiderLocationBuffer riders = new RiderLocationBuffer();
+        for (int i = 0; i < keysAndPositions.length; i += 3) {
+            riders.add((String) keysAndPositions[i],
+                    (Integer) keysAndPositions[i + 1], (Integer) keysAndPositions[i + 2]);
+        }
+        return riders;
+    }
+}
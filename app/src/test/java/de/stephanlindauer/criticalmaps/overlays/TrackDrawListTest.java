@@ -0,0 +1,150 @@
+package de.stephanlindauer.criticalmaps.overlays;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import de.stephanlindauer.criticalmaps.model.gpx.SimplifiedTrack;
+import de.stephanlindauer.criticalmaps.utils.MercatorUtils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TrackDrawListTest {
+
+    private static final int ZOOM = 15;
+    private static final double WORLD_SIZE_ZOOM_15 = 256D * (1 << ZOOM);
+    private static final float SCREEN_WIDTH = 1080f;
+    private static final float SCREEN_HEIGHT = 1920f;
+
+    @Test
+    public void build_everythingVisibleMatchesPerPointProjection() {
+        final SimplifiedTrack track = SimplifiedTrack.build(randomWalk(new Random(1L), 2_000));
+        final TrackDrawList tested = new TrackDrawList();
+        final double centerMercatorX = MercatorUtils.x(13.4);
+        final double centerMercatorY = MercatorUtils.y(52.5);
+
+        final int floats = tested.build(track, ZOOM, WORLD_SIZE_ZOOM_15,
+                centerMercatorX, centerMercatorY, SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+
+        final int[] indices = track.getIndices(ZOOM);
+        assertThat(floats).isEqualTo((indices.length - 1) * 4);
+        final float[] lines = tested.getLines();
+        for (int i = 0; i < indices.length - 1; i++) {
+            final double expectedX = (track.getMercatorX()[indices[i]] - centerMercatorX)
+                    * WORLD_SIZE_ZOOM_15 + SCREEN_WIDTH / 2;
+            final double expectedY = (track.getMercatorY()[indices[i]] - centerMercatorY)
+                    * WORLD_SIZE_ZOOM_15 + SCREEN_HEIGHT / 2;
+            assertThat((double) lines[i * 4]).isWithin(0.01).of(expectedX);
+            assertThat((double) lines[i * 4 + 1]).isWithin(0.01).of(expectedY);
+            // segments are connected
+            if (i > 0) {
+                assertThat(lines[i * 4]).isEqualTo(lines[i * 4 - 2]);
+                assertThat(lines[i * 4 + 1]).isEqualTo(lines[i * 4 - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void build_keepsExactlyTheSegmentsTouchingTheViewport() {
+        final SimplifiedTrack track = SimplifiedTrack.build(randomWalk(new Random(2L), 20_000));
+        final TrackDrawList tested = new TrackDrawList();
+        final TrackDrawList everything = new TrackDrawList();
+        final double centerMercatorX = track.getMercatorX()[track.getMercatorX().length / 2];
+        final double centerMercatorY = track.getMercatorY()[track.getMercatorY().length / 2];
+
+        final int visible = tested.build(track, ZOOM, WORLD_SIZE_ZOOM_15,
+                centerMercatorX, centerMercatorY, SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+        final int all = everything.build(track, ZOOM, WORLD_SIZE_ZOOM_15,
+                centerMercatorX, centerMercatorY, SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+
+        int expected = 0;
+        final float[] lines = everything.getLines();
+        for (int i = 0; i < all; i += 4) {
+            if (Math.max(lines[i], lines[i + 2]) >= 0
+                    && Math.min(lines[i], lines[i + 2]) <= SCREEN_WIDTH
+                    && Math.max(lines[i + 1], lines[i + 3]) >= 0
+                    && Math.min(lines[i + 1], lines[i + 3]) <= SCREEN_HEIGHT) {
+                expected += 4;
+            }
+        }
+        assertThat(visible).isGreaterThan(0);
+        assertThat(visible).isLessThan(all);
+        assertThat(visible).isEqualTo(expected);
+    }
+
+    @Test
+    public void isNear_onlyCloseToSegments() {
+        final GpxTrack straight = new GpxTrack("straight",
+                new int[]{52_500_000, 52_500_000}, new int[]{13_400_000, 13_410_000}, 2);
+        final TrackDrawList tested = new TrackDrawList();
+        final double centerMercatorX = MercatorUtils.x(13.405);
+        final double centerMercatorY = MercatorUtils.y(52.5);
+        tested.build(SimplifiedTrack.build(straight), ZOOM, WORLD_SIZE_ZOOM_15,
+                centerMercatorX, centerMercatorY, SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2,
+                0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+
+        assertThat(tested.isNear(SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2 + 10, 20)).isTrue();
+        assertThat(tested.isNear(SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2 + 30, 20)).isFalse();
+    }
+
+    @Test
+    public void build_denseRouteDrawsLikeSparseOne() {
+        final GpxTrack sparse = randomWalk(new Random(20200601L), 2_000);
+        final GpxTrack dense = densify(sparse, 100);
+
+        final int sparseFloats = countPanning(SimplifiedTrack.build(sparse));
+        final int denseFloats = countPanning(SimplifiedTrack.build(dense));
+
+        assertThat(denseFloats).isAtMost(sparseFloats * 2 + 400);
+    }
+
+    // pans across the whole track at street level, returns the floats drawn
+    private static int countPanning(SimplifiedTrack track) {
+        final TrackDrawList drawList = new TrackDrawList();
+        final double[] x = track.getMercatorX();
+        final double[] y = track.getMercatorY();
+        int floats = 0;
+        for (int step = 0; step < 100; step++) {
+            final int index = (int) ((long) (x.length - 1) * step / 99);
+            floats += drawList.build(track, ZOOM, WORLD_SIZE_ZOOM_15, x[index], y[index],
+                    SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+        }
+        return floats;
+    }
+
+    private static GpxTrack randomWalk(Random random, int count) {
+        final int[] latitudesE6 = new int[count];
+        final int[] longitudesE6 = new int[count];
+        double latitude = 52.5;
+        double longitude = 13.4;
+        double heading = 0;
+        for (int i = 0; i < count; i++) {
+            heading += random.nextGaussian() * 0.3;
+            latitude += Math.cos(heading) * 0.0002;
+            longitude += Math.sin(heading) * 0.0003;
+            latitudesE6[i] = (int) Math.round(latitude * 1E6);
+            longitudesE6[i] = (int) Math.round(longitude * 1E6);
+        }
+        return new GpxTrack("Random walk", latitudesE6, longitudesE6, count);
+    }
+
+    // the same route with steps points on every segment, like a GPS logging every second
+    private static GpxTrack densify(GpxTrack track, int steps) {
+        final int count = (track.getPointCount() - 1) * steps + 1;
+        final int[] latitudesE6 = new int[count];
+        final int[] longitudesE6 = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int segment = Math.min(i / steps, track.getPointCount() - 2);
+            final double t = (i - segment * steps) / (double) steps;
+            latitudesE6[i] = (int) Math.round(track.getLatitudeE6(segment) * (1 - t)
+                    + track.getLatitudeE6(segment + 1) * t);
+            longitudesE6[i] = (int) Math.round(track.getLongitudeE6(segment) * (1 - t)
+                    + track.getLongitudeE6(segment + 1) * t);
+        }
+        return new GpxTrack("Dense", latitudesE6, longitudesE6, count);
+    }
+}
@@ -0,0 +1,147 @@
+package de.stephanlindauer.criticalmaps.service;
+
+import org.junit.Test;
+
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import de.stephanlindauer.criticalmaps.vo.Endpoints;
+import okhttp3.HttpUrl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SyncIntervalPolicyTest {
+
+    // Berlin, 0.0001° latitude is about 11 m
+    private static final int LATITUDE_E6 = 52_520_000;
+    private static final int LONGITUDE_E6 = 13_405_000;
+
+    private final NetworkTrafficModel networkTrafficModel = new NetworkTrafficModel();
+    private final SyncIntervalPolicy tested = new SyncIntervalPolicy(networkTrafficModel);
+
+    @Test
+    public void nextInterval_movingWithMapVisibleIsFastest() {
+        tested.setForeground(true);
+        tested.setMapVisible(true);
+        rideNorth(0, 5);
+
+        assertThat(tested.nextIntervalMillis(20_000))
+                .isEqualTo(SyncIntervalPolicy.MOVING_MAP_VISIBLE_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void nextInterval_stationaryInBackgroundIsSlowest() {
+        tested.onLocation(LATITUDE_E6, LONGITUDE_E6, 0);
+        tested.onLocation(LATITUDE_E6 + 10, LONGITUDE_E6, 10_000);
+
+        assertThat(tested.isMoving(10_000)).isFalse();
+        assertThat(tested.nextIntervalMillis(10_000))
+                .isEqualTo(SyncIntervalPolicy.BACKGROUND_STATIONARY_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void nextInterval_movementWithoutRecentFixesCountsAsStationary() {
+        tested.setForeground(true);
+        rideNorth(0, 5);
+
+        assertThat(tested.isMoving(20_000)).isTrue();
+        assertThat(tested.isMoving(20_000 + SyncIntervalPolicy.LOCATION_STALE_MILLIS)).isFalse();
+        assertThat(tested.nextIntervalMillis(20_000 + SyncIntervalPolicy.LOCATION_STALE_MILLIS))
+                .isEqualTo(SyncIntervalPolicy.STATIONARY_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void nextInterval_distanceSinceUploadSpeedsUpSlowDrift() {
+        tested.setForeground(true);
+        tested.onLocationUploaded(LATITUDE_E6, LONGITUDE_E6);
+        // 0.5 m/s but far away from what others last saw
+        tested.onLocation(LATITUDE_E6, LONGITUDE_E6, 0);
+        tested.onLocation(LATITUDE_E6 + 1_500, LONGITUDE_E6, 330_000);
+
+        assertThat(tested.isMoving(330_000)).isFalse();
+        assertThat(tested.getDistanceSinceUpload()).isGreaterThan(150.0);
+        assertThat(tested.nextIntervalMillis(330_000))
+                .isEqualTo(SyncIntervalPolicy.MOVING_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void nextInterval_chatActivitySpeedsUpForegroundOnly() {
+        tested.onChatActivityCount(1, 1_000);
+
+        assertThat(tested.nextIntervalMillis(2_000))
+                .isEqualTo(SyncIntervalPolicy.BACKGROUND_STATIONARY_INTERVAL_MILLIS);
+
+        tested.setForeground(true);
+        assertThat(tested.nextIntervalMillis(2_000))
+                .isEqualTo(SyncIntervalPolicy.CHAT_ACTIVE_INTERVAL_MILLIS);
+        assertThat(tested.nextIntervalMillis(1_000 + SyncIntervalPolicy.CHAT_ACTIVE_MILLIS))
+                .isEqualTo(SyncIntervalPolicy.STATIONARY_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void nextInterval_observerModeIgnoresMovement() {
+        tested.setObserverMode(true);
+        tested.setForeground(true);
+        tested.setMapVisible(true);
+        rideNorth(0, 5);
+
+        assertThat(tested.nextIntervalMillis(20_000))
+                .isEqualTo(SyncIntervalPolicy.OBSERVER_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void listener_calledWhenCadenceMayChange() {
+        final int[] calls = new int[1];
+        tested.setOnCadenceChangedListener(() -> calls[0]++);
+
+        tested.setForeground(true);
+        tested.setForeground(true);
+        tested.setMapVisible(true);
+        rideNorth(0, 5);
+
+        // foreground, map visible and starting to move
+        assertThat(calls[0]).isEqualTo(3);
+    }
+
+    @Test
+    public void locationRefresh_followsSyncIntervalWithinBounds() {
+        assertThat(SyncIntervalPolicy.locationRefreshMillisFor(1_000))
+                .isEqualTo(SyncIntervalPolicy.MIN_LOCATION_REFRESH_MILLIS);
+        assertThat(SyncIntervalPolicy.locationRefreshMillisFor(12_000)).isEqualTo(12_000);
+        assertThat(SyncIntervalPolicy.locationRefreshMillisFor(120_000))
+                .isEqualTo(SyncIntervalPolicy.MAX_LOCATION_REFRESH_MILLIS);
+    }
+
+    @Test
+    public void metrics_compareAgainstFixedInterval() {
+        // 2 kB per sync on the wire
+        final HttpUrl main = HttpUrl.get(Endpoints.MAIN_POST);
+        networkTrafficModel.addCall(main);
+        networkTrafficModel.addRequestBytes(main, 512, true);
+        networkTrafficModel.addResponseBytes(main, 1536, true);
+
+        // ten minutes stationary in the background
+        for (long now = 0; now <= 600_000; now += tested.nextIntervalMillis(now)) {
+            tested.onSync(now);
+            tested.onLocationRefreshChanged(SyncIntervalPolicy.locationRefreshMillisFor(
+                    tested.nextIntervalMillis(now)), now);
+        }
+
+        assertThat(tested.getSyncCount()).isEqualTo(6);
+        assertThat(tested.getBaselineSyncCount()).isEqualTo(51);
+        assertThat(tested.getAverageLocationRefreshMillis())
+                .isEqualTo(SyncIntervalPolicy.MAX_LOCATION_REFRESH_MILLIS);
+
+        final NetworkTrafficModel.SyncSavings savings = networkTrafficModel.getSyncSavings();
+        assertThat(savings.getSyncCount()).isEqualTo(6);
+        assertThat(savings.getSavedSyncCount()).isEqualTo(45);
+        assertThat(savings.getAverageLocationRefreshMillis())
+                .isEqualTo(SyncIntervalPolicy.MAX_LOCATION_REFRESH_MILLIS);
+        assertThat(networkTrafficModel.getSavedSyncBytes()).isEqualTo(45 * 2048);
+    }
+
+    // 4 m/s northwards, one fix every five seconds
+    private void rideNorth(long startMillis, int fixes) {
+        for (int i = 0; i < fixes; i++) {
+            tested.onLocation(LATITUDE_E6 + i * 180, LONGITUDE_E6, startMillis + i * 5_000);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package de.stephanlindauer.criticalmaps.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SyncLoopTest {
+
+    private static final long INTERVAL = 12_000;
+
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final List<Long> syncStarts = new ArrayList<>();
+    private long lastSyncId = -1;
+    private long interval = INTERVAL;
+    private RuntimeException syncFailure;
+    private final SyncLoop tested = new SyncLoop((loop, syncId) -> {
+        syncStarts.add(scheduler.now);
+        lastSyncId = syncId;
+        if (syncFailure != null) {
+            throw syncFailure;
+        }
+    }, now -> interval, scheduler, new Random(7));
+
+    @Test
+    public void onConnected_syncsWithinReconnectJitter() {
+        tested.onConnected();
+
+        assertThat(scheduler.pendingAt - scheduler.now).isAtMost(SyncLoop.RECONNECT_JITTER_MILLIS);
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(1);
+    }
+
+    @Test
+    public void sync_neverOverlapsWhileRequestHangs() {
+        tested.onConnected();
+        scheduler.runPending();
+
+        // only the timeout is scheduled while the first request is in flight
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.SYNC_TIMEOUT_MILLIS);
+        scheduler.now += 60_000;
+        tested.reschedule();
+        tested.onConnected();
+        assertThat(scheduler.pendingAt - scheduler.now)
+                .isEqualTo(SyncLoop.SYNC_TIMEOUT_MILLIS - 60_000);
+        assertThat(syncStarts).hasSize(1);
+
+        tested.onSyncFinished(lastSyncId, true);
+        // the request took longer than the interval, go again right away
+        assertThat(scheduler.pendingAt).isEqualTo(scheduler.now);
+    }
+
+    @Test
+    public void sync_intervalsAreJitteredAroundTarget() {
+        tested.onConnected();
+        final List<Long> gaps = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            scheduler.runPending();
+            tested.onSyncFinished(lastSyncId, true);
+            gaps.add(scheduler.pendingAt - syncStarts.get(syncStarts.size() - 1));
+        }
+
+        long sum = 0;
+        for (long gap : gaps) {
+            assertThat(gap).isAtLeast((long) (INTERVAL * (1 - SyncLoop.JITTER)));
+            assertThat(gap).isAtMost((long) (INTERVAL * (1 + SyncLoop.JITTER)));
+            sum += gap;
+        }
+        assertThat((double) sum / gaps.size()).isWithin(INTERVAL * 0.05).of(INTERVAL);
+        assertThat(gaps.get(0)).isNotEqualTo(gaps.get(1));
+    }
+
+    @Test
+    public void failures_backOffExponentiallyAndOpenCircuit() {
+        tested.onConnected();
+        final List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < SyncLoop.FAILURES_TO_OPEN_CIRCUIT + 1; i++) {
+            scheduler.runPending();
+            tested.onSyncFinished(lastSyncId, false);
+            delays.add(scheduler.pendingAt - scheduler.now);
+        }
+
+        // equal jitter keeps each backoff between half and all of 2^n intervals
+        for (int failures = 1; failures < SyncLoop.FAILURES_TO_OPEN_CIRCUIT; failures++) {
+            final long backoff = Math.min(SyncLoop.MAX_BACKOFF_MILLIS,
+                    (long) (INTERVAL * (1 + SyncLoop.JITTER)) << failures);
+            assertThat(delays.get(failures - 1)).isAtMost(backoff);
+            assertThat(delays.get(failures - 1))
+                    .isAtLeast(((long) (INTERVAL * (1 - SyncLoop.JITTER)) << failures) / 2);
+        }
+        assertThat(tested.isCircuitOpen()).isTrue();
+        assertThat(delays.get(SyncLoop.FAILURES_TO_OPEN_CIRCUIT - 1))
+                .isEqualTo(SyncLoop.OPEN_CIRCUIT_MILLIS);
+        // the half-open trial failed as well
+        assertThat(delays.get(SyncLoop.FAILURES_TO_OPEN_CIRCUIT))
+                .isEqualTo(SyncLoop.OPEN_CIRCUIT_MILLIS);
+        assertThat(tested.getCircuitOpenedCount()).isEqualTo(1);
+
+        // cadence changes don't shortcut the open circuit
+        final long pendingAt = scheduler.pendingAt;
+        interval = 1_000;
+        tested.reschedule();
+        assertThat(scheduler.pendingAt).isEqualTo(pendingAt);
+
+        scheduler.runPending();
+        tested.onSyncFinished(lastSyncId, true);
+        assertThat(tested.isCircuitOpen()).isFalse();
+        assertThat(scheduler.pendingAt - scheduler.now).isAtMost(1_200L);
+    }
+
+    @Test
+    public void onConnected_resetsBackoffAndResumesQuickly() {
+        tested.onConnected();
+        for (int i = 0; i < SyncLoop.FAILURES_TO_OPEN_CIRCUIT; i++) {
+            scheduler.runPending();
+            tested.onSyncFinished(lastSyncId, false);
+        }
+        tested.stop();
+        assertThat(scheduler.pending).isNull();
+
+        tested.onConnected();
+
+        assertThat(tested.isCircuitOpen()).isFalse();
+        assertThat(scheduler.pendingAt - scheduler.now)
+                .isAtMost(SyncLoop.RECONNECT_JITTER_MILLIS);
+    }
+
+    @Test
+    public void stop_finishingRequestDoesntScheduleAgain() {
+        tested.onConnected();
+        scheduler.runPending();
+
+        tested.stop();
+        tested.onSyncFinished(lastSyncId, true);
+
+        assertThat(scheduler.pending).isNull();
+        assertThat(tested.isRunning()).isFalse();
+    }
+
+    @Test
+    public void reschedule_movesPendingSyncToNewInterval() {
+        tested.onConnected();
+        scheduler.runPending();
+        final long start = scheduler.now;
+        tested.onSyncFinished(lastSyncId, true);
+
+        interval = 60_000;
+        tested.reschedule();
+
+        assertThat(scheduler.pendingAt - start)
+                .isAtLeast((long) (60_000 * (1 - SyncLoop.JITTER)));
+    }
+
+    @Test
+    public void requestSyncSoon_coalescesBurstIntoOneSync() {
+        tested.onConnected();
+        scheduler.runPending();
+        tested.onSyncFinished(lastSyncId, true);
+
+        tested.requestSyncSoon();
+        scheduler.now += 100;
+        tested.requestSyncSoon();
+        scheduler.now += 100;
+        tested.requestSyncSoon();
+
+        // the first request decides, later ones don't push the sync further out
+        assertThat(scheduler.pendingAt - scheduler.now)
+                .isEqualTo(SyncLoop.URGENT_COALESCE_MILLIS - 200);
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(2);
+    }
+
+    @Test
+    public void requestSyncSoon_whileInFlightSyncsAgainAfterwards() {
+        tested.onConnected();
+        scheduler.runPending();
+
+        tested.requestSyncSoon();
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.SYNC_TIMEOUT_MILLIS);
+
+        tested.onSyncFinished(lastSyncId, true);
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.URGENT_COALESCE_MILLIS);
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(2);
+    }
+
+    @Test
+    public void requestSyncSoon_cadenceContinuesFromUrgentSync() {
+        tested.onConnected();
+        scheduler.runPending();
+        tested.onSyncFinished(lastSyncId, true);
+
+        scheduler.now += 5_000;
+        tested.requestSyncSoon();
+        scheduler.runPending();
+        final long urgentStart = scheduler.now;
+        tested.onSyncFinished(lastSyncId, true);
+
+        assertThat(scheduler.pendingAt - urgentStart)
+                .isAtLeast((long) (INTERVAL * (1 - SyncLoop.JITTER)));
+    }
+
+    @Test
+    public void requestSyncSoon_ignoredWhileCircuitOpen() {
+        tested.onConnected();
+        for (int i = 0; i < SyncLoop.FAILURES_TO_OPEN_CIRCUIT; i++) {
+            scheduler.runPending();
+            tested.onSyncFinished(lastSyncId, false);
+        }
+        final long pendingAt = scheduler.pendingAt;
+
+        tested.requestSyncSoon();
+
+        assertThat(tested.isCircuitOpen()).isTrue();
+        assertThat(scheduler.pendingAt).isEqualTo(pendingAt);
+    }
+
+    @Test
+    public void reschedule_keepsRequestedSync() {
+        tested.onConnected();
+        scheduler.runPending();
+        tested.onSyncFinished(lastSyncId, true);
+
+        tested.requestSyncSoon();
+        interval = 60_000;
+        tested.reschedule();
+
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.URGENT_COALESCE_MILLIS);
+    }
+
+    @Test
+    public void sync_throwingSyncCountsAsFailedOnceTimedOut() {
+        syncFailure = new IllegalStateException("no callback");
+        tested.onConnected();
+        try {
+            scheduler.runPending();
+        } catch (IllegalStateException expected) {
+            // the loop never heard back
+        }
+        syncFailure = null;
+
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.SYNC_TIMEOUT_MILLIS);
+        scheduler.runPending();
+
+        assertThat(tested.getFailureCount()).isEqualTo(1);
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(2);
+    }
+
+    @Test
+    public void onSyncFinished_lateReportOfTimedOutSyncIsIgnored() {
+        tested.onConnected();
+        scheduler.runPending();
+        scheduler.runPending();
+        final long pendingAt = scheduler.pendingAt;
+
+        tested.onSyncFinished(lastSyncId, true);
+
+        assertThat(tested.getFailureCount()).isEqualTo(1);
+        assertThat(scheduler.pendingAt).isEqualTo(pendingAt);
+    }
+
+    @Test
+    public void onSyncFinished_lateReportOfTimedOutSyncDoesNotEndNextSync() {
+        tested.onConnected();
+        scheduler.runPending();
+        final long hungSyncId = lastSyncId;
+        scheduler.runPending();
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(2);
+
+        tested.onSyncFinished(hungSyncId, true);
+
+        // still waiting for the second sync, only its timeout is scheduled
+        assertThat(scheduler.pendingAt - scheduler.now).isEqualTo(SyncLoop.SYNC_TIMEOUT_MILLIS);
+        tested.requestSyncSoon();
+        scheduler.runPending();
+        assertThat(syncStarts).hasSize(2);
+        assertThat(tested.getFailureCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void stop_timeoutStillEndsHangingSync() {
+        tested.onConnected();
+        scheduler.runPending();
+        tested.stop();
+
+        scheduler.runPending();
+        tested.onConnected();
+
+        assertThat(tested.getFailureCount()).isEqualTo(1);
+        assertThat(scheduler.pendingAt - scheduler.now)
+                .isAtMost(SyncLoop.RECONNECT_JITTER_MILLIS);
+    }
+
+    // pending is whatever runs next
+    private static class FakeScheduler implements SyncLoop.Scheduler {
+        long now = 1_000_000;
+        Runnable pending;
+        long pendingAt;
+        private final Map<Runnable, Long> scheduled = new LinkedHashMap<>();
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            scheduled.put(runnable, now + delayMillis);
+            updatePending();
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            scheduled.remove(runnable);
+            updatePending();
+        }
+
+        void runPending() {
+            if (pending == null) {
+                return;
+            }
+            final Runnable runnable = pending;
+            now = Math.max(now, pendingAt);
+            scheduled.remove(runnable);
+            updatePending();
+            runnable.run();
+        }
+
+        private void updatePending() {
+            pending = null;
+            for (Map.Entry<Runnable, Long> entry : scheduled.entrySet()) {
+                if (pending == null || entry.getValue() < pendingAt) {
+                    pending = entry.getKey();
+                    pendingAt = entry.getValue();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package de.stephanlindauer.criticalmaps.tasks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TaskExecutorsTest {
+
+    @Test
+    public void submit_higherPriorityTasksOvertakeQueuedOnes() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        // SYNC has a single thread, block it so the following tasks queue up
+        tested.submit(TaskPool.SYNC, TaskPriority.NORMAL, () -> awaitQuietly(blocker));
+        tested.submit(TaskPool.SYNC, TaskPriority.LOW, () -> order.add("low"));
+        tested.submit(TaskPool.SYNC, TaskPriority.NORMAL, () -> order.add("normal1"));
+        tested.submit(TaskPool.SYNC, TaskPriority.HIGH, () -> order.add("high"));
+        Future<?> last = tested.submit(TaskPool.SYNC, TaskPriority.NORMAL, () -> order.add("normal2"));
+        blocker.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        tested.submit(TaskPool.SYNC, TaskPriority.LOW, () -> { }).get(5, TimeUnit.SECONDS);
+
+        assertThat(order).containsExactly("high", "normal1", "normal2", "low").inOrder();
+    }
+
+    @Test
+    public void submit_busyIoPoolDoesNotDelaySyncPool() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            tested.submit(TaskPool.IO, TaskPriority.NORMAL, () -> awaitQuietly(blocker));
+        }
+        Future<?> sync = tested.submit(TaskPool.SYNC, TaskPriority.HIGH, () -> { });
+
+        sync.get(5, TimeUnit.SECONDS);
+        assertThat(sync.isDone()).isTrue();
+        blocker.countDown();
+    }
+
+    @Test
+    public void cancel_queuedTaskNeverRuns() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+        tested.submit(TaskPool.SYNC, TaskPriority.NORMAL, () -> awaitQuietly(blocker));
+        Future<?> cancelled = tested.submit(TaskPool.SYNC, TaskPriority.NORMAL, () -> ran.add("x"));
+
+        assertThat(tested.cancel(TaskPool.SYNC, cancelled, false)).isTrue();
+        assertThat(tested.getQueuedTaskCount(TaskPool.SYNC)).isEqualTo(0);
+        blocker.countDown();
+        tested.submit(TaskPool.SYNC, TaskPriority.LOW, () -> { }).get(5, TimeUnit.SECONDS);
+
+        assertThat(ran).isEmpty();
+    }
+
+    @Test
+    public void getQueueWaitStats_countsExecutedTasksPerPool() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+
+        tested.submit(TaskPool.CPU, TaskPriority.NORMAL, () -> { }).get(5, TimeUnit.SECONDS);
+        tested.submit(TaskPool.CPU, TaskPriority.NORMAL, () -> { }).get(5, TimeUnit.SECONDS);
+
+        assertThat(tested.getQueueWaitStats(TaskPool.CPU).getTaskCount()).isEqualTo(2);
+        assertThat(tested.getQueueWaitStats(TaskPool.IO).getTaskCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void backgroundTask_resultIsDeliveredAndCancelSuppressesIt() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new BackgroundTask<Void, String>(tested, TaskPool.IO) {
+            @Override
+            protected String doInBackground() {
+                return "result";
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                delivered.add(result);
+                done.countDown();
+            }
+        }.execute();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        tested.submit(TaskPool.SYNC, TaskPriority.HIGH, () -> awaitQuietly(blocker));
+        BackgroundTask<Void, String> cancelled = new BackgroundTask<Void, String>(
+                tested, TaskPool.SYNC, TaskPriority.LOW) {
+            @Override
+            protected String doInBackground() {
+                return "cancelled";
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                delivered.add(result);
+            }
+        };
+        cancelled.execute();
+        cancelled.cancel(false);
+        blocker.countDown();
+        tested.submit(TaskPool.SYNC, TaskPriority.LOW, () -> { }).get(5, TimeUnit.SECONDS);
+
+        assertThat(cancelled.isCancelled()).isTrue();
+        assertThat(delivered).containsExactly("result");
+    }
+
+    @Test
+    public void backgroundTask_exceptionIsDeliveredToOnFailed() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new BackgroundTask<Void, String>(tested, TaskPool.IO) {
+            @Override
+            protected String doInBackground() {
+                throw new IllegalStateException("broken");
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                delivered.add(result);
+            }
+
+            @Override
+            protected void onFailed(RuntimeException e) {
+                delivered.add(e.getMessage());
+                done.countDown();
+            }
+        }.execute();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(delivered).containsExactly("broken");
+    }
+
+    @Test
+    public void backgroundTask_cancelAfterDeliveryDoesNotCallOnCancelled() throws Exception {
+        final TaskExecutors tested = new TaskExecutors(Runnable::run);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        BackgroundTask<Void, String> task = new BackgroundTask<Void, String>(tested, TaskPool.IO) {
+            @Override
+            protected String doInBackground() {
+                return "result";
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                delivered.add(result);
+                done.countDown();
+            }
+
+            @Override
+            protected void onCancelled() {
+                delivered.add("cancelled");
+            }
+        };
+        task.execute();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(task.cancel(false)).isFalse();
+        assertThat(task.isCancelled()).isFalse();
+        assertThat(delivered).containsExactly("result");
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
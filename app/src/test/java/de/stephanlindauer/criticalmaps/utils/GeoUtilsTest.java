@@ -0,0 +1,21 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class GeoUtilsTest {
+    @Test
+    public void distanceMeters_alongMeridian() {
+        // a thousandth of a degree of latitude is about 111 m anywhere
+        assertThat(GeoUtils.distanceMeters(52520000, 13405000, 52521000, 13405000))
+                .isWithin(0.5D).of(111.3D);
+    }
+
+    @Test
+    public void distanceMeters_alongParallelShrinksWithLatitude() {
+        double atEquator = GeoUtils.distanceMeters(0, 13405000, 0, 13406000);
+        double atSixty = GeoUtils.distanceMeters(60000000, 13405000, 60000000, 13406000);
+        assertThat(atSixty).isWithin(0.5D).of(atEquator / 2);
+    }
+}
@@ -0,0 +1,186 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+import org.osmdroid.util.GeoPoint;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import de.stephanlindauer.criticalmaps.model.gpx.GpxModel;
+import de.stephanlindauer.criticalmaps.model.gpx.GpxTrack;
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class GpxReaderTest {
+
+    private static final String GPX_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<gpx version=\"1.1\" creator=\"test\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n";
+    private static final String GPX_END = "</gpx>\n";
+
+    private final GpxReader tested = new GpxReader();
+
+    @Test
+    public void readDataFromStream_tracksAndWaypoints() throws IOException {
+        final String gpx = GPX_START
+                + "<metadata><name>Not a track</name></metadata>\n"
+                + "<wpt lat=\"52.5\" lon=\"13.4\"><ele>34.5</ele><name>Start &amp; Finish</name></wpt>\n"
+                + "<trk><name>Friday ride</name>\n"
+                + "  <trkseg>\n"
+                + "    <trkpt lat=\"52.520008\" lon=\"13.404954\"><ele>34</ele><time>2020</time></trkpt>\n"
+                + "    <trkpt lat='52.5200085' lon='-13.4049545'/>\n"
+                + "  </trkseg>\n"
+                + "  <!-- <trkpt lat=\"1\" lon=\"1\"/> -->\n"
+                + "  <trkseg><trkpt lat=\"-0.5\" lon=\"180\"></trkpt></trkseg>\n"
+                + "</trk>\n"
+                + "<trk><trkseg/></trk>\n"
+                + GPX_END;
+
+        final GpxModel gpxModel = tested.readDataFromStream(stream(gpx), "content://ride.gpx");
+
+        assertThat(gpxModel.getUri()).isEqualTo("content://ride.gpx");
+        assertThat(gpxModel.getTracks()).hasSize(2);
+        final GpxTrack track = gpxModel.getTracks().get(0);
+        assertThat(track.getName()).isEqualTo("Friday ride");
+        assertThat(track.getPointCount()).isEqualTo(3);
+        assertThat(track.getLatitudeE6(0)).isEqualTo(52_520_008);
+        assertThat(track.getLongitudeE6(0)).isEqualTo(13_404_954);
+        assertThat(track.getLatitudeE6(1)).isEqualTo(52_520_009);
+        assertThat(track.getLongitudeE6(1)).isEqualTo(-13_404_955);
+        assertThat(track.getLatitudeE6(2)).isEqualTo(-500_000);
+        assertThat(track.getLongitudeE6(2)).isEqualTo(180_000_000);
+        assertThat(gpxModel.getTracks().get(1).getName()).isNull();
+        assertThat(gpxModel.getTracks().get(1).getPointCount()).isEqualTo(0);
+
+        assertThat(gpxModel.getPoiList()).hasSize(1);
+        assertThat(gpxModel.getPoiList().get(0).getName()).isEqualTo("Start & Finish");
+        final GeoPoint position = gpxModel.getPoiList().get(0).getPosition();
+        assertThat(position.getLatitude()).isEqualTo(52.5);
+        assertThat(position.getLongitude()).isEqualTo(13.4);
+        assertThat(position.getAltitude()).isEqualTo(34.5);
+    }
+
+    @Test
+    public void readDataFromStream_unusualNumbersFallBack() throws IOException {
+        final String gpx = GPX_START
+                + "<trk><trkseg><trkpt lat=\"5.25E1\" lon=\" 13.5\"/></trkseg></trk>\n"
+                + GPX_END;
+
+        final GpxModel gpxModel = tested.readDataFromStream(stream(gpx), "uri");
+
+        final GpxTrack track = gpxModel.getTracks().get(0);
+        assertThat(track.getLatitudeE6(0)).isEqualTo(52_500_000);
+        assertThat(track.getLongitudeE6(0)).isEqualTo(13_500_000);
+    }
+
+    @Test
+    public void readDataFromStream_truncatedFileFails() {
+        try {
+            tested.readDataFromStream(stream(GPX_START + "<trk><trkseg><trkpt lat=\"1\""), "uri");
+            fail();
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readDataFromStream_notGpxFails() {
+        try {
+            tested.readDataFromStream(stream("<kml></kml>"), "uri");
+            fail();
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readDataFromStream_reportsProgressAndCancels() throws IOException {
+        final String gpx = GPX_START + track(new Random(2), 20_000) + GPX_END;
+        final List<Long> progress = new ArrayList<>();
+
+        try {
+            tested.readDataFromStream(stream(gpx), "uri", new GpxReader.Callback() {
+                @Override
+                public void onProgress(long bytesRead) {
+                    progress.add(bytesRead);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return progress.size() == 2;
+                }
+            });
+            fail();
+        } catch (CancellationException expected) {
+            // expected
+        }
+
+        assertThat(progress).hasSize(2);
+        assertThat(progress.get(1)).isGreaterThan(progress.get(0));
+    }
+
+    @Test
+    public void readDataFromStream_sameTrackPointsAsDom() throws Exception {
+        final byte[] gpx = new Buffer()
+                .writeUtf8(GPX_START + track(new Random(20200601L), 2000) + GPX_END)
+                .readByteArray();
+
+        final GpxTrack track = tested.readDataFromStream(new ByteArrayInputStream(gpx), "uri")
+                .getTracks().get(0);
+        final List<GeoPoint> domPoints = readWithDom(new ByteArrayInputStream(gpx));
+
+        assertThat(track.getPointCount()).isEqualTo(domPoints.size());
+        for (int i = 0; i < domPoints.size(); i++) {
+            assertThat(track.getLatitudeE6(i) / 1E6D)
+                    .isWithin(1E-6).of(domPoints.get(i).getLatitude());
+            assertThat(track.getLongitudeE6(i) / 1E6D)
+                    .isWithin(1E-6).of(domPoints.get(i).getLongitude());
+        }
+    }
+
+    // what GpxReader did before, a DOM and a subtree scan per point for the elevation
+    private static List<GeoPoint> readWithDom(InputStream input) throws Exception {
+        final Document document =
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+        final List<GeoPoint> points = new ArrayList<>();
+        final NodeList trackPoints = document.getDocumentElement().getElementsByTagName("trkpt");
+        for (int i = 0; i < trackPoints.getLength(); i++) {
+            final Element point = (Element) trackPoints.item(i);
+            final double lat = Double.parseDouble(point.getAttribute("lat"));
+            final double lon = Double.parseDouble(point.getAttribute("lon"));
+            final NodeList ele = point.getElementsByTagName("ele");
+            points.add(ele.getLength() > 0
+                    ? new GeoPoint(lat, lon, Double.parseDouble(ele.item(0).getTextContent()))
+                    : new GeoPoint(lat, lon));
+        }
+        return points;
+    }
+
+    private static String track(Random random, int points) {
+        final StringBuilder track = new StringBuilder("<trk><name>Synthetic</name><trkseg>\n");
+        for (int i = 0; i < points; i++) {
+            track.append(String.format(Locale.US,
+                    "<trkpt lat=\"%.7f\" lon=\"%.7f\"><ele>%.1f</ele>"
+                            + "<time>2020-06-26T19:%02d:%02dZ</time></trkpt>\n",
+                    52.4 + random.nextDouble() * 0.2, 13.3 + random.nextDouble() * 0.2,
+                    30 + random.nextDouble() * 20, (i / 60) % 60, i % 60));
+        }
+        return track.append("</trkseg></trk>\n").toString();
+    }
+
+    private static InputStream stream(String gpx) {
+        return new ByteArrayInputStream(new Buffer().writeUtf8(gpx).readByteArray());
+    }
+}
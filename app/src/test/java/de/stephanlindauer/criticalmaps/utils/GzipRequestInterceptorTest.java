@@ -0,0 +1,178 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GzipRequestInterceptorTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final GzipRequestInterceptor tested = new GzipRequestInterceptor();
+    private final List<Request> sentRequests = new ArrayList<>();
+    private final List<Integer> responseCodes = new ArrayList<>();
+    private String acceptEncoding;
+
+    @Test
+    public void intercept_sendsUncompressedUntilHostAcceptsGzip() throws IOException {
+        final String json = largeJson();
+
+        tested.intercept(chain(post(JSON, json)));
+        acceptEncoding = "deflate, gzip;q=0.5";
+        tested.intercept(chain(post(JSON, json)));
+        tested.intercept(chain(post(JSON, json)));
+
+        assertThat(sentRequests.get(0).header("Content-Encoding")).isNull();
+        assertThat(utf8(sentRequests.get(0).body())).isEqualTo(json);
+        assertThat(sentRequests.get(1).header("Content-Encoding")).isNull();
+        assertThat(sentRequests.get(2).header("Content-Encoding")).isEqualTo("gzip");
+    }
+
+    @Test
+    public void acceptsGzip_honorsQualityZero() {
+        assertThat(GzipRequestInterceptor.acceptsGzip("gzip")).isTrue();
+        assertThat(GzipRequestInterceptor.acceptsGzip("identity, GZIP ; q=0.8")).isTrue();
+        assertThat(GzipRequestInterceptor.acceptsGzip("gzip;q=0")).isFalse();
+        assertThat(GzipRequestInterceptor.acceptsGzip("gzip; q=0.000")).isFalse();
+        assertThat(GzipRequestInterceptor.acceptsGzip("deflate, x-gzip")).isFalse();
+    }
+
+    @Test
+    public void intercept_compressesLargeJsonBody() throws IOException {
+        final String json = largeJson();
+        advertiseGzip();
+
+        tested.intercept(chain(post(JSON, json)));
+
+        final Request sent = sentRequests.get(0);
+        assertThat(sent.header("Content-Encoding")).isEqualTo("gzip");
+        assertThat(sent.body().contentType().subtype()).isEqualTo("json");
+        assertThat(sent.body().contentLength()).isLessThan((long) json.length() / 4);
+        assertThat(gunzip(sent.body())).isEqualTo(json);
+    }
+
+    @Test
+    public void intercept_keepsBodiesThatDontShrink() throws IOException {
+        advertiseGzip();
+        tested.intercept(chain(post(JSON, "{\"device\":\"a\"}")));
+
+        assertThat(sentRequests.get(0).header("Content-Encoding")).isNull();
+        assertThat(utf8(sentRequests.get(0).body())).isEqualTo("{\"device\":\"a\"}");
+    }
+
+    @Test
+    public void intercept_leavesBinaryBodiesAlone() throws IOException {
+        advertiseGzip();
+        final Request request = post(MediaType.parse("image/jpeg"), largeJson());
+
+        tested.intercept(chain(request));
+
+        assertThat(sentRequests.get(0)).isSameInstanceAs(request);
+    }
+
+    @Test
+    public void intercept_retriesUncompressedWhenHostRejectsGzip() throws IOException {
+        final String json = largeJson();
+        advertiseGzip();
+        responseCodes.add(415);
+
+        final Response response = tested.intercept(chain(post(JSON, json)));
+        tested.intercept(chain(post(JSON, json)));
+
+        assertThat(response.code()).isEqualTo(200);
+        assertThat(sentRequests).hasSize(3);
+        assertThat(sentRequests.get(0).header("Content-Encoding")).isEqualTo("gzip");
+        assertThat(sentRequests.get(1).header("Content-Encoding")).isNull();
+        assertThat(utf8(sentRequests.get(1).body())).isEqualTo(json);
+        assertThat(sentRequests.get(2).header("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void intercept_passesOnServerErrorsOfCompressedRequests() throws IOException {
+        final String json = largeJson();
+        advertiseGzip();
+        responseCodes.add(500);
+
+        final Response response = tested.intercept(chain(post(JSON, json)));
+        tested.intercept(chain(post(JSON, json)));
+
+        assertThat(response.code()).isEqualTo(500);
+        assertThat(sentRequests).hasSize(2);
+        assertThat(sentRequests.get(0).header("Content-Encoding")).isEqualTo("gzip");
+        assertThat(sentRequests.get(1).header("Content-Encoding")).isEqualTo("gzip");
+    }
+
+    // one response that tells the interceptor to go ahead
+    private void advertiseGzip() throws IOException {
+        acceptEncoding = "gzip";
+        tested.intercept(chain(post(JSON, "{}")));
+        sentRequests.clear();
+    }
+
+    private Interceptor.Chain chain(Request request) throws IOException {
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenAnswer(invocation -> {
+            final Request sent = invocation.getArgument(0);
+            sentRequests.add(sent);
+            final int code = responseCodes.isEmpty() ? 200 : responseCodes.remove(0);
+            final Response.Builder response = new Response.Builder()
+                    .request(sent)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(code)
+                    .message("")
+                    .body(ResponseBody.create(JSON, "{}"));
+            if (acceptEncoding != null) {
+                response.header("Accept-Encoding", acceptEncoding);
+            }
+            return response.build();
+        });
+        return chain;
+    }
+
+    private static Request post(MediaType contentType, String body) {
+        return new Request.Builder()
+                .url("https://api.criticalmaps.net/")
+                .post(RequestBody.create(contentType, body))
+                .build();
+    }
+
+    private static String largeJson() {
+        final StringBuilder builder = new StringBuilder("{\"messages\":[");
+        for (int i = 0; i < 200; i++) {
+            builder.append(i > 0 ? "," : "")
+                    .append("{\"text\":\"critical mass\",\"identifier\":\"").append(i).append("\"}");
+        }
+        return builder.append("]}").toString();
+    }
+
+    private static String utf8(RequestBody body) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
+    private static String gunzip(RequestBody body) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return Okio.buffer(new GzipSource(buffer)).readUtf8();
+    }
+}
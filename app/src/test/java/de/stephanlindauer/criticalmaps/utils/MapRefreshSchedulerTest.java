@@ -0,0 +1,73 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MapRefreshSchedulerTest {
+
+    private final List<Runnable> pendingFrames = new ArrayList<>();
+    private final List<Integer> refreshes = new ArrayList<>();
+
+    private final MapRefreshScheduler tested = new MapRefreshScheduler(refreshes::add,
+            new MapRefreshScheduler.FrameSource() {
+                @Override
+                public void postFrame(Runnable frame) {
+                    pendingFrames.add(frame);
+                }
+
+                @Override
+                public void removeFrame(Runnable frame) {
+                    pendingFrames.remove(frame);
+                }
+            });
+
+    @Test
+    public void markDirty_burstWithinFrameRefreshesOnce() {
+        tested.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
+        tested.markDirty(MapRefreshScheduler.LAYER_RIDERS);
+        tested.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
+
+        assertThat(pendingFrames).hasSize(1);
+        assertThat(refreshes).isEmpty();
+
+        runFrame();
+
+        assertThat(refreshes).containsExactly(
+                MapRefreshScheduler.LAYER_OWN_LOCATION | MapRefreshScheduler.LAYER_RIDERS);
+        assertThat(tested.getExecutedRefreshCount()).isEqualTo(1);
+        assertThat(tested.getCoalescedRefreshCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void markDirty_nextFrameOnlyRefreshesNewlyDirtyLayers() {
+        tested.markDirty(MapRefreshScheduler.LAYER_RIDERS);
+        runFrame();
+        tested.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
+        runFrame();
+
+        assertThat(refreshes).containsExactly(
+                MapRefreshScheduler.LAYER_RIDERS, MapRefreshScheduler.LAYER_OWN_LOCATION)
+                .inOrder();
+        assertThat(tested.getCoalescedRefreshCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancel_dropsPendingRefresh() {
+        tested.markDirty(MapRefreshScheduler.LAYER_RIDERS);
+
+        tested.cancel();
+
+        assertThat(pendingFrames).isEmpty();
+        tested.markDirty(MapRefreshScheduler.LAYER_OWN_LOCATION);
+        runFrame();
+        assertThat(refreshes).containsExactly(MapRefreshScheduler.LAYER_OWN_LOCATION);
+    }
+
+    private void runFrame() {
+        pendingFrames.remove(0).run();
+    }
+}
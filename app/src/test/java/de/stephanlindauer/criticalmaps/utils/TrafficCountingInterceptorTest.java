@@ -0,0 +1,72 @@
+package de.stephanlindauer.criticalmaps.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import de.stephanlindauer.criticalmaps.model.NetworkTrafficModel;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TrafficCountingInterceptorTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final NetworkTrafficModel model = new NetworkTrafficModel();
+
+    @Test
+    public void intercept_countsRawAndWireBytesPerEndpoint() throws IOException {
+        final TrafficCountingInterceptor raw = new TrafficCountingInterceptor(model, false);
+        final TrafficCountingInterceptor wire = new TrafficCountingInterceptor(model, true);
+
+        raw.intercept(chain("https://api.criticalmaps.net/?a=1", "0123456789", "abcde"))
+                .body().string();
+        wire.intercept(chain("https://api.criticalmaps.net/?a=2", "01234", "abc"))
+                .body().string();
+        raw.intercept(chain("https://api.criticalmaps.net/gallery/", "01", "a"));
+
+        final NetworkTrafficModel.EndpointTraffic main =
+                model.get(HttpUrl.get("https://api.criticalmaps.net/"));
+        assertThat(main.getCallCount()).isEqualTo(1);
+        assertThat(main.getRequestRawBytes()).isEqualTo(10);
+        assertThat(main.getRequestWireBytes()).isEqualTo(5);
+        assertThat(main.getResponseRawBytes()).isEqualTo(5);
+        assertThat(main.getResponseWireBytes()).isEqualTo(3);
+
+        final NetworkTrafficModel.EndpointTraffic gallery =
+                model.get(HttpUrl.get("https://api.criticalmaps.net/gallery/"));
+        assertThat(gallery.getRequestRawBytes()).isEqualTo(2);
+        // the response body was never read
+        assertThat(gallery.getResponseRawBytes()).isEqualTo(0);
+        assertThat(model.getAll()).hasSize(2);
+    }
+
+    private static Interceptor.Chain chain(String url, String requestBody, String responseBody)
+            throws IOException {
+        final Request request = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(JSON, requestBody))
+                .build();
+        final Interceptor.Chain chain = mock(Interceptor.Chain.class);
+        when(chain.request()).thenReturn(request);
+        when(chain.proceed(any(Request.class))).thenReturn(new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(JSON, responseBody))
+                .build());
+        return chain;
+    }
+}